@@ -1,7 +1,11 @@
 package com.chatapp.client.controller;
 
 import com.chatapp.client.model.*;
+import com.chatapp.client.service.FileDownloader;
+import com.chatapp.client.service.FileUploader;
+import com.chatapp.client.service.MediaStreamProxy;
 import com.chatapp.client.service.NetworkManager;
+import com.chatapp.client.util.ImageCache;
 import com.chatapp.client.util.SessionManager;
 import com.google.gson.Gson;
 import com.google.gson.JsonObject;
@@ -17,20 +21,31 @@ import javafx.scene.Scene;
 import javafx.scene.control.*;
 import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
+import javafx.scene.layout.HBox;
+import javafx.scene.layout.Priority;
 import javafx.scene.layout.VBox;
+import javafx.scene.media.Media;
+import javafx.scene.media.MediaException;
+import javafx.scene.media.MediaPlayer;
+import javafx.scene.media.MediaView;
 import javafx.scene.control.ScrollPane;
 import javafx.stage.FileChooser;
 import javafx.stage.Modality;
 import javafx.stage.Stage;
+import javafx.util.Duration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.util.Base64;
 import java.util.Collections;
 import java.util.List;
+import java.util.function.BooleanSupplier;
 
 public class ChatController {
+    private static final Logger logger = LoggerFactory.getLogger(ChatController.class);
+
     @FXML private Label chatTitleLabel;
     @FXML private ListView<Message> messageListView;
     @FXML private TextArea messageInputArea;
@@ -40,6 +55,7 @@ public class ChatController {
     @FXML private Button videoCallButton;
     @FXML private Button voiceCallButton;
     @FXML private Button addMemberButton;
+    @FXML private Label transferStatusLabel;
 
     private final NetworkManager networkManager;
     private final Gson gson;
@@ -138,14 +154,15 @@ public class ChatController {
                             imageView.setPreserveRatio(true);
                             imageView.setSmooth(true);
 
-                            // Load image from file URL (assuming it's a local file path)
-                            Image image = new Image("file:" + message.getFileUrl());
-                            imageView.setImage(image);
+                            // Bản thu nhỏ 320px từ server; ảnh cũ chưa có bản thu nhỏ thì tải ảnh gốc
+                            String previewUrl = message.getThumbnailUrl(320);
+                            loadImage(imageView, previewUrl != null ? previewUrl : message.getFileUrl(),
+                                    300, 200, () -> getItem() == message);
 
                             // Make it clickable to open full size
                             imageView.setOnMouseClicked(e -> {
                                 if (e.getClickCount() == 2) {
-                                    showFullSizeImage(message.getFileUrl());
+                                    showFullSizeImage(message);
                                 }
                             });
 
@@ -183,7 +200,11 @@ public class ChatController {
                         Hyperlink fileLink = new Hyperlink(icon + formatMessageContent(message));
                         fileLink.setWrapText(true);
                         fileLink.setMaxWidth(400);
-                        fileLink.setOnAction(e -> handleDownloadFile(message));
+                        if (message.getMessageType() == MessageType.AUDIO || message.getMessageType() == MessageType.VIDEO) {
+                            fileLink.setOnAction(e -> showMediaPlayer(message));
+                        } else {
+                            fileLink.setOnAction(e -> handleDownloadFile(message));
+                        }
 
                         if (isMine) {
                             fileLink.setStyle("-fx-background-color: #dcf8c6; -fx-padding: 8; -fx-background-radius: 10;");
@@ -209,8 +230,12 @@ public class ChatController {
                         vbox.getChildren().add(contentLabel);
                     }
 
-                    // Timestamp
-                    Label timeLabel = new Label(message.getSentAt() != null ? message.getSentAt().toString() : "");
+                    // Timestamp (+ read receipt for my messages)
+                    String timeText = message.getSentAt() != null ? message.getSentAt().toString() : "";
+                    if (isMine && message.isRead()) {
+                        timeText += " ✓✓";
+                    }
+                    Label timeLabel = new Label(timeText);
                     timeLabel.setStyle("-fx-font-size: 9; -fx-text-fill: gray;");
                     vbox.getChildren().add(timeLabel);
 
@@ -245,15 +270,35 @@ public class ChatController {
             if (isGroupChat) {
                 if (message.getGroupId() != null && message.getGroupId() == group.getGroupId()) {
                     Platform.runLater(() -> messages.add(message));
+                    markConversationRead(message.getMessageId());
                 }
             } else {
                 if (message.getSenderId() == friend.getUserId() ||
                     (message.getReceiverId() != null && message.getReceiverId() == friend.getUserId())) {
                     Platform.runLater(() -> messages.add(message));
+                    markConversationRead(message.getMessageId());
                 }
             }
         });
 
+        // Friend has read my messages up to messageId
+        networkManager.setNotificationHandler(Protocol.NOTIFY_READ, protocol -> {
+            JsonObject receipt = protocol.getData().getAsJsonObject("data");
+            if (isGroupChat || friend == null || receipt.get("readerId").getAsInt() != friend.getUserId()) {
+                return;
+            }
+            int readUpTo = receipt.get("messageId").getAsInt();
+            int myId = SessionManager.getInstance().getCurrentUserId();
+            Platform.runLater(() -> {
+                for (Message message : messages) {
+                    if (message.getSenderId() == myId && message.getMessageId() <= readUpTo) {
+                        message.setRead(true);
+                    }
+                }
+                messageListView.refresh();
+            });
+        });
+
         // Handle incoming call notification
         networkManager.setNotificationHandler(Protocol.NOTIFY_INCOMING_CALL, protocol -> {
             CallInfo callInfo = gson.fromJson(protocol.getData().get("data"), CallInfo.class);
@@ -276,6 +321,9 @@ public class ChatController {
                 );
                 Collections.reverse(messageList); // Show oldest first
                 messages.setAll(messageList);
+                if (!messageList.isEmpty()) {
+                    markConversationRead(messageList.get(messageList.size() - 1).getMessageId());
+                }
             }
         });
     }
@@ -302,6 +350,9 @@ public class ChatController {
                         System.out.println("DEBUG: Message - sender: " + msg.getSenderName() + ", content: " + msg.getMessageContent());
                     }
                     Collections.reverse(messageList);
+                    if (!messageList.isEmpty()) {
+                        markConversationRead(messageList.get(messageList.size() - 1).getMessageId());
+                    }
                     Platform.runLater(() -> {
                         messages.setAll(messageList);
                         scrollToBottom();
@@ -317,6 +368,20 @@ public class ChatController {
         });
     }
 
+    /**
+     * Advance the read watermark of this conversation up to messageId
+     */
+    private void markConversationRead(int messageId) {
+        JsonObject data = new JsonObject();
+        if (isGroupChat) {
+            data.addProperty("groupId", group.getGroupId());
+        } else {
+            data.addProperty("userId", friend.getUserId());
+        }
+        data.addProperty("messageId", messageId);
+        networkManager.sendNotification(Protocol.ACTION_MARK_READ, data);
+    }
+
     @FXML
     private void handleSendMessage() {
         String content = messageInputArea.getText().trim();
@@ -358,39 +423,27 @@ public class ChatController {
         File file = fileChooser.showOpenDialog(sendFileButton.getScene().getWindow());
 
         if (file != null) {
-            try {
-                byte[] fileBytes = Files.readAllBytes(file.toPath());
-                String base64Data = Base64.getEncoder().encodeToString(fileBytes);
-
-                String fileType = determineFileType(file.getName());
-
-                JsonObject data = new JsonObject();
-                data.addProperty("fileName", file.getName());
-                data.addProperty("fileData", base64Data);
-                data.addProperty("fileType", fileType);
-
-                if (isGroupChat) {
-                    data.addProperty("groupId", group.getGroupId());
-                } else {
-                    data.addProperty("receiverId", friend.getUserId());
-                }
-
-                networkManager.sendRequest(Protocol.ACTION_SEND_FILE, data, response -> {
-                    if (response.isSuccess()) {
-                        Message message = gson.fromJson(response.getData().get("message"), Message.class);
-                        Platform.runLater(() -> {
+            String fileType = determineFileType(file.getName());
+            int receiverId = isGroupChat ? 0 : friend.getUserId();
+            int groupId = isGroupChat ? group.getGroupId() : 0;
+
+            // Gửi theo khúc trên luồng nền; file lớn không chiếm bộ nhớ hay chặn giao diện
+            transferStatusLabel.setText("Uploading " + file.getName() + "...");
+            FileUploader.getInstance().upload(file, fileType, receiverId, groupId,
+                    progress -> Platform.runLater(() -> transferStatusLabel.setText(
+                            String.format("Uploading %s: %d%%", file.getName(), (int) (progress * 100)))))
+                    .whenComplete((response, error) -> Platform.runLater(() -> {
+                        transferStatusLabel.setText("");
+                        if (error != null) {
+                            showAlert("Error", "Failed to send file: " + error.getMessage());
+                        } else if (response.isSuccess()) {
+                            Message message = gson.fromJson(response.getData().get("message"), Message.class);
                             messages.add(message);
                             scrollToBottom();
-                        });
-                        showAlert("Success", "File sent successfully!");
-                    } else {
-                        showAlert("Error", "Failed to send file: " + response.getMessage());
-                    }
-                });
-
-            } catch (IOException e) {
-                showAlert("Error", "Failed to read file: " + e.getMessage());
-            }
+                        } else {
+                            showAlert("Error", "Failed to send file: " + response.getMessage());
+                        }
+                    }));
         }
     }
 
@@ -584,39 +637,28 @@ public class ChatController {
             return;
         }
 
-        // Request file from server
-        JsonObject data = new JsonObject();
-        data.addProperty("filePath", message.getFileUrl());
-
-        networkManager.sendRequest(Protocol.ACTION_RECEIVE_FILE, data, response -> {
-            if (response.isSuccess()) {
-                try {
-                    String base64Data = response.getData().get("fileData").getAsString();
-                    byte[] fileBytes = Base64.getDecoder().decode(base64Data);
+        FileChooser fileChooser = new FileChooser();
+        fileChooser.setTitle("Save File");
+        fileChooser.setInitialFileName(message.getFileName());
+        File saveFile = fileChooser.showSaveDialog(messageListView.getScene().getWindow());
+        if (saveFile == null) {
+            return;
+        }
 
-                    // Show save dialog
-                    Platform.runLater(() -> {
-                        FileChooser fileChooser = new FileChooser();
-                        fileChooser.setTitle("Save File");
-                        fileChooser.setInitialFileName(message.getFileName());
-
-                        File saveFile = fileChooser.showSaveDialog(messageListView.getScene().getWindow());
-                        if (saveFile != null) {
-                            try {
-                                Files.write(saveFile.toPath(), fileBytes);
-                                showAlert("Success", "File downloaded successfully!");
-                            } catch (IOException e) {
-                                showAlert("Error", "Failed to save file: " + e.getMessage());
-                            }
-                        }
-                    });
-                } catch (Exception e) {
-                    showAlert("Error", "Failed to decode file: " + e.getMessage());
-                }
-            } else {
-                showAlert("Error", "Failed to download file: " + response.getMessage());
-            }
-        });
+        // Tải qua kênh nhị phân (nhiều khoảng song song), ghi thẳng ra đĩa
+        transferStatusLabel.setText("Downloading " + message.getFileName() + "...");
+        FileDownloader.getInstance().download(message.getFileUrl(), saveFile.toPath(),
+                progress -> Platform.runLater(() -> transferStatusLabel.setText(
+                        String.format("Downloading %s: %d%%", message.getFileName(), (int) (progress * 100)))))
+                .whenComplete((path, error) -> Platform.runLater(() -> {
+                    transferStatusLabel.setText("");
+                    if (error != null) {
+                        Throwable cause = error.getCause() != null ? error.getCause() : error;
+                        showAlert("Error", "Failed to download file: " + cause.getMessage());
+                    } else {
+                        showAlert("Success", "File downloaded successfully!");
+                    }
+                }));
     }
 
     private void scrollToBottom() {
@@ -627,14 +669,45 @@ public class ChatController {
         });
     }
 
-    private void showFullSizeImage(String imagePath) {
+    /**
+     * Show a stored image: from ImageCache if it was decoded before, otherwise fetched
+     * (FileCache or download channel) and decoded off the FX thread, then set if the view still wants it
+     */
+    private void loadImage(ImageView imageView, String fileUrl, double width, double height,
+                           BooleanSupplier stillShown) {
+        String key = ImageCache.keyOf(fileUrl, width, height);
+        Image cached = ImageCache.getInstance().get(key);
+        if (cached != null) {
+            imageView.setImage(cached);
+            return;
+        }
+
+        FileDownloader.getInstance().fetch(fileUrl)
+                .thenApply(bytes -> new Image(new ByteArrayInputStream(bytes), width, height, true, true))
+                .whenComplete((image, error) -> Platform.runLater(() -> {
+                    if (error != null || image.isError()) {
+                        logger.warn("Failed to load image {}: {}", fileUrl,
+                                error != null ? error.getMessage() : image.getException());
+                        return;
+                    }
+                    ImageCache.getInstance().put(key, image);
+                    if (stillShown.getAsBoolean()) {
+                        imageView.setImage(image);
+                    }
+                }));
+    }
+
+    private void showFullSizeImage(Message message) {
         try {
             Stage imageStage = new Stage();
             imageStage.initModality(Modality.APPLICATION_MODAL);
             imageStage.setTitle("Image Viewer");
 
+            // Bản 1280px là đủ cho cửa sổ xem; ảnh gốc chỉ khi không có bản thu nhỏ
             ImageView fullImageView = new ImageView();
-            fullImageView.setImage(new Image("file:" + imagePath));
+            String imageUrl = message.getThumbnailUrl(1280);
+            loadImage(fullImageView, imageUrl != null ? imageUrl : message.getFileUrl(),
+                    0, 0, imageStage::isShowing);
             fullImageView.setPreserveRatio(true);
             fullImageView.setFitWidth(800);
             fullImageView.setFitHeight(600);
@@ -652,6 +725,98 @@ public class ChatController {
         }
     }
 
+    /**
+     * Play an AUDIO/VIDEO attachment while it downloads: the player reads from the local
+     * streaming proxy, which fetches only the ranges being played or seeked to
+     */
+    private void showMediaPlayer(Message message) {
+        MediaStreamProxy proxy = MediaStreamProxy.getInstance();
+        String streamUrl;
+        MediaPlayer player;
+        try {
+            streamUrl = proxy.register(message.getFileUrl(), message.getFileName());
+        } catch (IOException e) {
+            showAlert("Error", "Cannot start playback: " + e.getMessage());
+            return;
+        }
+        try {
+            player = new MediaPlayer(new Media(streamUrl));
+        } catch (MediaException e) {
+            proxy.unregister(streamUrl);
+            showAlert("Error", "Cannot play " + message.getFileName() + ": " + e.getMessage()
+                    + "\nUse Save to download it instead.");
+            return;
+        }
+
+        Stage playerStage = new Stage();
+        playerStage.setTitle(message.getFileName());
+
+        Button playButton = new Button("⏸");
+        Slider seekSlider = new Slider(0, 1, 0);
+        HBox.setHgrow(seekSlider, Priority.ALWAYS);
+        Label timeLabel = new Label("0:00 / 0:00");
+        Label statusLabel = new Label("Buffering...");
+        statusLabel.setStyle("-fx-font-size: 10; -fx-text-fill: gray;");
+        Button saveButton = new Button("Save...");
+        saveButton.setOnAction(e -> handleDownloadFile(message));
+
+        playButton.setOnAction(e -> {
+            if (player.getStatus() == MediaPlayer.Status.PLAYING) {
+                player.pause();
+            } else {
+                player.play();
+            }
+        });
+        // Tua khi thả chuột (kéo hoặc bấm lên thanh): proxy chỉ tải khúc ở vị trí mới
+        seekSlider.setOnMouseReleased(e -> player.seek(Duration.seconds(seekSlider.getValue())));
+        player.setOnReady(() -> seekSlider.setMax(Math.max(1, player.getTotalDuration().toSeconds())));
+        player.currentTimeProperty().addListener((obs, old, now) -> {
+            if (!seekSlider.isPressed()) {
+                seekSlider.setValue(now.toSeconds());
+            }
+            timeLabel.setText(formatDuration(now) + " / " + formatDuration(player.getTotalDuration()));
+        });
+        player.statusProperty().addListener((obs, old, status) -> {
+            playButton.setText(status == MediaPlayer.Status.PLAYING ? "⏸" : "▶");
+            statusLabel.setText(status == MediaPlayer.Status.STALLED ? "Buffering..." : "");
+        });
+        player.setOnEndOfMedia(() -> {
+            player.pause();
+            player.seek(Duration.ZERO);
+        });
+        player.setOnError(() -> statusLabel.setText("Cannot play: " + player.getError().getMessage()));
+        player.setAutoPlay(true);
+
+        HBox controls = new HBox(8, playButton, seekSlider, timeLabel, saveButton);
+        controls.setStyle("-fx-alignment: center-left; -fx-padding: 8;");
+        VBox root = new VBox(4);
+        if (message.getMessageType() == MessageType.VIDEO) {
+            MediaView mediaView = new MediaView(player);
+            mediaView.setPreserveRatio(true);
+            mediaView.setFitWidth(800);
+            mediaView.setFitHeight(450);
+            root.getChildren().add(mediaView);
+        }
+        root.getChildren().addAll(controls, statusLabel);
+        root.setStyle("-fx-padding: 0 0 6 6;");
+
+        playerStage.setOnHidden(e -> {
+            player.dispose();
+            proxy.unregister(streamUrl);
+        });
+        playerStage.setScene(new Scene(root, message.getMessageType() == MessageType.VIDEO ? 820 : 480,
+                message.getMessageType() == MessageType.VIDEO ? 540 : 80));
+        playerStage.show();
+    }
+
+    private static String formatDuration(Duration duration) {
+        if (duration == null || duration.isUnknown() || duration.isIndefinite()) {
+            return "0:00";
+        }
+        long seconds = (long) duration.toSeconds();
+        return String.format("%d:%02d", seconds / 60, seconds % 60);
+    }
+
     private void showAlert(String title, String message) {
         Platform.runLater(() -> {
             Alert alert = new Alert(Alert.AlertType.INFORMATION);
@@ -56,6 +56,9 @@ public class LoginController {
             if (response.isSuccess()) {
                 User user = gson.fromJson(response.getData().get("user"), User.class);
                 SessionManager.getInstance().setCurrentUser(user);
+                if (response.getData().has("sessionToken")) {
+                    SessionManager.getInstance().setSessionToken(response.getData().get("sessionToken").getAsString());
+                }
 
                 showMessage("Login successful!", true);
 
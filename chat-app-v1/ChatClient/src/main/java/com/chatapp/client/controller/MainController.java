@@ -1,9 +1,12 @@
 package com.chatapp.client.controller;
 
 import com.chatapp.client.model.*;
+import com.chatapp.client.service.AvatarManager;
 import com.chatapp.client.service.NetworkManager;
 import com.chatapp.client.util.SessionManager;
 import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.reflect.TypeToken;
 import javafx.application.Platform;
@@ -14,18 +17,27 @@ import javafx.fxml.FXMLLoader;
 import javafx.scene.Parent;
 import javafx.scene.Scene;
 import javafx.scene.control.*;
+import javafx.scene.image.Image;
+import javafx.scene.image.ImageView;
 import javafx.scene.input.MouseButton;
 import javafx.scene.layout.BorderPane;
 import javafx.scene.layout.StackPane;
 import javafx.scene.layout.VBox;
+import javafx.scene.shape.Circle;
+import javafx.stage.FileChooser;
 import javafx.stage.Modality;
 import javafx.stage.Stage;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 
 public class MainController {
+    @FXML private Label avatarLabel;
     @FXML private Label userNameLabel;
     @FXML private Label userStatusLabel;
     @FXML private Label statusDot;
@@ -47,6 +59,7 @@ public class MainController {
     @FXML private SplitPane mainSplitPane;
 
     private final NetworkManager networkManager;
+    private final AvatarManager avatarManager;
     private final Gson gson;
     private final ObservableList<User> friendsList;
     private final ObservableList<Group> groupsList;
@@ -56,6 +69,7 @@ public class MainController {
 
     public MainController() {
         this.networkManager = NetworkManager.getInstance();
+        this.avatarManager = AvatarManager.getInstance();
         this.gson = new Gson();
         this.friendsList = FXCollections.observableArrayList();
         this.groupsList = FXCollections.observableArrayList();
@@ -81,6 +95,73 @@ public class MainController {
 
         // Set initial status dot color
         updateStatusDotColor(currentUser.getUserStatus().toString());
+
+        avatarManager.setOnLoaded(() -> {
+            updateHeaderAvatar();
+            friendListView.refresh();
+            groupListView.refresh();
+        });
+        avatarManager.loadUsers(Collections.singletonList(currentUser));
+    }
+
+    private void updateHeaderAvatar() {
+        Image avatar = avatarManager.get(SessionManager.getInstance().getCurrentUser().getAvatarUrl());
+        if (avatar != null) {
+            avatarLabel.setGraphic(createAvatarView(avatar, 40));
+            avatarLabel.setContentDisplay(ContentDisplay.GRAPHIC_ONLY);
+        }
+    }
+
+    private static ImageView createAvatarView(Image avatar, double size) {
+        ImageView view = new ImageView(avatar);
+        view.setFitWidth(size);
+        view.setFitHeight(size);
+        view.setSmooth(true);
+        view.setClip(new Circle(size / 2, size / 2, size / 2));
+        return view;
+    }
+
+    @FXML
+    private void handleChangeAvatar() {
+        File file = chooseAvatarFile();
+        if (file == null) {
+            return;
+        }
+
+        avatarManager.uploadAvatar(file, 0, response -> {
+            if (response.isSuccess()) {
+                User currentUser = SessionManager.getInstance().getCurrentUser();
+                currentUser.setAvatarUrl(response.getData().get("avatarUrl").getAsString());
+                avatarManager.loadUsers(Collections.singletonList(currentUser));
+            } else {
+                showAlert("Avatar", response.getMessage());
+            }
+        });
+    }
+
+    private void handleChangeGroupAvatar(Group group) {
+        File file = chooseAvatarFile();
+        if (file == null) {
+            return;
+        }
+
+        // Server chỉ cho admin của nhóm đổi ảnh
+        avatarManager.uploadAvatar(file, group.getGroupId(), response -> {
+            if (response.isSuccess()) {
+                group.setGroupAvatarUrl(response.getData().get("avatarUrl").getAsString());
+                avatarManager.loadGroups(Collections.singletonList(group));
+            } else {
+                showAlert("Group Avatar", response.getMessage());
+            }
+        });
+    }
+
+    private File chooseAvatarFile() {
+        FileChooser fileChooser = new FileChooser();
+        fileChooser.setTitle("Choose Avatar");
+        fileChooser.getExtensionFilters().add(
+                new FileChooser.ExtensionFilter("Images", "*.png", "*.jpg", "*.jpeg", "*.gif", "*.bmp"));
+        return fileChooser.showOpenDialog(avatarLabel.getScene().getWindow());
     }
 
     private void setupStatusComboBox() {
@@ -95,6 +176,8 @@ public class MainController {
     private void setupFriendListView() {
         friendListView.setItems(friendsList);
         friendListView.setCellFactory(param -> new ListCell<User>() {
+            private final ImageView avatarView = createAvatarView(null, 32);
+
             @Override
             protected void updateItem(User user, boolean empty) {
                 super.updateItem(user, empty);
@@ -102,6 +185,8 @@ public class MainController {
                     setText(null);
                     setGraphic(null);
                 } else {
+                    avatarView.setImage(avatarManager.get(user.getAvatarUrl()));
+                    setGraphic(avatarView.getImage() != null ? avatarView : null);
                     setText(user.getFullName() + " (@" + user.getUsername() + ") - " + user.getUserStatus());
                     setStyle(user.getUserStatus() == UserStatus.ONLINE ? "-fx-text-fill: green;" : "");
                 }
@@ -121,17 +206,31 @@ public class MainController {
     private void setupGroupListView() {
         groupListView.setItems(groupsList);
         groupListView.setCellFactory(param -> new ListCell<Group>() {
+            private final ImageView avatarView = createAvatarView(null, 32);
+
             @Override
             protected void updateItem(Group group, boolean empty) {
                 super.updateItem(group, empty);
                 if (empty || group == null) {
                     setText(null);
+                    setGraphic(null);
                 } else {
+                    avatarView.setImage(avatarManager.get(group.getGroupAvatarUrl()));
+                    setGraphic(avatarView.getImage() != null ? avatarView : null);
                     setText(group.getGroupName() + " (" + group.getMemberIds().size() + " members)");
                 }
             }
         });
 
+        MenuItem changeAvatarItem = new MenuItem("Change Group Avatar...");
+        changeAvatarItem.setOnAction(event -> {
+            Group selectedGroup = groupListView.getSelectionModel().getSelectedItem();
+            if (selectedGroup != null) {
+                handleChangeGroupAvatar(selectedGroup);
+            }
+        });
+        groupListView.setContextMenu(new ContextMenu(changeAvatarItem));
+
         groupListView.setOnMouseClicked(event -> {
             if (event.getButton() == MouseButton.PRIMARY && event.getClickCount() == 2) {
                 Group selectedGroup = groupListView.getSelectionModel().getSelectedItem();
@@ -153,6 +252,39 @@ public class MainController {
             updateFriendStatus(user, false);
         });
 
+        networkManager.setNotificationHandler(Protocol.NOTIFY_PRESENCE_BATCH, protocol -> {
+            // Mỗi phần tử là một cặp [userId, status]
+            JsonArray pairs = protocol.getData().getAsJsonArray("presence");
+            Map<Integer, UserStatus> statuses = new HashMap<>();
+            for (JsonElement element : pairs) {
+                JsonArray pair = element.getAsJsonArray();
+                statuses.put(pair.get(0).getAsInt(), UserStatus.valueOf(pair.get(1).getAsString()));
+            }
+            Platform.runLater(() -> updateFriendStatuses(statuses));
+        });
+
+        networkManager.setNotificationHandler(Protocol.NOTIFY_OFFLINE_BATCH, protocol -> {
+            // Mỗi phần tử: [id, type, relatedUserId, relatedGroupId, content, createdAt]
+            JsonArray items = protocol.getData().getAsJsonArray("notifications");
+            int friendRequests = 0;
+            int messages = 0;
+            int calls = 0;
+            for (JsonElement element : items) {
+                String type = element.getAsJsonArray().get(1).getAsString();
+                if ("FRIEND_REQUEST".equals(type)) friendRequests++;
+                else if ("MESSAGE".equals(type)) messages++;
+                else if ("CALL".equals(type)) calls++;
+            }
+
+            StringBuilder summary = new StringBuilder("While you were away:");
+            if (friendRequests > 0) summary.append("\n- ").append(friendRequests).append(" friend request(s)");
+            if (messages > 0) summary.append("\n- New messages in ").append(messages).append(" conversation(s)");
+            if (calls > 0) summary.append("\n- ").append(calls).append(" missed call(s)");
+
+            // Lời mời kết bạn đã được tải lại khi mở cửa sổ chính
+            Platform.runLater(() -> showAlert("Notifications", summary.toString()));
+        });
+
         networkManager.setNotificationHandler(Protocol.NOTIFY_NEW_MESSAGE, protocol -> {
             Platform.runLater(() -> showAlert("New Message", "You have a new message!"));
         });
@@ -173,6 +305,7 @@ public class MainController {
                     new TypeToken<List<User>>(){}.getType()
                 );
                 friendsList.setAll(friends);
+                avatarManager.loadUsers(friends);
             }
         });
     }
@@ -185,6 +318,7 @@ public class MainController {
                     new TypeToken<List<Group>>(){}.getType()
                 );
                 groupsList.setAll(groups);
+                avatarManager.loadGroups(groups);
             }
         });
     }
@@ -483,6 +617,17 @@ public class MainController {
         }
     }
 
+    private void updateFriendStatuses(Map<Integer, UserStatus> statuses) {
+        for (int i = 0; i < friendsList.size(); i++) {
+            User friend = friendsList.get(i);
+            UserStatus status = statuses.get(friend.getUserId());
+            if (status != null) {
+                friend.setUserStatus(status);
+                friendsList.set(i, friend); // Trigger update
+            }
+        }
+    }
+
     private void showAlert(String title, String message) {
         Alert alert = new Alert(Alert.AlertType.INFORMATION);
         alert.setTitle(title);
@@ -23,9 +23,12 @@ public class Protocol {
     // Actions
     public static final String ACTION_LOGIN = "LOGIN";
     public static final String ACTION_REGISTER = "REGISTER";
+    public static final String ACTION_RESUME_SESSION = "RESUME_SESSION";
     public static final String ACTION_LOGOUT = "LOGOUT";
     public static final String ACTION_UPDATE_PROFILE = "UPDATE_PROFILE";
     public static final String ACTION_UPDATE_STATUS = "UPDATE_STATUS";
+    public static final String ACTION_UPLOAD_AVATAR = "UPLOAD_AVATAR";
+    public static final String ACTION_GET_AVATARS = "GET_AVATARS";
 
     public static final String ACTION_SEARCH_USERS = "SEARCH_USERS";
     public static final String ACTION_SEND_FRIEND_REQUEST = "SEND_FRIEND_REQUEST";
@@ -39,6 +42,13 @@ public class Protocol {
     public static final String ACTION_GET_MESSAGES = "GET_MESSAGES";
     public static final String ACTION_SEND_FILE = "SEND_FILE";
     public static final String ACTION_RECEIVE_FILE = "RECEIVE_FILE";
+    public static final String ACTION_UPLOAD_INIT = "UPLOAD_INIT";
+    public static final String ACTION_UPLOAD_CHUNK = "UPLOAD_CHUNK";
+    public static final String ACTION_UPLOAD_COMMIT = "UPLOAD_COMMIT";
+    public static final String ACTION_UPLOAD_CANCEL = "UPLOAD_CANCEL";
+    public static final String ACTION_SEARCH_MESSAGES = "SEARCH_MESSAGES";
+    public static final String ACTION_MARK_READ = "MARK_READ";
+    public static final String ACTION_GET_UNREAD_COUNTS = "GET_UNREAD_COUNTS";
 
     public static final String ACTION_CREATE_GROUP = "CREATE_GROUP";
     public static final String ACTION_JOIN_GROUP = "JOIN_GROUP";
@@ -55,7 +65,10 @@ public class Protocol {
     // Notifications
     public static final String NOTIFY_USER_ONLINE = "NOTIFY_USER_ONLINE";
     public static final String NOTIFY_USER_OFFLINE = "NOTIFY_USER_OFFLINE";
+    public static final String NOTIFY_PRESENCE_BATCH = "NOTIFY_PRESENCE_BATCH";
+    public static final String NOTIFY_OFFLINE_BATCH = "NOTIFY_OFFLINE_BATCH";
     public static final String NOTIFY_NEW_MESSAGE = "NOTIFY_NEW_MESSAGE";
+    public static final String NOTIFY_READ = "NOTIFY_READ";
     public static final String NOTIFY_FRIEND_REQUEST = "NOTIFY_FRIEND_REQUEST";
     public static final String NOTIFY_INCOMING_CALL = "NOTIFY_INCOMING_CALL";
     public static final String NOTIFY_CALL_ACCEPTED = "NOTIFY_CALL_ACCEPTED";
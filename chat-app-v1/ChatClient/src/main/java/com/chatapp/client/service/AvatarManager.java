@@ -0,0 +1,254 @@
+package com.chatapp.client.service;
+
+import com.chatapp.client.model.Group;
+import com.chatapp.client.model.Protocol;
+import com.chatapp.client.model.User;
+import com.chatapp.client.util.ImageCache;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import javafx.application.Platform;
+import javafx.scene.image.Image;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+/**
+ * Ảnh đại diện của user và nhóm trong danh sách.
+ * - URL ảnh đại diện đổi theo nội dung (server đặt tên theo hash), nên ảnh đã tải được dùng mãi:
+ *   giữ trong FileCache (đĩa) và ImageCache (đã giải mã), không hỏi lại server
+ * - Ảnh chưa có được lấy một lần cho cả danh sách (GET_AVATARS, tối đa MAX_PER_REQUEST mỗi lần)
+ * - Đọc cache, giải mã và ghi cache chạy trên luồng nền; các hàm public gọi trên luồng FX
+ */
+public class AvatarManager {
+    private static final Logger logger = LoggerFactory.getLogger(AvatarManager.class);
+    private static AvatarManager instance;
+
+    public static final int LIST_SIZE = 48;
+    private static final int MAX_PER_REQUEST = 100;
+    private static final long MAX_UPLOAD_BYTES = 5 * 1024 * 1024;
+
+    private final NetworkManager networkManager;
+    private final FileCache fileCache;
+    private final ImageCache imageCache;
+    private final ExecutorService worker;
+    // "userIds:5", "groupIds:2"... đang chờ server trả lời, không hỏi lại
+    private final Set<String> pending;
+    private Runnable onLoaded;
+    private Consumer<Protocol> uploadHandler;
+
+    private AvatarManager() {
+        this.networkManager = NetworkManager.getInstance();
+        this.fileCache = FileCache.getInstance();
+        this.imageCache = ImageCache.getInstance();
+        this.pending = new HashSet<>();
+        this.worker = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "avatar-loader");
+            t.setDaemon(true);
+            return t;
+        });
+
+        networkManager.setResponseHandler(Protocol.ACTION_GET_AVATARS, this::handleAvatars);
+        networkManager.setResponseHandler(Protocol.ACTION_UPLOAD_AVATAR, response -> {
+            if (uploadHandler != null) {
+                uploadHandler.accept(response);
+                uploadHandler = null;
+            }
+        });
+    }
+
+    public static synchronized AvatarManager getInstance() {
+        if (instance == null) {
+            instance = new AvatarManager();
+        }
+        return instance;
+    }
+
+    public static String variantUrl(String avatarUrl, int size) {
+        return avatarUrl + "_" + size + ".jpg";
+    }
+
+    /**
+     * Called after avatars were loaded, to redraw the lists
+     */
+    public void setOnLoaded(Runnable onLoaded) {
+        this.onLoaded = onLoaded;
+    }
+
+    /**
+     * List-size avatar if it is already loaded, otherwise null (show a placeholder)
+     */
+    public Image get(String avatarUrl) {
+        return avatarUrl != null ? imageCache.get(keyOf(variantUrl(avatarUrl, LIST_SIZE))) : null;
+    }
+
+    public void loadUsers(List<User> users) {
+        Map<Integer, String> avatarUrls = new LinkedHashMap<>();
+        for (User user : users) {
+            avatarUrls.put(user.getUserId(), user.getAvatarUrl());
+        }
+        load("userIds", avatarUrls);
+    }
+
+    public void loadGroups(List<Group> groups) {
+        Map<Integer, String> avatarUrls = new LinkedHashMap<>();
+        for (Group group : groups) {
+            avatarUrls.put(group.getGroupId(), group.getGroupAvatarUrl());
+        }
+        load("groupIds", avatarUrls);
+    }
+
+    /**
+     * Upload a new avatar for the current user (groupId 0) or a group.
+     * onDone receives the server response on the FX thread.
+     */
+    public void uploadAvatar(File file, int groupId, Consumer<Protocol> onDone) {
+        worker.execute(() -> {
+            JsonObject data = new JsonObject();
+            try {
+                if (file.length() > MAX_UPLOAD_BYTES) {
+                    throw new IOException("Avatar must be smaller than 5 MB");
+                }
+                data.addProperty("imageData", Base64.getEncoder().encodeToString(Files.readAllBytes(file.toPath())));
+            } catch (IOException e) {
+                Platform.runLater(() -> onDone.accept(
+                        Protocol.createResponse(Protocol.ACTION_UPLOAD_AVATAR, false, e.getMessage())));
+                return;
+            }
+            if (groupId > 0) {
+                data.addProperty("groupId", groupId);
+            }
+            Platform.runLater(() -> {
+                uploadHandler = onDone;
+                // Không dùng sendRequest: nó in cả nội dung yêu cầu ra console
+                networkManager.sendNotification(Protocol.ACTION_UPLOAD_AVATAR, data);
+            });
+        });
+    }
+
+    /**
+     * Decode avatars found in the file cache, then ask the server for the rest
+     */
+    private void load(String idsKey, Map<Integer, String> avatarUrls) {
+        Map<Integer, String> wanted = new LinkedHashMap<>();
+        for (Map.Entry<Integer, String> entry : avatarUrls.entrySet()) {
+            if (entry.getValue() != null && get(entry.getValue()) == null
+                    && !pending.contains(idsKey + ":" + entry.getKey())) {
+                wanted.put(entry.getKey(), entry.getValue());
+            }
+        }
+        if (wanted.isEmpty()) return;
+
+        worker.execute(() -> {
+            List<Integer> missing = new ArrayList<>();
+            boolean loaded = false;
+            for (Map.Entry<Integer, String> entry : wanted.entrySet()) {
+                String url = variantUrl(entry.getValue(), LIST_SIZE);
+                Path cached = fileCache.get(url);
+                Image image = null;
+                try {
+                    image = cached != null ? decode(Files.readAllBytes(cached)) : null;
+                } catch (IOException e) {
+                    // vừa bị loại khỏi cache: tải lại
+                }
+                if (image != null) {
+                    imageCache.put(keyOf(url), image);
+                    loaded = true;
+                } else {
+                    missing.add(entry.getKey());
+                }
+            }
+
+            boolean notify = loaded;
+            Platform.runLater(() -> {
+                if (notify) {
+                    notifyLoaded();
+                }
+                request(idsKey, missing);
+            });
+        });
+    }
+
+    private void request(String idsKey, List<Integer> ids) {
+        for (int from = 0; from < ids.size(); from += MAX_PER_REQUEST) {
+            JsonArray batch = new JsonArray();
+            for (int id : ids.subList(from, Math.min(ids.size(), from + MAX_PER_REQUEST))) {
+                if (pending.add(idsKey + ":" + id)) {
+                    batch.add(id);
+                }
+            }
+            if (batch.size() == 0) continue;
+
+            JsonObject data = new JsonObject();
+            data.add(idsKey, batch);
+            data.addProperty("size", LIST_SIZE);
+            networkManager.sendNotification(Protocol.ACTION_GET_AVATARS, data);
+        }
+    }
+
+    private void handleAvatars(Protocol response) {
+        if (!response.isSuccess()) {
+            logger.warn("Could not load avatars: {}", response.getMessage());
+            pending.clear();
+            return;
+        }
+
+        JsonArray avatars = response.getData().getAsJsonArray("avatars");
+        for (JsonElement element : avatars) {
+            JsonObject avatar = element.getAsJsonObject();
+            pending.remove(avatar.has("userId")
+                    ? "userIds:" + avatar.get("userId").getAsInt()
+                    : "groupIds:" + avatar.get("groupId").getAsInt());
+        }
+
+        worker.execute(() -> {
+            boolean loaded = false;
+            for (JsonElement element : avatars) {
+                JsonObject avatar = element.getAsJsonObject();
+                if (!avatar.has("data")) continue;
+
+                String url = avatar.get("url").getAsString();
+                byte[] data = Base64.getDecoder().decode(avatar.get("data").getAsString());
+                Image image = decode(data);
+                if (image != null) {
+                    fileCache.put(url, data);
+                    imageCache.put(keyOf(url), image);
+                    loaded = true;
+                }
+            }
+            if (loaded) {
+                Platform.runLater(this::notifyLoaded);
+            }
+        });
+    }
+
+    private void notifyLoaded() {
+        if (onLoaded != null) {
+            onLoaded.run();
+        }
+    }
+
+    private static Image decode(byte[] data) {
+        Image image = new Image(new ByteArrayInputStream(data), LIST_SIZE, LIST_SIZE, true, true);
+        return image.isError() ? null : image;
+    }
+
+    private static String keyOf(String url) {
+        return ImageCache.keyOf(url, LIST_SIZE, LIST_SIZE);
+    }
+}
@@ -0,0 +1,184 @@
+package com.chatapp.client.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cache file tải từ server trên đĩa (~/.chatapp/cache), giữ qua các lần mở ứng dụng.
+ * - Khóa là fileUrl trên server; file trên server không bao giờ đổi nội dung (lưu theo hash)
+ *   nên không cần kiểm tra lại với server
+ * - Giới hạn dung lượng (mặc định DEFAULT_MAX_MB, đổi bằng -Dchatapp.cache.maxMB=...), loại bỏ LRU;
+ *   thứ tự LRU được lưu bằng thời gian sửa đổi của file nên vẫn đúng sau khi khởi động lại
+ */
+public class FileCache {
+    private static final Logger logger = LoggerFactory.getLogger(FileCache.class);
+    private static FileCache instance;
+
+    private static final String MAX_MB_PROPERTY = "chatapp.cache.maxMB";
+    private static final long DEFAULT_MAX_MB = 512;
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final Path directory;
+    private final long maxBytes;
+    // Tên file trong cache -> kích thước, theo thứ tự truy cập (đầu = lâu nhất)
+    private final LinkedHashMap<String, Long> entries;
+    private long totalBytes;
+
+    private FileCache() {
+        this.directory = Paths.get(System.getProperty("user.home"), ".chatapp", "cache");
+        this.maxBytes = Long.getLong(MAX_MB_PROPERTY, DEFAULT_MAX_MB) * 1024 * 1024;
+        this.entries = new LinkedHashMap<>(256, 0.75f, true);
+        loadIndex();
+    }
+
+    public static synchronized FileCache getInstance() {
+        if (instance == null) {
+            instance = new FileCache();
+        }
+        return instance;
+    }
+
+    /**
+     * Cached copy of a server file, or null
+     */
+    public synchronized Path get(String fileUrl) {
+        String name = nameOf(fileUrl);
+        if (entries.get(name) == null) {
+            return null;
+        }
+
+        Path file = directory.resolve(name);
+        try {
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+            return file;
+        } catch (IOException e) {
+            // File bị xóa bên ngoài ứng dụng
+            totalBytes -= entries.remove(name);
+            return null;
+        }
+    }
+
+    /**
+     * Store downloaded content. Files larger than a quarter of the cache are not kept.
+     */
+    public void put(String fileUrl, byte[] data) {
+        if (!fits(data.length)) return;
+        try {
+            Path temp = Files.createTempFile(directory, "put-", TEMP_SUFFIX);
+            Files.write(temp, data);
+            add(fileUrl, temp, data.length);
+        } catch (IOException e) {
+            logger.warn("Could not cache {}: {}", fileUrl, e.getMessage());
+        }
+    }
+
+    /**
+     * Store a copy of a downloaded file
+     */
+    public void put(String fileUrl, Path source) {
+        try {
+            long size = Files.size(source);
+            if (!fits(size)) return;
+            Path temp = Files.createTempFile(directory, "put-", TEMP_SUFFIX);
+            Files.copy(source, temp, StandardCopyOption.REPLACE_EXISTING);
+            add(fileUrl, temp, size);
+        } catch (IOException e) {
+            logger.warn("Could not cache {}: {}", fileUrl, e.getMessage());
+        }
+    }
+
+    private boolean fits(long size) {
+        return size <= maxBytes / 4;
+    }
+
+    private void add(String fileUrl, Path temp, long size) throws IOException {
+        String name = nameOf(fileUrl);
+        synchronized (this) {
+            Files.move(temp, directory.resolve(name), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Long previous = entries.put(name, size);
+            totalBytes += size - (previous != null ? previous : 0);
+            evictIfNeeded();
+        }
+    }
+
+    private void evictIfNeeded() {
+        Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            try {
+                Files.deleteIfExists(directory.resolve(eldest.getKey()));
+            } catch (IOException e) {
+                logger.warn("Could not evict {}: {}", eldest.getKey(), e.getMessage());
+            }
+            totalBytes -= eldest.getValue();
+            it.remove();
+        }
+    }
+
+    /**
+     * Rebuild the index from the cache directory, least recently used first
+     */
+    private void loadIndex() {
+        List<Path> files = new ArrayList<>();
+        try {
+            Files.createDirectories(directory);
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+                for (Path file : stream) {
+                    if (file.getFileName().toString().endsWith(TEMP_SUFFIX)) {
+                        Files.deleteIfExists(file);
+                    } else if (Files.isRegularFile(file)) {
+                        files.add(file);
+                    }
+                }
+            }
+            files.sort(Comparator.comparing(FileCache::lastModified));
+            for (Path file : files) {
+                long size = Files.size(file);
+                entries.put(file.getFileName().toString(), size);
+                totalBytes += size;
+            }
+            evictIfNeeded();
+            logger.info("File cache: {} files, {} bytes in {}", entries.size(), totalBytes, directory);
+        } catch (IOException e) {
+            logger.warn("Could not read file cache {}: {}", directory, e.getMessage());
+        }
+    }
+
+    private static long lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file).toMillis();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private static String nameOf(String fileUrl) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(fileUrl.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(64);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package com.chatapp.client.service;
+
+import com.chatapp.client.util.SessionManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.DoubleConsumer;
+
+/**
+ * Tải file qua kênh tải nhị phân của server (HTTP, cổng riêng), không qua socket chat.
+ * - File lớn được chia thành nhiều khoảng (Range) tải song song, ghi thẳng vào file tạm
+ * - Khoảng nào bị ngắt thì tải tiếp từ byte đã nhận (If-Range theo ETag để không ghép lẫn hai phiên bản)
+ * - File nhỏ để hiển thị (ảnh thu nhỏ) được tải vào bộ nhớ trên pool riêng, không chờ sau các file lớn
+ * - File đã tải được giữ trong FileCache: tải lại hay xem lại ảnh không đi qua mạng
+ */
+public class FileDownloader {
+    private static final Logger logger = LoggerFactory.getLogger(FileDownloader.class);
+    private static FileDownloader instance;
+
+    private static final int MAX_PARALLEL_RANGES = 4;
+    private static final long MIN_RANGE_SIZE = 4 * 1024 * 1024;
+    private static final int MAX_RANGE_RETRIES = 3;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int FETCH_THREADS = 2;
+    private static final int MAX_FETCH_BYTES = 32 * 1024 * 1024;
+    private static final int TIMEOUT_MILLIS = 15000;
+    private static final String PART_SUFFIX = ".part";
+
+    private final NetworkManager networkManager;
+    private final FileCache fileCache;
+    private final ExecutorService workers;
+    private final ExecutorService fetchers;
+
+    static class FileInfo {
+        final long size;
+        final String etag;
+
+        FileInfo(long size, String etag) {
+            this.size = size;
+            this.etag = etag;
+        }
+    }
+
+    private FileDownloader() {
+        this.networkManager = NetworkManager.getInstance();
+        this.fileCache = FileCache.getInstance();
+
+        AtomicInteger counter = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(MAX_PARALLEL_RANGES, r -> {
+            Thread t = new Thread(r, "file-download-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+
+        AtomicInteger fetchCounter = new AtomicInteger();
+        this.fetchers = Executors.newFixedThreadPool(FETCH_THREADS, r -> {
+            Thread t = new Thread(r, "file-fetch-" + fetchCounter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public static synchronized FileDownloader getInstance() {
+        if (instance == null) {
+            instance = new FileDownloader();
+        }
+        return instance;
+    }
+
+    /**
+     * Download a stored file (the message's fileUrl) to target.
+     * Progress (0..1) is reported from download threads.
+     */
+    public CompletableFuture<Path> download(String fileUrl, Path target, DoubleConsumer progress) {
+        return CompletableFuture.supplyAsync(() -> copyFromCache(fileUrl, target), workers)
+                .thenCompose(copied -> copied != null
+                        ? CompletableFuture.completedFuture(copied)
+                        : downloadRanges(fileUrl, target, progress));
+    }
+
+    private Path copyFromCache(String fileUrl, Path target) {
+        Path cached = fileCache.get(fileUrl);
+        if (cached == null) return null;
+        try {
+            Files.copy(cached, target, StandardCopyOption.REPLACE_EXISTING);
+            return target;
+        } catch (IOException e) {
+            logger.info("Cached copy of {} unusable, downloading: {}", fileUrl, e.getMessage());
+            return null;
+        }
+    }
+
+    private CompletableFuture<Path> downloadRanges(String fileUrl, Path target, DoubleConsumer progress) {
+        Path part = Paths.get(target + PART_SUFFIX);
+        AtomicLong received = new AtomicLong();
+
+        return CompletableFuture.supplyAsync(() -> fetchInfo(fileUrl), workers)
+                .thenCompose(info -> {
+                    try (FileChannel channel = FileChannel.open(part, StandardOpenOption.CREATE,
+                            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                        // Đặt trước kích thước để các khoảng ghi song song vào đúng vị trí
+                        if (info.size > 0) {
+                            channel.write(ByteBuffer.allocate(1), info.size - 1);
+                        }
+                    } catch (IOException e) {
+                        throw new CompletionException(e);
+                    }
+
+                    int ranges = (int) Math.max(1, Math.min(MAX_PARALLEL_RANGES, info.size / MIN_RANGE_SIZE));
+                    long rangeSize = (info.size + ranges - 1) / ranges;
+                    List<CompletableFuture<Void>> futures = new ArrayList<>();
+                    for (long start = 0; start < info.size; start += rangeSize) {
+                        long from = start;
+                        long to = Math.min(start + rangeSize, info.size) - 1;
+                        futures.add(CompletableFuture.runAsync(() -> fetchRange(fileUrl, info, part, from, to,
+                                received, progress), workers));
+                    }
+                    return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]));
+                })
+                .thenApply(done -> {
+                    try {
+                        Files.move(part, target, StandardCopyOption.REPLACE_EXISTING);
+                        fileCache.put(fileUrl, target);
+                        return target;
+                    } catch (IOException e) {
+                        throw new CompletionException(e);
+                    }
+                })
+                .whenComplete((path, error) -> {
+                    if (error != null) {
+                        logger.error("Download of {} failed", fileUrl, error);
+                        try {
+                            Files.deleteIfExists(part);
+                        } catch (IOException e) {
+                            logger.warn("Could not remove {}", part);
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Load a small stored file (e.g. a thumbnail) into memory, from FileCache when possible
+     */
+    public CompletableFuture<byte[]> fetch(String fileUrl) {
+        return CompletableFuture.supplyAsync(() -> {
+            Path cached = fileCache.get(fileUrl);
+            if (cached != null) {
+                try {
+                    return Files.readAllBytes(cached);
+                } catch (IOException e) {
+                    // vừa bị loại khỏi cache: tải lại
+                }
+            }
+
+            try {
+                HttpURLConnection conn = open(fileUrl);
+                try {
+                    if (conn.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                        throw new IOException("Server answered " + conn.getResponseCode());
+                    }
+                    if (conn.getContentLengthLong() > MAX_FETCH_BYTES) {
+                        throw new IOException("File too large to load: " + conn.getContentLengthLong() + " bytes");
+                    }
+                    byte[] data;
+                    try (InputStream in = conn.getInputStream()) {
+                        data = in.readAllBytes();
+                    }
+                    fileCache.put(fileUrl, data);
+                    return data;
+                } finally {
+                    conn.disconnect();
+                }
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, fetchers);
+    }
+
+    /**
+     * Size and ETag of a stored file (HEAD). Throws CompletionException on failure.
+     */
+    FileInfo fetchInfo(String fileUrl) {
+        try {
+            HttpURLConnection conn = open(fileUrl);
+            conn.setRequestMethod("HEAD");
+            try {
+                if (conn.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                    throw new IOException("Server answered " + conn.getResponseCode());
+                }
+                return new FileInfo(conn.getContentLengthLong(), conn.getHeaderField("ETag"));
+            } finally {
+                conn.disconnect();
+            }
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    /**
+     * Fetch bytes [from, to] into the part file, continuing after a broken connection
+     */
+    private void fetchRange(String fileUrl, FileInfo info, Path part, long from, long to,
+                            AtomicLong received, DoubleConsumer progress) {
+        long position = from;
+        int failures = 0;
+
+        try (FileChannel channel = FileChannel.open(part, StandardOpenOption.WRITE)) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (position <= to) {
+                HttpURLConnection conn = open(fileUrl);
+                conn.setRequestProperty("Range", "bytes=" + position + "-" + to);
+                if (info.etag != null) {
+                    conn.setRequestProperty("If-Range", info.etag);
+                }
+                try {
+                    int status = conn.getResponseCode();
+                    if (status != HttpURLConnection.HTTP_PARTIAL) {
+                        // 200 = file đã đổi trên server, không ghép tiếp được; thử lại cũng vô ích
+                        conn.disconnect();
+                        throw new CompletionException(new IOException("Server answered " + status));
+                    }
+                    try (InputStream in = conn.getInputStream()) {
+                        int read;
+                        while (position <= to && (read = in.read(buffer)) != -1) {
+                            ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, read);
+                            while (chunk.hasRemaining()) {
+                                position += channel.write(chunk, position);
+                            }
+                            progress.accept((double) received.addAndGet(read) / info.size);
+                        }
+                        if (position <= to) {
+                            throw new IOException("Connection closed at " + position);
+                        }
+                    }
+                } catch (IOException e) {
+                    if (position > to) break;
+                    if (++failures > MAX_RANGE_RETRIES) {
+                        throw e;
+                    }
+                    logger.info("Range {}-{} of {} interrupted at {}, retrying", from, to, fileUrl, position);
+                }
+            }
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    /**
+     * Connection to the download channel for a stored file, with the session token
+     */
+    HttpURLConnection open(String fileUrl) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(networkManager.getDownloadUrl(fileUrl)).openConnection();
+        conn.setConnectTimeout(TIMEOUT_MILLIS);
+        conn.setReadTimeout(TIMEOUT_MILLIS);
+        conn.setRequestProperty("Authorization", "Bearer " + SessionManager.getInstance().getSessionToken());
+        return conn;
+    }
+}
@@ -0,0 +1,336 @@
+package com.chatapp.client.service;
+
+import com.chatapp.client.model.Protocol;
+import com.google.gson.JsonObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.DoubleConsumer;
+import java.util.zip.CRC32;
+
+/**
+ * Gửi file lên server theo từng khúc (UPLOAD_INIT -> UPLOAD_CHUNK... -> UPLOAD_COMMIT).
+ * - Đọc file từng khúc trên luồng nền, không đọc cả file vào bộ nhớ, không chặn luồng FX
+ * - Tối đa WINDOW khúc đang chờ xác nhận để đường truyền luôn đầy
+ * - Mất kết nối: chờ NetworkManager kết nối lại rồi hỏi server đã nhận bao nhiêu byte và gửi tiếp
+ * - Gửi kèm SHA-256 của file: nếu server đã có nội dung này thì tin nhắn được gửi ngay, không cần upload
+ */
+public class FileUploader {
+    private static final Logger logger = LoggerFactory.getLogger(FileUploader.class);
+    private static FileUploader instance;
+
+    private static final int MAX_PARALLEL_UPLOADS = 3;
+    private static final int WINDOW = 4;
+    private static final long RESPONSE_TIMEOUT_SECONDS = 30;
+    private static final int MAX_RESUME_ATTEMPTS = 5;
+    private static final int MAX_REJECTED_CHUNKS = 5;
+    private static final int HASH_BUFFER_SIZE = 256 * 1024;
+
+    private final NetworkManager networkManager;
+    private final ExecutorService workers;
+    // Phản hồi UPLOAD_INIT đầu tiên được nhận diện bằng ref, các phản hồi sau bằng uploadId
+    private final Map<String, Upload> uploadsByRef;
+    private final Map<String, Upload> uploadsById;
+
+    private static class Upload {
+        final String ref = UUID.randomUUID().toString();
+        final BlockingQueue<Protocol> responses = new LinkedBlockingQueue<>();
+        volatile String uploadId;
+    }
+
+    private FileUploader() {
+        this.networkManager = NetworkManager.getInstance();
+        this.uploadsByRef = new ConcurrentHashMap<>();
+        this.uploadsById = new ConcurrentHashMap<>();
+
+        AtomicInteger counter = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(MAX_PARALLEL_UPLOADS, r -> {
+            Thread t = new Thread(r, "file-upload-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+
+        networkManager.setResponseHandler(Protocol.ACTION_UPLOAD_INIT, this::route);
+        networkManager.setResponseHandler(Protocol.ACTION_UPLOAD_CHUNK, this::route);
+        networkManager.setResponseHandler(Protocol.ACTION_UPLOAD_COMMIT, this::route);
+    }
+
+    public static synchronized FileUploader getInstance() {
+        if (instance == null) {
+            instance = new FileUploader();
+        }
+        return instance;
+    }
+
+    /**
+     * Upload a file to a user (receiverId) or a group (groupId; the other ID is 0).
+     * Completes with the response holding the sent message (UPLOAD_COMMIT, or UPLOAD_INIT when
+     * the server already has the content), or exceptionally.
+     * Progress (0..1) is reported from the upload thread.
+     */
+    public CompletableFuture<Protocol> upload(File file, String fileType, int receiverId, int groupId,
+                                              DoubleConsumer progress) {
+        CompletableFuture<Protocol> result = new CompletableFuture<>();
+        workers.execute(() -> {
+            Upload upload = new Upload();
+            try {
+                result.complete(run(upload, file, fileType, receiverId, groupId, progress));
+            } catch (Exception e) {
+                logger.error("Upload of {} failed", file.getName(), e);
+                cancelQuietly(upload);
+                result.completeExceptionally(e);
+            } finally {
+                uploadsByRef.remove(upload.ref);
+                if (upload.uploadId != null) {
+                    uploadsById.remove(upload.uploadId);
+                }
+            }
+        });
+        return result;
+    }
+
+    private Protocol run(Upload upload, File file, String fileType, int receiverId, int groupId,
+                         DoubleConsumer progress) throws IOException, InterruptedException {
+        long fileSize = file.length();
+        String sha256 = hashFile(file);
+        uploadsByRef.put(upload.ref, upload);
+
+        JsonObject init = new JsonObject();
+        init.addProperty("ref", upload.ref);
+        init.addProperty("fileName", file.getName());
+        init.addProperty("fileType", fileType);
+        init.addProperty("fileSize", fileSize);
+        init.addProperty("sha256", sha256);
+        if (groupId != 0) {
+            init.addProperty("groupId", groupId);
+        } else {
+            init.addProperty("receiverId", receiverId);
+        }
+        networkManager.sendNotification(Protocol.ACTION_UPLOAD_INIT, init);
+
+        Protocol ready;
+        try {
+            ready = await(upload, Protocol.ACTION_UPLOAD_INIT);
+        } catch (TimeoutException e) {
+            throw new IOException("Server did not answer upload request");
+        }
+        if (!ready.isSuccess()) {
+            throw new IOException(ready.getMessage());
+        }
+        if (ready.getData().has("message")) {
+            // Server đã có file này: tin nhắn đã được gửi
+            progress.accept(1.0);
+            return ready;
+        }
+        upload.uploadId = ready.getData().get("uploadId").getAsString();
+        uploadsById.put(upload.uploadId, upload);
+        int chunkSize = ready.getData().get("chunkSize").getAsInt();
+        long confirmed = ready.getData().get("receivedBytes").getAsLong();
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            int resumes = 0;
+            while (true) {
+                try {
+                    confirmed = sendChunks(upload, channel, fileSize, chunkSize, confirmed, progress);
+
+                    JsonObject commit = new JsonObject();
+                    commit.addProperty("uploadId", upload.uploadId);
+                    networkManager.sendNotification(Protocol.ACTION_UPLOAD_COMMIT, commit);
+                    Protocol done = await(upload, Protocol.ACTION_UPLOAD_COMMIT);
+                    if (done.isSuccess() || !done.getData().has("receivedBytes")) {
+                        return done;
+                    }
+                    confirmed = done.getData().get("receivedBytes").getAsLong();
+                } catch (TimeoutException e) {
+                    if (++resumes > MAX_RESUME_ATTEMPTS) {
+                        throw new IOException("Upload stalled");
+                    }
+                    confirmed = resume(upload);
+                }
+            }
+        }
+    }
+
+    /**
+     * Send chunks from the confirmed offset until the server has the whole file.
+     * Returns the confirmed byte count (the file size).
+     */
+    private long sendChunks(Upload upload, FileChannel channel, long fileSize, int chunkSize, long confirmed,
+                            DoubleConsumer progress) throws IOException, InterruptedException, TimeoutException {
+        long next = confirmed;
+        long rewindTo = -1;
+        int inFlight = 0;
+        int rejected = 0;
+
+        while (confirmed < fileSize) {
+            while (rewindTo < 0 && inFlight < WINDOW && next < fileSize) {
+                int length = (int) Math.min(chunkSize, fileSize - next);
+                sendChunk(upload, channel, next, length);
+                next += length;
+                inFlight++;
+            }
+
+            Protocol ack = await(upload, Protocol.ACTION_UPLOAD_CHUNK);
+            inFlight--;
+            if (!ack.getData().has("receivedBytes")) {
+                throw new IOException(ack.getMessage());
+            }
+            long received = ack.getData().get("receivedBytes").getAsLong();
+            if (ack.isSuccess()) {
+                confirmed = Math.max(confirmed, received);
+                progress.accept((double) confirmed / fileSize);
+            } else {
+                // Các khúc đang bay sau khúc lỗi cũng bị từ chối: chờ hết rồi gửi lại từ chỗ server có
+                rewindTo = received;
+            }
+
+            if (rewindTo >= 0 && inFlight == 0) {
+                if (++rejected > MAX_REJECTED_CHUNKS) {
+                    throw new IOException("Too many rejected chunks");
+                }
+                confirmed = rewindTo;
+                next = rewindTo;
+                rewindTo = -1;
+            }
+        }
+        return confirmed;
+    }
+
+    private void sendChunk(Upload upload, FileChannel channel, long offset, int length) throws IOException {
+        byte[] chunk = new byte[length];
+        ByteBuffer buffer = ByteBuffer.wrap(chunk);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("File changed while uploading");
+            }
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(chunk, 0, length);
+
+        JsonObject data = new JsonObject();
+        data.addProperty("uploadId", upload.uploadId);
+        data.addProperty("offset", offset);
+        data.addProperty("crc32", crc.getValue());
+        data.addProperty("data", Base64.getEncoder().encodeToString(chunk));
+        networkManager.sendNotification(Protocol.ACTION_UPLOAD_CHUNK, data);
+    }
+
+    /**
+     * SHA-256 of the file as lowercase hex, read in blocks
+     */
+    private static String hashFile(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-256 not available", e);
+        }
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(HASH_BUFFER_SIZE);
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+
+        StringBuilder hex = new StringBuilder(64);
+        for (byte b : digest.digest()) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Wait for the connection (NetworkManager reconnects by itself), then ask how much the server has
+     */
+    private long resume(Upload upload) throws IOException, InterruptedException {
+        long waitMillis = 1000;
+        for (int attempt = 0; attempt < MAX_RESUME_ATTEMPTS; attempt++) {
+            while (!networkManager.isConnected()) {
+                Thread.sleep(waitMillis);
+                waitMillis = Math.min(waitMillis * 2, 16000);
+            }
+
+            upload.responses.clear();
+            JsonObject data = new JsonObject();
+            data.addProperty("ref", upload.ref);
+            data.addProperty("uploadId", upload.uploadId);
+            networkManager.sendNotification(Protocol.ACTION_UPLOAD_INIT, data);
+            try {
+                Protocol ready = await(upload, Protocol.ACTION_UPLOAD_INIT);
+                if (!ready.isSuccess()) {
+                    throw new IOException(ready.getMessage());
+                }
+                long received = ready.getData().get("receivedBytes").getAsLong();
+                logger.info("Resuming upload {} at {} bytes", upload.uploadId, received);
+                return received;
+            } catch (TimeoutException e) {
+                // Phiên có thể chưa được khôi phục xong: thử lại
+            }
+        }
+        throw new IOException("Could not resume upload");
+    }
+
+    /**
+     * Next response of the given action for this upload; older responses of other actions are dropped
+     */
+    private Protocol await(Upload upload, String action) throws InterruptedException, TimeoutException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(RESPONSE_TIMEOUT_SECONDS);
+        while (true) {
+            long remaining = deadline - System.nanoTime();
+            Protocol response = remaining > 0 ? upload.responses.poll(remaining, TimeUnit.NANOSECONDS) : null;
+            if (response == null) {
+                throw new TimeoutException(action);
+            }
+            if (action.equals(response.getAction())) {
+                return response;
+            }
+        }
+    }
+
+    private void route(Protocol response) {
+        JsonObject data = response.getData();
+        if (data == null) return;
+
+        Upload upload = null;
+        if (data.has("uploadId")) {
+            upload = uploadsById.get(data.get("uploadId").getAsString());
+        }
+        if (upload == null && data.has("ref")) {
+            upload = uploadsByRef.get(data.get("ref").getAsString());
+        }
+        if (upload != null) {
+            upload.responses.add(response);
+        }
+    }
+
+    private void cancelQuietly(Upload upload) {
+        if (upload.uploadId != null && networkManager.isConnected()) {
+            JsonObject data = new JsonObject();
+            data.addProperty("uploadId", upload.uploadId);
+            networkManager.sendNotification(Protocol.ACTION_UPLOAD_CANCEL, data);
+        }
+    }
+}
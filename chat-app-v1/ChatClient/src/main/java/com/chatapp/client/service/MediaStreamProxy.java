@@ -0,0 +1,453 @@
+package com.chatapp.client.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Phát AUDIO/VIDEO trong khi tải: javafx-media đọc file từ một cổng HTTP trên 127.0.0.1,
+ * proxy này lấy từng khúc CHUNK_SIZE từ kênh tải của server bằng Range.
+ * - Phát được ngay khi có khúc đầu tiên; tua tới đâu chỉ tải các khúc ở đó
+ * - Khúc đã tải được giữ trong bộ nhớ (LRU, MAX_CACHED_BYTES), READ_AHEAD_CHUNKS khúc kế tiếp
+ *   được tải trước; nhiều yêu cầu cùng một khúc chờ chung một lần tải
+ * - File đã có trong FileCache được đọc thẳng từ đĩa
+ * - Mỗi file được mở qua một URL chứa mã ngẫu nhiên: tiến trình khác trên máy không dùng
+ *   được phiên đăng nhập của user qua proxy
+ */
+public class MediaStreamProxy {
+    private static final Logger logger = LoggerFactory.getLogger(MediaStreamProxy.class);
+    private static MediaStreamProxy instance;
+
+    private static final int CHUNK_SIZE = 256 * 1024;
+    private static final int READ_AHEAD_CHUNKS = 2;
+    private static final long MAX_CACHED_BYTES = 32L * 1024 * 1024;
+    private static final int MAX_CONNECTIONS = 8;
+    private static final int FETCH_THREADS = 3;
+    private static final int MAX_FETCH_RETRIES = 2;
+    private static final int MAX_HEADER_BYTES = 8192;
+    private static final int IDLE_TIMEOUT_MILLIS = 30000;
+
+    private static final Map<String, String> CONTENT_TYPES = new HashMap<>();
+    static {
+        CONTENT_TYPES.put("mp3", "audio/mpeg");
+        CONTENT_TYPES.put("m4a", "audio/mp4");
+        CONTENT_TYPES.put("aac", "audio/aac");
+        CONTENT_TYPES.put("wav", "audio/x-wav");
+        CONTENT_TYPES.put("aif", "audio/x-aiff");
+        CONTENT_TYPES.put("aiff", "audio/x-aiff");
+        CONTENT_TYPES.put("mp4", "video/mp4");
+        CONTENT_TYPES.put("m4v", "video/x-m4v");
+        CONTENT_TYPES.put("flv", "video/x-flv");
+    }
+
+    private final FileDownloader downloader;
+    private final FileCache fileCache;
+    private final SecureRandom random;
+    // mã trong URL -> file trên server
+    private final ConcurrentHashMap<String, Stream> streams;
+    private final ConcurrentHashMap<String, CompletableFuture<byte[]>> loading;
+    // "<fileUrl>#<chunk>" -> nội dung khúc, theo thứ tự truy cập; bảo vệ bởi khóa của chính nó
+    private final LinkedHashMap<String, byte[]> chunks;
+    private long cachedBytes;
+    private ExecutorService connections;
+    private ExecutorService fetchers;
+    private ServerSocket serverSocket;
+
+    private static class Stream {
+        final String fileUrl;
+        final String contentType;
+        volatile FileDownloader.FileInfo info;
+
+        Stream(String fileUrl, String contentType) {
+            this.fileUrl = fileUrl;
+            this.contentType = contentType;
+        }
+    }
+
+    private MediaStreamProxy() {
+        this.downloader = FileDownloader.getInstance();
+        this.fileCache = FileCache.getInstance();
+        this.random = new SecureRandom();
+        this.streams = new ConcurrentHashMap<>();
+        this.loading = new ConcurrentHashMap<>();
+        this.chunks = new LinkedHashMap<>(64, 0.75f, true);
+    }
+
+    public static synchronized MediaStreamProxy getInstance() {
+        if (instance == null) {
+            instance = new MediaStreamProxy();
+        }
+        return instance;
+    }
+
+    /**
+     * Local URL that plays a stored file (message fileUrl). fileName gives the extension
+     * javafx-media uses to pick the format. Call unregister when the player is closed.
+     */
+    public synchronized String register(String fileUrl, String fileName) throws IOException {
+        if (serverSocket == null) {
+            start();
+        }
+
+        byte[] bytes = new byte[16];
+        random.nextBytes(bytes);
+        StringBuilder token = new StringBuilder(32);
+        for (byte b : bytes) {
+            token.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+
+        String extension = extensionOf(fileName);
+        streams.put(token.toString(), new Stream(fileUrl,
+                CONTENT_TYPES.getOrDefault(extension, "application/octet-stream")));
+        return "http://127.0.0.1:" + serverSocket.getLocalPort() + "/" + token + "/media"
+                + (extension.isEmpty() ? "" : "." + extension);
+    }
+
+    public void unregister(String streamUrl) {
+        String token = tokenOf(streamUrl.substring(streamUrl.indexOf('/', "http://".length())));
+        if (token != null) {
+            streams.remove(token);
+        }
+    }
+
+    private void start() throws IOException {
+        serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+
+        AtomicInteger counter = new AtomicInteger();
+        connections = Executors.newFixedThreadPool(MAX_CONNECTIONS, r -> {
+            Thread t = new Thread(r, "media-proxy-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        AtomicInteger fetchCounter = new AtomicInteger();
+        fetchers = Executors.newFixedThreadPool(FETCH_THREADS, r -> {
+            Thread t = new Thread(r, "media-fetch-" + fetchCounter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+
+        Thread acceptThread = new Thread(this::acceptLoop, "media-proxy-accept");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+        logger.info("Media stream proxy listening on 127.0.0.1:{}", serverSocket.getLocalPort());
+    }
+
+    private void acceptLoop() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                connections.execute(() -> serve(socket));
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    logger.warn("Media stream proxy accept failed: {}", e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * One request per connection ("Connection: close"); the player opens a new one to seek
+     */
+    private void serve(Socket socket) {
+        try (Socket s = socket) {
+            s.setSoTimeout(IDLE_TIMEOUT_MILLIS);
+            InputStream in = new BufferedInputStream(s.getInputStream());
+            OutputStream out = new BufferedOutputStream(s.getOutputStream(), 64 * 1024);
+
+            String requestLine = readLine(in);
+            Map<String, String> headers = new HashMap<>();
+            int headerBytes = 0;
+            String line;
+            while ((line = readLine(in)) != null && !line.isEmpty()) {
+                headerBytes += line.length();
+                if (headerBytes > MAX_HEADER_BYTES) return;
+                int colon = line.indexOf(':');
+                if (colon > 0) {
+                    headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ROOT), line.substring(colon + 1).trim());
+                }
+            }
+            if (requestLine == null) return;
+
+            String[] parts = requestLine.split(" ");
+            boolean head = parts[0].equals("HEAD");
+            if (parts.length < 2 || !(head || parts[0].equals("GET"))) {
+                writeHeaders(out, "405 Method Not Allowed", "Content-Length: 0\r\n");
+                return;
+            }
+            Stream stream = streamFor(parts[1]);
+            if (stream == null) {
+                writeHeaders(out, "404 Not Found", "Content-Length: 0\r\n");
+                return;
+            }
+            respond(stream, head, headers.get("range"), out);
+        } catch (SocketException e) {
+            // trình phát đóng kết nối khi tua hoặc dừng
+        } catch (IOException | CompletionException e) {
+            logger.warn("Media stream request failed: {}", e.getMessage());
+        }
+    }
+
+    private void respond(Stream stream, boolean head, String range, OutputStream out) throws IOException {
+        Path cached = fileCache.get(stream.fileUrl);
+        long size = cached != null ? cached.toFile().length() : info(stream).size;
+
+        long start = 0;
+        long end = size - 1;
+        boolean partial = false;
+        if (range != null) {
+            long[] bounds = parseRange(range, size);
+            if (bounds == null) {
+                writeHeaders(out, "416 Range Not Satisfiable", "Content-Range: bytes */" + size
+                        + "\r\nContent-Length: 0\r\n");
+                return;
+            }
+            start = bounds[0];
+            end = bounds[1];
+            partial = true;
+        }
+
+        StringBuilder headers = new StringBuilder();
+        headers.append("Content-Type: ").append(stream.contentType).append("\r\n");
+        headers.append("Accept-Ranges: bytes\r\n");
+        headers.append("Content-Length: ").append(end - start + 1).append("\r\n");
+        if (partial) {
+            headers.append("Content-Range: bytes ").append(start).append('-').append(end)
+                    .append('/').append(size).append("\r\n");
+        }
+        writeHeaders(out, partial ? "206 Partial Content" : "200 OK", headers.toString());
+        if (head || size == 0) return;
+
+        if (cached != null) {
+            copyFromFile(cached, start, end, out);
+        } else {
+            copyFromChunks(stream, start, end, out);
+        }
+    }
+
+    private static void copyFromFile(Path file, long start, long end, OutputStream out) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            long position = start;
+            while (position <= end) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), end - position + 1));
+                int read = channel.read(buffer, position);
+                if (read < 0) throw new IOException("Cached file truncated");
+                out.write(buffer.array(), 0, read);
+                position += read;
+            }
+            out.flush();
+        }
+    }
+
+    /**
+     * Write bytes [start, end] chunk by chunk as each arrives, fetching the next ones ahead
+     */
+    private void copyFromChunks(Stream stream, long start, long end, OutputStream out) throws IOException {
+        FileDownloader.FileInfo info = info(stream);
+        long position = start;
+        while (position <= end) {
+            long index = position / CHUNK_SIZE;
+            CompletableFuture<byte[]> current = chunkAsync(stream.fileUrl, info, index);
+            for (int ahead = 1; ahead <= READ_AHEAD_CHUNKS && (index + ahead) * CHUNK_SIZE <= end; ahead++) {
+                chunkAsync(stream.fileUrl, info, index + ahead);
+            }
+
+            byte[] chunk = await(current);
+            int offset = (int) (position - index * CHUNK_SIZE);
+            int length = (int) Math.min(chunk.length - offset, end - position + 1);
+            out.write(chunk, offset, length);
+            out.flush();
+            position += length;
+        }
+    }
+
+    private CompletableFuture<byte[]> chunkAsync(String fileUrl, FileDownloader.FileInfo info, long index) {
+        String key = fileUrl + "#" + index;
+        synchronized (chunks) {
+            byte[] cached = chunks.get(key);
+            if (cached != null) {
+                return CompletableFuture.completedFuture(cached);
+            }
+        }
+
+        CompletableFuture<byte[]> load = new CompletableFuture<>();
+        CompletableFuture<byte[]> running = loading.putIfAbsent(key, load);
+        if (running != null) {
+            return running;
+        }
+        fetchers.execute(() -> {
+            try {
+                byte[] data = fetchChunk(fileUrl, info, index);
+                cache(key, data);
+                load.complete(data);
+            } catch (RuntimeException e) {
+                load.completeExceptionally(e);
+            } finally {
+                loading.remove(key, load);
+            }
+        });
+        return load;
+    }
+
+    private byte[] fetchChunk(String fileUrl, FileDownloader.FileInfo info, long index) {
+        long from = index * CHUNK_SIZE;
+        long to = Math.min(info.size, from + CHUNK_SIZE) - 1;
+        byte[] data = new byte[(int) (to - from + 1)];
+        int filled = 0;
+        int failures = 0;
+
+        while (filled < data.length) {
+            try {
+                HttpURLConnection conn = downloader.open(fileUrl);
+                conn.setRequestProperty("Range", "bytes=" + (from + filled) + "-" + to);
+                if (info.etag != null) {
+                    conn.setRequestProperty("If-Range", info.etag);
+                }
+                try {
+                    int status = conn.getResponseCode();
+                    if (status != HttpURLConnection.HTTP_PARTIAL) {
+                        // 200 = file đã đổi trên server, không ghép tiếp được
+                        throw new CompletionException(new IOException("Server answered " + status));
+                    }
+                    try (InputStream in = conn.getInputStream()) {
+                        int read;
+                        while (filled < data.length && (read = in.read(data, filled, data.length - filled)) != -1) {
+                            filled += read;
+                        }
+                    }
+                    if (filled < data.length) {
+                        // Server đóng luồng sớm: tính là một lần lỗi, không lặp vô hạn
+                        throw new IOException("short read");
+                    }
+                } finally {
+                    conn.disconnect();
+                }
+            } catch (IOException e) {
+                if (++failures > MAX_FETCH_RETRIES) {
+                    throw new CompletionException(e);
+                }
+                logger.info("Chunk {} of {} interrupted at {}, retrying", index, fileUrl, from + filled);
+            }
+        }
+        return data;
+    }
+
+    private void cache(String key, byte[] data) {
+        synchronized (chunks) {
+            byte[] previous = chunks.put(key, data);
+            cachedBytes += data.length - (previous != null ? previous.length : 0);
+            Iterator<byte[]> it = chunks.values().iterator();
+            while (cachedBytes > MAX_CACHED_BYTES && it.hasNext()) {
+                cachedBytes -= it.next().length;
+                it.remove();
+            }
+        }
+    }
+
+    private FileDownloader.FileInfo info(Stream stream) {
+        if (stream.info == null) {
+            stream.info = downloader.fetchInfo(stream.fileUrl);
+        }
+        return stream.info;
+    }
+
+    private static byte[] await(CompletableFuture<byte[]> future) throws IOException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Stream of a request path "/<token>/media.<ext>", or null
+     */
+    private Stream streamFor(String path) {
+        String token = tokenOf(path);
+        return token != null ? streams.get(token) : null;
+    }
+
+    private static String tokenOf(String path) {
+        int end = path.indexOf('/', 1);
+        return path.startsWith("/") && end > 1 ? path.substring(1, end) : null;
+    }
+
+    /**
+     * [start, end] of a single "bytes=a-b", "bytes=a-" or "bytes=-n" range, or null if unsatisfiable
+     */
+    private static long[] parseRange(String header, long size) {
+        if (!header.startsWith("bytes=") || header.indexOf(',') >= 0) return null;
+        String spec = header.substring(6).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) return null;
+        try {
+            long start;
+            long end;
+            if (dash == 0) {
+                long suffix = Long.parseLong(spec.substring(1));
+                start = Math.max(0, size - suffix);
+                end = size - 1;
+            } else {
+                start = Long.parseLong(spec.substring(0, dash));
+                end = dash == spec.length() - 1 ? size - 1 : Math.min(size - 1, Long.parseLong(spec.substring(dash + 1)));
+            }
+            return start <= end && start < size ? new long[]{start, end} : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            if (line.size() > MAX_HEADER_BYTES) throw new IOException("Header line too long");
+            if (b != '\r') line.write(b);
+        }
+        return b == -1 && line.size() == 0 ? null : line.toString(StandardCharsets.ISO_8859_1);
+    }
+
+    private static void writeHeaders(OutputStream out, String status, String headers) throws IOException {
+        String response = "HTTP/1.1 " + status + "\r\n" + headers + "Connection: close\r\n\r\n";
+        out.write(response.getBytes(StandardCharsets.ISO_8859_1));
+        out.flush();
+    }
+
+    private static String extensionOf(String fileName) {
+        int dot = fileName != null ? fileName.lastIndexOf('.') : -1;
+        if (dot < 0 || dot == fileName.length() - 1) return "";
+        String extension = fileName.substring(dot + 1).toLowerCase(Locale.ROOT);
+        return extension.matches("[a-z0-9]{1,5}") ? extension : "";
+    }
+}
@@ -1,6 +1,9 @@
 package com.chatapp.client.service;
 
 import com.chatapp.client.model.Protocol;
+import com.chatapp.client.model.User;
+import com.chatapp.client.util.SessionManager;
+import com.google.gson.Gson;
 import com.google.gson.JsonObject;
 import javafx.application.Platform;
 import org.slf4j.Logger;
@@ -21,12 +24,14 @@ public class NetworkManager {
 
     private static final String SERVER_HOST = "localhost";
     private static final int SERVER_PORT = 12345;
+    private static final int DOWNLOAD_PORT = 12346;
+    private static final int MAX_RECONNECT_ATTEMPTS = 5;
 
     private Socket socket;
     private BufferedReader in;
     private PrintWriter out;
     private Thread listenerThread;
-    private boolean connected;
+    private volatile boolean connected;
 
     private final Map<String, Consumer<Protocol>> responseHandlers;
     private final Map<String, Consumer<Protocol>> notificationHandlers;
@@ -129,6 +134,17 @@ public class NetworkManager {
     private void handleConnectionLost() {
         connected = false;
         logger.error("Connection to server lost");
+
+        if (SessionManager.getInstance().getSessionToken() != null) {
+            Thread reconnectThread = new Thread(this::reconnectWithSession, "reconnect");
+            reconnectThread.setDaemon(true);
+            reconnectThread.start();
+            return;
+        }
+        notifyConnectionLost();
+    }
+
+    private void notifyConnectionLost() {
         // Notify UI about connection loss
         Consumer<Protocol> handler = notificationHandlers.get("CONNECTION_LOST");
         if (handler != null) {
@@ -136,6 +152,41 @@ public class NetworkManager {
         }
     }
 
+    /**
+     * Kết nối lại và khôi phục phiên bằng token, không cần nhập lại mật khẩu
+     */
+    private void reconnectWithSession() {
+        long delayMillis = 1000;
+        for (int attempt = 1; attempt <= MAX_RECONNECT_ATTEMPTS; attempt++) {
+            try {
+                Thread.sleep(delayMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+
+            logger.info("Reconnecting to server (attempt {}/{})", attempt, MAX_RECONNECT_ATTEMPTS);
+            if (connect()) {
+                JsonObject data = new JsonObject();
+                data.addProperty("token", SessionManager.getInstance().getSessionToken());
+                sendRequest(Protocol.ACTION_RESUME_SESSION, data, response -> {
+                    if (response.isSuccess()) {
+                        User user = new Gson().fromJson(response.getData().get("user"), User.class);
+                        SessionManager.getInstance().setCurrentUser(user);
+                        logger.info("Session resumed for {}", user.getUsername());
+                    } else {
+                        logger.warn("Session could not be resumed: {}", response.getMessage());
+                        SessionManager.getInstance().setSessionToken(null);
+                        notifyConnectionLost();
+                    }
+                });
+                return;
+            }
+            delayMillis = Math.min(delayMillis * 2, 16000);
+        }
+        Platform.runLater(this::notifyConnectionLost);
+    }
+
     public void sendRequest(String action, JsonObject data, Consumer<Protocol> responseHandler) {
         System.out.println("DEBUG CLIENT: sendRequest called - action: " + action + ", connected: " + connected);
         if (!connected) {
@@ -161,6 +212,14 @@ public class NetworkManager {
         sendRequest(action, new JsonObject(), responseHandler);
     }
 
+    /**
+     * Handle every response to an action, for requests sent with sendNotification
+     * (e.g. upload chunks, where many requests of the same action are in flight)
+     */
+    public void setResponseHandler(String action, Consumer<Protocol> handler) {
+        responseHandlers.put(action, handler);
+    }
+
     public void setNotificationHandler(String notificationType, Consumer<Protocol> handler) {
         notificationHandlers.put(notificationType, handler);
     }
@@ -183,6 +242,13 @@ public class NetworkManager {
         logger.debug("Sent notification: {}", action);
     }
 
+    /**
+     * URL of a stored file (message fileUrl) on the server's download channel
+     */
+    public String getDownloadUrl(String fileUrl) {
+        return "http://" + SERVER_HOST + ":" + DOWNLOAD_PORT + "/" + fileUrl;
+    }
+
     public boolean isConnected() {
         return connected && socket != null && socket.isConnected();
     }
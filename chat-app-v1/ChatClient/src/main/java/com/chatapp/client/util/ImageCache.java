@@ -0,0 +1,64 @@
+package com.chatapp.client.util;
+
+import javafx.scene.image.Image;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache ảnh đã giải mã trong bộ nhớ, LRU, giới hạn theo số byte điểm ảnh (rộng x cao x 4).
+ * Cuộn lại lịch sử chat không phải tải hay giải mã lại ảnh.
+ * Dung lượng mặc định DEFAULT_MAX_MB, đổi bằng -Dchatapp.imageCache.maxMB=...
+ */
+public class ImageCache {
+    private static ImageCache instance;
+
+    private static final String MAX_MB_PROPERTY = "chatapp.imageCache.maxMB";
+    private static final long DEFAULT_MAX_MB = 64;
+
+    private final long maxBytes;
+    private final LinkedHashMap<String, Image> images;
+    private long totalBytes;
+
+    private ImageCache() {
+        this.maxBytes = Long.getLong(MAX_MB_PROPERTY, DEFAULT_MAX_MB) * 1024 * 1024;
+        this.images = new LinkedHashMap<>(128, 0.75f, true);
+    }
+
+    public static synchronized ImageCache getInstance() {
+        if (instance == null) {
+            instance = new ImageCache();
+        }
+        return instance;
+    }
+
+    /**
+     * Key of an image decoded from a server file at a requested size (0 = original size)
+     */
+    public static String keyOf(String fileUrl, double width, double height) {
+        return fileUrl + "@" + (int) width + "x" + (int) height;
+    }
+
+    public synchronized Image get(String key) {
+        return images.get(key);
+    }
+
+    public synchronized void put(String key, Image image) {
+        long size = sizeOf(image);
+        if (size > maxBytes / 4) return;
+
+        Image previous = images.put(key, image);
+        totalBytes += size - (previous != null ? sizeOf(previous) : 0);
+
+        Iterator<Map.Entry<String, Image>> it = images.entrySet().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            totalBytes -= sizeOf(it.next().getValue());
+            it.remove();
+        }
+    }
+
+    private static long sizeOf(Image image) {
+        return (long) image.getWidth() * (long) image.getHeight() * 4;
+    }
+}
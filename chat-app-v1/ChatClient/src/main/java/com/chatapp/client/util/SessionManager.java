@@ -5,6 +5,7 @@ import com.chatapp.client.model.User;
 public class SessionManager {
     private static SessionManager instance;
     private User currentUser;
+    private String sessionToken;
 
     private SessionManager() {
     }
@@ -30,6 +31,18 @@ public class SessionManager {
 
     public void clearSession() {
         this.currentUser = null;
+        this.sessionToken = null;
+    }
+
+    /**
+     * Token dùng cho RESUME_SESSION khi kết nối lại
+     */
+    public void setSessionToken(String sessionToken) {
+        this.sessionToken = sessionToken;
+    }
+
+    public String getSessionToken() {
+        return sessionToken;
     }
 
     public int getCurrentUserId() {
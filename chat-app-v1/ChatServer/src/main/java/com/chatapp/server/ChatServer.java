@@ -1,13 +1,34 @@
 package com.chatapp.server;
 
 import com.chatapp.server.handler.ClientHandler;
+import com.chatapp.server.handler.DownloadServer;
+import com.chatapp.server.handler.PresenceDispatcher;
+import com.chatapp.server.model.CallInfo;
+import com.chatapp.server.model.Protocol;
+import com.chatapp.server.service.BlobStore;
+import com.chatapp.server.service.CallService;
+import com.chatapp.server.service.ConversationWriter;
+import com.chatapp.server.service.HotFileCache;
+import com.chatapp.server.service.MessageSearchIndex;
+import com.chatapp.server.service.MessageStoreFactory;
+import com.chatapp.server.service.NotificationOutbox;
+import com.chatapp.server.service.PresenceService;
+import com.chatapp.server.service.ReadStateService;
+import com.chatapp.server.service.RecentMessageCache;
+import com.chatapp.server.service.ThumbnailService;
+import com.chatapp.server.service.UploadService;
+import com.chatapp.server.service.UserCache;
 import com.chatapp.server.util.DatabaseManager;
+import com.chatapp.server.util.DbExecutor;
+import com.chatapp.server.util.FileIoExecutor;
+import com.chatapp.server.util.PasswordHashingPool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.Collections;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
@@ -17,16 +38,21 @@ public class ChatServer {
     private static final Logger logger = LoggerFactory.getLogger(ChatServer.class);
 
     private static final int PORT = 12345;
+    private static final int DOWNLOAD_PORT = 12346;
     private static final int MAX_THREADS = 100;
 
     private ServerSocket serverSocket;
     private final ExecutorService threadPool;
     private final Map<Integer, ClientHandler> onlineUsers;
+    private final PresenceDispatcher presenceDispatcher;
+    private final DownloadServer downloadServer;
     private volatile boolean running;
 
     public ChatServer() {
         this.threadPool = Executors.newFixedThreadPool(MAX_THREADS);
         this.onlineUsers = new ConcurrentHashMap<>();
+        this.presenceDispatcher = new PresenceDispatcher(onlineUsers);
+        this.downloadServer = new DownloadServer(DOWNLOAD_PORT);
         this.running = true;
     }
 
@@ -40,6 +66,25 @@ public class ChatServer {
             }
             logger.info("Database connection successful");
 
+            // Mở kho tin nhắn trước: lỗi cấu hình làm server dừng ngay
+            MessageStoreFactory.getInstance();
+            MessageSearchIndex.getInstance().start();
+            ReadStateService.getInstance().start();
+            PresenceService.getInstance().start();
+            presenceDispatcher.start();
+            NotificationOutbox.getInstance().start();
+            UploadService.getInstance().start();
+            FileIoExecutor.getInstance().start();
+            BlobStore.getInstance().start();
+            ThumbnailService.getInstance().start();
+            try {
+                downloadServer.start();
+            } catch (IOException e) {
+                logger.error("Could not start download server on port {}", DOWNLOAD_PORT, e);
+                return;
+            }
+            CallService.getInstance().setMissedCallListener(this::notifyMissedCall);
+
             // Start server
             serverSocket = new ServerSocket(PORT);
             logger.info("Chat Server started on port {}", PORT);
@@ -80,6 +125,27 @@ public class ChatServer {
         }
 
         threadPool.shutdown();
+        downloadServer.stop();
+        ConversationWriter.getInstance().shutdown();
+        presenceDispatcher.stop();
+        MessageSearchIndex.getInstance().stop();
+        ReadStateService.getInstance().stop();
+        PresenceService.getInstance().stop();
+        CallService.getInstance().shutdown();
+        NotificationOutbox.getInstance().stop();
+        UploadService.getInstance().stop();
+        BlobStore.getInstance().stop();
+        ThumbnailService.getInstance().stop();
+        HotFileCache.getInstance().logStats();
+        FileIoExecutor.getInstance().logStats();
+        FileIoExecutor.getInstance().shutdown();
+        UserCache.getInstance().logStats();
+        RecentMessageCache.getInstance().logStats();
+        PasswordHashingPool.getInstance().logStats();
+        PasswordHashingPool.getInstance().shutdown();
+        DbExecutor.getInstance().logStats();
+        DbExecutor.getInstance().shutdown();
+        MessageStoreFactory.shutdown();
         DatabaseManager.getInstance().closeConnection();
         logger.info("Server stopped");
     }
@@ -106,7 +172,36 @@ public class ChatServer {
         return onlineUsers.size();
     }
 
+    /**
+     * Read-only view of the online registry (userId -> handler)
+     */
+    public Map<Integer, ClientHandler> getOnlineUsers() {
+        return Collections.unmodifiableMap(onlineUsers);
+    }
+
+    public PresenceDispatcher getPresenceDispatcher() {
+        return presenceDispatcher;
+    }
+
+    /**
+     * Ring timeout: tell both sides the call is over
+     */
+    private void notifyMissedCall(CallInfo call) {
+        Protocol notification = new Protocol(Protocol.NOTIFY_CALL_ENDED);
+        notification.addData("data", call);
+
+        for (int userId : new int[] {call.getCallerId(), call.getReceiverId()}) {
+            ClientHandler handler = onlineUsers.get(userId);
+            if (handler != null) {
+                handler.sendResponse(notification);
+            }
+        }
+    }
+
     public static void main(String[] args) {
+        // Server không có màn hình: ImageIO/Java2D (ảnh thu nhỏ) chạy headless.
+        // Đặt trước mọi lớp AWT; run-server.sh/.bat cũng truyền -Djava.awt.headless=true
+        System.setProperty("java.awt.headless", "true");
         ChatServer server = new ChatServer();
 
         // Add shutdown hook
@@ -3,8 +3,12 @@ package com.chatapp.server.handler;
 import com.chatapp.server.ChatServer;
 import com.chatapp.server.model.*;
 import com.chatapp.server.service.*;
+import com.chatapp.server.util.ConversationKey;
+import com.chatapp.server.util.FileIoExecutor;
 import com.chatapp.server.util.FileUtil;
 import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -12,18 +16,32 @@ import org.slf4j.LoggerFactory;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.PrintWriter;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 public class ClientHandler implements Runnable {
     private static final Logger logger = LoggerFactory.getLogger(ClientHandler.class);
+    private static final int DEFAULT_PAGE_SIZE = 50;
+    private static final int MAX_PAGE_SIZE = 200;
 
     private final Socket clientSocket;
     private final ChatServer server;
     private BufferedReader in;
-    private PrintWriter out;
-    private User currentUser;
+    private volatile ClientWriter writer;
+    private volatile User currentUser;
+    private volatile String sessionToken;
 
     private final Gson gson;
     private final UserService userService;
@@ -31,6 +49,17 @@ public class ClientHandler implements Runnable {
     private final MessageService messageService;
     private final GroupService groupService;
     private final CallService callService;
+    private final ReadStateService readStateService;
+    private final SessionService sessionService;
+    private final NotificationOutbox notificationOutbox;
+    private final UploadService uploadService;
+    private final BlobStore blobStore;
+    private final ThumbnailService thumbnailService;
+    private final HotFileCache hotFileCache;
+    private final FileIoExecutor fileIoExecutor;
+    private final AvatarService avatarService;
+    // Lần ghi khúc upload cuối cùng; chỉ dùng trên luồng đọc của kết nối
+    private CompletableFuture<Void> chunkWrites = CompletableFuture.completedFuture(null);
 
     public ClientHandler(Socket socket, ChatServer server) {
         this.clientSocket = socket;
@@ -40,14 +69,23 @@ public class ClientHandler implements Runnable {
         this.friendService = new FriendService();
         this.messageService = new MessageService();
         this.groupService = new GroupService();
-        this.callService = new CallService();
+        this.callService = CallService.getInstance();
+        this.readStateService = ReadStateService.getInstance();
+        this.sessionService = SessionService.getInstance();
+        this.notificationOutbox = NotificationOutbox.getInstance();
+        this.uploadService = UploadService.getInstance();
+        this.blobStore = BlobStore.getInstance();
+        this.thumbnailService = ThumbnailService.getInstance();
+        this.hotFileCache = HotFileCache.getInstance();
+        this.fileIoExecutor = FileIoExecutor.getInstance();
+        this.avatarService = AvatarService.getInstance();
     }
 
     @Override
     public void run() {
         try {
             in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-            out = new PrintWriter(clientSocket.getOutputStream(), true);
+            writer = new ClientWriter(clientSocket);
 
             logger.info("Client connected: {}", clientSocket.getInetAddress());
 
@@ -77,6 +115,9 @@ public class ClientHandler implements Runnable {
                 case Protocol.ACTION_LOGIN:
                     handleLogin(data);
                     break;
+                case Protocol.ACTION_RESUME_SESSION:
+                    handleResumeSession(data);
+                    break;
                 case Protocol.ACTION_LOGOUT:
                     handleLogout();
                     break;
@@ -86,6 +127,12 @@ public class ClientHandler implements Runnable {
                 case Protocol.ACTION_UPDATE_STATUS:
                     handleUpdateStatus(data);
                     break;
+                case Protocol.ACTION_UPLOAD_AVATAR:
+                    handleUploadAvatar(data);
+                    break;
+                case Protocol.ACTION_GET_AVATARS:
+                    handleGetAvatars(data);
+                    break;
                 case Protocol.ACTION_SEARCH_USERS:
                     handleSearchUsers(data);
                     break;
@@ -119,6 +166,27 @@ public class ClientHandler implements Runnable {
                 case Protocol.ACTION_RECEIVE_FILE:
                     handleReceiveFile(data);
                     break;
+                case Protocol.ACTION_UPLOAD_INIT:
+                    handleUploadInit(data);
+                    break;
+                case Protocol.ACTION_UPLOAD_CHUNK:
+                    handleUploadChunk(data);
+                    break;
+                case Protocol.ACTION_UPLOAD_COMMIT:
+                    handleUploadCommit(data);
+                    break;
+                case Protocol.ACTION_UPLOAD_CANCEL:
+                    handleUploadCancel(data);
+                    break;
+                case Protocol.ACTION_SEARCH_MESSAGES:
+                    handleSearchMessages(data);
+                    break;
+                case Protocol.ACTION_MARK_READ:
+                    handleMarkRead(data);
+                    break;
+                case Protocol.ACTION_GET_UNREAD_COUNTS:
+                    handleGetUnreadCounts();
+                    break;
                 case Protocol.ACTION_CREATE_GROUP:
                     handleCreateGroup(data);
                     break;
@@ -164,50 +232,99 @@ public class ClientHandler implements Runnable {
         String password = data.get("password").getAsString();
         String fullName = data.get("fullName").getAsString();
 
-        if (userService.usernameExists(username)) {
-            sendResponse(Protocol.createResponse(Protocol.ACTION_REGISTER, false, "Username already exists"));
-            return;
-        }
-
-        if (userService.emailExists(email)) {
-            sendResponse(Protocol.createResponse(Protocol.ACTION_REGISTER, false, "Email already exists"));
-            return;
-        }
-
-        User user = userService.registerUser(username, email, password, fullName);
-        if (user != null) {
-            JsonObject responseData = new JsonObject();
-            responseData.add("user", gson.toJsonTree(user));
-            sendResponse(Protocol.createResponse(Protocol.ACTION_REGISTER, true, "Registration successful", responseData));
-        } else {
-            sendResponse(Protocol.createResponse(Protocol.ACTION_REGISTER, false, "Registration failed"));
-        }
+        CompletableFuture<Protocol> response = userService.usernameExistsAsync(username)
+                .thenCombine(userService.emailExistsAsync(email), (usernameTaken, emailTaken) ->
+                        usernameTaken ? "Username already exists" : emailTaken ? "Email already exists" : null)
+                .thenCompose(conflict -> {
+                    if (conflict != null) {
+                        return CompletableFuture.completedFuture(
+                                Protocol.createResponse(Protocol.ACTION_REGISTER, false, conflict));
+                    }
+                    return userService.registerUserAsync(username, email, password, fullName).thenApply(user -> {
+                        if (user == null) {
+                            return Protocol.createResponse(Protocol.ACTION_REGISTER, false, "Registration failed");
+                        }
+                        JsonObject responseData = new JsonObject();
+                        responseData.add("user", gson.toJsonTree(user));
+                        return Protocol.createResponse(Protocol.ACTION_REGISTER, true, "Registration successful", responseData);
+                    });
+                });
+
+        whenDone(Protocol.ACTION_REGISTER, response, this::sendResponse);
     }
 
     private void handleLogin(JsonObject data) {
         String username = data.get("username").getAsString();
         String password = data.get("password").getAsString();
 
-        User user = userService.loginUser(username, password);
-        if (user != null) {
-            this.currentUser = user;
-            server.addOnlineUser(user.getUserId(), this);
+        // BCrypt chạy trên PasswordHashingPool, luồng kết nối không bị giữ
+        userService.loginUserAsync(username, password).whenComplete((user, error) -> {
+            if (error != null) {
+                logger.warn("Login for {} could not be processed: {}", username, error.getMessage());
+                sendResponse(Protocol.createResponse(Protocol.ACTION_LOGIN, false, "Server busy, please try again"));
+            } else if (user != null) {
+                whenDone(Protocol.ACTION_LOGIN, sessionService.createSessionAsync(user.getUserId(),
+                        clientSocket.getInetAddress().getHostAddress()),
+                        token -> completeLogin(Protocol.ACTION_LOGIN, user, token));
+            } else {
+                sendResponse(Protocol.createResponse(Protocol.ACTION_LOGIN, false, "Invalid credentials"));
+            }
+        });
+    }
 
-            JsonObject responseData = new JsonObject();
-            responseData.add("user", gson.toJsonTree(user));
-            sendResponse(Protocol.createResponse(Protocol.ACTION_LOGIN, true, "Login successful", responseData));
+    private void handleResumeSession(JsonObject data) {
+        String token = data.has("token") ? data.get("token").getAsString() : null;
+        CompletableFuture<User> resumed = sessionService.resolveAsync(token)
+                .thenCompose(userId -> userId > 0
+                        ? userService.resumeSessionAsync(userId)
+                        : CompletableFuture.completedFuture(null));
 
-            // Notify friends that user is online
-            notifyFriendsOnlineStatus(true);
-        } else {
-            sendResponse(Protocol.createResponse(Protocol.ACTION_LOGIN, false, "Invalid credentials"));
+        whenDone(Protocol.ACTION_RESUME_SESSION, resumed, user -> {
+            if (user != null) {
+                completeLogin(Protocol.ACTION_RESUME_SESSION, user, token);
+            } else {
+                sendResponse(Protocol.createResponse(Protocol.ACTION_RESUME_SESSION, false, "Session expired"));
+            }
+        });
+    }
+
+    private void completeLogin(String action, User user, String token) {
+        this.currentUser = user;
+        this.sessionToken = token;
+
+        JsonObject responseData = new JsonObject();
+        responseData.add("user", gson.toJsonTree(user));
+        if (token != null) {
+            responseData.addProperty("sessionToken", token);
+        }
+
+        // Thông báo nhận được khi offline: truy vấn DB ngoài khóa, dưới khóa (cùng khóa với notifyUser)
+        // chỉ lấy phần phát sinh thêm rồi đăng ký online, nên không thông báo nào bị mất hay đến trước
+        NotificationOutbox.Drained drained = notificationOutbox.drainPending(user.getUserId());
+        synchronized (notificationOutbox.lockFor(user.getUserId())) {
+            sendResponse(Protocol.createResponse(action, true, "Login successful", responseData));
+
+            JsonArray pendingNotifications = drained.getItems();
+            pendingNotifications.addAll(notificationOutbox.drainPendingSince(user.getUserId(), drained).getItems());
+            if (pendingNotifications.size() > 0) {
+                Protocol batch = new Protocol(Protocol.NOTIFY_OFFLINE_BATCH);
+                batch.addData("notifications", pendingNotifications);
+                sendResponse(batch);
+            }
+            server.addOnlineUser(user.getUserId(), this);
         }
+
+        // Notify friends that user is online
+        notifyFriendsOnlineStatus(true);
     }
 
     private void handleLogout() {
         if (currentUser != null) {
+            sessionService.revokeAsync(sessionToken);
+            sessionToken = null;
             userService.logoutUser(currentUser.getUserId());
             server.removeOnlineUser(currentUser.getUserId());
+            readStateService.evict(currentUser.getUserId());
             notifyFriendsOnlineStatus(false);
             sendResponse(Protocol.createResponse(Protocol.ACTION_LOGOUT, true, "Logout successful"));
         }
@@ -222,9 +339,10 @@ public class ClientHandler implements Runnable {
         String fullName = data.get("fullName").getAsString();
         String statusMessage = data.get("statusMessage").getAsString();
 
-        boolean success = userService.updateProfile(currentUser.getUserId(), fullName, statusMessage);
-        sendResponse(Protocol.createResponse(Protocol.ACTION_UPDATE_PROFILE, success,
-                success ? "Profile updated" : "Update failed"));
+        whenDone(Protocol.ACTION_UPDATE_PROFILE,
+                userService.updateProfileAsync(currentUser.getUserId(), fullName, statusMessage),
+                success -> sendResponse(Protocol.createResponse(Protocol.ACTION_UPDATE_PROFILE, success,
+                        success ? "Profile updated" : "Update failed")));
     }
 
     private void handleUpdateStatus(JsonObject data) {
@@ -242,13 +360,144 @@ public class ClientHandler implements Runnable {
                 success ? "Status updated" : "Update failed"));
     }
 
+    private void handleUploadAvatar(JsonObject data) {
+        if (currentUser == null) {
+            sendResponse(Protocol.createResponse(Protocol.ACTION_UPLOAD_AVATAR, false, "Not logged in"));
+            return;
+        }
+
+        byte[] imageData;
+        try {
+            imageData = Base64.getDecoder().decode(data.get("imageData").getAsString());
+        } catch (IllegalArgumentException e) {
+            sendResponse(Protocol.createResponse(Protocol.ACTION_UPLOAD_AVATAR, false, "Invalid image data"));
+            return;
+        }
+        if (imageData.length > AvatarService.MAX_AVATAR_BYTES) {
+            sendResponse(Protocol.createResponse(Protocol.ACTION_UPLOAD_AVATAR, false, "Avatar too large (max 5 MB)"));
+            return;
+        }
+
+        User user = currentUser;
+        if (!data.has("groupId")) {
+            storeAvatar(imageData, avatarUrl -> userService.updateAvatarAsync(user.getUserId(), avatarUrl)
+                    .thenApply(saved -> {
+                        if (saved) {
+                            user.setAvatarUrl(avatarUrl);
+                        }
+                        return saved;
+                    }));
+            return;
+        }
+
+        // Ảnh đại diện nhóm: chỉ admin được đổi, kiểm tra trước khi xử lý ảnh
+        int groupId = data.get("groupId").getAsInt();
+        whenDone(Protocol.ACTION_UPLOAD_AVATAR, groupService.isAdminAsync(groupId, user.getUserId()), admin -> {
+            if (!admin) {
+                sendResponse(Protocol.createResponse(Protocol.ACTION_UPLOAD_AVATAR, false,
+                        "Only group admins can change the group avatar"));
+                return;
+            }
+            storeAvatar(imageData, avatarUrl -> groupService.updateGroupAvatarAsync(groupId, avatarUrl));
+        });
+    }
+
+    /**
+     * Resize and store an uploaded avatar, then save its URL with the given update
+     */
+    private void storeAvatar(byte[] imageData, Function<String, CompletableFuture<Boolean>> save) {
+        whenDone(Protocol.ACTION_UPLOAD_AVATAR, avatarService.storeAsync(imageData), avatarUrl -> {
+            if (avatarUrl == null) {
+                sendResponse(Protocol.createResponse(Protocol.ACTION_UPLOAD_AVATAR, false, "Not a supported image"));
+                return;
+            }
+            whenDone(Protocol.ACTION_UPLOAD_AVATAR, save.apply(avatarUrl), saved -> {
+                if (saved) {
+                    JsonObject responseData = new JsonObject();
+                    responseData.addProperty("avatarUrl", avatarUrl);
+                    sendResponse(Protocol.createResponse(Protocol.ACTION_UPLOAD_AVATAR, true, "Avatar updated", responseData));
+                } else {
+                    sendResponse(Protocol.createResponse(Protocol.ACTION_UPLOAD_AVATAR, false, "Failed to update avatar"));
+                }
+            });
+        });
+    }
+
+    /**
+     * Small avatars of many users/groups (one list page) in one response:
+     * {"avatars": [{"userId"|"groupId", "url", "data"}]}. Entries without url have no avatar.
+     */
+    private void handleGetAvatars(JsonObject data) {
+        if (currentUser == null) return;
+
+        List<Integer> userIds = readIds(data, "userIds");
+        List<Integer> groupIds = readIds(data, "groupIds");
+        if (userIds.size() + groupIds.size() > AvatarService.MAX_AVATARS_PER_REQUEST) {
+            sendResponse(Protocol.createResponse(Protocol.ACTION_GET_AVATARS, false, "Too many avatars requested"));
+            return;
+        }
+        int size = AvatarService.nearestSize(data.has("size") ? data.get("size").getAsInt() : AvatarService.SIZES[0]);
+
+        CompletableFuture<List<User>> users = userService.getUsersByIdsAsync(userIds);
+        CompletableFuture<Map<Integer, String>> groupAvatarUrls = groupService.getGroupAvatarUrlsAsync(groupIds);
+        CompletableFuture<JsonArray> avatars = CompletableFuture.allOf(users, groupAvatarUrls)
+                .thenCompose(ignored -> fileIoExecutor.supply("avatar-read", () -> {
+                    JsonArray result = new JsonArray();
+                    for (User user : users.join()) {
+                        result.add(avatarEntry("userId", user.getUserId(), user.getAvatarUrl(), size));
+                    }
+                    for (int groupId : groupIds) {
+                        result.add(avatarEntry("groupId", groupId, groupAvatarUrls.join().get(groupId), size));
+                    }
+                    return result;
+                }));
+
+        whenDone(Protocol.ACTION_GET_AVATARS, avatars, result -> {
+            JsonObject responseData = new JsonObject();
+            responseData.addProperty("size", size);
+            responseData.add("avatars", result);
+            sendResponse(Protocol.createResponse(Protocol.ACTION_GET_AVATARS, true, "Avatars retrieved", responseData));
+        });
+    }
+
+    private JsonObject avatarEntry(String idKey, int id, String avatarUrl, int size) {
+        JsonObject entry = new JsonObject();
+        entry.addProperty(idKey, id);
+        String avatarData = avatarService.readVariantBase64(avatarUrl, size);
+        if (avatarData != null) {
+            entry.addProperty("url", AvatarService.variantUrl(avatarUrl, size));
+            entry.addProperty("data", avatarData);
+        }
+        return entry;
+    }
+
+    private static List<Integer> readIds(JsonObject data, String key) {
+        List<Integer> ids = new ArrayList<>();
+        if (data.has(key)) {
+            for (JsonElement id : data.getAsJsonArray(key)) {
+                ids.add(id.getAsInt());
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Page size requested by the client, clamped to 1..MAX_PAGE_SIZE
+     */
+    private static int readLimit(JsonObject data) {
+        int limit = data.has("limit") ? data.get("limit").getAsInt() : DEFAULT_PAGE_SIZE;
+        return Math.max(1, Math.min(limit, MAX_PAGE_SIZE));
+    }
+
     private void handleSearchUsers(JsonObject data) {
         String keyword = data.get("keyword").getAsString();
-        List<User> users = userService.searchUsers(keyword);
+        int requesterId = currentUser != null ? currentUser.getUserId() : -1;
 
-        JsonObject responseData = new JsonObject();
-        responseData.add("users", gson.toJsonTree(users));
-        sendResponse(Protocol.createResponse(Protocol.ACTION_SEARCH_USERS, true, "Search completed", responseData));
+        whenDone(Protocol.ACTION_SEARCH_USERS, userService.searchUsersAsync(keyword, requesterId), users -> {
+            JsonObject responseData = new JsonObject();
+            responseData.add("users", gson.toJsonTree(users));
+            sendResponse(Protocol.createResponse(Protocol.ACTION_SEARCH_USERS, true, "Search completed", responseData));
+        });
     }
 
     private void handleSendFriendRequest(JsonObject data) {
@@ -257,77 +506,79 @@ public class ClientHandler implements Runnable {
         int receiverId = data.get("receiverId").getAsInt();
         logger.info("User {} sending friend request to user {}", currentUser.getUserId(), receiverId);
 
-        FriendRequest request = friendService.sendFriendRequest(currentUser.getUserId(), receiverId);
-
-        if (request != null) {
-            JsonObject responseData = new JsonObject();
-            responseData.add("request", gson.toJsonTree(request));
-            sendResponse(Protocol.createResponse(Protocol.ACTION_SEND_FRIEND_REQUEST, true, "Friend request sent", responseData));
+        int senderId = currentUser.getUserId();
+        whenDone(Protocol.ACTION_SEND_FRIEND_REQUEST, friendService.sendFriendRequestAsync(senderId, receiverId), request -> {
+            if (request != null) {
+                JsonObject responseData = new JsonObject();
+                responseData.add("request", gson.toJsonTree(request));
+                sendResponse(Protocol.createResponse(Protocol.ACTION_SEND_FRIEND_REQUEST, true, "Friend request sent", responseData));
 
-            // Notify receiver
-            notifyUser(receiverId, Protocol.NOTIFY_FRIEND_REQUEST, request);
-            logger.info("Friend request {} created and notification sent", request.getRequestId());
-        } else {
-            logger.warn("Failed to send friend request from {} to {}", currentUser.getUserId(), receiverId);
-            sendResponse(Protocol.createResponse(Protocol.ACTION_SEND_FRIEND_REQUEST, false, "Failed to send request. User may already be a friend or have a pending request."));
-        }
+                // Notify receiver
+                notifyUser(receiverId, Protocol.NOTIFY_FRIEND_REQUEST, request);
+                logger.info("Friend request {} created and notification sent", request.getRequestId());
+            } else {
+                logger.warn("Failed to send friend request from {} to {}", senderId, receiverId);
+                sendResponse(Protocol.createResponse(Protocol.ACTION_SEND_FRIEND_REQUEST, false, "Failed to send request. User may already be a friend or have a pending request."));
+            }
+        });
     }
 
     private void handleAcceptFriendRequest(JsonObject data) {
         int requestId = data.get("requestId").getAsInt();
         logger.info("User {} accepting friend request {}", currentUser != null ? currentUser.getUserId() : "null", requestId);
 
-        boolean success = friendService.acceptFriendRequest(requestId);
-
-        if (success) {
-            logger.info("Friend request {} accepted successfully", requestId);
-        } else {
-            logger.warn("Failed to accept friend request {}", requestId);
-        }
+        whenDone(Protocol.ACTION_ACCEPT_FRIEND_REQUEST, friendService.acceptFriendRequestAsync(requestId), success -> {
+            if (success) {
+                logger.info("Friend request {} accepted successfully", requestId);
+            } else {
+                logger.warn("Failed to accept friend request {}", requestId);
+            }
 
-        sendResponse(Protocol.createResponse(Protocol.ACTION_ACCEPT_FRIEND_REQUEST, success,
-                success ? "Friend request accepted" : "Failed to accept request"));
+            sendResponse(Protocol.createResponse(Protocol.ACTION_ACCEPT_FRIEND_REQUEST, success,
+                    success ? "Friend request accepted" : "Failed to accept request"));
+        });
     }
 
     private void handleRejectFriendRequest(JsonObject data) {
         int requestId = data.get("requestId").getAsInt();
         logger.info("User {} rejecting friend request {}", currentUser != null ? currentUser.getUserId() : "null", requestId);
 
-        boolean success = friendService.rejectFriendRequest(requestId);
-
-        sendResponse(Protocol.createResponse(Protocol.ACTION_REJECT_FRIEND_REQUEST, success,
-                success ? "Friend request rejected" : "Failed to reject"));
+        whenDone(Protocol.ACTION_REJECT_FRIEND_REQUEST, friendService.rejectFriendRequestAsync(requestId),
+                success -> sendResponse(Protocol.createResponse(Protocol.ACTION_REJECT_FRIEND_REQUEST, success,
+                        success ? "Friend request rejected" : "Failed to reject")));
     }
 
     private void handleGetFriends() {
         if (currentUser == null) return;
 
-        List<User> friends = friendService.getFriends(currentUser.getUserId());
-        JsonObject responseData = new JsonObject();
-        responseData.add("friends", gson.toJsonTree(friends));
-        sendResponse(Protocol.createResponse(Protocol.ACTION_GET_FRIENDS, true, "Friends retrieved", responseData));
+        whenDone(Protocol.ACTION_GET_FRIENDS, friendService.getFriendsAsync(currentUser.getUserId()), friends -> {
+            JsonObject responseData = new JsonObject();
+            responseData.add("friends", gson.toJsonTree(friends));
+            sendResponse(Protocol.createResponse(Protocol.ACTION_GET_FRIENDS, true, "Friends retrieved", responseData));
+        });
     }
 
     private void handleGetFriendRequests() {
         if (currentUser == null) return;
 
-        List<FriendRequest> requests = friendService.getFriendRequests(currentUser.getUserId());
-        JsonObject responseData = new JsonObject();
-        responseData.add("requests", gson.toJsonTree(requests));
-        sendResponse(Protocol.createResponse(Protocol.ACTION_GET_FRIEND_REQUESTS, true, "Requests retrieved", responseData));
+        whenDone(Protocol.ACTION_GET_FRIEND_REQUESTS, friendService.getFriendRequestsAsync(currentUser.getUserId()), requests -> {
+            JsonObject responseData = new JsonObject();
+            responseData.add("requests", gson.toJsonTree(requests));
+            sendResponse(Protocol.createResponse(Protocol.ACTION_GET_FRIEND_REQUESTS, true, "Requests retrieved", responseData));
+        });
     }
 
     private void handleGetUserProfile(JsonObject data) {
         int userId = data.get("userId").getAsInt();
-        User user = userService.getUserById(userId);
-
-        if (user != null) {
-            JsonObject responseData = new JsonObject();
-            responseData.add("user", gson.toJsonTree(user));
-            sendResponse(Protocol.createResponse(Protocol.ACTION_GET_USER_PROFILE, true, "Profile retrieved", responseData));
-        } else {
-            sendResponse(Protocol.createResponse(Protocol.ACTION_GET_USER_PROFILE, false, "User not found"));
-        }
+        whenDone(Protocol.ACTION_GET_USER_PROFILE, userService.getUserByIdAsync(userId), user -> {
+            if (user != null) {
+                JsonObject responseData = new JsonObject();
+                responseData.add("user", gson.toJsonTree(user));
+                sendResponse(Protocol.createResponse(Protocol.ACTION_GET_USER_PROFILE, true, "Profile retrieved", responseData));
+            } else {
+                sendResponse(Protocol.createResponse(Protocol.ACTION_GET_USER_PROFILE, false, "User not found"));
+            }
+        });
     }
 
     private void handleSendMessage(JsonObject data) {
@@ -337,19 +588,20 @@ public class ClientHandler implements Runnable {
         String content = data.get("content").getAsString();
         MessageType type = MessageType.valueOf(data.get("type").getAsString());
 
-        Message message = messageService.sendPrivateMessage(currentUser.getUserId(), receiverId,
-                type, content, null, null, null);
+        // Ghi qua mailbox của cuộc hội thoại; callback chạy theo đúng thứ tự tin nhắn
+        whenDone(Protocol.ACTION_SEND_MESSAGE, messageService.sendPrivateMessageAsync(
+                currentUser.getUserId(), receiverId, type, content, null, null, null), message -> {
+            if (message != null) {
+                JsonObject responseData = new JsonObject();
+                responseData.add("message", gson.toJsonTree(message));
+                sendResponse(Protocol.createResponse(Protocol.ACTION_SEND_MESSAGE, true, "Message sent", responseData));
 
-        if (message != null) {
-            JsonObject responseData = new JsonObject();
-            responseData.add("message", gson.toJsonTree(message));
-            sendResponse(Protocol.createResponse(Protocol.ACTION_SEND_MESSAGE, true, "Message sent", responseData));
-
-            // Notify receiver
-            notifyUser(receiverId, Protocol.NOTIFY_NEW_MESSAGE, message);
-        } else {
-            sendResponse(Protocol.createResponse(Protocol.ACTION_SEND_MESSAGE, false, "Failed to send message"));
-        }
+                // Notify receiver
+                notifyUser(receiverId, Protocol.NOTIFY_NEW_MESSAGE, message);
+            } else {
+                sendResponse(Protocol.createResponse(Protocol.ACTION_SEND_MESSAGE, false, "Failed to send message"));
+            }
+        });
     }
 
     private void handleGetMessages(JsonObject data) {
@@ -359,37 +611,116 @@ public class ClientHandler implements Runnable {
         }
 
         logger.info("handleGetMessages called by user: {} (id: {})", currentUser.getUsername(), currentUser.getUserId());
-        System.out.println("DEBUG SERVER: handleGetMessages data: " + data);
 
-        int limit = data.has("limit") ? data.get("limit").getAsInt() : 50;
-        List<Message> messages;
+        int limit = readLimit(data);
+        CompletableFuture<List<Message>> messagesFuture;
 
         // Check if it's for group or private chat
         if (data.has("groupId")) {
             // Get group messages
             int groupId = data.get("groupId").getAsInt();
             logger.info("Getting group messages for group {} (user: {})", groupId, currentUser.getUserId());
-            messages = messageService.getGroupMessages(groupId, limit);
-            logger.info("Retrieved {} group messages for group {}", messages.size(), groupId);
-            System.out.println("DEBUG SERVER: Retrieved " + messages.size() + " messages for group " + groupId);
-            for (Message msg : messages) {
-                System.out.println("DEBUG SERVER: Message - " + msg.getSenderName() + ": " + msg.getMessageContent());
-            }
+            messagesFuture = messageService.getGroupMessagesAsync(groupId, limit).thenApply(messages -> {
+                logger.debug("Retrieved {} group messages for group {}", messages.size(), groupId);
+                return messages;
+            });
         } else {
             // Get private messages
             int otherUserId = data.get("userId").getAsInt();
             logger.info("Getting private messages between {} and {}", currentUser.getUserId(), otherUserId);
-            messages = messageService.getPrivateMessages(currentUser.getUserId(), otherUserId, limit);
-            logger.info("Retrieved {} private messages", messages.size());
+            messagesFuture = messageService.getPrivateMessagesAsync(currentUser.getUserId(), otherUserId, limit)
+                    .thenApply(messages -> {
+                        logger.debug("Retrieved {} private messages", messages.size());
+                        return messages;
+                    });
         }
 
-        JsonObject responseData = new JsonObject();
-        String jsonResponse = gson.toJson(messages);
-        System.out.println("DEBUG SERVER: JSON response: " + jsonResponse);
-        responseData.add("messages", gson.toJsonTree(messages));
-        sendResponse(Protocol.createResponse(Protocol.ACTION_GET_MESSAGES, true, "Messages retrieved", responseData));
+        whenDone(Protocol.ACTION_GET_MESSAGES, messagesFuture, messages -> {
+            thumbnailService.attach(messages);
+            JsonObject responseData = new JsonObject();
+            responseData.add("messages", gson.toJsonTree(messages));
+            sendResponse(Protocol.createResponse(Protocol.ACTION_GET_MESSAGES, true, "Messages retrieved", responseData));
+        });
+    }
+
+    private void handleSearchMessages(JsonObject data) {
+        if (currentUser == null) {
+            sendResponse(Protocol.createResponse(Protocol.ACTION_SEARCH_MESSAGES, false, "Not logged in"));
+            return;
+        }
+
+        String keyword = data.get("keyword").getAsString();
+        int limit = readLimit(data);
+
+        int userId = currentUser.getUserId();
+        CompletableFuture<List<Message>> search = groupService.getUserGroupIdsAsync(userId)
+                .thenCompose(groupIds -> messageService.searchMessagesAsync(userId, groupIds, keyword, limit));
+
+        whenDone(Protocol.ACTION_SEARCH_MESSAGES, search, messages -> {
+            thumbnailService.attach(messages);
+            JsonObject responseData = new JsonObject();
+            responseData.add("messages", gson.toJsonTree(messages));
+            sendResponse(Protocol.createResponse(Protocol.ACTION_SEARCH_MESSAGES, true, "Search completed", responseData));
+        });
+    }
+
+    private void handleMarkRead(JsonObject data) {
+        if (currentUser == null) {
+            sendResponse(Protocol.createResponse(Protocol.ACTION_MARK_READ, false, "Not logged in"));
+            return;
+        }
+
+        int userId = currentUser.getUserId();
+        long key = data.has("groupId")
+                ? ConversationKey.ofGroup(data.get("groupId").getAsInt())
+                : ConversationKey.ofPrivate(userId, data.get("userId").getAsInt());
+        int messageId = data.has("messageId") ? data.get("messageId").getAsInt() : 0;
+
+        whenDone(Protocol.ACTION_MARK_READ, readStateService.markReadAsync(userId, key, messageId), watermark -> {
+            // Trạng thái đã nạp trong markRead, hai bộ đếm dưới đây chỉ đọc bộ nhớ
+            JsonObject responseData = new JsonObject();
+            responseData.addProperty("unreadCount", readStateService.getUnreadCount(userId, key));
+            responseData.addProperty("totalUnread", readStateService.getTotalUnread(userId));
+            sendResponse(Protocol.createResponse(Protocol.ACTION_MARK_READ, true, "Marked as read", responseData));
+
+            // Báo cho người gửi (chat riêng) biết tin đã được đọc
+            if (watermark > 0 && !ConversationKey.isGroup(key)) {
+                JsonObject receipt = new JsonObject();
+                receipt.addProperty("readerId", userId);
+                receipt.addProperty("messageId", watermark);
+                notifyUser(ConversationKey.otherUser(key, userId), Protocol.NOTIFY_READ, receipt);
+            }
+        });
+    }
+
+    private void handleGetUnreadCounts() {
+        if (currentUser == null) return;
+
+        int userId = currentUser.getUserId();
+        whenDone(Protocol.ACTION_GET_UNREAD_COUNTS, readStateService.getUnreadCountsAsync(userId), unreadCounts -> {
+            JsonArray counts = new JsonArray();
+            int totalUnread = 0;
+            for (Map.Entry<Long, Integer> entry : unreadCounts.entrySet()) {
+                JsonObject item = new JsonObject();
+                long key = entry.getKey();
+                if (ConversationKey.isGroup(key)) {
+                    item.addProperty("groupId", ConversationKey.groupId(key));
+                } else {
+                    item.addProperty("userId", ConversationKey.otherUser(key, userId));
+                }
+                item.addProperty("count", entry.getValue());
+                counts.add(item);
+                totalUnread += entry.getValue();
+            }
+
+            JsonObject responseData = new JsonObject();
+            responseData.add("counts", counts);
+            responseData.addProperty("totalUnread", totalUnread);
+            sendResponse(Protocol.createResponse(Protocol.ACTION_GET_UNREAD_COUNTS, true, "Unread counts retrieved", responseData));
+        });
     }
 
+    // Cả file trong một frame: giữ cho client cũ, client mới dùng UPLOAD_INIT/CHUNK/COMMIT
     private void handleSendFile(JsonObject data) {
         if (currentUser == null) return;
 
@@ -397,60 +728,287 @@ public class ClientHandler implements Runnable {
         String fileData = data.get("fileData").getAsString();
         String fileType = data.get("fileType").getAsString();
 
-        String filePath = FileUtil.saveFile(fileData, fileName, fileType);
+        byte[] fileBytes;
+        try {
+            fileBytes = Base64.getDecoder().decode(fileData);
+        } catch (IllegalArgumentException e) {
+            sendResponse(Protocol.createResponse(Protocol.ACTION_SEND_FILE, false, "Invalid file data"));
+            return;
+        }
+        int groupId = data.has("groupId") ? data.get("groupId").getAsInt() : 0;
+        int receiverId = groupId == 0 ? data.get("receiverId").getAsInt() : 0;
+
+        whenDone(Protocol.ACTION_SEND_FILE, fileIoExecutor.supply("store-file", () -> blobStore.storeBytes(fileBytes)),
+                filePath -> {
+                    if (filePath != null) {
+                        sendFileMessage(Protocol.ACTION_SEND_FILE, new JsonObject(), receiverId, groupId,
+                                MessageType.valueOf(fileType), fileName, filePath, fileBytes.length);
+                    } else {
+                        sendResponse(Protocol.createResponse(Protocol.ACTION_SEND_FILE, false, "Failed to save file"));
+                    }
+                });
+    }
 
-        if (filePath != null) {
-            long fileSize = FileUtil.getFileSize(filePath);
-            Message message = null;
+    /**
+     * Send the message for a stored file to a user (receiverId) or a group (groupId != 0)
+     * and count the reference to its blob. responseData carries request identifiers back.
+     */
+    private void sendFileMessage(String action, JsonObject responseData, int receiverId, int groupId,
+                                 MessageType fileType, String fileName, String filePath, long fileSize) {
+        // Ảnh: tạo ảnh thu nhỏ trước để tin nhắn gửi đi đã kèm chúng
+        CompletableFuture<Map<Integer, String>> thumbnails = fileType == MessageType.IMAGE
+                ? thumbnailService.generateAsync(filePath)
+                : CompletableFuture.completedFuture(Collections.emptyMap());
+
+        CompletableFuture<Message> sent = thumbnails.thenCompose(images -> (groupId != 0
+                ? messageService.sendGroupMessageAsync(currentUser.getUserId(), groupId,
+                        fileType, "File: " + fileName, filePath, fileName, fileSize)
+                : messageService.sendPrivateMessageAsync(currentUser.getUserId(), receiverId,
+                        fileType, "File: " + fileName, filePath, fileName, fileSize))
+                .thenApply(message -> {
+                    if (message != null && !images.isEmpty()) {
+                        message.setThumbnails(images);
+                    }
+                    return message;
+                }))
+                // Ghi quyền tải của cuộc hội thoại trước khi báo cho người nhận
+                .thenCompose(message -> message == null
+                        ? CompletableFuture.completedFuture(null)
+                        : blobStore.addReferenceAsync(filePath, ConversationKey.of(message)).thenApply(recorded -> message));
+
+        whenDone(action, sent, message -> {
+            if (message == null) {
+                sendResponse(Protocol.createResponse(action, false, "Failed to send file", responseData));
+                return;
+            }
+            // Người nhận (cả nhóm) sẽ tải ngay: nạp sẵn file và ảnh thu nhỏ vào cache
+            hotFileCache.preloadAsync(filePath);
+            if (message.getThumbnails() != null) {
+                message.getThumbnails().values().forEach(hotFileCache::preloadAsync);
+            }
+            responseData.add("message", gson.toJsonTree(message));
+            sendResponse(Protocol.createResponse(action, true, "File sent", responseData));
 
-            // Check if it's a group or private message
-            if (data.has("groupId")) {
-                // Send to group
-                int groupId = data.get("groupId").getAsInt();
-                message = messageService.sendGroupMessage(currentUser.getUserId(), groupId,
-                        MessageType.valueOf(fileType), "File: " + fileName, filePath, fileName, fileSize);
+            if (groupId != 0) {
+                notifyGroupMembers(groupId, Protocol.NOTIFY_NEW_MESSAGE, message);
+            } else {
+                notifyUser(receiverId, Protocol.NOTIFY_NEW_MESSAGE, message);
+            }
+        });
+    }
 
-                if (message != null) {
-                    JsonObject responseData = new JsonObject();
-                    responseData.add("message", gson.toJsonTree(message));
-                    sendResponse(Protocol.createResponse(Protocol.ACTION_SEND_FILE, true, "File sent", responseData));
+    /**
+     * Start an upload, or resume one after reconnecting when uploadId is given.
+     * The response tells the client the chunk size and how many bytes the server already has.
+     * If the client sends the file's sha256 and the server already stores that content in a
+     * conversation the sender belongs to, the message is sent right away and the response
+     * carries it (no chunks needed); otherwise the content must be uploaded.
+     */
+    private void handleUploadInit(JsonObject data) {
+        if (currentUser == null) return;
 
-                    notifyGroupMembers(groupId, Protocol.NOTIFY_NEW_MESSAGE, message);
-                }
-            } else {
-                // Send to private chat
-                int receiverId = data.get("receiverId").getAsInt();
-                message = messageService.sendPrivateMessage(currentUser.getUserId(), receiverId,
-                        MessageType.valueOf(fileType), "File: " + fileName, filePath, fileName, fileSize);
+        JsonObject responseData = new JsonObject();
+        if (data.has("ref")) {
+            responseData.add("ref", data.get("ref"));
+        }
 
-                if (message != null) {
-                    JsonObject responseData = new JsonObject();
-                    responseData.add("message", gson.toJsonTree(message));
-                    sendResponse(Protocol.createResponse(Protocol.ACTION_SEND_FILE, true, "File sent", responseData));
+        if (data.has("uploadId")) {
+            UploadService.UploadSession session =
+                    uploadService.get(currentUser.getUserId(), data.get("uploadId").getAsString());
+            if (session == null) {
+                sendResponse(Protocol.createResponse(Protocol.ACTION_UPLOAD_INIT, false, "Upload not found", responseData));
+                return;
+            }
+            sendUploadReady(session, responseData);
+            return;
+        }
 
-                    notifyUser(receiverId, Protocol.NOTIFY_NEW_MESSAGE, message);
-                }
+        String fileName = data.get("fileName").getAsString();
+        String fileType = data.get("fileType").getAsString();
+        long fileSize = data.get("fileSize").getAsLong();
+        int groupId = data.has("groupId") ? data.get("groupId").getAsInt() : 0;
+        int receiverId = groupId == 0 ? data.get("receiverId").getAsInt() : 0;
+
+        if (!isFileType(fileType)) {
+            sendResponse(Protocol.createResponse(Protocol.ACTION_UPLOAD_INIT, false, "Invalid file type", responseData));
+            return;
+        }
+        if (fileSize <= 0 || fileSize > UploadService.MAX_FILE_SIZE) {
+            sendResponse(Protocol.createResponse(Protocol.ACTION_UPLOAD_INIT, false,
+                    fileSize <= 0 ? "File is empty" : "File too large", responseData));
+            return;
+        }
+
+        String sha256 = data.has("sha256") ? data.get("sha256").getAsString() : null;
+        CompletableFuture<String> existing = BlobStore.isValidHash(sha256)
+                ? blobStore.findAsync(sha256, fileSize, currentUser.getUserId())
+                : CompletableFuture.completedFuture(null);
+
+        whenDone(Protocol.ACTION_UPLOAD_INIT, existing, filePath -> {
+            if (filePath != null) {
+                responseData.addProperty("duplicate", true);
+                sendFileMessage(Protocol.ACTION_UPLOAD_INIT, responseData, receiverId, groupId,
+                        MessageType.valueOf(fileType), fileName, filePath, fileSize);
+                return;
             }
 
-            if (message == null) {
-                sendResponse(Protocol.createResponse(Protocol.ACTION_SEND_FILE, false, "Failed to send file"));
+            UploadService.UploadSession session =
+                    uploadService.begin(currentUser.getUserId(), fileName, fileType, fileSize, receiverId, groupId);
+            if (session == null) {
+                String reason = uploadService.countUploads(currentUser.getUserId()) >= UploadService.MAX_UPLOADS_PER_USER
+                        ? "Too many uploads in progress" : "Failed to start upload";
+                sendResponse(Protocol.createResponse(Protocol.ACTION_UPLOAD_INIT, false, reason, responseData));
+                return;
             }
-        } else {
-            sendResponse(Protocol.createResponse(Protocol.ACTION_SEND_FILE, false, "Failed to save file"));
+            sendUploadReady(session, responseData);
+        });
+    }
+
+    private void sendUploadReady(UploadService.UploadSession session, JsonObject responseData) {
+        responseData.addProperty("uploadId", session.getUploadId());
+        responseData.addProperty("chunkSize", UploadService.CHUNK_SIZE);
+        responseData.addProperty("receivedBytes", session.getReceivedBytes());
+        sendResponse(Protocol.createResponse(Protocol.ACTION_UPLOAD_INIT, true, "Upload ready", responseData));
+    }
+
+    private void handleUploadChunk(JsonObject data) {
+        if (currentUser == null) return;
+
+        String uploadId = data.get("uploadId").getAsString();
+        JsonObject responseData = new JsonObject();
+        responseData.addProperty("uploadId", uploadId);
+
+        UploadService.UploadSession session = uploadService.get(currentUser.getUserId(), uploadId);
+        if (session == null) {
+            sendResponse(Protocol.createResponse(Protocol.ACTION_UPLOAD_CHUNK, false, "Upload not found", responseData));
+            return;
         }
+
+        long offset = data.get("offset").getAsLong();
+        long checksum = data.get("crc32").getAsLong();
+        String encoded = data.get("data").getAsString();
+
+        // Khúc phải được ghi theo thứ tự nhận: nối vào sau lần ghi trước của kết nối này
+        CompletableFuture<Boolean> written = chunkWrites.thenCompose(ignored ->
+                fileIoExecutor.supply("upload-chunk", () -> {
+                    try {
+                        byte[] chunk = Base64.getDecoder().decode(encoded);
+                        return uploadService.writeChunk(session, offset, chunk, checksum);
+                    } catch (IllegalArgumentException e) {
+                        return false;
+                    }
+                }));
+        chunkWrites = written.handle((accepted, error) -> null);
+
+        written.whenComplete((accepted, error) -> {
+            // Lỗi (hàng đợi đầy) cũng trả về receivedBytes để client gửi lại từ đó
+            boolean stored = error == null && accepted;
+            responseData.addProperty("offset", offset);
+            responseData.addProperty("receivedBytes", session.getReceivedBytes());
+            sendResponse(Protocol.createResponse(Protocol.ACTION_UPLOAD_CHUNK, stored,
+                    stored ? "Chunk stored" : "Chunk rejected", responseData));
+        });
+    }
+
+    private void handleUploadCommit(JsonObject data) {
+        if (currentUser == null) return;
+
+        String uploadId = data.get("uploadId").getAsString();
+        JsonObject responseData = new JsonObject();
+        responseData.addProperty("uploadId", uploadId);
+
+        UploadService.UploadSession session = uploadService.get(currentUser.getUserId(), uploadId);
+        if (session == null) {
+            sendResponse(Protocol.createResponse(Protocol.ACTION_UPLOAD_COMMIT, false, "Upload not found", responseData));
+            return;
+        }
+
+        if (session.getReceivedBytes() != session.getFileSize()) {
+            responseData.addProperty("receivedBytes", session.getReceivedBytes());
+            sendResponse(Protocol.createResponse(Protocol.ACTION_UPLOAD_COMMIT, false, "Upload incomplete", responseData));
+            return;
+        }
+
+        whenDone(Protocol.ACTION_UPLOAD_COMMIT, uploadService.commitAsync(session), filePath -> {
+            if (filePath == null) {
+                sendResponse(Protocol.createResponse(Protocol.ACTION_UPLOAD_COMMIT, false, "Failed to store file", responseData));
+                return;
+            }
+            sendFileMessage(Protocol.ACTION_UPLOAD_COMMIT, responseData, session.getReceiverId(), session.getGroupId(),
+                    MessageType.valueOf(session.getFileType()), session.getFileName(), filePath, session.getFileSize());
+        });
+    }
+
+    private void handleUploadCancel(JsonObject data) {
+        if (currentUser == null) return;
+
+        String uploadId = data.get("uploadId").getAsString();
+        UploadService.UploadSession session = uploadService.get(currentUser.getUserId(), uploadId);
+        if (session != null) {
+            uploadService.cancel(session);
+        }
+
+        JsonObject responseData = new JsonObject();
+        responseData.addProperty("uploadId", uploadId);
+        sendResponse(Protocol.createResponse(Protocol.ACTION_UPLOAD_CANCEL, true, "Upload cancelled", responseData));
+    }
+
+    private static boolean isFileType(String fileType) {
+        for (MessageType type : MessageType.values()) {
+            if (type != MessageType.TEXT && type.name().equals(fileType)) {
+                return true;
+            }
+        }
+        return false;
     }
 
     private void handleReceiveFile(JsonObject data) {
-        String filePath = data.get("filePath").getAsString();
+        User user = currentUser;
+        if (user == null) {
+            sendResponse(Protocol.createResponse(Protocol.ACTION_RECEIVE_FILE, false, "Not logged in"));
+            return;
+        }
 
-        String fileData = FileUtil.readFileAsBase64(filePath);
+        // Chỉ file đã lưu dưới uploads/ (không phải upload dở), cùng quy tắc quyền với DownloadServer
+        Path file = Paths.get(data.get("filePath").getAsString()).toAbsolutePath().normalize();
+        if (!file.startsWith(FileUtil.getUploadDirectory().toAbsolutePath().normalize())
+                || file.startsWith(FileUtil.getTempDirectory().toAbsolutePath().normalize())) {
+            sendResponse(Protocol.createResponse(Protocol.ACTION_RECEIVE_FILE, false, "File not found"));
+            return;
+        }
 
-        if (fileData != null) {
-            JsonObject responseData = new JsonObject();
-            responseData.addProperty("fileData", fileData);
-            sendResponse(Protocol.createResponse(Protocol.ACTION_RECEIVE_FILE, true, "File retrieved", responseData));
-        } else {
-            sendResponse(Protocol.createResponse(Protocol.ACTION_RECEIVE_FILE, false, "Failed to read file"));
+        whenDone(Protocol.ACTION_RECEIVE_FILE, blobStore.mayDownloadAsync(user.getUserId(), file), allowed -> {
+            if (!allowed) {
+                sendResponse(Protocol.createResponse(Protocol.ACTION_RECEIVE_FILE, false, "Access denied"));
+                return;
+            }
+            whenDone(Protocol.ACTION_RECEIVE_FILE, fileIoExecutor.supply("read-file", () -> readStoredFileAsBase64(file)),
+                    fileData -> {
+                        if (fileData != null) {
+                            JsonObject responseData = new JsonObject();
+                            responseData.addProperty("fileData", fileData);
+                            sendResponse(Protocol.createResponse(Protocol.ACTION_RECEIVE_FILE, true, "File retrieved", responseData));
+                        } else {
+                            sendResponse(Protocol.createResponse(Protocol.ACTION_RECEIVE_FILE, false, "Failed to read file"));
+                        }
+                    });
+        });
+    }
+
+    /**
+     * Base64 of a stored file (under uploads/), read through HotFileCache
+     */
+    private String readStoredFileAsBase64(Path file) {
+        try {
+            HotFileCache.Entry cached = hotFileCache.get(file);
+            if (cached == null) {
+                return FileUtil.readFileAsBase64(file.toString());
+            }
+            ByteBuffer encoded = Base64.getEncoder().encode(cached.slice(0, cached.size()));
+            return new String(encoded.array(), encoded.arrayOffset(), encoded.remaining(), StandardCharsets.US_ASCII);
+        } catch (IOException e) {
+            logger.error("Error reading file: {}", file, e);
+            return null;
         }
     }
 
@@ -460,15 +1018,16 @@ public class ClientHandler implements Runnable {
         String groupName = data.get("groupName").getAsString();
         String groupDescription = data.get("groupDescription").getAsString();
 
-        Group group = groupService.createGroup(groupName, groupDescription, currentUser.getUserId());
-
-        if (group != null) {
-            JsonObject responseData = new JsonObject();
-            responseData.add("group", gson.toJsonTree(group));
-            sendResponse(Protocol.createResponse(Protocol.ACTION_CREATE_GROUP, true, "Group created", responseData));
-        } else {
-            sendResponse(Protocol.createResponse(Protocol.ACTION_CREATE_GROUP, false, "Failed to create group"));
-        }
+        whenDone(Protocol.ACTION_CREATE_GROUP,
+                groupService.createGroupAsync(groupName, groupDescription, currentUser.getUserId()), group -> {
+            if (group != null) {
+                JsonObject responseData = new JsonObject();
+                responseData.add("group", gson.toJsonTree(group));
+                sendResponse(Protocol.createResponse(Protocol.ACTION_CREATE_GROUP, true, "Group created", responseData));
+            } else {
+                sendResponse(Protocol.createResponse(Protocol.ACTION_CREATE_GROUP, false, "Failed to create group"));
+            }
+        });
     }
 
     private void handleJoinGroup(JsonObject data) {
@@ -477,28 +1036,28 @@ public class ClientHandler implements Runnable {
         int groupId = data.get("groupId").getAsInt();
         // Check if userId is specified (for adding other users) or use current user
         int userId = data.has("userId") ? data.get("userId").getAsInt() : currentUser.getUserId();
-        boolean success = groupService.addMember(groupId, userId);
-
-        sendResponse(Protocol.createResponse(Protocol.ACTION_JOIN_GROUP, success,
-                success ? "Joined group" : "Failed to join"));
+        whenDone(Protocol.ACTION_JOIN_GROUP, groupService.addMemberAsync(groupId, userId),
+                success -> sendResponse(Protocol.createResponse(Protocol.ACTION_JOIN_GROUP, success,
+                        success ? "Joined group" : "Failed to join")));
     }
 
     private void handleGetGroups() {
         if (currentUser == null) return;
 
-        List<Group> groups = groupService.getUserGroups(currentUser.getUserId());
-        JsonObject responseData = new JsonObject();
-        responseData.add("groups", gson.toJsonTree(groups));
-        sendResponse(Protocol.createResponse(Protocol.ACTION_GET_GROUPS, true, "Groups retrieved", responseData));
+        whenDone(Protocol.ACTION_GET_GROUPS, groupService.getUserGroupsAsync(currentUser.getUserId()), groups -> {
+            JsonObject responseData = new JsonObject();
+            responseData.add("groups", gson.toJsonTree(groups));
+            sendResponse(Protocol.createResponse(Protocol.ACTION_GET_GROUPS, true, "Groups retrieved", responseData));
+        });
     }
 
     private void handleGetGroupMembers(JsonObject data) {
         int groupId = data.get("groupId").getAsInt();
-        List<User> members = groupService.getGroupMembers(groupId);
-
-        JsonObject responseData = new JsonObject();
-        responseData.add("members", gson.toJsonTree(members));
-        sendResponse(Protocol.createResponse(Protocol.ACTION_GET_GROUP_MEMBERS, true, "Members retrieved", responseData));
+        whenDone(Protocol.ACTION_GET_GROUP_MEMBERS, groupService.getGroupMembersAsync(groupId), members -> {
+            JsonObject responseData = new JsonObject();
+            responseData.add("members", gson.toJsonTree(members));
+            sendResponse(Protocol.createResponse(Protocol.ACTION_GET_GROUP_MEMBERS, true, "Members retrieved", responseData));
+        });
     }
 
     private void handleSendGroupMessage(JsonObject data) {
@@ -508,19 +1067,19 @@ public class ClientHandler implements Runnable {
         String content = data.get("content").getAsString();
         MessageType type = MessageType.valueOf(data.get("type").getAsString());
 
-        Message message = messageService.sendGroupMessage(currentUser.getUserId(), groupId,
-                type, content, null, null, null);
+        whenDone(Protocol.ACTION_SEND_GROUP_MESSAGE, messageService.sendGroupMessageAsync(
+                currentUser.getUserId(), groupId, type, content, null, null, null), message -> {
+            if (message != null) {
+                JsonObject responseData = new JsonObject();
+                responseData.add("message", gson.toJsonTree(message));
+                sendResponse(Protocol.createResponse(Protocol.ACTION_SEND_GROUP_MESSAGE, true, "Message sent", responseData));
 
-        if (message != null) {
-            JsonObject responseData = new JsonObject();
-            responseData.add("message", gson.toJsonTree(message));
-            sendResponse(Protocol.createResponse(Protocol.ACTION_SEND_GROUP_MESSAGE, true, "Message sent", responseData));
-
-            // Notify group members
-            notifyGroupMembers(groupId, Protocol.NOTIFY_NEW_MESSAGE, message);
-        } else {
-            sendResponse(Protocol.createResponse(Protocol.ACTION_SEND_GROUP_MESSAGE, false, "Failed to send message"));
-        }
+                // Notify group members
+                notifyGroupMembers(groupId, Protocol.NOTIFY_NEW_MESSAGE, message);
+            } else {
+                sendResponse(Protocol.createResponse(Protocol.ACTION_SEND_GROUP_MESSAGE, false, "Failed to send message"));
+            }
+        });
     }
 
     private void handleInitiateCall(JsonObject data) {
@@ -529,79 +1088,81 @@ public class ClientHandler implements Runnable {
         int receiverId = data.get("receiverId").getAsInt();
         CallInfo.CallType callType = CallInfo.CallType.valueOf(data.get("callType").getAsString());
 
-        CallInfo call = callService.initiateCall(currentUser.getUserId(), receiverId, callType);
-
-        if (call != null) {
-            JsonObject responseData = new JsonObject();
-            responseData.add("call", gson.toJsonTree(call));
-            sendResponse(Protocol.createResponse(Protocol.ACTION_INITIATE_CALL, true, "Call initiated", responseData));
+        whenDone(Protocol.ACTION_INITIATE_CALL,
+                callService.initiateCallAsync(currentUser.getUserId(), receiverId, callType), call -> {
+            if (call != null) {
+                JsonObject responseData = new JsonObject();
+                responseData.add("call", gson.toJsonTree(call));
+                sendResponse(Protocol.createResponse(Protocol.ACTION_INITIATE_CALL, true, "Call initiated", responseData));
 
-            notifyUser(receiverId, Protocol.NOTIFY_INCOMING_CALL, call);
-        } else {
-            sendResponse(Protocol.createResponse(Protocol.ACTION_INITIATE_CALL, false, "Failed to initiate call"));
-        }
+                notifyUser(receiverId, Protocol.NOTIFY_INCOMING_CALL, call);
+            } else {
+                sendResponse(Protocol.createResponse(Protocol.ACTION_INITIATE_CALL, false, "Failed to initiate call"));
+            }
+        });
     }
 
     private void handleAcceptCall(JsonObject data) {
         int callId = data.get("callId").getAsInt();
 
         // Get call info to know who to notify
-        CallInfo call = callService.getCallById(callId);
-
-        boolean success = callService.acceptCall(callId);
+        whenDone(Protocol.ACTION_ACCEPT_CALL, callService.getCallByIdAsync(callId), call -> {
+            boolean success = callService.acceptCall(callId);
 
-        sendResponse(Protocol.createResponse(Protocol.ACTION_ACCEPT_CALL, success,
-                success ? "Call accepted" : "Failed to accept"));
+            sendResponse(Protocol.createResponse(Protocol.ACTION_ACCEPT_CALL, success,
+                    success ? "Call accepted" : "Failed to accept"));
 
-        // Notify caller that call was accepted
-        if (success && call != null) {
-            notifyUser(call.getCallerId(), Protocol.NOTIFY_CALL_ACCEPTED, call);
-            logger.info("Notified caller {} that call {} was accepted", call.getCallerId(), callId);
-        }
+            // Notify caller that call was accepted
+            if (success && call != null) {
+                notifyUser(call.getCallerId(), Protocol.NOTIFY_CALL_ACCEPTED, call);
+                logger.info("Notified caller {} that call {} was accepted", call.getCallerId(), callId);
+            }
+        });
     }
 
     private void handleRejectCall(JsonObject data) {
         int callId = data.get("callId").getAsInt();
 
         // Get call info to know who to notify
-        CallInfo call = callService.getCallById(callId);
+        whenDone(Protocol.ACTION_REJECT_CALL, callService.getCallByIdAsync(callId), call -> {
+            boolean success = callService.rejectCall(callId);
 
-        boolean success = callService.rejectCall(callId);
+            sendResponse(Protocol.createResponse(Protocol.ACTION_REJECT_CALL, success,
+                    success ? "Call rejected" : "Failed to reject"));
 
-        sendResponse(Protocol.createResponse(Protocol.ACTION_REJECT_CALL, success,
-                success ? "Call rejected" : "Failed to reject"));
-
-        // Notify caller that call was rejected
-        if (success && call != null) {
-            notifyUser(call.getCallerId(), Protocol.NOTIFY_CALL_REJECTED, call);
-            logger.info("Notified caller {} that call {} was rejected", call.getCallerId(), callId);
-        }
+            // Notify caller that call was rejected
+            if (success && call != null) {
+                notifyUser(call.getCallerId(), Protocol.NOTIFY_CALL_REJECTED, call);
+                logger.info("Notified caller {} that call {} was rejected", call.getCallerId(), callId);
+            }
+        });
     }
 
     private void handleEndCall(JsonObject data) {
         int callId = data.get("callId").getAsInt();
 
         // Get call info to know who to notify
-        CallInfo call = callService.getCallById(callId);
-
-        boolean success = callService.endCall(callId);
-
-        sendResponse(Protocol.createResponse(Protocol.ACTION_END_CALL, success,
-                success ? "Call ended" : "Failed to end"));
-
-        // Notify the other person that call ended
-        if (success && call != null && currentUser != null) {
-            int otherUserId;
-            if (currentUser.getUserId() == call.getCallerId()) {
-                // Current user is caller, notify receiver
-                otherUserId = call.getReceiverId();
-            } else {
-                // Current user is receiver, notify caller
-                otherUserId = call.getCallerId();
+        whenDone(Protocol.ACTION_END_CALL, callService.getCallByIdAsync(callId), call -> {
+            boolean success = callService.endCall(callId);
+
+            sendResponse(Protocol.createResponse(Protocol.ACTION_END_CALL, success,
+                    success ? "Call ended" : "Failed to end"));
+
+            // Notify the other person that call ended
+            User user = currentUser;
+            if (success && call != null && user != null) {
+                int otherUserId;
+                if (user.getUserId() == call.getCallerId()) {
+                    // Current user is caller, notify receiver
+                    otherUserId = call.getReceiverId();
+                } else {
+                    // Current user is receiver, notify caller
+                    otherUserId = call.getCallerId();
+                }
+                notifyUser(otherUserId, Protocol.NOTIFY_CALL_ENDED, call);
+                logger.info("Notified user {} that call {} ended", otherUserId, callId);
             }
-            notifyUser(otherUserId, Protocol.NOTIFY_CALL_ENDED, call);
-            logger.info("Notified user {} that call {} ended", otherUserId, callId);
-        }
+        });
     }
 
     private void handleCallSignal(JsonObject data) {
@@ -639,50 +1200,80 @@ public class ClientHandler implements Runnable {
         }
     }
 
+    /**
+     * Run the callback when an async service call completes.
+     * Failures (including a saturated DB executor) are answered with an error response.
+     */
+    private <T> void whenDone(String action, CompletableFuture<T> future, Consumer<T> onSuccess) {
+        future.whenComplete((result, error) -> {
+            if (error != null) {
+                logger.error("Error handling {}", action, error);
+                sendResponse(Protocol.createResponse(action, false, "Server busy, please try again"));
+                return;
+            }
+            try {
+                onSuccess.accept(result);
+            } catch (Exception e) {
+                logger.error("Error handling {}", action, e);
+                sendResponse(Protocol.createResponse(action, false, "Internal server error"));
+            }
+        });
+    }
+
     private void notifyUser(int userId, String notificationType, Object data) {
-        ClientHandler handler = server.getOnlineUser(userId);
-        if (handler != null) {
-            Protocol notification = new Protocol(notificationType);
-            notification.addData("data", data);
-            handler.sendResponse(notification);
+        ClientHandler handler;
+        synchronized (notificationOutbox.lockFor(userId)) {
+            handler = server.getOnlineUser(userId);
+            if (handler == null) {
+                notificationOutbox.enqueue(userId, notificationType, data);
+                return;
+            }
         }
+        Protocol notification = new Protocol(notificationType);
+        notification.addData("data", data);
+        handler.sendResponse(notification);
     }
 
     private void notifyGroupMembers(int groupId, String notificationType, Object data) {
-        List<User> members = groupService.getGroupMembers(groupId);
-        for (User member : members) {
-            if (currentUser != null && member.getUserId() != currentUser.getUserId()) {
-                notifyUser(member.getUserId(), notificationType, data);
+        User user = currentUser;
+        if (user == null) return;
+
+        // Chỉ cần ID thành viên: lấy từ cache, trượt cache thì truy vấn trên DbExecutor
+        groupService.getGroupMemberIdsAsync(groupId).whenComplete((memberIds, error) -> {
+            if (error != null) {
+                logger.error("Error loading members of group {} for {}", groupId, notificationType, error);
+                return;
             }
-        }
+            for (int memberId : memberIds) {
+                if (memberId != user.getUserId()) {
+                    notifyUser(memberId, notificationType, data);
+                }
+            }
+        });
     }
 
     private void notifyFriendsOnlineStatus(boolean online) {
         if (currentUser == null) return;
 
-        List<User> friends = friendService.getFriends(currentUser.getUserId());
-        String notification = online ? Protocol.NOTIFY_USER_ONLINE : Protocol.NOTIFY_USER_OFFLINE;
-
-        for (User friend : friends) {
-            notifyUser(friend.getUserId(), notification, currentUser);
-        }
+        // Gửi theo lô qua PresenceDispatcher (NOTIFY_PRESENCE_BATCH)
+        server.getPresenceDispatcher().publish(currentUser.getUserId(),
+                online ? currentUser.getUserStatus() : UserStatus.OFFLINE);
     }
 
     private void notifyFriendsStatusChange(UserStatus status) {
         if (currentUser == null) return;
 
-        List<User> friends = friendService.getFriends(currentUser.getUserId());
-        for (User friend : friends) {
-            JsonObject data = new JsonObject();
-            data.addProperty("userId", currentUser.getUserId());
-            data.addProperty("status", status.name());
-            notifyUser(friend.getUserId(), "STATUS_CHANGE", data);
-        }
+        server.getPresenceDispatcher().publish(currentUser.getUserId(), status);
     }
 
+    /**
+     * Queue a frame for this client; never blocks on the socket, so it is safe
+     * to call from DbExecutor callbacks and from other users' threads
+     */
     public void sendResponse(Protocol response) {
-        if (out != null) {
-            out.println(response.toJson());
+        ClientWriter w = writer;
+        if (w != null) {
+            w.send(response.toJson());
         }
     }
 
@@ -690,12 +1281,13 @@ public class ClientHandler implements Runnable {
         if (currentUser != null) {
             userService.logoutUser(currentUser.getUserId());
             server.removeOnlineUser(currentUser.getUserId());
+            readStateService.evict(currentUser.getUserId());
             notifyFriendsOnlineStatus(false);
         }
 
         try {
             if (in != null) in.close();
-            if (out != null) out.close();
+            if (writer != null) writer.close();
             if (clientSocket != null) clientSocket.close();
             logger.info("Client disconnected");
         } catch (IOException e) {
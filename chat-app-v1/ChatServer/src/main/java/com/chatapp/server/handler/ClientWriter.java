@@ -0,0 +1,117 @@
+package com.chatapp.server.handler;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hàng đợi gửi của một kết nối: mailbox chỉ một luồng ghi tại một thời điểm, chạy trên pool dùng chung.
+ * send() chỉ xếp frame vào hàng đợi, nên callback trên DbExecutor hay luồng phục vụ user khác
+ * không bao giờ bị chặn bởi một socket chậm; frame của cùng kết nối vẫn đi đúng thứ tự.
+ * - Mỗi lượt ghi gom các frame đang chờ và flush một lần
+ * - Kết nối để dồn quá MAX_QUEUED_FRAMES frame bị coi là treo và bị đóng
+ */
+class ClientWriter {
+    private static final Logger logger = LoggerFactory.getLogger(ClientWriter.class);
+
+    private static final int MAX_QUEUED_FRAMES = 1000;
+
+    // Luồng chỉ bị giữ khi socket đang ghi dở, nên số luồng tối đa là số kết nối đang nghẽn
+    private static final ExecutorService POOL;
+
+    static {
+        AtomicInteger counter = new AtomicInteger();
+        POOL = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60L, TimeUnit.SECONDS, new SynchronousQueue<>(), r -> {
+            Thread t = new Thread(r, "client-writer-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    private final Socket socket;
+    private final PrintWriter out;
+    private final Queue<String> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private volatile boolean closed;
+
+    ClientWriter(Socket socket) throws IOException {
+        this.socket = socket;
+        this.out = new PrintWriter(socket.getOutputStream());
+    }
+
+    /**
+     * Queue one frame; never blocks
+     */
+    void send(String frame) {
+        if (closed) return;
+        if (queued.incrementAndGet() > MAX_QUEUED_FRAMES) {
+            logger.warn("Client {} is not reading ({} frames queued), closing connection",
+                    socket.getInetAddress(), MAX_QUEUED_FRAMES);
+            abort();
+            return;
+        }
+        queue.offer(frame);
+        schedule();
+    }
+
+    void close() {
+        closed = true;
+        queue.clear();
+        out.close();
+    }
+
+    private void schedule() {
+        if (!scheduled.compareAndSet(false, true)) return;
+        try {
+            POOL.execute(this::drain);
+        } catch (RejectedExecutionException e) {
+            scheduled.set(false);
+            logger.error("Could not schedule writes for client {}", socket.getInetAddress(), e);
+        }
+    }
+
+    private void drain() {
+        try {
+            String frame;
+            while (!closed && (frame = queue.poll()) != null) {
+                queued.decrementAndGet();
+                out.println(frame);
+            }
+            out.flush();
+            if (out.checkError() && !closed) {
+                logger.warn("Write to client {} failed, closing connection", socket.getInetAddress());
+                abort();
+            }
+        } finally {
+            scheduled.set(false);
+        }
+        // Frame đến sau lần poll cuối nhưng trước khi bỏ cờ
+        if (!closed && !queue.isEmpty()) {
+            schedule();
+        }
+    }
+
+    // Đóng socket làm luồng đọc của kết nối thoát và dọn dẹp như khi client ngắt
+    private void abort() {
+        closed = true;
+        queue.clear();
+        try {
+            socket.close();
+        } catch (IOException e) {
+            logger.debug("Error closing client socket", e);
+        }
+    }
+}
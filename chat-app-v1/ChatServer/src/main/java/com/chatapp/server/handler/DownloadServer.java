@@ -0,0 +1,408 @@
+package com.chatapp.server.handler;
+
+import com.chatapp.server.service.AvatarService;
+import com.chatapp.server.service.BlobStore;
+import com.chatapp.server.service.HotFileCache;
+import com.chatapp.server.service.SessionService;
+import com.chatapp.server.util.DbExecutor;
+import com.chatapp.server.util.FileUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Kênh tải file nhị phân, tách khỏi socket chat (HTTP/1.1 tối giản, chỉ GET/HEAD).
+ * - GET /uploads/... với "Authorization: Bearer <session token>"; quyền tải theo BlobStore.mayDownload:
+ *   file đính kèm (blob, file upload kiểu cũ và ảnh thu nhỏ) chỉ thành viên cuộc hội thoại đã gửi nó,
+ *   ảnh đại diện thì mọi user đã đăng nhập
+ * - Tối đa MAX_CONNECTIONS kết nối được phục vụ, MAX_QUEUED_CONNECTIONS chờ; quá nữa trả 503
+ * - Hỗ trợ "Range: bytes=a-b" (một khoảng) để tải tiếp và tải song song nhiều khoảng
+ * - File nhỏ được phục vụ từ HotFileCache (direct buffer); file lớn được đẩy bằng
+ *   FileChannel.transferTo thẳng vào socket. Cả hai cách file đều không đi qua heap
+ * - Ảnh đại diện (uploads/avatars/, tên theo hash) được đánh dấu immutable để client cache mãi
+ */
+public class DownloadServer {
+    private static final Logger logger = LoggerFactory.getLogger(DownloadServer.class);
+
+    private static final int MAX_CONNECTIONS = 32;
+    private static final int MAX_QUEUED_CONNECTIONS = 64;
+    // Keep-alive ngắn: kết nối rảnh không giữ luồng phục vụ lâu
+    private static final int IDLE_TIMEOUT_MILLIS = 5000;
+    private static final int MAX_HEADER_BYTES = 8192;
+
+    private final int port;
+    private final Path uploadRoot;
+    private final Path tempRoot;
+    private final Path avatarRoot;
+    private final SessionService sessionService;
+    private final DbExecutor dbExecutor;
+    private final BlobStore blobStore;
+    private final HotFileCache hotFileCache;
+    private final ExecutorService connectionPool;
+    private ServerSocketChannel serverChannel;
+    private Thread acceptThread;
+    private volatile boolean running;
+
+    /**
+     * Writes bytes [position, position + length) of the file to the socket
+     */
+    private interface BodyWriter {
+        void write(long position, long length) throws IOException;
+    }
+
+    private static class Request {
+        String method;
+        String target;
+        final Map<String, String> headers = new HashMap<>();
+    }
+
+    public DownloadServer(int port) {
+        this.port = port;
+        this.uploadRoot = FileUtil.getUploadDirectory().toAbsolutePath().normalize();
+        this.tempRoot = FileUtil.getTempDirectory().toAbsolutePath().normalize();
+        this.avatarRoot = uploadRoot.resolve(AvatarService.AVATAR_DIR);
+        this.sessionService = SessionService.getInstance();
+        this.dbExecutor = DbExecutor.getInstance();
+        this.blobStore = BlobStore.getInstance();
+        this.hotFileCache = HotFileCache.getInstance();
+
+        AtomicInteger counter = new AtomicInteger();
+        this.connectionPool = new ThreadPoolExecutor(MAX_CONNECTIONS, MAX_CONNECTIONS, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(MAX_QUEUED_CONNECTIONS), r -> {
+            Thread t = new Thread(r, "download-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public void start() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        running = true;
+
+        acceptThread = new Thread(this::acceptLoop, "download-accept");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+        logger.info("Download server started on port {}", port);
+    }
+
+    public void stop() {
+        running = false;
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+        } catch (IOException e) {
+            logger.error("Error closing download server socket", e);
+        }
+        connectionPool.shutdownNow();
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                try {
+                    connectionPool.execute(() -> serve(channel));
+                } catch (RejectedExecutionException e) {
+                    reject(channel);
+                }
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                if (running) {
+                    logger.error("Error accepting download connection", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Answer 503 without reading the request and close (all download threads and queue slots busy)
+     */
+    private void reject(SocketChannel channel) {
+        try (SocketChannel ch = channel) {
+            writeHeaders(ch, "503 Service Unavailable", "Retry-After: 1\r\nContent-Length: 0\r\nConnection: close\r\n");
+        } catch (IOException e) {
+            logger.debug("Error rejecting download connection: {}", e.getMessage());
+        }
+        logger.warn("Download server busy, rejected a connection");
+    }
+
+    /**
+     * Serve requests of one keep-alive connection until the client closes it or goes idle
+     */
+    private void serve(SocketChannel channel) {
+        try (SocketChannel ch = channel) {
+            ch.socket().setSoTimeout(IDLE_TIMEOUT_MILLIS);
+            ch.socket().setTcpNoDelay(true);
+            InputStream in = new BufferedInputStream(ch.socket().getInputStream());
+
+            Request request;
+            while ((request = readRequest(in)) != null) {
+                if (!handle(ch, request)) break;
+            }
+        } catch (SocketTimeoutException e) {
+            // kết nối rảnh quá lâu
+        } catch (IOException e) {
+            logger.debug("Download connection closed: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Returns false if the connection must be closed after this response
+     */
+    private boolean handle(SocketChannel ch, Request request) throws IOException {
+        boolean head = "HEAD".equals(request.method);
+        if (!head && !"GET".equals(request.method)) {
+            sendStatus(ch, 405, "Method Not Allowed");
+            return false;
+        }
+
+        String auth = request.headers.get("authorization");
+        String token = auth != null && auth.startsWith("Bearer ") ? auth.substring(7).trim() : null;
+        Path file = resolve(request.target);
+        // Tra phiên và quyền có thể chạm DB: chạy trên DbExecutor, luồng tải không tự mượn kết nối
+        int[] access;
+        try {
+            access = dbExecutor.supply(() -> {
+                int userId = sessionService.resolve(token);
+                return new int[] {userId, userId > 0 && file != null && blobStore.mayDownload(userId, file) ? 1 : 0};
+            }).join();
+        } catch (CompletionException e) {
+            logger.warn("Could not authorize download: {}", e.getMessage());
+            writeHeaders(ch, "503 Service Unavailable", "Retry-After: 1\r\nContent-Length: 0\r\n");
+            return true;
+        }
+        int userId = access[0];
+        if (userId <= 0) {
+            sendStatus(ch, 401, "Unauthorized");
+            return true;
+        }
+        if (file == null) {
+            sendStatus(ch, 404, "Not Found");
+            return true;
+        }
+        if (access[1] == 0) {
+            sendStatus(ch, 403, "Forbidden");
+            return true;
+        }
+
+        try {
+            HotFileCache.Entry cached = hotFileCache.get(file);
+            if (cached != null) {
+                return send(ch, request, head, userId, file, cached.size(), cached.getLastModified(),
+                        (position, length) -> {
+                            ByteBuffer body = cached.slice(position, length);
+                            while (body.hasRemaining()) {
+                                ch.write(body);
+                            }
+                        });
+            }
+
+            try (FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+                return send(ch, request, head, userId, file, fileChannel.size(),
+                        Files.getLastModifiedTime(file).toMillis(), (position, length) -> {
+                            long remaining = length;
+                            while (remaining > 0) {
+                                long sent = fileChannel.transferTo(position, remaining, ch);
+                                if (sent <= 0) {
+                                    throw new IOException("File truncated while sending " + file);
+                                }
+                                position += sent;
+                                remaining -= sent;
+                            }
+                        });
+            }
+        } catch (NoSuchFileException e) {
+            sendStatus(ch, 404, "Not Found");
+            return true;
+        }
+    }
+
+    private boolean send(SocketChannel ch, Request request, boolean head, int userId, Path file,
+                         long size, long lastModified, BodyWriter body) throws IOException {
+        String etag = "\"" + Long.toHexString(size) + "-" + Long.toHexString(lastModified) + "\"";
+
+        long start = 0;
+        long end = size - 1;
+        boolean partial = false;
+        String range = request.headers.get("range");
+        String ifRange = request.headers.get("if-range");
+        if (range != null && (ifRange == null || ifRange.equals(etag))) {
+            long[] bounds = parseRange(range, size);
+            if (bounds == null) {
+                writeHeaders(ch, "416 Range Not Satisfiable", "Content-Range: bytes */" + size
+                        + "\r\nContent-Length: 0\r\n");
+                return true;
+            }
+            start = bounds[0];
+            end = bounds[1];
+            partial = true;
+        }
+
+        long length = end - start + 1;
+        StringBuilder headers = new StringBuilder();
+        headers.append("Content-Type: application/octet-stream\r\n");
+        headers.append("Accept-Ranges: bytes\r\n");
+        headers.append("ETag: ").append(etag).append("\r\n");
+        if (file.startsWith(avatarRoot)) {
+            // Tên ảnh đại diện đổi theo nội dung: không bao giờ cần hỏi lại
+            headers.append("Cache-Control: private, max-age=31536000, immutable\r\n");
+        }
+        headers.append("Content-Length: ").append(length).append("\r\n");
+        if (partial) {
+            headers.append("Content-Range: bytes ").append(start).append('-').append(end)
+                    .append('/').append(size).append("\r\n");
+        }
+        writeHeaders(ch, partial ? "206 Partial Content" : "200 OK", headers.toString());
+
+        if (!head) {
+            body.write(start, length);
+        }
+        logger.debug("User {} downloaded {} bytes {}-{} of {}", userId, file.getFileName(), start, end, size);
+        return true;
+    }
+
+    /**
+     * File under uploads/ for a request target, or null (outside uploads/, partial upload, missing)
+     */
+    private Path resolve(String target) {
+        String path;
+        try {
+            path = new URI(target).getPath();
+        } catch (URISyntaxException e) {
+            return null;
+        }
+        if (path == null || !path.startsWith("/")) return null;
+
+        Path file = Paths.get(path.substring(1)).toAbsolutePath().normalize();
+        if (!file.startsWith(uploadRoot) || file.startsWith(tempRoot) || !Files.isRegularFile(file)) {
+            return null;
+        }
+        return file;
+    }
+
+    /**
+     * Parse a single "bytes=" range into inclusive [start, end], or null if it cannot be satisfied
+     */
+    private static long[] parseRange(String header, long size) {
+        if (!header.startsWith("bytes=") || header.indexOf(',') >= 0) return null;
+
+        String spec = header.substring(6).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) return null;
+
+        try {
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+            long start;
+            long end;
+            if (first.isEmpty()) {
+                // bytes=-N: N byte cuối
+                long suffix = Long.parseLong(last);
+                if (suffix <= 0) return null;
+                start = Math.max(0, size - suffix);
+                end = size - 1;
+            } else {
+                start = Long.parseLong(first);
+                end = last.isEmpty() ? size - 1 : Math.min(Long.parseLong(last), size - 1);
+            }
+            if (start < 0 || start >= size || end < start) return null;
+            return new long[] {start, end};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private Request readRequest(InputStream in) throws IOException {
+        String requestLine = readLine(in);
+        while (requestLine != null && requestLine.isEmpty()) {
+            requestLine = readLine(in);
+        }
+        if (requestLine == null) return null;
+
+        String[] parts = requestLine.split(" ");
+        if (parts.length != 3) {
+            throw new IOException("Malformed request line");
+        }
+
+        Request request = new Request();
+        request.method = parts[0];
+        request.target = parts[1];
+
+        int headerBytes = requestLine.length();
+        String line;
+        while ((line = readLine(in)) != null && !line.isEmpty()) {
+            headerBytes += line.length();
+            if (headerBytes > MAX_HEADER_BYTES) {
+                throw new IOException("Request headers too large");
+            }
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                request.headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ROOT),
+                        line.substring(colon + 1).trim());
+            }
+        }
+        return request;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r') {
+                    line.setLength(length - 1);
+                }
+                return line.toString();
+            }
+            if (line.length() >= MAX_HEADER_BYTES) {
+                throw new IOException("Request line too long");
+            }
+            line.append((char) b);
+        }
+        return line.length() > 0 ? line.toString() : null;
+    }
+
+    private static void sendStatus(SocketChannel ch, int code, String reason) throws IOException {
+        writeHeaders(ch, code + " " + reason, "Content-Length: 0\r\n");
+    }
+
+    private static void writeHeaders(SocketChannel ch, String status, String headers) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(("HTTP/1.1 " + status + "\r\n" + headers + "\r\n")
+                .getBytes(StandardCharsets.US_ASCII));
+        while (buffer.hasRemaining()) {
+            ch.write(buffer);
+        }
+    }
+}
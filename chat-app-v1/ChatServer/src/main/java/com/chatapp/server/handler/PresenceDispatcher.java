@@ -0,0 +1,165 @@
+package com.chatapp.server.handler;
+
+import com.chatapp.server.model.Protocol;
+import com.chatapp.server.model.UserStatus;
+import com.chatapp.server.service.FriendGraph;
+import com.google.gson.JsonArray;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gom các thay đổi trạng thái online trong một cửa sổ ngắn rồi gửi cho mỗi
+ * người nhận đúng một frame NOTIFY_PRESENCE_BATCH gồm các cặp [userId, status].
+ * - Trạng thái bật/tắt liên tục trong cùng cửa sổ (online -> offline -> online)
+ *   bị triệt tiêu nếu trạng thái cuối trùng với trạng thái đã thông báo.
+ * - Mỗi kết nối nhận tối đa MAX_PAIRS_PER_SECOND cặp mỗi giây; phần còn lại
+ *   chờ sang cửa sổ sau (và tiếp tục được gộp theo userId).
+ */
+public class PresenceDispatcher {
+    private static final Logger logger = LoggerFactory.getLogger(PresenceDispatcher.class);
+
+    private static final long WINDOW_MILLIS = 500;
+    private static final int MAX_PAIRS_PER_SECOND = 500;
+
+    private final Map<Integer, ClientHandler> onlineUsers;
+    private final FriendGraph friendGraph;
+
+    // userId -> trạng thái mới nhất trong cửa sổ hiện tại
+    private final ConcurrentHashMap<Integer, UserStatus> changes;
+    // userId -> trạng thái bạn bè đã được thông báo (không có = OFFLINE)
+    private final Map<Integer, UserStatus> broadcast;
+    // Chỉ truy cập từ luồng dispatcher
+    private final Map<Integer, RecipientQueue> recipients;
+    private ScheduledExecutorService scheduler;
+
+    public PresenceDispatcher(Map<Integer, ClientHandler> onlineUsers) {
+        this.onlineUsers = onlineUsers;
+        this.friendGraph = FriendGraph.getInstance();
+        this.changes = new ConcurrentHashMap<>();
+        this.broadcast = new HashMap<>();
+        this.recipients = new HashMap<>();
+    }
+
+    public void start() {
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "presence-dispatcher");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(this::dispatch, WINDOW_MILLIS, WINDOW_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * Record a presence change; it reaches friends on the next window
+     */
+    public void publish(int userId, UserStatus status) {
+        changes.put(userId, status);
+    }
+
+    private void dispatch() {
+        try {
+            collectChanges();
+            sendBatches();
+        } catch (Exception e) {
+            logger.error("Error dispatching presence updates", e);
+        }
+    }
+
+    private void collectChanges() {
+        if (changes.isEmpty()) return;
+
+        int collapsed = 0;
+        for (Integer userId : new ArrayList<>(changes.keySet())) {
+            UserStatus status = changes.remove(userId);
+            if (status == null) continue;
+
+            UserStatus previous = broadcast.getOrDefault(userId, UserStatus.OFFLINE);
+            if (status == previous) {
+                collapsed++;
+                continue;
+            }
+            if (status == UserStatus.OFFLINE) {
+                broadcast.remove(userId);
+            } else {
+                broadcast.put(userId, status);
+            }
+
+            for (int friendId : friendGraph.getOnlineFriendIds(userId, onlineUsers)) {
+                recipients.computeIfAbsent(friendId, id -> new RecipientQueue()).pending.put(userId, status);
+            }
+        }
+        if (collapsed > 0) {
+            logger.debug("Collapsed {} presence flaps", collapsed);
+        }
+    }
+
+    private void sendBatches() {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<Integer, RecipientQueue>> it = recipients.entrySet().iterator();
+
+        while (it.hasNext()) {
+            Map.Entry<Integer, RecipientQueue> entry = it.next();
+            RecipientQueue queue = entry.getValue();
+            ClientHandler handler = onlineUsers.get(entry.getKey());
+            if (handler == null) {
+                it.remove();
+                continue;
+            }
+
+            boolean windowExpired = now - queue.windowStart >= 1000;
+            if (queue.pending.isEmpty()) {
+                // Giữ lại đến hết giây để hạn mức vẫn có hiệu lực
+                if (windowExpired) it.remove();
+                continue;
+            }
+            if (windowExpired) {
+                queue.windowStart = now;
+                queue.sentInWindow = 0;
+            }
+            int allowance = MAX_PAIRS_PER_SECOND - queue.sentInWindow;
+            if (allowance <= 0) continue;
+
+            JsonArray pairs = new JsonArray();
+            List<Integer> sent = new ArrayList<>();
+            for (Map.Entry<Integer, UserStatus> change : queue.pending.entrySet()) {
+                if (sent.size() >= allowance) break;
+                JsonArray pair = new JsonArray();
+                pair.add(change.getKey());
+                pair.add(change.getValue().name());
+                pairs.add(pair);
+                sent.add(change.getKey());
+            }
+            for (Integer userId : sent) {
+                queue.pending.remove(userId);
+            }
+            queue.sentInWindow += sent.size();
+
+            Protocol notification = new Protocol(Protocol.NOTIFY_PRESENCE_BATCH);
+            notification.addData("presence", pairs);
+            handler.sendResponse(notification);
+        }
+    }
+
+    private static class RecipientQueue {
+        private final LinkedHashMap<Integer, UserStatus> pending = new LinkedHashMap<>();
+        private long windowStart;
+        private int sentInWindow;
+    }
+}
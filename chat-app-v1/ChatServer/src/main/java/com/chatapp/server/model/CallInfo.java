@@ -42,6 +42,19 @@ public class CallInfo {
         this.duration = 0;
     }
 
+    public CallInfo(CallInfo other) {
+        this.callId = other.callId;
+        this.callerId = other.callerId;
+        this.receiverId = other.receiverId;
+        this.callType = other.callType;
+        this.callStatus = other.callStatus;
+        this.startedAt = other.startedAt;
+        this.endedAt = other.endedAt;
+        this.duration = other.duration;
+        this.callerName = other.callerName;
+        this.receiverName = other.receiverName;
+    }
+
     // Getters and Setters
     public int getCallId() {
         return callId;
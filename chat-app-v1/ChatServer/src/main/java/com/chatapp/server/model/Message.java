@@ -1,6 +1,8 @@
 package com.chatapp.server.model;
 
 import java.sql.Timestamp;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 public class Message {
     private int messageId;
@@ -18,6 +20,7 @@ public class Message {
     // Thông tin bổ sung (không lưu trong DB)
     private String senderName;
     private String receiverName;
+    private Map<Integer, String> thumbnails;  // ảnh: cạnh dài (px) -> fileUrl của bản thu nhỏ
 
     public Message() {
         this.messageType = MessageType.TEXT;
@@ -34,6 +37,26 @@ public class Message {
         this.isRead = false;
     }
 
+    /**
+     * Bản sao độc lập (dùng khi chia sẻ từ cache)
+     */
+    public Message(Message other) {
+        this.messageId = other.messageId;
+        this.senderId = other.senderId;
+        this.receiverId = other.receiverId;
+        this.groupId = other.groupId;
+        this.messageType = other.messageType;
+        this.messageContent = other.messageContent;
+        this.fileUrl = other.fileUrl;
+        this.fileName = other.fileName;
+        this.fileSize = other.fileSize;
+        this.isRead = other.isRead;
+        this.sentAt = other.sentAt != null ? (Timestamp) other.sentAt.clone() : null;
+        this.senderName = other.senderName;
+        this.receiverName = other.receiverName;
+        this.thumbnails = other.thumbnails != null ? new LinkedHashMap<>(other.thumbnails) : null;
+    }
+
     // Getters and Setters
     public int getMessageId() {
         return messageId;
@@ -139,6 +162,30 @@ public class Message {
         this.receiverName = receiverName;
     }
 
+    public Map<Integer, String> getThumbnails() {
+        return thumbnails;
+    }
+
+    public void setThumbnails(Map<Integer, String> thumbnails) {
+        this.thumbnails = thumbnails;
+    }
+
+    /**
+     * fileUrl of the smallest thumbnail whose longest side is at least minSize,
+     * the largest one if none is that big, or null if the message has no thumbnails
+     */
+    public String getThumbnailUrl(int minSize) {
+        if (thumbnails == null || thumbnails.isEmpty()) return null;
+
+        Integer best = null;
+        Integer largest = null;
+        for (Integer size : thumbnails.keySet()) {
+            if (size >= minSize && (best == null || size < best)) best = size;
+            if (largest == null || size > largest) largest = size;
+        }
+        return thumbnails.get(best != null ? best : largest);
+    }
+
     public boolean isGroupMessage() {
         return groupId != null;
     }
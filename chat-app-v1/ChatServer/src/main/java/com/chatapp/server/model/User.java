@@ -28,6 +28,19 @@ public class User {
         this.statusMessage = "";
     }
 
+    public User(User other) {
+        this.userId = other.userId;
+        this.username = other.username;
+        this.email = other.email;
+        this.passwordHash = other.passwordHash;
+        this.fullName = other.fullName;
+        this.statusMessage = other.statusMessage;
+        this.userStatus = other.userStatus;
+        this.avatarUrl = other.avatarUrl;
+        this.createdAt = other.createdAt;
+        this.lastLogin = other.lastLogin;
+    }
+
     // Getters and Setters
     public int getUserId() {
         return userId;
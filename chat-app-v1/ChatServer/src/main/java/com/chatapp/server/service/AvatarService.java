@@ -0,0 +1,145 @@
+package com.chatapp.server.service;
+
+import com.chatapp.server.util.FileIoExecutor;
+import com.chatapp.server.util.FileUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Ảnh đại diện của user và nhóm.
+ * - Ảnh upload được cắt vuông ở giữa và thu nhỏ sẵn thành các bản JPEG SIZES px:
+ *   uploads/avatars/<sha256 của ảnh gốc>_<size>.jpg; ảnh gốc không được giữ
+ * - avatar_url trong DB là "uploads/avatars/<sha256>", tên đổi theo nội dung nên client cache
+ *   mãi mãi, đổi ảnh đại diện là đổi URL; cùng một ảnh upload nhiều lần chỉ xử lý một lần
+ * - Danh sách bạn bè/nhóm lấy nhiều ảnh nhỏ trong một lần (GET_AVATARS), đọc qua HotFileCache
+ */
+public class AvatarService {
+    private static final Logger logger = LoggerFactory.getLogger(AvatarService.class);
+
+    public static final int[] SIZES = {48, 96, 256};
+    public static final int MAX_AVATAR_BYTES = 5 * 1024 * 1024;
+    public static final int MAX_AVATARS_PER_REQUEST = 100;
+    public static final String AVATAR_DIR = "avatars";
+
+    private static final String URL_PREFIX = "uploads/" + AVATAR_DIR + "/";
+
+    private static AvatarService instance;
+
+    private final Path avatarRoot;
+    private final FileIoExecutor fileIoExecutor;
+    private final HotFileCache hotFileCache;
+
+    private AvatarService() {
+        this.avatarRoot = FileUtil.getUploadDirectory().resolve(AVATAR_DIR);
+        this.fileIoExecutor = FileIoExecutor.getInstance();
+        this.hotFileCache = HotFileCache.getInstance();
+    }
+
+    public static synchronized AvatarService getInstance() {
+        if (instance == null) {
+            instance = new AvatarService();
+        }
+        return instance;
+    }
+
+    /**
+     * URL of the variant of the given size (see nearestSize) for an avatar_url
+     */
+    public static String variantUrl(String avatarUrl, int size) {
+        return avatarUrl + "_" + size + ".jpg";
+    }
+
+    /**
+     * Smallest stored size at least as large as requested (the largest if none is)
+     */
+    public static int nearestSize(int requested) {
+        for (int size : SIZES) {
+            if (size >= requested) return size;
+        }
+        return SIZES[SIZES.length - 1];
+    }
+
+    /**
+     * Whether a URL was produced by this service (so it names files under uploads/avatars/)
+     */
+    public static boolean isAvatarUrl(String avatarUrl) {
+        return avatarUrl != null && avatarUrl.startsWith(URL_PREFIX)
+                && BlobStore.isValidHash(avatarUrl.substring(URL_PREFIX.length()));
+    }
+
+    /**
+     * Store an uploaded avatar on the file I/O executor. Completes with its avatar_url,
+     * or null if the data is not a readable image.
+     */
+    public CompletableFuture<String> storeAsync(byte[] imageData) {
+        return fileIoExecutor.supply("avatar-store", () -> store(imageData));
+    }
+
+    private String store(byte[] imageData) {
+        String hash = BlobStore.toHex(BlobStore.newDigest().digest(imageData));
+        String avatarUrl = URL_PREFIX + hash;
+        // Bản nhỏ nhất được ghi sau cùng nên đại diện cho cả bộ
+        if (Files.isRegularFile(variantPath(hash, SIZES[0]))) {
+            return avatarUrl;
+        }
+
+        BufferedImage image = ThumbnailService.decode(imageData, hash, SIZES[SIZES.length - 1], true);
+        if (image == null) {
+            return null;
+        }
+
+        try {
+            Files.createDirectories(avatarRoot);
+            image = cropToSquare(image);
+            for (int i = SIZES.length - 1; i >= 0; i--) {
+                image = ThumbnailService.scale(image, SIZES[i]);
+                ThumbnailService.write(image, variantPath(hash, SIZES[i]));
+            }
+            logger.info("Stored avatar {}", hash);
+            return avatarUrl;
+        } catch (IOException e) {
+            logger.error("Error storing avatar {}", hash, e);
+            return null;
+        }
+    }
+
+    /**
+     * Base64 of a stored variant, or null if it does not exist. Runs on the calling thread.
+     */
+    public String readVariantBase64(String avatarUrl, int size) {
+        if (!isAvatarUrl(avatarUrl)) return null;
+
+        Path file = variantPath(avatarUrl.substring(URL_PREFIX.length()), size);
+        try {
+            HotFileCache.Entry cached = hotFileCache.get(file);
+            if (cached == null) {
+                return Base64.getEncoder().encodeToString(Files.readAllBytes(file));
+            }
+            ByteBuffer encoded = Base64.getEncoder().encode(cached.slice(0, cached.size()));
+            return new String(encoded.array(), encoded.arrayOffset(), encoded.remaining(), StandardCharsets.US_ASCII);
+        } catch (IOException e) {
+            logger.warn("Avatar variant {} unavailable: {}", file, e.getMessage());
+            return null;
+        }
+    }
+
+    private Path variantPath(String hash, int size) {
+        return avatarRoot.resolve(hash + "_" + size + ".jpg");
+    }
+
+    private static BufferedImage cropToSquare(BufferedImage image) {
+        int side = Math.min(image.getWidth(), image.getHeight());
+        int x = (image.getWidth() - side) / 2;
+        int y = (image.getHeight() - side) / 2;
+        return image.getSubimage(x, y, side, side);
+    }
+}
@@ -0,0 +1,492 @@
+package com.chatapp.server.service;
+
+import com.chatapp.server.util.ConversationKey;
+import com.chatapp.server.util.DatabaseManager;
+import com.chatapp.server.util.DbExecutor;
+import com.chatapp.server.util.FileUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Kho file theo nội dung: mỗi file lưu một lần tại uploads/blobs/ab/cd/<sha256>.
+ * - Bảng blobs giữ kích thước và ref_count (số tin nhắn trỏ tới file)
+ * - Bảng blob_conversations ghi các cuộc hội thoại đã gửi file: chỉ thành viên của chúng được tải
+ * - Client gửi kèm SHA-256 khi bắt đầu upload; nếu server đã có và người gửi đã thấy file đó
+ *   (thành viên một cuộc hội thoại đã gửi nó) thì không cần gửi nội dung. Chỉ biết hash
+ *   không đủ để lấy quyền tải file của người khác
+ * - Blob chưa có tin nhắn nào trỏ tới (upload bỏ dở, gửi tin lỗi, chỉ dò hash) và không được dùng
+ *   trong GC_GRACE_MINUTES bị xóa ở nền. Tin nhắn không bao giờ bị xóa nên ref_count chỉ tăng
+ * Các thao tác trên cùng một hash được tuần tự hóa (khóa theo hash) để GC không xóa
+ * file vừa được upload lại hoặc vừa được tìm thấy.
+ * File upload kiểu cũ (uploads/images|files|videos|audio/<uuid>_<tên>) vẫn tải được: bảng
+ * legacy_file_conversations (điền từ messages trong schema.sql) giữ cuộc hội thoại đã gửi chúng.
+ */
+public class BlobStore {
+    private static final Logger logger = LoggerFactory.getLogger(BlobStore.class);
+
+    private static final String BLOB_DIR = "blobs";
+    private static final String URL_PREFIX = "uploads/" + BLOB_DIR + "/";
+    private static final long GC_INTERVAL_MINUTES = 10;
+    private static final long GC_GRACE_MINUTES = 60;
+    private static final int GC_BATCH_SIZE = 500;
+    private static final int LOCK_STRIPES = 64;
+    private static final int MAX_CACHED_ACCESS = 10000;
+    private static final List<String> LEGACY_DIRS = Arrays.asList("images", "files", "videos", "audio");
+
+    private static BlobStore instance;
+
+    private final DatabaseManager dbManager;
+    private final DbExecutor dbExecutor;
+    private final HotFileCache hotFileCache;
+    private final GroupService groupService;
+    private final Path blobRoot;
+    private final Object[] locks;
+    // sha256 -> các cuộc hội thoại đã gửi file (LRU); đọc/ghi dưới khóa của hash
+    private final LinkedHashMap<String, long[]> conversationsByBlob;
+    // file_url kiểu cũ -> các cuộc hội thoại đã gửi file (LRU); không đổi nữa nên không cần khóa theo file
+    private final LinkedHashMap<String, long[]> conversationsByLegacyFile;
+    private ScheduledExecutorService collector;
+
+    private BlobStore() {
+        this.dbManager = DatabaseManager.getInstance();
+        this.dbExecutor = DbExecutor.getInstance();
+        this.hotFileCache = HotFileCache.getInstance();
+        this.groupService = new GroupService();
+        this.conversationsByBlob = new LinkedHashMap<String, long[]>(256, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, long[]> eldest) {
+                return size() > MAX_CACHED_ACCESS;
+            }
+        };
+        this.conversationsByLegacyFile = new LinkedHashMap<String, long[]>(256, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, long[]> eldest) {
+                return size() > MAX_CACHED_ACCESS;
+            }
+        };
+        this.blobRoot = FileUtil.getUploadDirectory().resolve(BLOB_DIR);
+        this.locks = new Object[LOCK_STRIPES];
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    public static synchronized BlobStore getInstance() {
+        if (instance == null) {
+            instance = new BlobStore();
+        }
+        return instance;
+    }
+
+    public void start() {
+        collector = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "blob-gc");
+            t.setDaemon(true);
+            return t;
+        });
+        collector.scheduleWithFixedDelay(this::collectGarbage, GC_INTERVAL_MINUTES, GC_INTERVAL_MINUTES, TimeUnit.MINUTES);
+    }
+
+    public void stop() {
+        if (collector != null) {
+            collector.shutdown();
+        }
+    }
+
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    public static String toHex(byte[] digest) {
+        StringBuilder hex = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    public static boolean isValidHash(String sha256) {
+        if (sha256 == null || sha256.length() != 64) return false;
+        for (int i = 0; i < sha256.length(); i++) {
+            char c = sha256.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Hash of a blob file URL, or null if the URL does not point into the blob store
+     */
+    public static String hashOf(String fileUrl) {
+        if (fileUrl == null || !fileUrl.startsWith(URL_PREFIX)) return null;
+        String hash = fileUrl.substring(fileUrl.lastIndexOf('/') + 1);
+        return isValidHash(hash) ? hash : null;
+    }
+
+    /**
+     * File URL of a stored blob with this hash and size, or null.
+     * A hit counts as a use, so the blob is safe from GC until a reference is added.
+     * Only blobs the user can already access are found: knowing a hash is no proof of having the file.
+     */
+    public String find(String sha256, long size, int userId) {
+        if (!isValidHash(sha256) || !canAccess(sha256, userId)) return null;
+
+        String sql = "UPDATE blobs SET last_used_at = CURRENT_TIMESTAMP WHERE sha256 = ? AND size = ?";
+        synchronized (lockFor(sha256)) {
+            try (Connection conn = dbManager.getConnection();
+                 PreparedStatement pstmt = conn.prepareStatement(sql)) {
+
+                pstmt.setString(1, sha256);
+                pstmt.setLong(2, size);
+                if (pstmt.executeUpdate() == 0 || !Files.isRegularFile(blobPath(sha256))) {
+                    return null;
+                }
+                return urlOf(sha256);
+            } catch (SQLException e) {
+                logger.error("Error looking up blob {}", sha256, e);
+                return null;
+            }
+        }
+    }
+
+    public CompletableFuture<String> findAsync(String sha256, long size, int userId) {
+        return dbExecutor.supply(() -> find(sha256, size, userId));
+    }
+
+    /**
+     * Move a fully written temporary file into the store under its hash.
+     * If the content is already stored the temporary file is deleted.
+     * Returns the blob's file URL, or null on failure (the temporary file is removed).
+     */
+    public String store(Path tempFile, String sha256, long size) {
+        String sql = "INSERT INTO blobs (sha256, size, ref_count) VALUES (?, ?, 0) " +
+                "ON DUPLICATE KEY UPDATE last_used_at = CURRENT_TIMESTAMP";
+
+        Path target = blobPath(sha256);
+        synchronized (lockFor(sha256)) {
+            try {
+                if (Files.isRegularFile(target)) {
+                    Files.delete(tempFile);
+                } else {
+                    Files.createDirectories(target.getParent());
+                    Files.move(tempFile, target, StandardCopyOption.ATOMIC_MOVE);
+                }
+            } catch (IOException e) {
+                logger.error("Error storing blob {}", sha256, e);
+                FileUtil.deleteFile(tempFile.toString());
+                return null;
+            }
+
+            try (Connection conn = dbManager.getConnection();
+                 PreparedStatement pstmt = conn.prepareStatement(sql)) {
+
+                pstmt.setString(1, sha256);
+                pstmt.setLong(2, size);
+                pstmt.executeUpdate();
+            } catch (SQLException e) {
+                // File không có dòng trong blobs: không bị GC, lần upload sau sẽ ghi lại dòng
+                logger.error("Error recording blob {}", sha256, e);
+                return null;
+            }
+        }
+        logger.info("Stored blob {} ({} bytes)", sha256, size);
+        return urlOf(sha256);
+    }
+
+    /**
+     * Store an in-memory file (legacy single-frame SEND_FILE)
+     */
+    public String storeBytes(byte[] data) {
+        String sha256 = toHex(newDigest().digest(data));
+        try {
+            Path tempFile = Files.createTempFile(FileUtil.getTempDirectory(), "blob-", ".part");
+            Files.write(tempFile, data);
+            return store(tempFile, sha256, data.length);
+        } catch (IOException e) {
+            logger.error("Error writing file of {} bytes", data.length, e);
+            return null;
+        }
+    }
+
+    /**
+     * Count a message of a conversation pointing to the blob and let the conversation's members
+     * download it. URLs outside the blob store are ignored.
+     */
+    public CompletableFuture<Boolean> addReferenceAsync(String fileUrl, long conversationKey) {
+        String sha256 = hashOf(fileUrl);
+        if (sha256 == null) {
+            return CompletableFuture.completedFuture(false);
+        }
+        return dbExecutor.supply(() -> {
+            boolean recorded = recordConversation(sha256, conversationKey);
+            return addReference(sha256) && recorded;
+        });
+    }
+
+    /**
+     * Whether a signed-in user may download a stored file (normalized absolute path under uploads/).
+     * Avatars are visible to everyone; a blob and its thumbnails (<sha256>_<size>.jpg), and a legacy
+     * upload and its thumbnails, only to members of a conversation the file was sent in.
+     */
+    public boolean mayDownload(int userId, Path file) {
+        Path uploadRoot = FileUtil.getUploadDirectory().toAbsolutePath().normalize();
+        if (!file.startsWith(uploadRoot)) return false;
+
+        Path relative = uploadRoot.relativize(file);
+        if (relative.getNameCount() < 2) return false;
+        String dir = relative.getName(0).toString();
+        String name = file.getFileName().toString();
+
+        if (AvatarService.AVATAR_DIR.equals(dir)) {
+            return true;
+        }
+        if (BLOB_DIR.equals(dir)) {
+            String sha256 = name.length() > 64 ? name.substring(0, 64) : name;
+            return isValidHash(sha256) && canAccess(sha256, userId);
+        }
+        if (LEGACY_DIRS.contains(dir) && relative.getNameCount() == 2) {
+            String prefix = "uploads/" + dir + "/";
+            long[] conversations = legacyConversationsOf(prefix + name);
+            String original = legacyOriginalOf(name);
+            if ((conversations == null || conversations.length == 0) && original != null) {
+                conversations = legacyConversationsOf(prefix + original);
+            }
+            return isMemberOfAny(conversations, userId);
+        }
+        return false;
+    }
+
+    /**
+     * mayDownload on the DB executor (membership lookups may hit the database)
+     */
+    public CompletableFuture<Boolean> mayDownloadAsync(int userId, Path file) {
+        return dbExecutor.supply(() -> mayDownload(userId, file));
+    }
+
+    /**
+     * Whether the user is a member of a conversation the blob was sent in
+     */
+    public boolean canAccess(String sha256, int userId) {
+        return isMemberOfAny(conversationsOf(sha256), userId);
+    }
+
+    private boolean isMemberOfAny(long[] conversations, int userId) {
+        if (conversations == null) return false;
+
+        for (long key : conversations) {
+            if (ConversationKey.isGroup(key)
+                    ? groupService.getGroupMemberIds(ConversationKey.groupId(key)).contains(userId)
+                    : ConversationKey.involves(key, userId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private long[] conversationsOf(String sha256) {
+        String sql = "SELECT conversation_key FROM blob_conversations WHERE sha256 = ?";
+
+        synchronized (lockFor(sha256)) {
+            synchronized (conversationsByBlob) {
+                long[] cached = conversationsByBlob.get(sha256);
+                if (cached != null) return cached;
+            }
+
+            List<Long> keys = new ArrayList<>();
+            try (Connection conn = dbManager.getConnection();
+                 PreparedStatement pstmt = conn.prepareStatement(sql)) {
+
+                pstmt.setString(1, sha256);
+                ResultSet rs = pstmt.executeQuery();
+                while (rs.next()) {
+                    keys.add(rs.getLong(1));
+                }
+            } catch (SQLException e) {
+                logger.error("Error reading conversations of blob {}", sha256, e);
+                return null;
+            }
+
+            long[] loaded = keys.stream().mapToLong(Long::longValue).toArray();
+            synchronized (conversationsByBlob) {
+                conversationsByBlob.put(sha256, loaded);
+            }
+            return loaded;
+        }
+    }
+
+    private long[] legacyConversationsOf(String fileUrl) {
+        synchronized (conversationsByLegacyFile) {
+            long[] cached = conversationsByLegacyFile.get(fileUrl);
+            if (cached != null) return cached;
+        }
+
+        String sql = "SELECT conversation_key FROM legacy_file_conversations WHERE file_url = ?";
+        List<Long> keys = new ArrayList<>();
+        try (Connection conn = dbManager.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+
+            pstmt.setString(1, fileUrl);
+            ResultSet rs = pstmt.executeQuery();
+            while (rs.next()) {
+                keys.add(rs.getLong(1));
+            }
+        } catch (SQLException e) {
+            logger.error("Error reading conversations of legacy file {}", fileUrl, e);
+            return null;
+        }
+
+        long[] loaded = keys.stream().mapToLong(Long::longValue).toArray();
+        synchronized (conversationsByLegacyFile) {
+            conversationsByLegacyFile.put(fileUrl, loaded);
+        }
+        return loaded;
+    }
+
+    // Ảnh thu nhỏ của file cũ: <tên gốc>_<size>.jpg
+    private static String legacyOriginalOf(String name) {
+        for (int size : ThumbnailService.SIZES) {
+            String suffix = "_" + size + ".jpg";
+            if (name.endsWith(suffix) && name.length() > suffix.length()) {
+                return name.substring(0, name.length() - suffix.length());
+            }
+        }
+        return null;
+    }
+
+    private boolean recordConversation(String sha256, long conversationKey) {
+        String sql = "INSERT IGNORE INTO blob_conversations (sha256, conversation_key) VALUES (?, ?)";
+
+        synchronized (lockFor(sha256)) {
+            try (Connection conn = dbManager.getConnection();
+                 PreparedStatement pstmt = conn.prepareStatement(sql)) {
+
+                pstmt.setString(1, sha256);
+                pstmt.setLong(2, conversationKey);
+                pstmt.executeUpdate();
+            } catch (SQLException e) {
+                logger.error("Error recording conversation {} of blob {}", conversationKey, sha256, e);
+                return false;
+            }
+
+            synchronized (conversationsByBlob) {
+                long[] cached = conversationsByBlob.get(sha256);
+                if (cached != null && Arrays.stream(cached).noneMatch(key -> key == conversationKey)) {
+                    long[] updated = Arrays.copyOf(cached, cached.length + 1);
+                    updated[cached.length] = conversationKey;
+                    conversationsByBlob.put(sha256, updated);
+                }
+            }
+            return true;
+        }
+    }
+
+    private boolean addReference(String sha256) {
+        String sql = "UPDATE blobs SET ref_count = ref_count + 1, last_used_at = CURRENT_TIMESTAMP WHERE sha256 = ?";
+
+        try (Connection conn = dbManager.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+
+            pstmt.setString(1, sha256);
+            return pstmt.executeUpdate() > 0;
+        } catch (SQLException e) {
+            logger.error("Error updating references of blob {}", sha256, e);
+            return false;
+        }
+    }
+
+    private void collectGarbage() {
+        String selectSql = "SELECT sha256 FROM blobs WHERE ref_count = 0 " +
+                "AND last_used_at < NOW() - INTERVAL ? MINUTE LIMIT ?";
+        String deleteSql = "DELETE FROM blobs WHERE sha256 = ? AND ref_count = 0 " +
+                "AND last_used_at < NOW() - INTERVAL ? MINUTE";
+
+        List<String> candidates = new ArrayList<>();
+        try (Connection conn = dbManager.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(selectSql)) {
+
+            pstmt.setLong(1, GC_GRACE_MINUTES);
+            pstmt.setInt(2, GC_BATCH_SIZE);
+            ResultSet rs = pstmt.executeQuery();
+            while (rs.next()) {
+                candidates.add(rs.getString(1));
+            }
+        } catch (SQLException e) {
+            logger.error("Error listing unreferenced blobs", e);
+            return;
+        }
+
+        int removed = 0;
+        for (String sha256 : candidates) {
+            synchronized (lockFor(sha256)) {
+                // Kiểm tra lại trong câu DELETE: blob có thể vừa được dùng lại
+                try (Connection conn = dbManager.getConnection();
+                     PreparedStatement pstmt = conn.prepareStatement(deleteSql)) {
+
+                    pstmt.setString(1, sha256);
+                    pstmt.setLong(2, GC_GRACE_MINUTES);
+                    if (pstmt.executeUpdate() == 0) continue;
+                } catch (SQLException e) {
+                    logger.error("Error removing blob {}", sha256, e);
+                    continue;
+                }
+                // Các dòng blob_conversations bị xóa theo khóa ngoại (ON DELETE CASCADE)
+                synchronized (conversationsByBlob) {
+                    conversationsByBlob.remove(sha256);
+                }
+
+                try {
+                    Path blob = blobPath(sha256);
+                    Files.deleteIfExists(blob);
+                    hotFileCache.invalidate(blob);
+                    for (int size : ThumbnailService.SIZES) {
+                        Path variant = ThumbnailService.variantPath(blob, size);
+                        Files.deleteIfExists(variant);
+                        hotFileCache.invalidate(variant);
+                    }
+                    removed++;
+                } catch (IOException e) {
+                    logger.error("Error deleting blob file {}", sha256, e);
+                }
+            }
+        }
+        if (removed > 0) {
+            logger.info("Collected {} unreferenced blobs", removed);
+        }
+    }
+
+    private Path blobPath(String sha256) {
+        return blobRoot.resolve(sha256.substring(0, 2)).resolve(sha256.substring(2, 4)).resolve(sha256);
+    }
+
+    private static String urlOf(String sha256) {
+        return URL_PREFIX + sha256.substring(0, 2) + "/" + sha256.substring(2, 4) + "/" + sha256;
+    }
+
+    private Object lockFor(String sha256) {
+        return locks[Integer.parseInt(sha256.substring(0, 2), 16) % LOCK_STRIPES];
+    }
+}
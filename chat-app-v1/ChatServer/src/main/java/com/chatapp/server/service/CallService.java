@@ -1,145 +1,305 @@
 package com.chatapp.server.service;
 
 import com.chatapp.server.model.CallInfo;
+import com.chatapp.server.model.User;
 import com.chatapp.server.util.DatabaseManager;
+import com.chatapp.server.util.DbExecutor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
-
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Cuộc gọi đang diễn ra được giữ trong bộ nhớ; các bước báo hiệu
+ * (initiate/accept/reject/end) không chờ DB. Nhật ký cuộc gọi được
+ * ghi xuống bảng calls theo lô, mỗi cuộc gọi chỉ giữ trạng thái mới nhất.
+ * Cuộc gọi đổ chuông quá RING_TIMEOUT_SECONDS sẽ bị đánh dấu MISSED.
+ * Dòng đã ở trạng thái kết thúc (ENDED/REJECTED/MISSED) không bị ghi đè bởi bản chụp cũ hơn.
+ */
 public class CallService {
     private static final Logger logger = LoggerFactory.getLogger(CallService.class);
-    private final DatabaseManager dbManager;
 
-    public CallService() {
+    private static final long RING_TIMEOUT_SECONDS = 30;
+    private static final long FLUSH_INTERVAL_MILLIS = 1000;
+
+    private static final String FINAL_STATUS = "call_status IN ('ENDED', 'REJECTED', 'MISSED')";
+
+    // MySQL gán lần lượt từ trái sang phải: call_status phải được gán sau cùng
+    private static final String UPSERT_SQL =
+            "INSERT INTO calls (call_id, caller_id, receiver_id, call_type, call_status, started_at, ended_at, duration) " +
+            "VALUES (?, ?, ?, ?, ?, ?, ?, ?) ON DUPLICATE KEY UPDATE " +
+            "ended_at = IF(" + FINAL_STATUS + ", ended_at, VALUES(ended_at)), " +
+            "duration = IF(" + FINAL_STATUS + ", duration, VALUES(duration)), " +
+            "call_status = IF(" + FINAL_STATUS + ", call_status, VALUES(call_status))";
+
+    private static CallService instance;
+
+    private final DatabaseManager dbManager;
+    private final UserService userService;
+    private final DbExecutor dbExecutor;
+    private final ConcurrentHashMap<Integer, CallInfo> activeCalls;
+    private final ConcurrentHashMap<Integer, ScheduledFuture<?>> ringTimeouts;
+    // callId -> bản chụp mới nhất chưa ghi xuống DB
+    private final Map<Integer, CallInfo> pendingLogs;
+    private final Object flushLock = new Object();
+    private final AtomicInteger nextCallId;
+    private final ScheduledExecutorService scheduler;
+    private volatile boolean idsLoaded;
+    private volatile Consumer<CallInfo> missedCallListener;
+
+    private CallService() {
         this.dbManager = DatabaseManager.getInstance();
+        this.userService = new UserService();
+        this.dbExecutor = DbExecutor.getInstance();
+        this.activeCalls = new ConcurrentHashMap<>();
+        this.ringTimeouts = new ConcurrentHashMap<>();
+        this.pendingLogs = new LinkedHashMap<>();
+        this.nextCallId = new AtomicInteger();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "call-service");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(this::flush, FLUSH_INTERVAL_MILLIS, FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public static synchronized CallService getInstance() {
+        if (instance == null) {
+            instance = new CallService();
+        }
+        return instance;
+    }
+
+    /**
+     * Called with a snapshot of each call that timed out while ringing
+     */
+    public void setMissedCallListener(Consumer<CallInfo> listener) {
+        this.missedCallListener = listener;
     }
 
     /**
      * Initiate a call
      */
     public CallInfo initiateCall(int callerId, int receiverId, CallInfo.CallType callType) {
-        String sql = "INSERT INTO calls (caller_id, receiver_id, call_type, call_status) VALUES (?, ?, ?, 'RINGING')";
+        if (!ensureIdsLoaded()) {
+            return null;
+        }
 
-        try (Connection conn = dbManager.getConnection();
-             PreparedStatement pstmt = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
+        CallInfo call = new CallInfo(callerId, receiverId, callType);
+        call.setCallId(nextCallId.incrementAndGet());
+        call.setStartedAt(new Timestamp(System.currentTimeMillis()));
 
-            pstmt.setInt(1, callerId);
-            pstmt.setInt(2, receiverId);
-            pstmt.setString(3, callType.name());
+        User caller = userService.getUserById(callerId);
+        User receiver = userService.getUserById(receiverId);
+        call.setCallerName(caller != null ? caller.getFullName() : null);
+        call.setReceiverName(receiver != null ? receiver.getFullName() : null);
 
-            int affectedRows = pstmt.executeUpdate();
+        activeCalls.put(call.getCallId(), call);
+        ringTimeouts.put(call.getCallId(), scheduler.schedule(
+                () -> markCallAsMissed(call.getCallId()), RING_TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        enqueueLog(call);
 
-            if (affectedRows > 0) {
-                try (ResultSet rs = pstmt.getGeneratedKeys()) {
-                    if (rs.next()) {
-                        int callId = rs.getInt(1);
-                        logger.info("Call initiated from {} to {} ({})", callerId, receiverId, callType);
-                        return getCallById(callId);
-                    }
-                }
-            }
-        } catch (SQLException e) {
-            logger.error("Error initiating call from {} to {}", callerId, receiverId, e);
-        }
-        return null;
+        logger.info("Call initiated from {} to {} ({})", callerId, receiverId, callType);
+        return new CallInfo(call);
     }
 
     /**
      * Accept call
      */
     public boolean acceptCall(int callId) {
-        String sql = "UPDATE calls SET call_status = 'ACCEPTED' WHERE call_id = ? AND call_status = 'RINGING'";
-
-        try (Connection conn = dbManager.getConnection();
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
-
-            pstmt.setInt(1, callId);
-            int affectedRows = pstmt.executeUpdate();
+        CallInfo call = activeCalls.get(callId);
+        if (call == null) return false;
 
-            if (affectedRows > 0) {
-                logger.info("Call {} accepted", callId);
-                return true;
+        synchronized (call) {
+            if (call.getCallStatus() != CallInfo.CallStatus.RINGING) {
+                return false;
             }
-        } catch (SQLException e) {
-            logger.error("Error accepting call {}", callId, e);
+            call.setCallStatus(CallInfo.CallStatus.ACCEPTED);
+            cancelRingTimeout(callId);
+            enqueueLog(call);
         }
-        return false;
+        logger.info("Call {} accepted", callId);
+        return true;
     }
 
     /**
      * Reject call
      */
     public boolean rejectCall(int callId) {
-        String sql = "UPDATE calls SET call_status = 'REJECTED', ended_at = CURRENT_TIMESTAMP WHERE call_id = ?";
+        if (finishCall(callId, CallInfo.CallStatus.REJECTED, false) == null) {
+            return false;
+        }
+        logger.info("Call {} rejected", callId);
+        return true;
+    }
 
-        try (Connection conn = dbManager.getConnection();
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+    /**
+     * End call
+     */
+    public boolean endCall(int callId) {
+        if (finishCall(callId, CallInfo.CallStatus.ENDED, false) == null) {
+            return false;
+        }
+        logger.info("Call {} ended", callId);
+        return true;
+    }
 
-            pstmt.setInt(1, callId);
-            int affectedRows = pstmt.executeUpdate();
+    /**
+     * Mark call as missed (chỉ khi vẫn đang đổ chuông)
+     */
+    public boolean markCallAsMissed(int callId) {
+        CallInfo missed = finishCall(callId, CallInfo.CallStatus.MISSED, true);
+        if (missed == null) {
+            return false;
+        }
+        logger.info("Call {} marked as missed", callId);
+
+        Consumer<CallInfo> listener = missedCallListener;
+        if (listener != null) {
+            try {
+                listener.accept(missed);
+            } catch (Exception e) {
+                logger.error("Error notifying missed call {}", callId, e);
+            }
+        }
+        return true;
+    }
 
-            if (affectedRows > 0) {
-                logger.info("Call {} rejected", callId);
-                return true;
+    /**
+     * Move a call to a final state and drop it from the registry.
+     * Returns a snapshot, or null if the call is not active.
+     */
+    private CallInfo finishCall(int callId, CallInfo.CallStatus status, boolean onlyIfRinging) {
+        CallInfo call = activeCalls.get(callId);
+        if (call == null) return null;
+
+        synchronized (call) {
+            if (onlyIfRinging && call.getCallStatus() != CallInfo.CallStatus.RINGING) {
+                return null;
             }
-        } catch (SQLException e) {
-            logger.error("Error rejecting call {}", callId, e);
+            if (!activeCalls.remove(callId, call)) {
+                return null;
+            }
+            long now = System.currentTimeMillis();
+            call.setCallStatus(status);
+            call.setEndedAt(new Timestamp(now));
+            if (status == CallInfo.CallStatus.ENDED) {
+                call.setDuration((int) ((now - call.getStartedAt().getTime()) / 1000));
+            }
+            cancelRingTimeout(callId);
+            enqueueLog(call);
+            return new CallInfo(call);
+        }
+    }
+
+    private void cancelRingTimeout(int callId) {
+        ScheduledFuture<?> timeout = ringTimeouts.remove(callId);
+        if (timeout != null) {
+            timeout.cancel(false);
         }
-        return false;
     }
 
     /**
-     * End call
+     * Call IDs are assigned in memory, continuing from the highest stored ID
      */
-    public boolean endCall(int callId) {
-        String sql = "UPDATE calls SET call_status = 'ENDED', ended_at = CURRENT_TIMESTAMP, " +
-                     "duration = TIMESTAMPDIFF(SECOND, started_at, CURRENT_TIMESTAMP) WHERE call_id = ?";
+    private synchronized boolean ensureIdsLoaded() {
+        if (idsLoaded) return true;
 
+        String sql = "SELECT COALESCE(MAX(call_id), 0) FROM calls";
         try (Connection conn = dbManager.getConnection();
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+             Statement stmt = conn.createStatement()) {
 
-            pstmt.setInt(1, callId);
-            int affectedRows = pstmt.executeUpdate();
-
-            if (affectedRows > 0) {
-                logger.info("Call {} ended", callId);
-                return true;
+            ResultSet rs = stmt.executeQuery(sql);
+            if (rs.next()) {
+                nextCallId.set(rs.getInt(1));
+                idsLoaded = true;
             }
         } catch (SQLException e) {
-            logger.error("Error ending call {}", callId, e);
+            logger.error("Error loading last call ID", e);
+        }
+        return idsLoaded;
+    }
+
+    private void enqueueLog(CallInfo call) {
+        synchronized (pendingLogs) {
+            pendingLogs.put(call.getCallId(), new CallInfo(call));
         }
-        return false;
     }
 
     /**
-     * Mark call as missed
+     * Write pending call logs in one batch. Flushes are serialized so a batch never
+     * overtakes an older one for the same call.
      */
-    public boolean markCallAsMissed(int callId) {
-        String sql = "UPDATE calls SET call_status = 'MISSED', ended_at = CURRENT_TIMESTAMP WHERE call_id = ?";
-
-        try (Connection conn = dbManager.getConnection();
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+    public void flush() {
+        synchronized (flushLock) {
+            flushLocked();
+        }
+    }
 
-            pstmt.setInt(1, callId);
-            int affectedRows = pstmt.executeUpdate();
+    private void flushLocked() {
+        List<CallInfo> batch;
+        synchronized (pendingLogs) {
+            if (pendingLogs.isEmpty()) return;
+            batch = new ArrayList<>(pendingLogs.values());
+            pendingLogs.clear();
+        }
 
-            if (affectedRows > 0) {
-                logger.info("Call {} marked as missed", callId);
-                return true;
+        try (Connection conn = dbManager.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(UPSERT_SQL)) {
+
+            for (CallInfo call : batch) {
+                pstmt.setInt(1, call.getCallId());
+                pstmt.setInt(2, call.getCallerId());
+                pstmt.setInt(3, call.getReceiverId());
+                pstmt.setString(4, call.getCallType().name());
+                pstmt.setString(5, call.getCallStatus().name());
+                pstmt.setTimestamp(6, call.getStartedAt());
+                pstmt.setTimestamp(7, call.getEndedAt());
+                pstmt.setInt(8, call.getDuration());
+                pstmt.addBatch();
             }
+            pstmt.executeBatch();
+            for (CallInfo call : batch) {
+                dbManager.noteUserWrite(call.getCallerId());
+                dbManager.noteUserWrite(call.getReceiverId());
+            }
+            logger.debug("Flushed {} call log entries", batch.size());
         } catch (SQLException e) {
-            logger.error("Error marking call {} as missed", callId, e);
+            logger.error("Error flushing {} call log entries", batch.size(), e);
+            synchronized (pendingLogs) {
+                for (CallInfo call : batch) {
+                    pendingLogs.putIfAbsent(call.getCallId(), call);
+                }
+            }
         }
-        return false;
+    }
+
+    public void shutdown() {
+        scheduler.shutdownNow();
+        flush();
+    }
+
+    public int getActiveCallCount() {
+        return activeCalls.size();
     }
 
     /**
      * Get call history for a user
      */
     public List<CallInfo> getCallHistory(int userId, int limit) {
+        flush();
         List<CallInfo> calls = new ArrayList<>();
         String sql = "SELECT c.*, " +
                      "caller.full_name as caller_name, receiver.full_name as receiver_name " +
@@ -149,7 +309,7 @@ public class CallService {
                      "WHERE c.caller_id = ? OR c.receiver_id = ? " +
                      "ORDER BY c.started_at DESC LIMIT ?";
 
-        try (Connection conn = dbManager.getConnection();
+        try (Connection conn = dbManager.getReadConnection(userId);
              PreparedStatement pstmt = conn.prepareStatement(sql)) {
 
             pstmt.setInt(1, userId);
@@ -168,9 +328,17 @@ public class CallService {
     }
 
     /**
-     * Get call by ID
+     * Get call by ID (registry first, then the call log)
      */
     public CallInfo getCallById(int callId) {
+        CallInfo active = activeCalls.get(callId);
+        if (active != null) {
+            synchronized (active) {
+                return new CallInfo(active);
+            }
+        }
+        flush();
+
         String sql = "SELECT c.*, " +
                      "caller.full_name as caller_name, receiver.full_name as receiver_name " +
                      "FROM calls c " +
@@ -193,6 +361,20 @@ public class CallService {
         return null;
     }
 
+    /**
+     * initiateCall on the DB executor (the first call loads the last call ID; names may hit the DB)
+     */
+    public CompletableFuture<CallInfo> initiateCallAsync(int callerId, int receiverId, CallInfo.CallType callType) {
+        return dbExecutor.supply(() -> initiateCall(callerId, receiverId, callType));
+    }
+
+    /**
+     * getCallById on the DB executor (calls no longer active are read from the call log)
+     */
+    public CompletableFuture<CallInfo> getCallByIdAsync(int callId) {
+        return dbExecutor.supply(() -> getCallById(callId));
+    }
+
     /**
      * Extract CallInfo from ResultSet
      */
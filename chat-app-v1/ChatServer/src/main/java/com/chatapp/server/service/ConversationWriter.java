@@ -0,0 +1,257 @@
+package com.chatapp.server.service;
+
+import com.chatapp.server.model.Message;
+import com.chatapp.server.model.User;
+import com.chatapp.server.util.ConversationKey;
+import com.chatapp.server.util.DbExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Mỗi cuộc hội thoại có một mailbox chỉ một luồng ghi tại một thời điểm
+ * (actor nhẹ chạy trên pool dùng chung). Tin nhắn của cùng cuộc hội thoại
+ * được ghi đúng thứ tự gửi; mỗi lượt xử lý gom các tin đang chờ thành
+ * một lần ghi vào MessageStore (MySQL: một câu INSERT nhiều dòng).
+ * Đường gửi chỉ dùng hàng đợi lock-free và CAS.
+ * - Luồng ghi chỉ gọi store; phần sau đó (điền tên, cache, index, callback của người gửi)
+ *   chạy trên DbExecutor, nối tiếp nhau theo từng cuộc hội thoại
+ * - Mailbox rỗng và đã xong mọi callback thì bị gỡ khỏi map (đóng bằng CAS pending 0 -> -1)
+ */
+public class ConversationWriter {
+    private static final Logger logger = LoggerFactory.getLogger(ConversationWriter.class);
+
+    private static final int MAX_BATCH = 100;
+
+    private static ConversationWriter instance;
+
+    private final MessageStore messageStore;
+    private final UserService userService;
+    private final RecentMessageCache recentCache;
+    private final MessageSearchIndex searchIndex;
+    private final ReadStateService readStateService;
+    private final DbExecutor dbExecutor;
+    private final ConcurrentHashMap<Long, Mailbox> mailboxes;
+    private final ExecutorService pool;
+
+    private ConversationWriter() {
+        this.messageStore = MessageStoreFactory.getInstance();
+        this.userService = new UserService();
+        this.recentCache = RecentMessageCache.getInstance();
+        this.searchIndex = MessageSearchIndex.getInstance();
+        this.readStateService = ReadStateService.getInstance();
+        this.dbExecutor = DbExecutor.getInstance();
+        this.mailboxes = new ConcurrentHashMap<>();
+
+        int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        AtomicInteger counter = new AtomicInteger();
+        this.pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "conversation-writer-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public static synchronized ConversationWriter getInstance() {
+        if (instance == null) {
+            instance = new ConversationWriter();
+        }
+        return instance;
+    }
+
+    /**
+     * Queue a message (without ID) for its conversation.
+     * Completes with the stored message, or null if it could not be saved.
+     * Futures of one conversation complete in submission order, on a DbExecutor thread.
+     */
+    public CompletableFuture<Message> submit(Message draft) {
+        long key = ConversationKey.of(draft);
+        Mailbox mailbox;
+        while (true) {
+            mailbox = mailboxes.computeIfAbsent(key, Mailbox::new);
+            if (mailbox.enter()) break;
+            // Mailbox vừa đóng: gỡ nó (nếu chưa) rồi lấy mailbox mới
+            mailboxes.remove(key, mailbox);
+        }
+
+        CompletableFuture<Message> future = new CompletableFuture<>();
+        mailbox.queue.offer(new Task(draft, future));
+        mailbox.schedule();
+        return future;
+    }
+
+    public void shutdown() {
+        pool.shutdown();
+        try {
+            // Cho các mailbox ghi nốt tin đang chờ
+            if (!pool.awaitTermination(5, TimeUnit.SECONDS)) {
+                logger.warn("Conversation writers did not finish within 5 seconds");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private List<Message> persist(List<Task> batch) {
+        List<Message> drafts = new ArrayList<>(batch.size());
+        for (Task task : batch) {
+            drafts.add(task.draft);
+        }
+
+        // Một mailbox = một cuộc hội thoại: một lần ghi vào store
+        return messageStore.append(ConversationKey.of(drafts.get(0)), drafts);
+    }
+
+    /**
+     * Everything after the write: names, caches, index, read state and the senders' callbacks
+     */
+    private void complete(List<Task> batch, List<Message> saved) {
+        for (Message message : saved) {
+            try {
+                fillNames(message);
+            } catch (Exception e) {
+                logger.error("Error filling names of message {}", message.getMessageId(), e);
+            }
+        }
+
+        for (int i = 0; i < batch.size(); i++) {
+            Task task = batch.get(i);
+            Message message = i < saved.size() ? saved.get(i) : null;
+            if (message != null) {
+                try {
+                    recentCache.onMessageSent(message);
+                    searchIndex.addMessage(message);
+                    readStateService.onMessageSent(message);
+                } catch (Exception e) {
+                    logger.error("Error updating caches for message {}", message.getMessageId(), e);
+                }
+            }
+            try {
+                task.future.complete(message);
+            } catch (Exception e) {
+                logger.error("Error in message callback", e);
+            }
+        }
+
+        if (!saved.isEmpty()) {
+            logger.info("Stored {} messages in conversation {}", saved.size(), ConversationKey.of(saved.get(0)));
+        }
+    }
+
+    private void fillNames(Message message) {
+        User sender = userService.getUserById(message.getSenderId());
+        message.setSenderName(sender != null ? sender.getUsername() : null);
+        if (message.getReceiverId() != null) {
+            User receiver = userService.getUserById(message.getReceiverId());
+            message.setReceiverName(receiver != null ? receiver.getUsername() : null);
+        }
+    }
+
+    private class Mailbox implements Runnable {
+        private final long key;
+        private final Queue<Task> queue = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        // Số tin đã nhận chưa ghi xong; -1 = đã đóng, không nhận thêm
+        private final AtomicInteger pending = new AtomicInteger();
+        // Chuỗi callback của mailbox, chạy lần lượt trên DbExecutor
+        private volatile CompletableFuture<Void> completions = CompletableFuture.completedFuture(null);
+
+        Mailbox(long key) {
+            this.key = key;
+        }
+
+        boolean enter() {
+            while (true) {
+                int current = pending.get();
+                if (current < 0) return false;
+                if (pending.compareAndSet(current, current + 1)) return true;
+            }
+        }
+
+        /**
+         * Close and remove the mailbox when nothing is queued or still completing
+         */
+        void tryRetire() {
+            if (!scheduled.get() && completions.isDone() && pending.compareAndSet(0, -1)) {
+                mailboxes.remove(key, this);
+            }
+        }
+
+        /**
+         * Run the batch's completion after the previous one, on DbExecutor
+         * (inline if the executor rejects it, so senders always get an answer)
+         */
+        void handOff(List<Task> batch, List<Message> saved) {
+            CompletableFuture<Void> next = completions
+                    .handle((v, e) -> (Void) null)
+                    .thenCompose(v -> dbExecutor.supply(() -> {
+                        complete(batch, saved);
+                        return (Void) null;
+                    }))
+                    .exceptionally(e -> {
+                        if (e.getCause() instanceof RejectedExecutionException) {
+                            complete(batch, saved);
+                        } else {
+                            logger.error("Error completing messages of conversation {}", key, e);
+                        }
+                        return null;
+                    });
+            completions = next;
+            next.whenComplete((v, e) -> tryRetire());
+        }
+
+        void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                pool.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            List<Task> batch = new ArrayList<>();
+            try {
+                Task task;
+                while (batch.size() < MAX_BATCH && (task = queue.poll()) != null) {
+                    batch.add(task);
+                }
+                if (!batch.isEmpty()) {
+                    handOff(batch, persist(batch));
+                }
+            } catch (Exception e) {
+                logger.error("Error draining conversation mailbox", e);
+                handOff(batch, new ArrayList<>());
+            } finally {
+                pending.addAndGet(-batch.size());
+                scheduled.set(false);
+                // Tin đến trong lúc đang ghi: lên lịch lượt tiếp theo
+                if (!queue.isEmpty()) {
+                    schedule();
+                } else {
+                    tryRetire();
+                }
+            }
+        }
+    }
+
+    private static class Task {
+        private final Message draft;
+        private final CompletableFuture<Message> future;
+
+        Task(Message draft, CompletableFuture<Message> future) {
+            this.draft = draft;
+            this.future = future;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package com.chatapp.server.service;
+
+import com.chatapp.server.util.DatabaseManager;
+import com.chatapp.server.util.IntHashSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Đồ thị bạn bè nằm trong bộ nhớ server: userId -> tập friend_id (int nguyên thủy).
+ * Mỗi user được nạp lazily từ bảng friends ở lần truy cập đầu tiên (ngoài map, không giữ khóa
+ * của map trong lúc truy vấn DB).
+ * Các tập là copy-on-write nên đọc không cần khóa.
+ * Quan hệ bạn bè chỉ được thêm (chưa có chức năng hủy kết bạn/chặn).
+ */
+public class FriendGraph {
+    private static final Logger logger = LoggerFactory.getLogger(FriendGraph.class);
+
+    private static FriendGraph instance;
+
+    private final DatabaseManager dbManager;
+    private final ConcurrentHashMap<Integer, IntHashSet> adjacency;
+    // Tăng mỗi khi thêm cạnh; tập nạp song song với một lần thêm cạnh thì không được cache
+    private final AtomicLong edgeVersion;
+
+    private FriendGraph() {
+        this.dbManager = DatabaseManager.getInstance();
+        this.adjacency = new ConcurrentHashMap<>();
+        this.edgeVersion = new AtomicLong();
+    }
+
+    public static synchronized FriendGraph getInstance() {
+        if (instance == null) {
+            instance = new FriendGraph();
+        }
+        return instance;
+    }
+
+    /**
+     * Friend IDs of a user, loading them from the database if needed.
+     * The returned set must not be modified.
+     */
+    public IntHashSet getFriendIds(int userId) {
+        IntHashSet friendIds = adjacency.get(userId);
+        if (friendIds != null) {
+            return friendIds;
+        }
+
+        long version = edgeVersion.get();
+        IntHashSet loaded = loadFriendIds(userId);
+        if (loaded == null) {
+            return new IntHashSet();
+        }
+        if (edgeVersion.get() != version) {
+            // Có cạnh mới trong lúc nạp: kết quả có thể đã cũ, lần sau nạp lại
+            return loaded;
+        }
+        IntHashSet existing = adjacency.putIfAbsent(userId, loaded);
+        if (existing != null) {
+            return existing;
+        }
+        if (edgeVersion.get() != version) {
+            // addEdge chạy giữa lần kiểm tra trên và putIfAbsent: computeIfPresent của nó có thể
+            // đã bỏ qua key còn trống. Bỏ tập vừa cache (mọi bản suy ra từ nó), lần sau nạp lại
+            adjacency.remove(userId);
+        }
+        return loaded;
+    }
+
+    public boolean areFriends(int userId1, int userId2) {
+        return getFriendIds(userId1).contains(userId2);
+    }
+
+    /**
+     * Friends of a user that are currently in the online registry.
+     * Iterates whichever side is smaller.
+     */
+    public int[] getOnlineFriendIds(int userId, Map<Integer, ?> onlineRegistry) {
+        IntHashSet friendIds = getFriendIds(userId);
+        IntHashSet online = new IntHashSet(Math.min(friendIds.size(), onlineRegistry.size()));
+
+        if (friendIds.size() <= onlineRegistry.size()) {
+            for (int friendId : friendIds.toArray()) {
+                if (onlineRegistry.containsKey(friendId)) {
+                    online.add(friendId);
+                }
+            }
+        } else {
+            for (Integer onlineId : onlineRegistry.keySet()) {
+                if (friendIds.contains(onlineId)) {
+                    online.add(onlineId);
+                }
+            }
+        }
+        return online.toArray();
+    }
+
+    /**
+     * Record a new friendship in both directions.
+     * Call only after the database transaction has committed.
+     * Users not loaded yet are skipped; they will read the committed rows on first access.
+     */
+    public void addFriendship(int userId1, int userId2) {
+        addEdge(userId1, userId2);
+        addEdge(userId2, userId1);
+    }
+
+    /**
+     * Drop a user's adjacency so it is reloaded from the database
+     */
+    public void invalidate(int userId) {
+        adjacency.remove(userId);
+    }
+
+    public int getLoadedUserCount() {
+        return adjacency.size();
+    }
+
+    private void addEdge(int from, int to) {
+        edgeVersion.incrementAndGet();
+        adjacency.computeIfPresent(from, (id, current) -> {
+            if (current.contains(to)) return current;
+            IntHashSet updated = new IntHashSet(current);
+            updated.add(to);
+            return updated;
+        });
+    }
+
+    private IntHashSet loadFriendIds(int userId) {
+        IntHashSet friendIds = new IntHashSet();
+        String sql = "SELECT friend_id FROM friends WHERE user_id = ?";
+
+        try (Connection conn = dbManager.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+
+            pstmt.setInt(1, userId);
+            ResultSet rs = pstmt.executeQuery();
+
+            while (rs.next()) {
+                friendIds.add(rs.getInt("friend_id"));
+            }
+            logger.debug("Loaded {} friends for user {} into friend graph", friendIds.size(), userId);
+        } catch (SQLException e) {
+            logger.error("Error loading friend graph for user {}", userId, e);
+            // Không cache kết quả lỗi, lần sau sẽ nạp lại
+            return null;
+        }
+        return friendIds;
+    }
+}
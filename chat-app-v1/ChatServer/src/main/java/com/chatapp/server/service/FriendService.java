@@ -2,23 +2,30 @@ package com.chatapp.server.service;
 
 import com.chatapp.server.model.FriendRequest;
 import com.chatapp.server.model.User;
-import com.chatapp.server.model.UserStatus;
 import com.chatapp.server.util.DatabaseManager;
+import com.chatapp.server.util.DbExecutor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 public class FriendService {
     private static final Logger logger = LoggerFactory.getLogger(FriendService.class);
     private final DatabaseManager dbManager;
     private final UserService userService;
+    private final FriendGraph friendGraph;
+    private final DbExecutor dbExecutor;
 
     public FriendService() {
         this.dbManager = DatabaseManager.getInstance();
         this.userService = new UserService();
+        this.friendGraph = FriendGraph.getInstance();
+        this.dbExecutor = DbExecutor.getInstance();
     }
 
     /**
@@ -38,6 +45,7 @@ public class FriendService {
         }
 
         String sql = "INSERT INTO friend_requests (sender_id, receiver_id, request_status) VALUES (?, ?, 'PENDING')";
+        int requestId = 0;
 
         try (Connection conn = dbManager.getConnection();
              PreparedStatement pstmt = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
@@ -50,16 +58,16 @@ public class FriendService {
             if (affectedRows > 0) {
                 try (ResultSet rs = pstmt.getGeneratedKeys()) {
                     if (rs.next()) {
-                        int requestId = rs.getInt(1);
+                        requestId = rs.getInt(1);
                         logger.info("Friend request sent from {} to {}", senderId, receiverId);
-                        return getFriendRequestById(requestId);
                     }
                 }
             }
         } catch (SQLException e) {
             logger.error("Error sending friend request from {} to {}", senderId, receiverId, e);
         }
-        return null;
+        // Đọc lại sau khi đã trả kết nối
+        return requestId > 0 ? getFriendRequestById(requestId) : null;
     }
 
     /**
@@ -96,6 +104,7 @@ public class FriendService {
             }
 
             conn.commit();
+            friendGraph.addFriendship(request.getSenderId(), request.getReceiverId());
             logger.info("Friend request {} accepted", requestId);
             return true;
 
@@ -116,6 +125,11 @@ public class FriendService {
                 } catch (SQLException e) {
                     logger.error("Error resetting auto-commit", e);
                 }
+                try {
+                    conn.close();
+                } catch (SQLException e) {
+                    logger.error("Error returning connection to the pool", e);
+                }
             }
         }
     }
@@ -172,55 +186,25 @@ public class FriendService {
     }
 
     /**
-     * Get friends list
+     * Get friends list (từ friend graph + user cache, không JOIN).
+     * user_status lấy từ PresenceService qua UserService.
      */
     public List<User> getFriends(int userId) {
-        List<User> friends = new ArrayList<>();
-        String sql = "SELECT u.* FROM users u " +
-                     "JOIN friends f ON u.user_id = f.friend_id " +
-                     "WHERE f.user_id = ? " +
-                     "ORDER BY u.user_status DESC, u.full_name";
-
-        logger.info("Getting friends list for user {}", userId);
-
-        try (Connection conn = dbManager.getConnection();
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
-
-            pstmt.setInt(1, userId);
-            ResultSet rs = pstmt.executeQuery();
-
-            int count = 0;
-            while (rs.next()) {
-                try {
-                    // Extract user directly from ResultSet instead of calling getUserById
-                    User friend = new User();
-                    friend.setUserId(rs.getInt("user_id"));
-                    friend.setUsername(rs.getString("username"));
-                    friend.setEmail(rs.getString("email"));
-                    friend.setFullName(rs.getString("full_name"));
-                    friend.setUserStatus(UserStatus.valueOf(rs.getString("user_status")));
-                    friend.setStatusMessage(rs.getString("status_message"));
-                    friend.setCreatedAt(rs.getTimestamp("created_at"));
-                    friend.setLastLogin(rs.getTimestamp("last_login"));
-
-                    friends.add(friend);
-                    count++;
-                    logger.debug("Added friend: {} ({})", friend.getFullName(), friend.getUserId());
-                } catch (Exception e) {
-                    logger.error("Error extracting friend data from result set", e);
-                }
-            }
+        List<Integer> friendIds = new ArrayList<>();
+        for (int friendId : friendGraph.getFriendIds(userId).toArray()) {
+            friendIds.add(friendId);
+        }
 
-            logger.info("Successfully retrieved {} friends for user {}", count, userId);
+        List<User> friends = userService.getUsersByIds(friendIds);
+        for (User friend : friends) {
+            friend.setPasswordHash(null);
+        }
 
-            if (count == 0) {
-                logger.warn("No friends found for user {}. Check friends table in database.", userId);
-            }
+        // Giữ thứ tự cũ: ORDER BY user_status DESC, full_name
+        friends.sort(Comparator.comparing((User u) -> u.getUserStatus().ordinal()).reversed()
+                .thenComparing(User::getFullName, Comparator.nullsFirst(Comparator.naturalOrder())));
 
-        } catch (SQLException e) {
-            logger.error("Error getting friends for user {}", userId, e);
-            logger.error("SQL: {}", sql);
-        }
+        logger.info("Retrieved {} friends for user {}", friends.size(), userId);
         return friends;
     }
 
@@ -228,22 +212,14 @@ public class FriendService {
      * Check if two users are friends
      */
     public boolean areFriends(int userId1, int userId2) {
-        String sql = "SELECT COUNT(*) FROM friends WHERE user_id = ? AND friend_id = ?";
-
-        try (Connection conn = dbManager.getConnection();
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
-
-            pstmt.setInt(1, userId1);
-            pstmt.setInt(2, userId2);
-            ResultSet rs = pstmt.executeQuery();
+        return friendGraph.areFriends(userId1, userId2);
+    }
 
-            if (rs.next()) {
-                return rs.getInt(1) > 0;
-            }
-        } catch (SQLException e) {
-            logger.error("Error checking friendship between {} and {}", userId1, userId2, e);
-        }
-        return false;
+    /**
+     * IDs of friends currently present in the online registry (no database access once loaded)
+     */
+    public int[] getOnlineFriendIds(int userId, Map<Integer, ?> onlineRegistry) {
+        return friendGraph.getOnlineFriendIds(userId, onlineRegistry);
     }
 
     /**
@@ -299,6 +275,28 @@ public class FriendService {
         return null;
     }
 
+    // ---- Async variants (chạy trên DbExecutor) ----
+
+    public CompletableFuture<FriendRequest> sendFriendRequestAsync(int senderId, int receiverId) {
+        return dbExecutor.supply(() -> sendFriendRequest(senderId, receiverId));
+    }
+
+    public CompletableFuture<Boolean> acceptFriendRequestAsync(int requestId) {
+        return dbExecutor.supply(() -> acceptFriendRequest(requestId));
+    }
+
+    public CompletableFuture<Boolean> rejectFriendRequestAsync(int requestId) {
+        return dbExecutor.supply(() -> rejectFriendRequest(requestId));
+    }
+
+    public CompletableFuture<List<FriendRequest>> getFriendRequestsAsync(int userId) {
+        return dbExecutor.supply(() -> getFriendRequests(userId));
+    }
+
+    public CompletableFuture<List<User>> getFriendsAsync(int userId) {
+        return dbExecutor.supply(() -> getFriends(userId));
+    }
+
     /**
      * Extract FriendRequest from ResultSet
      */
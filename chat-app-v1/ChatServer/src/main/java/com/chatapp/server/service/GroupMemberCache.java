@@ -0,0 +1,89 @@
+package com.chatapp.server.service;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache danh sách member_id của nhóm, dùng trên đường gửi tin (ReadStateService, thông báo nhóm).
+ * - LRU theo số nhóm, có TTL (server khác có thể đổi thành viên)
+ * - GroupService invalidate khi thêm/xóa thành viên; danh sách nạp song song với một lần
+ *   invalidate không được lưu (đếm version)
+ */
+public class GroupMemberCache {
+    private static final int MAX_ENTRIES = 10000;
+    private static final long TTL_MILLIS = 5 * 60 * 1000L;
+
+    private static GroupMemberCache instance;
+
+    private final LinkedHashMap<Integer, CacheEntry> entries;
+    private final AtomicLong version = new AtomicLong();
+
+    private GroupMemberCache() {
+        this.entries = new LinkedHashMap<Integer, CacheEntry>(256, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, CacheEntry> eldest) {
+                return size() > MAX_ENTRIES;
+            }
+        };
+    }
+
+    public static synchronized GroupMemberCache getInstance() {
+        if (instance == null) {
+            instance = new GroupMemberCache();
+        }
+        return instance;
+    }
+
+    /**
+     * Member IDs of the group (do not modify), or null if absent/expired
+     */
+    public int[] get(int groupId) {
+        synchronized (entries) {
+            CacheEntry entry = entries.get(groupId);
+            if (entry != null) {
+                if (entry.expiresAt > System.currentTimeMillis()) {
+                    return entry.memberIds;
+                }
+                entries.remove(groupId);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Version to read before loading members from the database (see put)
+     */
+    public long version() {
+        return version.get();
+    }
+
+    /**
+     * Store members loaded from the database, unless the cache was invalidated since loadVersion
+     */
+    public void put(int groupId, int[] memberIds, long loadVersion) {
+        CacheEntry entry = new CacheEntry(memberIds, System.currentTimeMillis() + TTL_MILLIS);
+        synchronized (entries) {
+            if (version.get() == loadVersion) {
+                entries.put(groupId, entry);
+            }
+        }
+    }
+
+    public void invalidate(int groupId) {
+        synchronized (entries) {
+            version.incrementAndGet();
+            entries.remove(groupId);
+        }
+    }
+
+    private static class CacheEntry {
+        private final int[] memberIds;
+        private final long expiresAt;
+
+        CacheEntry(int[] memberIds, long expiresAt) {
+            this.memberIds = memberIds;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -3,23 +3,32 @@ package com.chatapp.server.service;
 import com.chatapp.server.model.Group;
 import com.chatapp.server.model.User;
 import com.chatapp.server.util.DatabaseManager;
+import com.chatapp.server.util.DbExecutor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 public class GroupService {
     private static final Logger logger = LoggerFactory.getLogger(GroupService.class);
     private final DatabaseManager dbManager;
     private final UserService userService;
+    private final DbExecutor dbExecutor;
+    private final GroupMemberCache memberCache;
 
     public GroupService() {
         this.dbManager = DatabaseManager.getInstance();
         this.userService = new UserService();
+        this.dbExecutor = DbExecutor.getInstance();
+        this.memberCache = GroupMemberCache.getInstance();
     }
 
     /**
@@ -27,13 +36,13 @@ public class GroupService {
      */
     public Group createGroup(String groupName, String groupDescription, int creatorId) {
         Connection conn = null;
+        int groupId;
         try {
             conn = dbManager.getConnection();
             conn.setAutoCommit(false);
 
             // Insert group
             String groupSql = "INSERT INTO chat_groups (group_name, group_description, creator_id) VALUES (?, ?, ?)";
-            int groupId;
 
             try (PreparedStatement pstmt = conn.prepareStatement(groupSql, Statement.RETURN_GENERATED_KEYS)) {
                 pstmt.setString(1, groupName);
@@ -58,8 +67,8 @@ public class GroupService {
             }
 
             conn.commit();
+            dbManager.noteUserWrite(creatorId);
             logger.info("Group created: {} by user {}", groupName, creatorId);
-            return getGroupById(groupId);
 
         } catch (SQLException e) {
             logger.error("Error creating group: {}", groupName, e);
@@ -78,8 +87,15 @@ public class GroupService {
                 } catch (SQLException e) {
                     logger.error("Error resetting auto-commit", e);
                 }
+                try {
+                    conn.close();
+                } catch (SQLException e) {
+                    logger.error("Error returning connection to the pool", e);
+                }
             }
         }
+        // Đọc lại sau khi đã trả kết nối
+        return getGroupById(groupId);
     }
 
     /**
@@ -96,6 +112,8 @@ public class GroupService {
             int affectedRows = pstmt.executeUpdate();
 
             if (affectedRows > 0) {
+                dbManager.noteUserWrite(userId);
+                memberCache.invalidate(groupId);
                 logger.info("User {} added to group {}", userId, groupId);
                 return true;
             }
@@ -119,6 +137,8 @@ public class GroupService {
             int affectedRows = pstmt.executeUpdate();
 
             if (affectedRows > 0) {
+                dbManager.noteUserWrite(userId);
+                memberCache.invalidate(groupId);
                 logger.info("User {} removed from group {}", userId, groupId);
                 return true;
             }
@@ -141,7 +161,7 @@ public class GroupService {
 
         logger.info("Getting groups list for user {}", userId);
 
-        try (Connection conn = dbManager.getConnection();
+        try (Connection conn = dbManager.getReadConnection(userId);
              PreparedStatement pstmt = conn.prepareStatement(groupSql)) {
 
             pstmt.setInt(1, userId);
@@ -206,12 +226,34 @@ public class GroupService {
         return groups;
     }
 
+    /**
+     * Get IDs of the groups a user belongs to
+     */
+    public Set<Integer> getUserGroupIds(int userId) {
+        Set<Integer> groupIds = new HashSet<>();
+        String sql = "SELECT group_id FROM group_members WHERE user_id = ?";
+
+        try (Connection conn = dbManager.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+
+            pstmt.setInt(1, userId);
+            ResultSet rs = pstmt.executeQuery();
+
+            while (rs.next()) {
+                groupIds.add(rs.getInt("group_id"));
+            }
+        } catch (SQLException e) {
+            logger.error("Error getting group IDs for user {}", userId, e);
+        }
+        return groupIds;
+    }
+
     /**
      * Get group members
      */
     public List<User> getGroupMembers(int groupId) {
-        List<User> members = new ArrayList<>();
-        String sql = "SELECT u.* FROM users u " +
+        List<Integer> memberIds = new ArrayList<>();
+        String sql = "SELECT u.user_id FROM users u " +
                      "JOIN group_members gm ON u.user_id = gm.user_id " +
                      "WHERE gm.group_id = ? " +
                      "ORDER BY gm.member_role DESC, u.full_name";
@@ -223,20 +265,29 @@ public class GroupService {
             ResultSet rs = pstmt.executeQuery();
 
             while (rs.next()) {
-                members.add(userService.getUserById(rs.getInt("user_id")));
+                memberIds.add(rs.getInt("user_id"));
             }
         } catch (SQLException e) {
             logger.error("Error getting members for group {}", groupId, e);
         }
-        return members;
+        return userService.getUsersByIds(memberIds);
     }
 
     /**
-     * Get group member IDs
+     * Get group member IDs (read through GroupMemberCache)
      */
-    private List<Integer> getGroupMemberIds(int groupId) {
+    public List<Integer> getGroupMemberIds(int groupId) {
         List<Integer> memberIds = new ArrayList<>();
+        int[] cached = memberCache.get(groupId);
+        if (cached != null) {
+            for (int memberId : cached) {
+                memberIds.add(memberId);
+            }
+            return memberIds;
+        }
+
         String sql = "SELECT user_id FROM group_members WHERE group_id = ?";
+        long cacheVersion = memberCache.version();
 
         try (Connection conn = dbManager.getConnection();
              PreparedStatement pstmt = conn.prepareStatement(sql)) {
@@ -247,6 +298,7 @@ public class GroupService {
             while (rs.next()) {
                 memberIds.add(rs.getInt("user_id"));
             }
+            memberCache.put(groupId, memberIds.stream().mapToInt(Integer::intValue).toArray(), cacheVersion);
         } catch (SQLException e) {
             logger.error("Error getting member IDs for group {}", groupId, e);
         }
@@ -258,6 +310,7 @@ public class GroupService {
      */
     public Group getGroupById(int groupId) {
         String sql = "SELECT * FROM chat_groups WHERE group_id = ?";
+        Group group = null;
 
         try (Connection conn = dbManager.getConnection();
              PreparedStatement pstmt = conn.prepareStatement(sql)) {
@@ -266,14 +319,17 @@ public class GroupService {
             ResultSet rs = pstmt.executeQuery();
 
             if (rs.next()) {
-                Group group = extractGroupFromResultSet(rs);
-                group.setMemberIds(getGroupMemberIds(groupId));
-                return group;
+                group = extractGroupFromResultSet(rs);
             }
         } catch (SQLException e) {
             logger.error("Error getting group by ID {}", groupId, e);
+            return null;
+        }
+        // Thành viên lấy qua cache, sau khi đã trả kết nối
+        if (group != null) {
+            group.setMemberIds(getGroupMemberIds(groupId));
         }
-        return null;
+        return group;
     }
 
     /**
@@ -298,6 +354,126 @@ public class GroupService {
         return false;
     }
 
+    /**
+     * Check if user is an admin of group
+     */
+    public boolean isAdmin(int groupId, int userId) {
+        String sql = "SELECT COUNT(*) FROM group_members WHERE group_id = ? AND user_id = ? AND member_role = 'ADMIN'";
+
+        try (Connection conn = dbManager.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+
+            pstmt.setInt(1, groupId);
+            pstmt.setInt(2, userId);
+            ResultSet rs = pstmt.executeQuery();
+
+            if (rs.next()) {
+                return rs.getInt(1) > 0;
+            }
+        } catch (SQLException e) {
+            logger.error("Error checking admin role for user {} in group {}", userId, groupId, e);
+        }
+        return false;
+    }
+
+    /**
+     * Set the group avatar (a URL from AvatarService)
+     */
+    public boolean updateGroupAvatar(int groupId, String avatarUrl) {
+        String sql = "UPDATE chat_groups SET group_avatar_url = ? WHERE group_id = ?";
+
+        try (Connection conn = dbManager.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+
+            pstmt.setString(1, avatarUrl);
+            pstmt.setInt(2, groupId);
+            return pstmt.executeUpdate() > 0;
+        } catch (SQLException e) {
+            logger.error("Error updating avatar of group {}", groupId, e);
+        }
+        return false;
+    }
+
+    /**
+     * Avatar URLs of many groups in one query (groups without an avatar are left out)
+     */
+    public Map<Integer, String> getGroupAvatarUrls(Collection<Integer> groupIds) {
+        Map<Integer, String> avatarUrls = new HashMap<>();
+        if (groupIds.isEmpty()) {
+            return avatarUrls;
+        }
+
+        String placeholders = String.join(",", groupIds.stream().map(id -> "?").toArray(String[]::new));
+        String sql = "SELECT group_id, group_avatar_url FROM chat_groups " +
+                     "WHERE group_avatar_url IS NOT NULL AND group_id IN (" + placeholders + ")";
+
+        try (Connection conn = dbManager.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+
+            int index = 1;
+            for (int groupId : groupIds) {
+                pstmt.setInt(index++, groupId);
+            }
+            ResultSet rs = pstmt.executeQuery();
+
+            while (rs.next()) {
+                avatarUrls.put(rs.getInt("group_id"), rs.getString("group_avatar_url"));
+            }
+        } catch (SQLException e) {
+            logger.error("Error getting avatars of {} groups", groupIds.size(), e);
+        }
+        return avatarUrls;
+    }
+
+    // ---- Async variants (chạy trên DbExecutor) ----
+
+    public CompletableFuture<Group> createGroupAsync(String groupName, String groupDescription, int creatorId) {
+        return dbExecutor.supply(() -> createGroup(groupName, groupDescription, creatorId));
+    }
+
+    public CompletableFuture<Boolean> addMemberAsync(int groupId, int userId) {
+        return dbExecutor.supply(() -> addMember(groupId, userId));
+    }
+
+    public CompletableFuture<List<Group>> getUserGroupsAsync(int userId) {
+        return dbExecutor.supply(() -> getUserGroups(userId));
+    }
+
+    public CompletableFuture<Set<Integer>> getUserGroupIdsAsync(int userId) {
+        return dbExecutor.supply(() -> getUserGroupIds(userId));
+    }
+
+    public CompletableFuture<List<User>> getGroupMembersAsync(int groupId) {
+        return dbExecutor.supply(() -> getGroupMembers(groupId));
+    }
+
+    /**
+     * Member IDs straight from GroupMemberCache when cached, otherwise loaded on the DB executor
+     */
+    public CompletableFuture<List<Integer>> getGroupMemberIdsAsync(int groupId) {
+        int[] cached = memberCache.get(groupId);
+        if (cached != null) {
+            List<Integer> memberIds = new ArrayList<>(cached.length);
+            for (int memberId : cached) {
+                memberIds.add(memberId);
+            }
+            return CompletableFuture.completedFuture(memberIds);
+        }
+        return dbExecutor.supply(() -> getGroupMemberIds(groupId));
+    }
+
+    public CompletableFuture<Boolean> isAdminAsync(int groupId, int userId) {
+        return dbExecutor.supply(() -> isAdmin(groupId, userId));
+    }
+
+    public CompletableFuture<Boolean> updateGroupAvatarAsync(int groupId, String avatarUrl) {
+        return dbExecutor.supply(() -> updateGroupAvatar(groupId, avatarUrl));
+    }
+
+    public CompletableFuture<Map<Integer, String>> getGroupAvatarUrlsAsync(Collection<Integer> groupIds) {
+        return dbExecutor.supply(() -> getGroupAvatarUrls(groupIds));
+    }
+
     /**
      * Extract Group from ResultSet
      */
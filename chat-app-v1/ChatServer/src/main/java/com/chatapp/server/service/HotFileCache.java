@@ -0,0 +1,394 @@
+package com.chatapp.server.service;
+
+import com.chatapp.server.util.FileIoExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache nội dung các file nhỏ vừa được upload/tải về, trong direct buffer (ngoài heap).
+ * - Cả nhóm cùng tải một file vừa gửi: chỉ lần đầu đọc đĩa, các lần sau ghi thẳng từ buffer
+ *   vào socket; nhiều yêu cầu cùng lúc cho một file chưa có trong cache chờ chung một lần đọc
+ * - File upload xong được nạp sẵn (admission on upload)
+ * - Loại bỏ kiểu W-TinyLFU: file mới vào cửa sổ LRU nhỏ; khi rời cửa sổ chỉ được vào vùng chính
+ *   nếu được truy cập thường xuyên hơn file sắp bị loại ở đó (tần suất ước lượng bằng count-min
+ *   sketch 4 bit, giảm một nửa định kỳ), nên một loạt file chỉ tải một lần không đẩy file nóng ra
+ * - Nội dung file không đổi (blob theo hash, ảnh thu nhỏ), chỉ cần invalidate khi file bị xóa/ghi lại
+ */
+public class HotFileCache {
+    private static final Logger logger = LoggerFactory.getLogger(HotFileCache.class);
+
+    private static final long MAX_BYTES = 256L * 1024 * 1024;
+    private static final long MAX_ENTRY_BYTES = 8L * 1024 * 1024;
+    private static final int WINDOW_PERCENT = 5;
+    private static final int PROTECTED_PERCENT = 80;
+    private static final int EXPECTED_ENTRIES = 16 * 1024;
+
+    private static HotFileCache instance;
+
+    private final ConcurrentHashMap<Path, Entry> entries;
+    private final ConcurrentHashMap<Path, CompletableFuture<Entry>> loading;
+    private final FileIoExecutor fileIoExecutor;
+
+    // Chính sách loại bỏ, bảo vệ bởi khóa của cache
+    private final FrequencySketch sketch;
+    private final AccessQueue window;
+    private final AccessQueue probation;
+    private final AccessQueue protectedQueue;
+    private final long windowMax;
+    private final long mainMax;
+    private final long protectedMax;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong rejections = new AtomicLong();
+
+    /**
+     * Cached content of one file. Buffers handed out are independent read-only views.
+     */
+    public static class Entry {
+        private final Path file;
+        private final ByteBuffer data;
+        private final long lastModified;
+        private AccessQueue queue;
+        private Entry prev;
+        private Entry next;
+
+        private Entry(Path file, ByteBuffer data, long lastModified) {
+            this.file = file;
+            this.data = data;
+            this.lastModified = lastModified;
+        }
+
+        public long size() {
+            return data.capacity();
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         * Read-only view of bytes [position, position + length)
+         */
+        public ByteBuffer slice(long position, long length) {
+            ByteBuffer view = data.duplicate();
+            view.position((int) position);
+            view.limit((int) (position + length));
+            return view;
+        }
+    }
+
+    private HotFileCache() {
+        this.entries = new ConcurrentHashMap<>();
+        this.loading = new ConcurrentHashMap<>();
+        this.sketch = new FrequencySketch(EXPECTED_ENTRIES);
+        this.window = new AccessQueue();
+        this.probation = new AccessQueue();
+        this.protectedQueue = new AccessQueue();
+        this.windowMax = MAX_BYTES * WINDOW_PERCENT / 100;
+        this.mainMax = MAX_BYTES - windowMax;
+        this.protectedMax = mainMax * PROTECTED_PERCENT / 100;
+        this.fileIoExecutor = FileIoExecutor.getInstance();
+    }
+
+    public static synchronized HotFileCache getInstance() {
+        if (instance == null) {
+            instance = new HotFileCache();
+        }
+        return instance;
+    }
+
+    /**
+     * Cached content of a file, reading it on a miss. Returns null if the file is too large
+     * to cache (read it from disk instead). Throws NoSuchFileException if it does not exist.
+     */
+    public Entry get(Path file) throws IOException {
+        Path key = file.toAbsolutePath().normalize();
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            hits.incrementAndGet();
+            onAccess(entry);
+            return entry;
+        }
+
+        misses.incrementAndGet();
+        long size = Files.size(key);
+        if (size > MAX_ENTRY_BYTES) {
+            return null;
+        }
+
+        CompletableFuture<Entry> load = new CompletableFuture<>();
+        CompletableFuture<Entry> running = loading.putIfAbsent(key, load);
+        if (running != null) {
+            return await(running);
+        }
+
+        try {
+            entry = read(key);
+            add(entry);
+            load.complete(entry);
+            return entry;
+        } catch (IOException | RuntimeException e) {
+            load.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(key, load);
+        }
+    }
+
+    /**
+     * Load a file that was just uploaded, in the background (members of a group fetch it soon)
+     */
+    public void preloadAsync(String fileUrl) {
+        Path file = Paths.get(fileUrl);
+        fileIoExecutor.supply("preload", () -> {
+            try {
+                return get(file);
+            } catch (IOException e) {
+                logger.debug("Could not preload {}: {}", file, e.getMessage());
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Drop a file that was deleted or rewritten
+     */
+    public void invalidate(Path file) {
+        Path key = file.toAbsolutePath().normalize();
+        synchronized (this) {
+            Entry entry = entries.remove(key);
+            if (entry != null && entry.queue != null) {
+                entry.queue.remove(entry);
+            }
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public synchronized long sizeInBytes() {
+        return window.bytes + probation.bytes + protectedQueue.bytes;
+    }
+
+    public void logStats() {
+        long total = hits.get() + misses.get();
+        logger.info("Hot file cache: entries={}, bytes={}, hits={}, misses={}, evictions={}, rejected={}, hitRatio={}",
+                entries.size(), sizeInBytes(), hits.get(), misses.get(), evictions.get(), rejections.get(),
+                String.format("%.2f", total == 0 ? 0.0 : (double) hits.get() / total));
+    }
+
+    private static Entry await(CompletableFuture<Entry> running) throws IOException {
+        try {
+            return running.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private static Entry read(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long lastModified = Files.getLastModifiedTime(file).toMillis();
+            ByteBuffer data = ByteBuffer.allocateDirect((int) channel.size());
+            while (data.hasRemaining()) {
+                if (channel.read(data, data.position()) < 0) {
+                    throw new IOException("File truncated while reading " + file);
+                }
+            }
+            data.flip();
+            return new Entry(file, data.asReadOnlyBuffer(), lastModified);
+        }
+    }
+
+    private synchronized void onAccess(Entry entry) {
+        sketch.increment(entry.file);
+        if (entry.queue == window) {
+            window.moveToTail(entry);
+        } else if (entry.queue == probation) {
+            // Được dùng lại khi đang chờ bị loại: lên vùng bảo vệ
+            probation.remove(entry);
+            protectedQueue.add(entry);
+            while (protectedQueue.bytes > protectedMax) {
+                Entry demoted = protectedQueue.head();
+                protectedQueue.remove(demoted);
+                probation.add(demoted);
+            }
+        } else if (entry.queue == protectedQueue) {
+            protectedQueue.moveToTail(entry);
+        }
+    }
+
+    private synchronized void add(Entry entry) {
+        sketch.increment(entry.file);
+        if (entries.putIfAbsent(entry.file, entry) != null) {
+            return;
+        }
+        window.add(entry);
+
+        while (window.bytes > windowMax) {
+            Entry candidate = window.head();
+            window.remove(candidate);
+            admit(candidate);
+        }
+    }
+
+    /**
+     * A file leaving the window enters the main area only if it is used more often
+     * than the files it would push out
+     */
+    private void admit(Entry candidate) {
+        probation.add(candidate);
+        while (probation.bytes + protectedQueue.bytes > mainMax) {
+            Entry victim = probation.head() != candidate ? probation.head() : protectedQueue.head();
+            if (victim == null || sketch.frequency(candidate.file) <= sketch.frequency(victim.file)) {
+                evict(candidate);
+                rejections.incrementAndGet();
+                return;
+            }
+            evict(victim);
+        }
+    }
+
+    private void evict(Entry entry) {
+        entry.queue.remove(entry);
+        entries.remove(entry.file, entry);
+        evictions.incrementAndGet();
+    }
+
+    /**
+     * Doubly linked list in access order (head = least recently used), with total bytes
+     */
+    private static class AccessQueue {
+        private Entry head;
+        private Entry tail;
+        private long bytes;
+
+        Entry head() {
+            return head;
+        }
+
+        void add(Entry entry) {
+            entry.queue = this;
+            entry.prev = tail;
+            entry.next = null;
+            if (tail != null) {
+                tail.next = entry;
+            } else {
+                head = entry;
+            }
+            tail = entry;
+            bytes += entry.size();
+        }
+
+        void remove(Entry entry) {
+            if (entry.prev != null) {
+                entry.prev.next = entry.next;
+            } else {
+                head = entry.next;
+            }
+            if (entry.next != null) {
+                entry.next.prev = entry.prev;
+            } else {
+                tail = entry.prev;
+            }
+            entry.prev = null;
+            entry.next = null;
+            entry.queue = null;
+            bytes -= entry.size();
+        }
+
+        void moveToTail(Entry entry) {
+            if (entry != tail) {
+                remove(entry);
+                add(entry);
+            }
+        }
+    }
+
+    /**
+     * Count-min sketch with 4-bit counters (4 rows). All counters are halved after
+     * 10 increments per slot on average, so old popularity fades.
+     */
+    private static class FrequencySketch {
+        private static final int DEPTH = 4;
+        private static final int[] SEEDS = {0x97cb3127, 0x2e4f7c5b, 0x8d5a3f21, 0x6b1c9e73};
+
+        private final byte[][] table;
+        private final int mask;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(int expectedEntries) {
+            int width = Integer.highestOneBit(Math.max(16, expectedEntries - 1) << 1);
+            this.table = new byte[DEPTH][width];
+            this.mask = width - 1;
+            this.sampleSize = 10 * width;
+        }
+
+        int frequency(Object key) {
+            int hash = spread(key.hashCode());
+            int min = Integer.MAX_VALUE;
+            for (int i = 0; i < DEPTH; i++) {
+                min = Math.min(min, table[i][index(hash, i)]);
+            }
+            return min;
+        }
+
+        void increment(Object key) {
+            int hash = spread(key.hashCode());
+            boolean added = false;
+            for (int i = 0; i < DEPTH; i++) {
+                int index = index(hash, i);
+                if (table[i][index] < 15) {
+                    table[i][index]++;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize) {
+                reset();
+            }
+        }
+
+        private void reset() {
+            for (byte[] row : table) {
+                for (int i = 0; i < row.length; i++) {
+                    row[i] >>= 1;
+                }
+            }
+            additions /= 2;
+        }
+
+        private int index(int hash, int row) {
+            int h = (hash ^ SEEDS[row]) * 0x9E3779B9;
+            return (h ^ (h >>> 16)) & mask;
+        }
+
+        private static int spread(int hash) {
+            hash ^= hash >>> 17;
+            hash *= 0xed5ad4bb;
+            hash ^= hash >>> 11;
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,874 @@
+package com.chatapp.server.service;
+
+import com.chatapp.server.model.Message;
+import com.chatapp.server.model.MessageType;
+import com.chatapp.server.util.ConversationKey;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Kho tin nhắn nhúng dạng log chỉ ghi nối (append-only), không cần MySQL.
+ * - Chia thành N shard theo hash của ConversationKey; mỗi shard là một dãy segment 64 MB được memory-map
+ * - Bản ghi: [độ dài][CRC32][nội dung]; mỗi tin lưu ID tin trước đó cùng cuộc hội thoại,
+ *   nên index theo cuộc hội thoại chỉ cần giữ ID tin mới nhất (index thưa)
+ * - Mỗi segment có index thưa ID -> offset (mỗi SPARSE_INTERVAL tin một mục)
+ * - message_id tăng dần toàn cục theo thứ tự cấp (lastId chung cho mọi shard); ID của shard i luôn có
+ *   (id - 1) % N == i để tìm lại shard từ ID. Nhờ vậy scanAfter(ID lớn nhất đã index) không bỏ sót
+ *   tin của shard ít ghi
+ * - Group commit: mỗi shard có một luồng fsync; các lượt ghi đồng thời chờ chung một lần force()
+ * - Đánh dấu đã đọc ghi thành bản ghi READ; compaction gộp chúng vào cờ của tin trong các segment đã đóng
+ */
+public class LogMessageStore implements MessageStore {
+    private static final Logger logger = LoggerFactory.getLogger(LogMessageStore.class);
+
+    private static final int DEFAULT_SHARD_COUNT = 4;
+    private static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+    private static final int SPARSE_INTERVAL = 64;
+    private static final int HEADER_SIZE = 8;
+
+    private static final byte KIND_MESSAGE = 1;
+    private static final byte KIND_READ = 2;
+    private static final byte FLAG_READ = 1;
+
+    // Vị trí các trường trong nội dung bản ghi MESSAGE
+    private static final int OFFSET_ID = 1;
+    private static final int OFFSET_KEY = 5;
+    private static final int OFFSET_FLAGS = 30;
+
+    private static final long COMPACTION_INTERVAL_SECONDS = 60;
+    // Compact khi bản ghi READ chiếm từ 10% dung lượng các segment đã đóng
+    private static final double COMPACTION_GARBAGE_RATIO = 0.1;
+
+    private static final String META_FILE = "store.meta";
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String COMPACT_SUFFIX = ".compact";
+    private static final String MANIFEST_FILE = "compaction.manifest";
+
+    private final Shard[] shards;
+    // conversation key -> ID tin mới nhất
+    private final ConcurrentHashMap<Long, Integer> heads = new ConcurrentHashMap<>();
+    // ID lớn nhất đã cấp trên mọi shard
+    private final AtomicInteger lastId = new AtomicInteger();
+    private final ScheduledExecutorService compactor;
+
+    public LogMessageStore(String directory) throws IOException {
+        Path baseDir = Paths.get(directory);
+        Files.createDirectories(baseDir);
+        int shardCount = readOrCreateMeta(baseDir.resolve(META_FILE));
+
+        this.shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard(i, shardCount, baseDir.resolve("shard-" + i));
+            shards[i].open();
+        }
+
+        this.compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "message-log-compactor");
+            t.setDaemon(true);
+            return t;
+        });
+        compactor.scheduleWithFixedDelay(this::compactAll, COMPACTION_INTERVAL_SECONDS,
+                COMPACTION_INTERVAL_SECONDS, TimeUnit.SECONDS);
+
+        logger.info("Message log opened at {}: {} shards, {} conversations", baseDir, shardCount, heads.size());
+    }
+
+    // Số shard cố định từ lần mở đầu tiên: đổi số shard sẽ làm sai vị trí các cuộc hội thoại
+    private static int readOrCreateMeta(Path meta) throws IOException {
+        if (Files.exists(meta)) {
+            return Integer.parseInt(new String(Files.readAllBytes(meta), StandardCharsets.UTF_8).trim());
+        }
+        Files.write(meta, String.valueOf(DEFAULT_SHARD_COUNT).getBytes(StandardCharsets.UTF_8));
+        return DEFAULT_SHARD_COUNT;
+    }
+
+    private Shard shardOfConversation(long conversationKey) {
+        return shards[(int) Math.floorMod(ConversationKey.hash(conversationKey), (long) shards.length)];
+    }
+
+    private Shard shardOfMessage(int messageId) {
+        return messageId > 0 ? shards[(messageId - 1) % shards.length] : null;
+    }
+
+    @Override
+    public List<Message> append(long conversationKey, List<Message> drafts) {
+        return shardOfConversation(conversationKey).append(conversationKey, drafts);
+    }
+
+    @Override
+    public List<Message> getConversation(long conversationKey, int limit) {
+        List<Message> messages = new ArrayList<>();
+        Integer head = heads.get(conversationKey);
+        int messageId = head != null ? head : 0;
+
+        while (messageId > 0 && messages.size() < limit) {
+            LogEntry entry = shardOfMessage(messageId).find(messageId);
+            if (entry == null) break;
+            messages.add(entry.message);
+            messageId = entry.prevId;
+        }
+        return messages;
+    }
+
+    @Override
+    public List<Message> getByIds(List<Integer> messageIds) {
+        List<Message> messages = new ArrayList<>();
+        for (Integer messageId : messageIds) {
+            Shard shard = shardOfMessage(messageId);
+            LogEntry entry = shard != null ? shard.find(messageId) : null;
+            if (entry != null) {
+                messages.add(entry.message);
+            }
+        }
+        return messages;
+    }
+
+    @Override
+    public boolean markRead(int messageId) {
+        Shard shard = shardOfMessage(messageId);
+        if (shard == null || shard.find(messageId) == null) {
+            return false;
+        }
+        return shard.appendRead(messageId);
+    }
+
+    @Override
+    public int countNewer(long conversationKey, int excludeSenderId, int afterMessageId) {
+        int count = 0;
+        Integer head = heads.get(conversationKey);
+        int messageId = head != null ? head : 0;
+
+        while (messageId > afterMessageId) {
+            LogEntry entry = shardOfMessage(messageId).find(messageId);
+            if (entry == null) break;
+            if (entry.message.getSenderId() != excludeSenderId) {
+                count++;
+            }
+            messageId = entry.prevId;
+        }
+        return count;
+    }
+
+    @Override
+    public Map<Long, Integer> lastMessageIds(Collection<Long> conversationKeys) {
+        Map<Long, Integer> result = new HashMap<>();
+        for (long key : conversationKeys) {
+            Integer head = heads.get(key);
+            if (head != null) {
+                result.put(key, head);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public List<Message> scanAfter(int afterMessageId, int limit) {
+        List<Message> merged = new ArrayList<>();
+        for (Shard shard : shards) {
+            merged.addAll(shard.scanAfter(afterMessageId, limit));
+        }
+        merged.sort(Comparator.comparingInt(Message::getMessageId));
+        return merged.size() <= limit ? merged : new ArrayList<>(merged.subList(0, limit));
+    }
+
+    @Override
+    public void close() {
+        compactor.shutdownNow();
+        for (Shard shard : shards) {
+            shard.close();
+        }
+        logger.info("Message log closed");
+    }
+
+    private void compactAll() {
+        for (Shard shard : shards) {
+            try {
+                shard.compactIfNeeded();
+            } catch (Exception e) {
+                logger.error("Error compacting message log shard {}", shard.index, e);
+            }
+        }
+    }
+
+    // ---- Mã hóa bản ghi ----
+
+    private static byte[] encodeMessage(int id, long key, int prevId, Message m, long sentAt, byte flags) {
+        byte[] content = utf8(m.getMessageContent());
+        byte[] fileUrl = utf8(m.getFileUrl());
+        byte[] fileName = utf8(m.getFileName());
+
+        ByteBuffer body = ByteBuffer.allocate(59 + length(content) + length(fileUrl) + length(fileName));
+        body.put(KIND_MESSAGE);
+        body.putInt(id);
+        body.putLong(key);
+        body.putInt(prevId);
+        body.putInt(m.getSenderId());
+        body.putInt(m.getReceiverId() != null ? m.getReceiverId() : -1);
+        body.putInt(m.getGroupId() != null ? m.getGroupId() : -1);
+        body.put((byte) m.getMessageType().ordinal());
+        body.put(flags);
+        body.putLong(sentAt);
+        body.putLong(m.getFileSize() != null ? m.getFileSize() : -1);
+        putString(body, content);
+        putString(body, fileUrl);
+        putString(body, fileName);
+        return body.array();
+    }
+
+    private static byte[] encodeRead(int messageId) {
+        ByteBuffer body = ByteBuffer.allocate(5);
+        body.put(KIND_READ);
+        body.putInt(messageId);
+        return body.array();
+    }
+
+    private static byte[] utf8(String value) {
+        return value != null ? value.getBytes(StandardCharsets.UTF_8) : null;
+    }
+
+    private static int length(byte[] bytes) {
+        return bytes != null ? bytes.length : 0;
+    }
+
+    private static void putString(ByteBuffer buffer, byte[] bytes) {
+        if (bytes == null) {
+            buffer.putInt(-1);
+        } else {
+            buffer.putInt(bytes.length);
+            buffer.put(bytes);
+        }
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) return null;
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static LogEntry decodeMessage(ByteBuffer map, int bodyOffset, int bodyLength, Set<Integer> readIds) {
+        ByteBuffer body = map.duplicate();
+        body.limit(bodyOffset + bodyLength);
+        body.position(bodyOffset + 1);
+
+        Message m = new Message();
+        m.setMessageId(body.getInt());
+        body.getLong(); // conversation key
+        int prevId = body.getInt();
+        m.setSenderId(body.getInt());
+        int receiverId = body.getInt();
+        if (receiverId >= 0) m.setReceiverId(receiverId);
+        int groupId = body.getInt();
+        if (groupId >= 0) m.setGroupId(groupId);
+        m.setMessageType(MessageType.values()[body.get()]);
+        byte flags = body.get();
+        m.setSentAt(new Timestamp(body.getLong()));
+        long fileSize = body.getLong();
+        if (fileSize >= 0) m.setFileSize(fileSize);
+        m.setMessageContent(getString(body));
+        m.setFileUrl(getString(body));
+        m.setFileName(getString(body));
+        m.setRead((flags & FLAG_READ) != 0 || readIds.contains(m.getMessageId()));
+        return new LogEntry(m, prevId);
+    }
+
+    private static int crc(ByteBuffer map, int offset, int length) {
+        ByteBuffer body = map.duplicate();
+        body.limit(offset + length);
+        body.position(offset);
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        return (int) crc.getValue();
+    }
+
+    private static class LogEntry {
+        private final Message message;
+        private final int prevId;
+
+        LogEntry(Message message, int prevId) {
+            this.message = message;
+            this.prevId = prevId;
+        }
+    }
+
+    // ---- Segment ----
+
+    /**
+     * One memory-mapped log file. Only the shard's writer appends; readers see records up to end.
+     */
+    private static class Segment {
+        private final long number;
+        private final MappedByteBuffer map;
+        private volatile int end;
+        private volatile int firstId = -1;
+        private volatile int lastId = -1;
+        private int messageCount;
+        private long readRecordBytes;
+
+        // Index thưa: ID -> offset của mỗi SPARSE_INTERVAL tin
+        private volatile int[] sparseIds = new int[16];
+        private volatile int[] sparseOffsets = new int[16];
+        private volatile int sparseSize;
+
+        Segment(long number, MappedByteBuffer map) {
+            this.number = number;
+            this.map = map;
+        }
+
+        static Segment open(Path path, long number) throws IOException {
+            try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw");
+                 FileChannel channel = file.getChannel()) {
+                if (file.length() < SEGMENT_SIZE) {
+                    file.setLength(SEGMENT_SIZE);
+                }
+                // Vùng map vẫn hợp lệ sau khi đóng channel
+                return new Segment(number, channel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE));
+            }
+        }
+
+        boolean fits(int bodyLength) {
+            return end + HEADER_SIZE + bodyLength <= SEGMENT_SIZE;
+        }
+
+        /**
+         * Append a record (single writer). messageId > 0 for MESSAGE records.
+         */
+        void write(byte[] body, int messageId) {
+            int offset = end;
+            CRC32 crc = new CRC32();
+            crc.update(body);
+
+            ByteBuffer out = map.duplicate();
+            out.position(offset);
+            out.putInt(body.length);
+            out.putInt((int) crc.getValue());
+            out.put(body);
+
+            if (messageId > 0) {
+                indexMessage(messageId, offset);
+            } else {
+                readRecordBytes += HEADER_SIZE + body.length;
+            }
+            end = offset + HEADER_SIZE + body.length;
+        }
+
+        void indexMessage(int messageId, int offset) {
+            if (firstId < 0) firstId = messageId;
+            if (messageCount % SPARSE_INTERVAL == 0) {
+                if (sparseSize == sparseIds.length) {
+                    int[] ids = new int[sparseSize * 2];
+                    int[] offsets = new int[sparseSize * 2];
+                    System.arraycopy(sparseIds, 0, ids, 0, sparseSize);
+                    System.arraycopy(sparseOffsets, 0, offsets, 0, sparseSize);
+                    sparseOffsets = offsets;
+                    sparseIds = ids;
+                }
+                sparseIds[sparseSize] = messageId;
+                sparseOffsets[sparseSize] = offset;
+                sparseSize++;
+            }
+            messageCount++;
+            lastId = messageId;
+        }
+
+        /**
+         * Offset to start scanning from for the given ID (last sparse entry not after it)
+         */
+        int scanStart(int messageId) {
+            int size = sparseSize;
+            int[] ids = sparseIds;
+            int[] offsets = sparseOffsets;
+            int low = 0;
+            int high = size - 1;
+            int offset = 0;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (ids[mid] <= messageId) {
+                    offset = offsets[mid];
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return offset;
+        }
+
+        LogEntry find(int messageId, Set<Integer> readIds) {
+            int limit = end;
+            int offset = scanStart(messageId);
+            while (offset + HEADER_SIZE <= limit) {
+                int length = map.getInt(offset);
+                int bodyOffset = offset + HEADER_SIZE;
+                if (map.get(bodyOffset) == KIND_MESSAGE) {
+                    int id = map.getInt(bodyOffset + OFFSET_ID);
+                    if (id == messageId) {
+                        return decodeMessage(map, bodyOffset, length, readIds);
+                    }
+                    if (id > messageId) {
+                        return null;
+                    }
+                }
+                offset = bodyOffset + length;
+            }
+            return null;
+        }
+    }
+
+    // ---- Shard ----
+
+    private class Shard {
+        private final int index;
+        private final int stride;
+        private final Path dir;
+        private final ReentrantLock writeLock = new ReentrantLock();
+        private final Set<Integer> readIds = ConcurrentHashMap.newKeySet();
+
+        private volatile List<Segment> segments = Collections.emptyList();
+        private Segment active;
+        private final List<Segment> unsynced = new ArrayList<>();
+
+        // Group commit
+        private final Object syncLock = new Object();
+        private volatile long writtenSeq;
+        private long syncedSeq;
+        private volatile boolean running = true;
+        private Thread syncer;
+
+        Shard(int index, int stride, Path dir) {
+            this.index = index;
+            this.stride = stride;
+            this.dir = dir;
+        }
+
+        void open() throws IOException {
+            Files.createDirectories(dir);
+            recoverCompaction();
+
+            List<Long> numbers = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+                for (Path path : stream) {
+                    String name = path.getFileName().toString();
+                    numbers.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                            name.length() - SEGMENT_SUFFIX.length())));
+                }
+            }
+            Collections.sort(numbers);
+
+            List<Segment> loaded = new ArrayList<>();
+            for (int i = 0; i < numbers.size(); i++) {
+                Segment segment = Segment.open(segmentPath(numbers.get(i)), numbers.get(i));
+                boolean complete = load(segment);
+                if (!complete && i < numbers.size() - 1) {
+                    logger.warn("Message log shard {} segment {} is truncated at {}", index, numbers.get(i), segment.end);
+                }
+                loaded.add(segment);
+            }
+            if (loaded.isEmpty()) {
+                loaded.add(Segment.open(segmentPath(1), 1));
+            }
+
+            this.active = loaded.get(loaded.size() - 1);
+            this.segments = Collections.unmodifiableList(loaded);
+
+            syncer = new Thread(this::syncLoop, "message-log-sync-" + index);
+            syncer.setDaemon(true);
+            syncer.start();
+        }
+
+        /**
+         * Rebuild indexes from a segment. Returns false if scanning stopped at a torn record.
+         */
+        private boolean load(Segment segment) {
+            MappedByteBuffer map = segment.map;
+            int offset = 0;
+            while (offset + HEADER_SIZE <= SEGMENT_SIZE) {
+                int length = map.getInt(offset);
+                if (length == 0) break;
+                int bodyOffset = offset + HEADER_SIZE;
+                if (length < 0 || bodyOffset + length > SEGMENT_SIZE
+                        || crc(map, bodyOffset, length) != map.getInt(offset + 4)) {
+                    segment.end = offset;
+                    return false;
+                }
+
+                if (map.get(bodyOffset) == KIND_MESSAGE) {
+                    int id = map.getInt(bodyOffset + OFFSET_ID);
+                    segment.indexMessage(id, offset);
+                    // ID tăng dần trong shard: bản ghi sau là tin mới nhất của cuộc hội thoại
+                    heads.put(map.getLong(bodyOffset + OFFSET_KEY), id);
+                    lastId.accumulateAndGet(id, Math::max);
+                } else {
+                    readIds.add(map.getInt(bodyOffset + 1));
+                    segment.readRecordBytes += HEADER_SIZE + length;
+                }
+                offset = bodyOffset + length;
+            }
+            segment.end = offset;
+            return true;
+        }
+
+        List<Message> append(long conversationKey, List<Message> drafts) {
+            List<Message> saved = new ArrayList<>(drafts.size());
+            long sentAt = System.currentTimeMillis();
+            long seq;
+
+            writeLock.lock();
+            try {
+                Integer head = heads.get(conversationKey);
+                int prevId = head != null ? head : 0;
+                try {
+                    for (Message m : drafts) {
+                        int id = allocateId();
+                        byte[] body = encodeMessage(id, conversationKey, prevId, m, sentAt, (byte) 0);
+                        writeRecord(body, id);
+
+                        m.setMessageId(id);
+                        m.setSentAt(new Timestamp(sentAt));
+                        m.setRead(false);
+                        saved.add(m);
+                        prevId = id;
+                    }
+                } catch (IOException e) {
+                    logger.error("Error appending to message log shard {}", index, e);
+                }
+                if (!saved.isEmpty()) {
+                    heads.put(conversationKey, prevId);
+                }
+                seq = ++writtenSeq;
+            } finally {
+                writeLock.unlock();
+            }
+
+            awaitDurable(seq);
+            return saved;
+        }
+
+        /**
+         * Smallest ID above every ID issued so far (all shards) that belongs to this shard
+         */
+        private int allocateId() {
+            return lastId.updateAndGet(last -> {
+                int id = last + 1;
+                return id + Math.floorMod(index - (id - 1), stride);
+            });
+        }
+
+        boolean appendRead(int messageId) {
+            long seq;
+            writeLock.lock();
+            try {
+                writeRecord(encodeRead(messageId), 0);
+                readIds.add(messageId);
+                seq = ++writtenSeq;
+            } catch (IOException e) {
+                logger.error("Error marking message {} as read in shard {}", messageId, index, e);
+                return false;
+            } finally {
+                writeLock.unlock();
+            }
+
+            awaitDurable(seq);
+            return true;
+        }
+
+        // Gọi khi đang giữ writeLock
+        private void writeRecord(byte[] body, int messageId) throws IOException {
+            if (HEADER_SIZE + body.length > SEGMENT_SIZE) {
+                throw new IOException("LogEntry of " + body.length + " bytes exceeds segment size");
+            }
+            if (!active.fits(body.length)) {
+                roll();
+            }
+            active.write(body, messageId);
+        }
+
+        private void roll() throws IOException {
+            Segment next = Segment.open(segmentPath(active.number + 1), active.number + 1);
+            unsynced.add(active);
+            active = next;
+
+            List<Segment> updated = new ArrayList<>(segments);
+            updated.add(next);
+            segments = Collections.unmodifiableList(updated);
+        }
+
+        private void awaitDurable(long seq) {
+            synchronized (syncLock) {
+                syncLock.notifyAll();
+                while (syncedSeq < seq && running) {
+                    try {
+                        syncLock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+        }
+
+        /**
+         * One fsync covers every append completed since the previous one (group commit)
+         */
+        private void syncLoop() {
+            while (true) {
+                long target;
+                synchronized (syncLock) {
+                    while (running && syncedSeq >= writtenSeq) {
+                        try {
+                            syncLock.wait();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    if (!running && syncedSeq >= writtenSeq) return;
+                    target = writtenSeq;
+                }
+
+                forceDirty();
+
+                synchronized (syncLock) {
+                    syncedSeq = Math.max(syncedSeq, target);
+                    syncLock.notifyAll();
+                }
+            }
+        }
+
+        private void forceDirty() {
+            List<Segment> dirty;
+            writeLock.lock();
+            try {
+                dirty = new ArrayList<>(unsynced);
+                unsynced.clear();
+                dirty.add(active);
+            } finally {
+                writeLock.unlock();
+            }
+            for (Segment segment : dirty) {
+                segment.map.force();
+            }
+        }
+
+        LogEntry find(int messageId) {
+            List<Segment> current = segments;
+            for (int i = current.size() - 1; i >= 0; i--) {
+                Segment segment = current.get(i);
+                int firstId = segment.firstId;
+                if (firstId > 0 && firstId <= messageId) {
+                    return messageId <= segment.lastId ? segment.find(messageId, readIds) : null;
+                }
+            }
+            return null;
+        }
+
+        List<Message> scanAfter(int afterMessageId, int limit) {
+            List<Message> messages = new ArrayList<>();
+            for (Segment segment : segments) {
+                if (segment.firstId < 0 || segment.lastId <= afterMessageId) continue;
+
+                int end = segment.end;
+                int offset = segment.scanStart(afterMessageId + 1);
+                while (offset + HEADER_SIZE <= end && messages.size() < limit) {
+                    int length = segment.map.getInt(offset);
+                    int bodyOffset = offset + HEADER_SIZE;
+                    if (segment.map.get(bodyOffset) == KIND_MESSAGE
+                            && segment.map.getInt(bodyOffset + OFFSET_ID) > afterMessageId) {
+                        messages.add(decodeMessage(segment.map, bodyOffset, length, readIds).message);
+                    }
+                    offset = bodyOffset + length;
+                }
+                if (messages.size() >= limit) break;
+            }
+            return messages;
+        }
+
+        // ---- Compaction ----
+
+        /**
+         * Rewrite all closed segments, folding READ records into the read flag of their
+         * messages. Message order (and so the sparse and per-conversation indexes) is preserved.
+         */
+        void compactIfNeeded() throws IOException {
+            List<Segment> closed;
+            writeLock.lock();
+            try {
+                closed = new ArrayList<>(segments.subList(0, segments.size() - 1));
+            } finally {
+                writeLock.unlock();
+            }
+            if (closed.isEmpty()) return;
+
+            long garbage = 0;
+            long total = 0;
+            int maxClosedId = 0;
+            for (Segment segment : closed) {
+                garbage += segment.readRecordBytes;
+                total += segment.end;
+                maxClosedId = Math.max(maxClosedId, segment.lastId);
+            }
+            if (garbage == 0 || garbage < total * COMPACTION_GARBAGE_RATIO) return;
+
+            Set<Integer> folded = new HashSet<>();
+            for (Integer id : readIds) {
+                if (id <= maxClosedId) folded.add(id);
+            }
+
+            List<Segment> outputs = new ArrayList<>();
+            Segment out = Segment.open(compactPath(closed.get(0).number), closed.get(0).number);
+            outputs.add(out);
+            try {
+                for (Segment segment : closed) {
+                    int offset = 0;
+                    while (offset < segment.end) {
+                        int length = segment.map.getInt(offset);
+                        int bodyOffset = offset + HEADER_SIZE;
+                        byte[] body = new byte[length];
+                        ByteBuffer source = segment.map.duplicate();
+                        source.position(bodyOffset);
+                        source.get(body);
+                        offset = bodyOffset + length;
+
+                        int messageId = 0;
+                        if (body[0] == KIND_MESSAGE) {
+                            messageId = ByteBuffer.wrap(body).getInt(OFFSET_ID);
+                            if (folded.contains(messageId)) {
+                                body[OFFSET_FLAGS] |= FLAG_READ;
+                            }
+                        } else if (ByteBuffer.wrap(body).getInt(1) <= maxClosedId) {
+                            continue; // đã gộp vào cờ của tin
+                        }
+
+                        if (!out.fits(body.length)) {
+                            // Gói tuần tự không bao giờ cần nhiều segment hơn đầu vào
+                            if (outputs.size() == closed.size()) {
+                                throw new IOException("Compaction output larger than input");
+                            }
+                            long number = closed.get(outputs.size()).number;
+                            out = Segment.open(compactPath(number), number);
+                            outputs.add(out);
+                        }
+                        out.write(body, messageId);
+                    }
+                }
+                for (Segment segment : outputs) {
+                    segment.map.force();
+                }
+            } catch (IOException e) {
+                for (Segment segment : outputs) {
+                    Files.deleteIfExists(compactPath(segment.number));
+                }
+                throw e;
+            }
+
+            writeLock.lock();
+            try {
+                // Manifest ghi nguyên tử: nếu sập giữa chừng, lần mở sau làm nốt
+                StringBuilder manifest = new StringBuilder();
+                for (Segment segment : outputs) {
+                    manifest.append("rename ").append(segment.number).append('\n');
+                }
+                for (Segment segment : closed.subList(outputs.size(), closed.size())) {
+                    manifest.append("delete ").append(segment.number).append('\n');
+                }
+                Path tmp = dir.resolve(MANIFEST_FILE + ".tmp");
+                Files.write(tmp, manifest.toString().getBytes(StandardCharsets.UTF_8));
+                Files.move(tmp, dir.resolve(MANIFEST_FILE), StandardCopyOption.ATOMIC_MOVE);
+                applyManifest();
+
+                List<Segment> updated = new ArrayList<>(outputs);
+                updated.addAll(segments.subList(closed.size(), segments.size()));
+                segments = Collections.unmodifiableList(updated);
+                unsynced.removeAll(closed);
+            } finally {
+                writeLock.unlock();
+            }
+            readIds.removeAll(folded);
+
+            logger.info("Compacted message log shard {}: {} segments -> {}, folded {} read markers",
+                    index, closed.size(), outputs.size(), folded.size());
+        }
+
+        private void recoverCompaction() throws IOException {
+            if (Files.exists(dir.resolve(MANIFEST_FILE))) {
+                logger.info("Finishing interrupted compaction of message log shard {}", index);
+                applyManifest();
+            }
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + COMPACT_SUFFIX)) {
+                for (Path path : stream) {
+                    Files.delete(path);
+                }
+            }
+            Files.deleteIfExists(dir.resolve(MANIFEST_FILE + ".tmp"));
+        }
+
+        // Chạy lại được nhiều lần
+        private void applyManifest() throws IOException {
+            Path manifest = dir.resolve(MANIFEST_FILE);
+            for (String line : Files.readAllLines(manifest, StandardCharsets.UTF_8)) {
+                if (line.isEmpty()) continue;
+                String[] parts = line.split(" ");
+                long number = Long.parseLong(parts[1]);
+                if ("rename".equals(parts[0])) {
+                    if (Files.exists(compactPath(number))) {
+                        Files.move(compactPath(number), segmentPath(number),
+                                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    }
+                } else {
+                    Files.deleteIfExists(segmentPath(number));
+                }
+            }
+            Files.delete(manifest);
+        }
+
+        void close() {
+            synchronized (syncLock) {
+                running = false;
+                syncLock.notifyAll();
+            }
+            try {
+                if (syncer != null) syncer.join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            forceDirty();
+        }
+
+        private Path segmentPath(long number) {
+            return dir.resolve(SEGMENT_PREFIX + String.format("%08d", number) + SEGMENT_SUFFIX);
+        }
+
+        private Path compactPath(long number) {
+            return dir.resolve(SEGMENT_PREFIX + String.format("%08d", number) + SEGMENT_SUFFIX + COMPACT_SUFFIX);
+        }
+    }
+}
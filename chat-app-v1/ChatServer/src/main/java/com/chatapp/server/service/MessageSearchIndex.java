@@ -0,0 +1,530 @@
+package com.chatapp.server.service;
+
+import com.chatapp.server.model.Message;
+import com.chatapp.server.util.ConversationKey;
+import com.chatapp.server.util.IntLongHashMap;
+import com.chatapp.server.util.TextNormalizer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Inverted index cho nội dung tin nhắn (full-text search).
+ * - Token đã bỏ dấu / lowercase (TextNormalizer).
+ * - Posting list là message_id tăng dần, nén delta + varint.
+ * - Cập nhật tăng dần khi MessageService lưu tin mới.
+ * - Định kỳ ghi segment xuống đĩa; khi khởi động nạp lại segment rồi chỉ
+ *   index bổ sung các tin có message_id lớn hơn segment cuối.
+ */
+public class MessageSearchIndex {
+    private static final Logger logger = LoggerFactory.getLogger(MessageSearchIndex.class);
+
+    private static final String INDEX_DIR = "index/messages/";
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final int SEGMENT_MAGIC = 0x4D534958; // "MSIX"
+    private static final int SEGMENT_VERSION = 1;
+    private static final int MAX_SEGMENTS = 8;
+    private static final long FLUSH_INTERVAL_SECONDS = 60;
+    private static final int CATCH_UP_BATCH = 5000;
+
+    private static MessageSearchIndex instance;
+
+    private final MessageStore messageStore;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // Toàn bộ index trong bộ nhớ
+    private final Map<String, PostingList> postings = new HashMap<>();
+    // message_id -> conversation key; map thưa vì message_id không liên tục (shard, LogMessageStore)
+    private final IntLongHashMap conversationOf = new IntLongHashMap(1024);
+    private int maxIndexedId;
+
+    // Phần chưa ghi xuống đĩa
+    private Map<String, PostingList> pendingPostings = new HashMap<>();
+    private IntLongHashMap pendingConversations = new IntLongHashMap();
+    private int nextSegmentNumber;
+
+    // Tin đến trong lúc đang catch-up từ MessageStore
+    private final ConcurrentLinkedQueue<Message> pendingMessages = new ConcurrentLinkedQueue<>();
+    private volatile boolean ready;
+
+    private ScheduledExecutorService flusher;
+
+    private MessageSearchIndex() {
+        this.messageStore = MessageStoreFactory.getInstance();
+    }
+
+    public static synchronized MessageSearchIndex getInstance() {
+        if (instance == null) {
+            instance = new MessageSearchIndex();
+        }
+        return instance;
+    }
+
+    /**
+     * Load segments from disk, index messages newer than the last segment,
+     * then start the periodic flush. Runs on a background thread.
+     */
+    public void start() {
+        Thread loader = new Thread(() -> {
+            try {
+                Files.createDirectories(Paths.get(INDEX_DIR));
+                loadSegments();
+                catchUpFromStore();
+                drainPendingMessages();
+                ready = true;
+                drainPendingMessages();
+                logger.info("Message search index ready: {} terms, last message {}", termCount(), maxIndexedId);
+            } catch (Exception e) {
+                logger.error("Error initializing message search index", e);
+            }
+        }, "message-index-loader");
+        loader.setDaemon(true);
+        loader.start();
+
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "message-index-flusher");
+            t.setDaemon(true);
+            return t;
+        });
+        flusher.scheduleWithFixedDelay(this::flushQuietly, FLUSH_INTERVAL_SECONDS, FLUSH_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    public void stop() {
+        if (flusher != null) {
+            flusher.shutdown();
+        }
+        if (ready) {
+            flushQuietly();
+        }
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * Index a message that was just persisted
+     */
+    public void addMessage(Message message) {
+        if (message == null) return;
+
+        if (!ready) {
+            pendingMessages.add(message);
+            // Loader có thể vừa chuyển sang ready sau khi kiểm tra ở trên
+            if (ready) {
+                drainPendingMessages();
+            }
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            indexLocked(message.getMessageId(), ConversationKey.of(message),
+                    message.getMessageContent(), message.getFileName());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Message IDs (newest first) matching all tokens of the query,
+     * restricted to the user's private conversations and the given groups.
+     */
+    public List<Integer> search(int userId, Set<Integer> groupIds, String query, int limit) {
+        List<Integer> result = new ArrayList<>();
+        Set<String> tokens = new LinkedHashSet<>(TextNormalizer.tokenize(query));
+        if (tokens.isEmpty()) return result;
+
+        lock.readLock().lock();
+        try {
+            List<PostingList> lists = new ArrayList<>();
+            for (String token : tokens) {
+                PostingList list = postings.get(token);
+                if (list == null) return result;
+                lists.add(list);
+            }
+            lists.sort((a, b) -> Integer.compare(a.count, b.count));
+
+            int[] matches = lists.get(0).decode();
+            for (int i = 1; i < lists.size() && matches.length > 0; i++) {
+                matches = intersect(matches, lists.get(i).decode());
+            }
+
+            for (int i = matches.length - 1; i >= 0 && result.size() < limit; i--) {
+                int messageId = matches[i];
+                if (inScope(conversationOf.get(messageId, 0), userId, groupIds)) {
+                    result.add(messageId);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return result;
+    }
+
+    public int termCount() {
+        lock.readLock().lock();
+        try {
+            return postings.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private boolean inScope(long conversationKey, int userId, Set<Integer> groupIds) {
+        if (conversationKey == 0) return false;
+        if (ConversationKey.isGroup(conversationKey)) {
+            return groupIds.contains(ConversationKey.groupId(conversationKey));
+        }
+        return ConversationKey.involves(conversationKey, userId);
+    }
+
+    private static int[] intersect(int[] a, int[] b) {
+        int[] out = new int[Math.min(a.length, b.length)];
+        int i = 0, j = 0, n = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) i++;
+            else if (a[i] > b[j]) j++;
+            else {
+                out[n++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    private void indexLocked(int messageId, long conversationKey, String content, String fileName) {
+        if (messageId <= 0) return;
+
+        Set<String> tokens = new LinkedHashSet<>(TextNormalizer.tokenize(content));
+        tokens.addAll(TextNormalizer.tokenize(fileName));
+
+        conversationOf.put(messageId, conversationKey);
+        pendingConversations.put(messageId, conversationKey);
+        for (String token : tokens) {
+            postings.computeIfAbsent(token, k -> new PostingList()).add(messageId);
+            pendingPostings.computeIfAbsent(token, k -> new PostingList()).add(messageId);
+        }
+        maxIndexedId = Math.max(maxIndexedId, messageId);
+    }
+
+    private void drainPendingMessages() {
+        Message message;
+        while ((message = pendingMessages.poll()) != null) {
+            lock.writeLock().lock();
+            try {
+                indexLocked(message.getMessageId(), ConversationKey.of(message),
+                        message.getMessageContent(), message.getFileName());
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Index messages stored after the last persisted segment
+     */
+    private void catchUpFromStore() {
+        int total = 0;
+
+        while (true) {
+            int fromId;
+            lock.readLock().lock();
+            try {
+                fromId = maxIndexedId;
+            } finally {
+                lock.readLock().unlock();
+            }
+
+            List<Message> batch = messageStore.scanAfter(fromId, CATCH_UP_BATCH);
+
+            lock.writeLock().lock();
+            try {
+                for (Message message : batch) {
+                    indexLocked(message.getMessageId(), ConversationKey.of(message),
+                            message.getMessageContent(), message.getFileName());
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+
+            total += batch.size();
+            if (batch.size() < CATCH_UP_BATCH) break;
+        }
+        logger.info("Indexed {} messages from the message store", total);
+        flushQuietly();
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (IOException e) {
+            logger.error("Error flushing message search index segment", e);
+        }
+    }
+
+    /**
+     * Write pending postings as a new segment; compact when there are too many segments
+     */
+    public synchronized void flush() throws IOException {
+        Map<String, PostingList> segmentPostings;
+        IntLongHashMap segmentConversations;
+        int segmentNumber;
+
+        lock.writeLock().lock();
+        try {
+            if (pendingConversations.isEmpty()) return;
+            segmentPostings = pendingPostings;
+            segmentConversations = pendingConversations;
+            pendingPostings = new HashMap<>();
+            pendingConversations = new IntLongHashMap();
+            segmentNumber = nextSegmentNumber++;
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        writeSegment(segmentPath(segmentNumber), segmentPostings, segmentConversations);
+        logger.debug("Wrote message index segment {} ({} messages)", segmentNumber, segmentConversations.size());
+
+        List<Path> segments = listSegments();
+        if (segments.size() > MAX_SEGMENTS) {
+            compact(segments);
+        }
+    }
+
+    /**
+     * Merge all segments into one by rewriting the full in-memory index
+     */
+    private void compact(List<Path> oldSegments) throws IOException {
+        Map<String, PostingList> allPostings = new HashMap<>();
+        IntLongHashMap allConversations;
+        int segmentNumber;
+
+        lock.readLock().lock();
+        try {
+            for (Map.Entry<String, PostingList> entry : postings.entrySet()) {
+                allPostings.put(entry.getKey(), entry.getValue().copy());
+            }
+            allConversations = new IntLongHashMap(conversationOf);
+        } finally {
+            lock.readLock().unlock();
+        }
+        lock.writeLock().lock();
+        try {
+            segmentNumber = nextSegmentNumber++;
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        // Các tin chưa flush có thể đã nằm trong bản compact; nạp lại segment sẽ bỏ qua trùng lặp
+        writeSegment(segmentPath(segmentNumber), allPostings, allConversations);
+        for (Path old : oldSegments) {
+            Files.deleteIfExists(old);
+        }
+        logger.info("Compacted {} message index segments into segment {}", oldSegments.size(), segmentNumber);
+    }
+
+    private void writeSegment(Path path, Map<String, PostingList> segmentPostings,
+                              IntLongHashMap segmentConversations) throws IOException {
+        Path tmp = Paths.get(path.toString() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(SEGMENT_MAGIC);
+            out.writeInt(SEGMENT_VERSION);
+
+            out.writeInt(segmentConversations.size());
+            try {
+                segmentConversations.forEach((messageId, conversationKey) -> {
+                    try {
+                        out.writeInt(messageId);
+                        out.writeLong(conversationKey);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+
+            out.writeInt(segmentPostings.size());
+            for (Map.Entry<String, PostingList> entry : segmentPostings.entrySet()) {
+                PostingList list = entry.getValue();
+                out.writeUTF(entry.getKey());
+                out.writeInt(list.count);
+                out.writeInt(list.length);
+                out.write(list.bytes, 0, list.length);
+            }
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void loadSegments() throws IOException {
+        List<Path> segments = listSegments();
+        lock.writeLock().lock();
+        try {
+            for (Path segment : segments) {
+                try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(segment)))) {
+                    if (in.readInt() != SEGMENT_MAGIC || in.readInt() != SEGMENT_VERSION) {
+                        logger.warn("Skipping unknown message index segment {}", segment);
+                        continue;
+                    }
+
+                    int conversationCount = in.readInt();
+                    for (int i = 0; i < conversationCount; i++) {
+                        int messageId = in.readInt();
+                        conversationOf.put(messageId, in.readLong());
+                        maxIndexedId = Math.max(maxIndexedId, messageId);
+                    }
+
+                    int termCount = in.readInt();
+                    for (int i = 0; i < termCount; i++) {
+                        String term = in.readUTF();
+                        int count = in.readInt();
+                        byte[] bytes = new byte[in.readInt()];
+                        in.readFully(bytes);
+                        PostingList segmentList = new PostingList(bytes, count);
+                        PostingList list = postings.computeIfAbsent(term, k -> new PostingList());
+                        for (int messageId : segmentList.decode()) {
+                            list.add(messageId);
+                        }
+                    }
+                }
+                nextSegmentNumber = Math.max(nextSegmentNumber, segmentNumber(segment) + 1);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        logger.info("Loaded {} message index segments", segments.size());
+    }
+
+    private List<Path> listSegments() throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(Paths.get(INDEX_DIR),
+                SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path path : stream) {
+                segments.add(path);
+            }
+        }
+        segments.sort((a, b) -> Integer.compare(segmentNumber(a), segmentNumber(b)));
+        return segments;
+    }
+
+    private static Path segmentPath(int number) {
+        return Paths.get(INDEX_DIR + SEGMENT_PREFIX + String.format("%08d", number) + SEGMENT_SUFFIX);
+    }
+
+    private static int segmentNumber(Path path) {
+        String name = path.getFileName().toString();
+        return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    /**
+     * Danh sách message_id tăng dần, lưu dạng delta varint
+     */
+    static class PostingList {
+        private byte[] bytes;
+        private int length;
+        private int count;
+        private int lastId;
+
+        PostingList() {
+            this.bytes = new byte[8];
+        }
+
+        PostingList(byte[] bytes, int count) {
+            this.bytes = bytes;
+            this.length = bytes.length;
+            this.count = count;
+            int[] ids = decode();
+            this.lastId = ids.length > 0 ? ids[ids.length - 1] : 0;
+        }
+
+        void add(int messageId) {
+            if (messageId > lastId) {
+                writeVarInt(messageId - lastId);
+                lastId = messageId;
+                count++;
+                return;
+            }
+            // Tin đến lệch thứ tự (hiếm): giải nén, chèn, nén lại
+            int[] ids = decode();
+            int pos = Arrays.binarySearch(ids, messageId);
+            if (pos >= 0) return;
+
+            int insertAt = -pos - 1;
+            int[] merged = new int[ids.length + 1];
+            System.arraycopy(ids, 0, merged, 0, insertAt);
+            merged[insertAt] = messageId;
+            System.arraycopy(ids, insertAt, merged, insertAt + 1, ids.length - insertAt);
+
+            length = 0;
+            count = 0;
+            lastId = 0;
+            for (int id : merged) {
+                add(id);
+            }
+        }
+
+        int[] decode() {
+            int[] ids = new int[count];
+            int pos = 0;
+            int current = 0;
+            for (int i = 0; i < count; i++) {
+                int value = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = bytes[pos++];
+                    value |= (b & 0x7F) << shift;
+                    shift += 7;
+                } while ((b & 0x80) != 0);
+                current += value;
+                ids[i] = current;
+            }
+            return ids;
+        }
+
+        PostingList copy() {
+            PostingList copy = new PostingList();
+            copy.bytes = Arrays.copyOf(bytes, length);
+            copy.length = length;
+            copy.count = count;
+            copy.lastId = lastId;
+            return copy;
+        }
+
+        private void writeVarInt(int value) {
+            if (length + 5 > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + 5));
+            }
+            while ((value & ~0x7F) != 0) {
+                bytes[length++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[length++] = (byte) value;
+        }
+    }
+}
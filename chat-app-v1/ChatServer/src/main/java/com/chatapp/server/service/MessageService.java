@@ -2,20 +2,38 @@ package com.chatapp.server.service;
 
 import com.chatapp.server.model.Message;
 import com.chatapp.server.model.MessageType;
-import com.chatapp.server.util.DatabaseManager;
+import com.chatapp.server.model.User;
+import com.chatapp.server.util.ConversationKey;
+import com.chatapp.server.util.DbExecutor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.sql.*;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 public class MessageService {
     private static final Logger logger = LoggerFactory.getLogger(MessageService.class);
-    private final DatabaseManager dbManager;
+    private final RecentMessageCache recentCache;
+    private final MessageSearchIndex searchIndex;
+    private final ReadStateService readStateService;
+    private final ConversationWriter conversationWriter;
+    private final DbExecutor dbExecutor;
+    private final MessageStore messageStore;
+    private final UserService userService;
 
     public MessageService() {
-        this.dbManager = DatabaseManager.getInstance();
+        this.recentCache = RecentMessageCache.getInstance();
+        this.searchIndex = MessageSearchIndex.getInstance();
+        this.readStateService = ReadStateService.getInstance();
+        this.conversationWriter = ConversationWriter.getInstance();
+        this.dbExecutor = DbExecutor.getInstance();
+        this.messageStore = MessageStoreFactory.getInstance();
+        this.userService = new UserService();
     }
 
     /**
@@ -23,39 +41,18 @@ public class MessageService {
      */
     public Message sendPrivateMessage(int senderId, int receiverId, MessageType messageType,
                                      String content, String fileUrl, String fileName, Long fileSize) {
-        String sql = "INSERT INTO messages (sender_id, receiver_id, message_type, message_content, " +
-                     "file_url, file_name, file_size) VALUES (?, ?, ?, ?, ?, ?, ?)";
-
-        try (Connection conn = dbManager.getConnection();
-             PreparedStatement pstmt = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
-
-            pstmt.setInt(1, senderId);
-            pstmt.setInt(2, receiverId);
-            pstmt.setString(3, messageType.name());
-            pstmt.setString(4, content);
-            pstmt.setString(5, fileUrl);
-            pstmt.setString(6, fileName);
-            if (fileSize != null) {
-                pstmt.setLong(7, fileSize);
-            } else {
-                pstmt.setNull(7, Types.BIGINT);
-            }
-
-            int affectedRows = pstmt.executeUpdate();
+        return sendPrivateMessageAsync(senderId, receiverId, messageType, content, fileUrl, fileName, fileSize).join();
+    }
 
-            if (affectedRows > 0) {
-                try (ResultSet rs = pstmt.getGeneratedKeys()) {
-                    if (rs.next()) {
-                        int messageId = rs.getInt(1);
-                        logger.info("Private message sent from {} to {}", senderId, receiverId);
-                        return getMessageById(messageId);
-                    }
-                }
-            }
-        } catch (SQLException e) {
-            logger.error("Error sending private message from {} to {}", senderId, receiverId, e);
-        }
-        return null;
+    /**
+     * Send private message through the conversation's mailbox (ordered, batched insert)
+     */
+    public CompletableFuture<Message> sendPrivateMessageAsync(int senderId, int receiverId, MessageType messageType,
+                                                             String content, String fileUrl, String fileName,
+                                                             Long fileSize) {
+        Message draft = createDraft(senderId, messageType, content, fileUrl, fileName, fileSize);
+        draft.setReceiverId(receiverId);
+        return conversationWriter.submit(draft);
     }
 
     /**
@@ -63,127 +60,126 @@ public class MessageService {
      */
     public Message sendGroupMessage(int senderId, int groupId, MessageType messageType,
                                    String content, String fileUrl, String fileName, Long fileSize) {
-        String sql = "INSERT INTO messages (sender_id, group_id, message_type, message_content, " +
-                     "file_url, file_name, file_size) VALUES (?, ?, ?, ?, ?, ?, ?)";
-
-        try (Connection conn = dbManager.getConnection();
-             PreparedStatement pstmt = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
-
-            pstmt.setInt(1, senderId);
-            pstmt.setInt(2, groupId);
-            pstmt.setString(3, messageType.name());
-            pstmt.setString(4, content);
-            pstmt.setString(5, fileUrl);
-            pstmt.setString(6, fileName);
-            if (fileSize != null) {
-                pstmt.setLong(7, fileSize);
-            } else {
-                pstmt.setNull(7, Types.BIGINT);
-            }
+        return sendGroupMessageAsync(senderId, groupId, messageType, content, fileUrl, fileName, fileSize).join();
+    }
 
-            int affectedRows = pstmt.executeUpdate();
+    /**
+     * Send group message through the group's mailbox (ordered, batched insert)
+     */
+    public CompletableFuture<Message> sendGroupMessageAsync(int senderId, int groupId, MessageType messageType,
+                                                           String content, String fileUrl, String fileName,
+                                                           Long fileSize) {
+        Message draft = createDraft(senderId, messageType, content, fileUrl, fileName, fileSize);
+        draft.setGroupId(groupId);
+        return conversationWriter.submit(draft);
+    }
 
-            if (affectedRows > 0) {
-                try (ResultSet rs = pstmt.getGeneratedKeys()) {
-                    if (rs.next()) {
-                        int messageId = rs.getInt(1);
-                        logger.info("Group message sent from {} to group {}", senderId, groupId);
-                        return getMessageById(messageId);
-                    }
-                }
-            }
-        } catch (SQLException e) {
-            logger.error("Error sending group message from {} to group {}", senderId, groupId, e);
-        }
-        return null;
+    private Message createDraft(int senderId, MessageType messageType, String content,
+                                String fileUrl, String fileName, Long fileSize) {
+        Message draft = new Message();
+        draft.setSenderId(senderId);
+        draft.setMessageType(messageType);
+        draft.setMessageContent(content);
+        draft.setFileUrl(fileUrl);
+        draft.setFileName(fileName);
+        draft.setFileSize(fileSize);
+        return draft;
     }
 
     /**
-     * Get private messages between two users
+     * Get private messages between two users (newest first).
+     * The newest page is served from the recent message cache when possible.
      */
     public List<Message> getPrivateMessages(int userId1, int userId2, int limit) {
-        List<Message> messages = new ArrayList<>();
-        String sql = "SELECT m.*, " +
-                     "s.username as sender_name, r.username as receiver_name " +
-                     "FROM messages m " +
-                     "JOIN users s ON m.sender_id = s.user_id " +
-                     "JOIN users r ON m.receiver_id = r.user_id " +
-                     "WHERE ((m.sender_id = ? AND m.receiver_id = ?) OR " +
-                     "       (m.sender_id = ? AND m.receiver_id = ?)) " +
-                     "ORDER BY m.sent_at DESC LIMIT ?";
-
-        try (Connection conn = dbManager.getConnection();
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
-
-            pstmt.setInt(1, userId1);
-            pstmt.setInt(2, userId2);
-            pstmt.setInt(3, userId2);
-            pstmt.setInt(4, userId1);
-            pstmt.setInt(5, limit);
+        long key = ConversationKey.ofPrivate(userId1, userId2);
+        List<Message> cached = recentCache.getRecent(key, limit);
+        if (cached != null) {
+            return cached;
+        }
 
-            ResultSet rs = pstmt.executeQuery();
+        int queryLimit = Math.max(limit, RecentMessageCache.MESSAGES_PER_CONVERSATION);
+        List<Message> messages = messageStore.getConversation(key, queryLimit);
+        fillNames(messages);
+        applyReadWatermarks(key, messages);
+        // Danh sách rỗng có thể do lỗi đọc, không cache
+        if (!messages.isEmpty()) {
+            recentCache.install(key, messages, queryLimit);
+        }
+        return firstN(messages, limit);
+    }
 
-            while (rs.next()) {
-                messages.add(extractMessageFromResultSet(rs));
+    /**
+     * Mark private messages read up to the receiver's watermark; is_read in the messages
+     * table is not updated by MARK_READ, so it alone would lag behind the cache
+     */
+    private void applyReadWatermarks(long key, List<Message> messages) {
+        Map<Integer, Integer> watermarks = new HashMap<>();
+        for (Message message : messages) {
+            if (message.isRead() || message.getReceiverId() == null) continue;
+
+            int watermark = watermarks.computeIfAbsent(message.getReceiverId(),
+                    receiverId -> readStateService.getLastReadId(receiverId, key));
+            if (message.getMessageId() <= watermark) {
+                message.setRead(true);
             }
-        } catch (SQLException e) {
-            logger.error("Error getting private messages between {} and {}", userId1, userId2, e);
         }
-        return messages;
     }
 
     /**
-     * Get group messages
+     * Get group messages (newest first), served from the recent message cache when possible
      */
     public List<Message> getGroupMessages(int groupId, int limit) {
-        List<Message> messages = new ArrayList<>();
-        String sql = "SELECT m.*, s.username as sender_name, r.username as receiver_name " +
-                     "FROM messages m " +
-                     "JOIN users s ON m.sender_id = s.user_id " +
-                     "LEFT JOIN users r ON m.receiver_id = r.user_id " +
-                     "WHERE m.group_id = ? " +
-                     "ORDER BY m.sent_at DESC LIMIT ?";
-
-        logger.info("Fetching group messages for groupId={}, limit={}", groupId, limit);
-
-        try (Connection conn = dbManager.getConnection();
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+        long key = ConversationKey.ofGroup(groupId);
+        List<Message> cached = recentCache.getRecent(key, limit);
+        if (cached != null) {
+            logger.info("Served {} group messages for group {} from cache", cached.size(), groupId);
+            return cached;
+        }
 
-            pstmt.setInt(1, groupId);
-            pstmt.setInt(2, limit);
+        int queryLimit = Math.max(limit, RecentMessageCache.MESSAGES_PER_CONVERSATION);
+        List<Message> messages = messageStore.getConversation(key, queryLimit);
+        fillNames(messages);
+        // Danh sách rỗng có thể do lỗi đọc, không cache
+        if (!messages.isEmpty()) {
+            recentCache.install(key, messages, queryLimit);
+        }
+        return firstN(messages, limit);
+    }
 
-            logger.debug("Executing SQL: {}", sql);
-            logger.debug("Parameters: groupId={}, limit={}", groupId, limit);
-            System.out.println("DEBUG SERVER: Connection obtained, executing query for group " + groupId);
+    private List<Message> firstN(List<Message> messages, int limit) {
+        if (messages.size() <= limit) {
+            return messages;
+        }
+        return new ArrayList<>(messages.subList(0, limit));
+    }
 
-            ResultSet rs = pstmt.executeQuery();
-            System.out.println("DEBUG SERVER: Query executed, processing results...");
+    /**
+     * Full-text search over the user's private chats and the given groups (newest first)
+     */
+    public List<Message> searchMessages(int userId, Set<Integer> groupIds, String query, int limit) {
+        List<Integer> messageIds = searchIndex.search(userId, groupIds, query, limit);
+        return getMessagesByIds(messageIds);
+    }
 
-            int count = 0;
-            while (rs.next()) {
-                Message msg = extractMessageFromResultSet(rs);
-                messages.add(msg);
-                count++;
-                System.out.println("DEBUG SERVER: Added message " + count + " - " + msg.getSenderName() + ": " + msg.getMessageContent());
-            }
+    /**
+     * Get messages by IDs, keeping the order of the given IDs
+     */
+    public List<Message> getMessagesByIds(List<Integer> messageIds) {
+        List<Message> messages = new ArrayList<>();
+        if (messageIds.isEmpty()) return messages;
 
-            System.out.println("DEBUG SERVER: Total messages retrieved: " + count);
-            logger.info("Successfully retrieved {} messages for group {}", count, groupId);
+        Map<Integer, Message> byId = new HashMap<>();
+        for (Message message : messageStore.getByIds(messageIds)) {
+            byId.put(message.getMessageId(), message);
+        }
 
-            if (count == 0) {
-                logger.warn("No messages found for group {}. Check if group has messages in database.", groupId);
+        for (Integer messageId : messageIds) {
+            Message message = byId.get(messageId);
+            if (message != null) {
+                messages.add(message);
             }
-
-        } catch (SQLException e) {
-            logger.error("Error getting group messages for group {}", groupId, e);
-            logger.error("SQL: {}", sql);
-            System.out.println("DEBUG SERVER: SQLException in getGroupMessages: " + e.getMessage());
-            e.printStackTrace();
-        } catch (Exception e) {
-            logger.error("Unexpected error getting group messages for group {}", groupId, e);
-            System.out.println("DEBUG SERVER: Unexpected exception in getGroupMessages: " + e.getMessage());
-            e.printStackTrace();
         }
+        fillNames(messages);
         return messages;
     }
 
@@ -191,108 +187,58 @@ public class MessageService {
      * Mark message as read
      */
     public boolean markMessageAsRead(int messageId) {
-        String sql = "UPDATE messages SET is_read = TRUE WHERE message_id = ?";
-
-        try (Connection conn = dbManager.getConnection();
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
-
-            pstmt.setInt(1, messageId);
-            int affectedRows = pstmt.executeUpdate();
-
-            if (affectedRows > 0) {
-                logger.debug("Message {} marked as read", messageId);
-                return true;
+        boolean updated = messageStore.markRead(messageId);
+        if (updated) {
+            for (Message message : messageStore.getByIds(Collections.singletonList(messageId))) {
+                recentCache.invalidate(ConversationKey.of(message));
             }
-        } catch (SQLException e) {
-            logger.error("Error marking message {} as read", messageId, e);
+            logger.debug("Message {} marked as read", messageId);
+            return true;
         }
         return false;
     }
 
     /**
-     * Get unread message count
+     * Get unread message count (in-memory counters, no table scan)
      */
     public int getUnreadMessageCount(int userId) {
-        String sql = "SELECT COUNT(*) FROM messages WHERE receiver_id = ? AND is_read = FALSE";
-
-        try (Connection conn = dbManager.getConnection();
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
-
-            pstmt.setInt(1, userId);
-            ResultSet rs = pstmt.executeQuery();
-
-            if (rs.next()) {
-                return rs.getInt(1);
-            }
-        } catch (SQLException e) {
-            logger.error("Error getting unread message count for user {}", userId, e);
-        }
-        return 0;
+        return readStateService.getTotalUnread(userId);
     }
 
     /**
      * Get message by ID
      */
-    private Message getMessageById(int messageId) {
-        String sql = "SELECT m.*, " +
-                     "s.username as sender_name, r.username as receiver_name " +
-                     "FROM messages m " +
-                     "JOIN users s ON m.sender_id = s.user_id " +
-                     "LEFT JOIN users r ON m.receiver_id = r.user_id " +
-                     "WHERE m.message_id = ?";
-
-        try (Connection conn = dbManager.getConnection();
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
-
-            pstmt.setInt(1, messageId);
-            ResultSet rs = pstmt.executeQuery();
-
-            if (rs.next()) {
-                return extractMessageFromResultSet(rs);
-            }
-        } catch (SQLException e) {
-            logger.error("Error getting message by ID {}", messageId, e);
-        }
-        return null;
+    public Message getMessageById(int messageId) {
+        List<Message> messages = getMessagesByIds(Collections.singletonList(messageId));
+        return messages.isEmpty() ? null : messages.get(0);
     }
 
-    /**
-     * Extract Message from ResultSet
-     */
-    private Message extractMessageFromResultSet(ResultSet rs) throws SQLException {
-        Message message = new Message();
-        message.setMessageId(rs.getInt("message_id"));
-        message.setSenderId(rs.getInt("sender_id"));
+    // ---- Async variants (chạy trên DbExecutor) ----
 
-        int receiverId = rs.getInt("receiver_id");
-        if (!rs.wasNull()) {
-            message.setReceiverId(receiverId);
-        }
+    public CompletableFuture<List<Message>> getPrivateMessagesAsync(int userId1, int userId2, int limit) {
+        return dbExecutor.supply(() -> getPrivateMessages(userId1, userId2, limit));
+    }
 
-        int groupId = rs.getInt("group_id");
-        if (!rs.wasNull()) {
-            message.setGroupId(groupId);
-        }
+    public CompletableFuture<List<Message>> getGroupMessagesAsync(int groupId, int limit) {
+        return dbExecutor.supply(() -> getGroupMessages(groupId, limit));
+    }
 
-        message.setMessageType(MessageType.valueOf(rs.getString("message_type")));
-        message.setMessageContent(rs.getString("message_content"));
-        message.setFileUrl(rs.getString("file_url"));
-        message.setFileName(rs.getString("file_name"));
+    public CompletableFuture<List<Message>> searchMessagesAsync(int userId, Set<Integer> groupIds, String query, int limit) {
+        return dbExecutor.supply(() -> searchMessages(userId, groupIds, query, limit));
+    }
 
-        long fileSize = rs.getLong("file_size");
-        if (!rs.wasNull()) {
-            message.setFileSize(fileSize);
+    private void fillNames(List<Message> messages) {
+        for (Message message : messages) {
+            fillNames(message);
         }
+    }
 
-        message.setRead(rs.getBoolean("is_read"));
-        message.setSentAt(rs.getTimestamp("sent_at"));
-        message.setSenderName(rs.getString("sender_name"));
-
-        String receiverName = rs.getString("receiver_name");
-        if (receiverName != null) {
-            message.setReceiverName(receiverName);
+    private void fillNames(Message message) {
+        User sender = userService.getUserById(message.getSenderId());
+        message.setSenderName(sender != null ? sender.getUsername() : null);
+        if (message.getReceiverId() != null) {
+            User receiver = userService.getUserById(message.getReceiverId());
+            message.setReceiverName(receiver != null ? receiver.getUsername() : null);
         }
-
-        return message;
     }
 }
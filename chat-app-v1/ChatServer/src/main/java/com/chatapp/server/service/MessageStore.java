@@ -0,0 +1,54 @@
+package com.chatapp.server.service;
+
+import com.chatapp.server.model.Message;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Nơi lưu tin nhắn. Mặc định là MySQL (MySqlMessageStore); đặt CHAT_MESSAGE_STORE=log
+ * để dùng LogMessageStore nhúng, không cần MySQL cho bảng messages.
+ * Tin trả về chưa có senderName/receiverName (service tự điền từ UserService).
+ */
+public interface MessageStore {
+
+    /**
+     * Persist messages (without IDs) of one conversation, in order.
+     * Sets message ID and sent time on the stored messages; returns them,
+     * or an empty list if nothing could be stored.
+     */
+    List<Message> append(long conversationKey, List<Message> drafts);
+
+    /**
+     * Newest messages of a conversation, newest first
+     */
+    List<Message> getConversation(long conversationKey, int limit);
+
+    /**
+     * Messages with the given IDs, in no particular order; unknown IDs are skipped
+     */
+    List<Message> getByIds(List<Integer> messageIds);
+
+    /**
+     * Set the read flag of a message. Returns false if the message does not exist.
+     */
+    boolean markRead(int messageId);
+
+    /**
+     * Number of messages in a conversation after the given ID that were not sent by excludeSenderId
+     */
+    int countNewer(long conversationKey, int excludeSenderId, int afterMessageId);
+
+    /**
+     * Newest message ID of each conversation; conversations without messages are left out
+     */
+    Map<Long, Integer> lastMessageIds(Collection<Long> conversationKeys);
+
+    /**
+     * Up to limit messages with ID greater than afterMessageId, in ascending ID order
+     */
+    List<Message> scanAfter(int afterMessageId, int limit);
+
+    void close();
+}
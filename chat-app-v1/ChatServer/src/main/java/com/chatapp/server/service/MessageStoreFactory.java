@@ -0,0 +1,56 @@
+package com.chatapp.server.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+
+/**
+ * Chọn backend lưu tin nhắn theo biến môi trường:
+ * - CHAT_MESSAGE_STORE=log: LogMessageStore trong thư mục CHAT_MESSAGE_LOG_DIR (mặc định data/messages/)
+ * - mặc định: MySqlMessageStore
+ */
+public class MessageStoreFactory {
+    private static final Logger logger = LoggerFactory.getLogger(MessageStoreFactory.class);
+
+    private static final String STORE_ENV = "CHAT_MESSAGE_STORE";
+    private static final String LOG_DIR_ENV = "CHAT_MESSAGE_LOG_DIR";
+    private static final String DEFAULT_LOG_DIR = "data/messages/";
+
+    private static MessageStore instance;
+
+    public static synchronized MessageStore getInstance() {
+        if (instance == null) {
+            instance = create();
+        }
+        return instance;
+    }
+
+    /**
+     * Close the store if it was opened
+     */
+    public static synchronized void shutdown() {
+        if (instance != null) {
+            instance.close();
+            instance = null;
+        }
+    }
+
+    private static MessageStore create() {
+        if (!"log".equalsIgnoreCase(System.getenv(STORE_ENV))) {
+            return new MySqlMessageStore();
+        }
+
+        String dir = System.getenv(LOG_DIR_ENV);
+        if (dir == null || dir.isEmpty()) {
+            dir = DEFAULT_LOG_DIR;
+        }
+        try {
+            return new LogMessageStore(dir);
+        } catch (IOException e) {
+            // Không lặng lẽ chuyển sang MySQL: lịch sử sẽ bị chia đôi giữa hai nơi
+            logger.error("Cannot open message log at {}", dir, e);
+            throw new IllegalStateException("Cannot open message log at " + dir, e);
+        }
+    }
+}
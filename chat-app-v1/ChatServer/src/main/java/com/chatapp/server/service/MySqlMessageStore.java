@@ -0,0 +1,394 @@
+package com.chatapp.server.service;
+
+import com.chatapp.server.model.Message;
+import com.chatapp.server.model.MessageType;
+import com.chatapp.server.util.ConversationKey;
+import com.chatapp.server.util.DatabaseManager;
+import com.chatapp.server.util.MessageShardRouter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bảng messages trên MySQL, phân mảnh theo cuộc hội thoại qua MessageShardRouter
+ */
+public class MySqlMessageStore implements MessageStore {
+    private static final Logger logger = LoggerFactory.getLogger(MySqlMessageStore.class);
+
+    private static final int LAST_ID_BATCH = 100;
+
+    private final DatabaseManager dbManager;
+    private final MessageShardRouter shardRouter;
+
+    public MySqlMessageStore() {
+        this.dbManager = DatabaseManager.getInstance();
+        this.shardRouter = MessageShardRouter.getInstance();
+    }
+
+    @Override
+    public List<Message> append(long conversationKey, List<Message> drafts) {
+        // Có shard: ID cấp tập trung (tăng dần toàn cục) và ghi tường minh; một DB: AUTO_INCREMENT
+        boolean explicitIds = shardRouter.isSharded();
+        String row = explicitIds ? "(?, ?, ?, ?, ?, ?, ?, ?, ?, ?)" : "(?, ?, ?, ?, ?, ?, ?, ?, ?)";
+        StringBuilder sql = new StringBuilder("INSERT INTO messages (" + (explicitIds ? "message_id, " : "") +
+                "sender_id, receiver_id, group_id, message_type, " +
+                "message_content, file_url, file_name, file_size, sent_at) VALUES ");
+        for (int i = 0; i < drafts.size(); i++) {
+            sql.append(i == 0 ? row : ", " + row);
+        }
+
+        // TIMESTAMP lưu đến giây; giữ cùng giá trị trong cache và DB
+        Timestamp sentAt = new Timestamp(System.currentTimeMillis() / 1000 * 1000);
+
+        List<Message> saved = new ArrayList<>();
+        int firstId = 0;
+        if (explicitIds) {
+            // Giữ dải ID trước khi mượn kết nối ghi (không giữ hai kết nối cùng lúc)
+            try {
+                firstId = shardRouter.reserveMessageIds(drafts.size());
+            } catch (SQLException e) {
+                logger.error("Error reserving {} message IDs", drafts.size(), e);
+                return saved;
+            }
+        }
+
+        // Một lời gọi = một cuộc hội thoại = một shard
+        try (Connection conn = shardRouter.getWriteConnection(conversationKey);
+             PreparedStatement pstmt = conn.prepareStatement(sql.toString(), Statement.RETURN_GENERATED_KEYS)) {
+
+            int index = 1;
+            for (int i = 0; i < drafts.size(); i++) {
+                Message m = drafts.get(i);
+                if (explicitIds) {
+                    pstmt.setInt(index++, firstId + i);
+                }
+                pstmt.setInt(index++, m.getSenderId());
+                setNullableInt(pstmt, index++, m.getReceiverId());
+                setNullableInt(pstmt, index++, m.getGroupId());
+                pstmt.setString(index++, m.getMessageType().name());
+                pstmt.setString(index++, m.getMessageContent());
+                pstmt.setString(index++, m.getFileUrl());
+                pstmt.setString(index++, m.getFileName());
+                if (m.getFileSize() != null) {
+                    pstmt.setLong(index++, m.getFileSize());
+                } else {
+                    pstmt.setNull(index++, Types.BIGINT);
+                }
+                pstmt.setTimestamp(index++, sentAt);
+            }
+            pstmt.executeUpdate();
+
+            if (!explicitIds) {
+                // Một câu INSERT nhiều dòng: InnoDB cấp các ID liên tiếp từ ID đầu tiên
+                try (ResultSet rs = pstmt.getGeneratedKeys()) {
+                    firstId = rs.next() ? rs.getInt(1) : 0;
+                }
+            }
+            if (firstId > 0) {
+                for (int i = 0; i < drafts.size(); i++) {
+                    Message m = drafts.get(i);
+                    m.setMessageId(firstId + i);
+                    m.setSentAt(sentAt);
+                    saved.add(m);
+                }
+            }
+        } catch (SQLException e) {
+            logger.error("Error writing {} messages", drafts.size(), e);
+        }
+
+        if (!saved.isEmpty()) {
+            dbManager.noteConversationWrite(conversationKey);
+        }
+        return saved;
+    }
+
+    @Override
+    public List<Message> getConversation(long conversationKey, int limit) {
+        if (ConversationKey.isGroup(conversationKey)) {
+            return queryGroupMessages(conversationKey, limit);
+        }
+        return queryPrivateMessages(conversationKey, limit);
+    }
+
+    private List<Message> queryPrivateMessages(long conversationKey, int limit) {
+        List<Message> messages = new ArrayList<>();
+        int userId1 = (int) (conversationKey >>> 32);
+        int userId2 = (int) conversationKey;
+        // Shard không có bảng users: tên người gửi/nhận lấy từ UserService (cache)
+        String sql = "SELECT m.* FROM messages m " +
+                     "WHERE ((m.sender_id = ? AND m.receiver_id = ?) OR " +
+                     "       (m.sender_id = ? AND m.receiver_id = ?)) " +
+                     "ORDER BY m.message_id DESC LIMIT ?";
+
+        try (Connection conn = shardRouter.getReadConnection(conversationKey);
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+
+            pstmt.setInt(1, userId1);
+            pstmt.setInt(2, userId2);
+            pstmt.setInt(3, userId2);
+            pstmt.setInt(4, userId1);
+            pstmt.setInt(5, limit);
+
+            ResultSet rs = pstmt.executeQuery();
+
+            while (rs.next()) {
+                messages.add(extractMessageFromResultSet(rs));
+            }
+        } catch (SQLException e) {
+            logger.error("Error getting private messages between {} and {}", userId1, userId2, e);
+        }
+        return messages;
+    }
+
+    private List<Message> queryGroupMessages(long conversationKey, int limit) {
+        List<Message> messages = new ArrayList<>();
+        int groupId = ConversationKey.groupId(conversationKey);
+        String sql = "SELECT m.* FROM messages m " +
+                     "WHERE m.group_id = ? " +
+                     "ORDER BY m.message_id DESC LIMIT ?";
+
+        logger.debug("Fetching group messages for groupId={}, limit={}", groupId, limit);
+
+        try (Connection conn = shardRouter.getReadConnection(conversationKey);
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+
+            pstmt.setInt(1, groupId);
+            pstmt.setInt(2, limit);
+
+            ResultSet rs = pstmt.executeQuery();
+
+            while (rs.next()) {
+                messages.add(extractMessageFromResultSet(rs));
+            }
+
+            logger.debug("Retrieved {} messages for group {}", messages.size(), groupId);
+        } catch (SQLException e) {
+            logger.error("Error getting group messages for group {} (SQL: {})", groupId, sql, e);
+        }
+        return messages;
+    }
+
+    @Override
+    public List<Message> getByIds(List<Integer> messageIds) {
+        List<Message> messages = new ArrayList<>();
+        if (messageIds.isEmpty()) return messages;
+
+        String placeholders = String.join(",", messageIds.stream().map(id -> "?").toArray(String[]::new));
+        String sql = "SELECT m.* FROM messages m WHERE m.message_id IN (" + placeholders + ")";
+
+        // Không biết shard từ ID: hỏi song song mọi shard
+        List<List<Message>> perShard = shardRouter.queryAllShards("message lookup by ID", conn -> {
+            List<Message> found = new ArrayList<>();
+            try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                for (int i = 0; i < messageIds.size(); i++) {
+                    pstmt.setInt(i + 1, messageIds.get(i));
+                }
+                ResultSet rs = pstmt.executeQuery();
+                while (rs.next()) {
+                    found.add(extractMessageFromResultSet(rs));
+                }
+            }
+            return found;
+        });
+
+        for (List<Message> found : perShard) {
+            messages.addAll(found);
+        }
+        return messages;
+    }
+
+    @Override
+    public boolean markRead(int messageId) {
+        String sql = "UPDATE messages SET is_read = TRUE WHERE message_id = ?";
+
+        List<Integer> updated = shardRouter.queryAllShards("mark message " + messageId + " as read", conn -> {
+            try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                pstmt.setInt(1, messageId);
+                return pstmt.executeUpdate();
+            }
+        });
+        return updated.stream().mapToInt(Integer::intValue).sum() > 0;
+    }
+
+    @Override
+    public int countNewer(long conversationKey, int excludeSenderId, int afterMessageId) {
+        String sql;
+        if (ConversationKey.isGroup(conversationKey)) {
+            sql = "SELECT COUNT(*) FROM messages WHERE group_id = ? AND sender_id <> ? AND message_id > ?";
+        } else {
+            sql = "SELECT COUNT(*) FROM messages WHERE sender_id = ? AND receiver_id = ? AND message_id > ?";
+        }
+
+        try (Connection conn = shardRouter.getReadConnection(conversationKey);
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+
+            if (ConversationKey.isGroup(conversationKey)) {
+                pstmt.setInt(1, ConversationKey.groupId(conversationKey));
+            } else {
+                pstmt.setInt(1, ConversationKey.otherUser(conversationKey, excludeSenderId));
+            }
+            pstmt.setInt(2, excludeSenderId);
+            pstmt.setInt(3, afterMessageId);
+            ResultSet rs = pstmt.executeQuery();
+
+            if (rs.next()) {
+                return rs.getInt(1);
+            }
+        } catch (SQLException e) {
+            logger.error("Error counting messages in conversation {} after {}", conversationKey, afterMessageId, e);
+        }
+        return 0;
+    }
+
+    @Override
+    public Map<Long, Integer> lastMessageIds(Collection<Long> conversationKeys) {
+        Map<Integer, List<Long>> byShard = new HashMap<>();
+        for (long key : conversationKeys) {
+            byShard.computeIfAbsent(shardRouter.shardOf(key), k -> new ArrayList<>()).add(key);
+        }
+
+        // Mỗi shard một kết nối, các shard chạy song song
+        Map<Integer, MessageShardRouter.ShardQuery<Map<Long, Integer>>> queries = new HashMap<>();
+        for (Map.Entry<Integer, List<Long>> entry : byShard.entrySet()) {
+            List<Long> keys = entry.getValue();
+            queries.put(entry.getKey(), conn -> {
+                Map<Long, Integer> lastIds = new HashMap<>();
+                for (int from = 0; from < keys.size(); from += LAST_ID_BATCH) {
+                    queryLastMessageIds(conn, keys.subList(from, Math.min(keys.size(), from + LAST_ID_BATCH)), lastIds);
+                }
+                return lastIds;
+            });
+        }
+
+        Map<Long, Integer> result = new HashMap<>();
+        for (Map<Long, Integer> lastIds : shardRouter.queryShards("last message ID lookup", queries)) {
+            result.putAll(lastIds);
+        }
+        return result;
+    }
+
+    /**
+     * MAX(message_id) of each conversation of one shard in one round trip (UNION ALL of indexed lookups)
+     */
+    private void queryLastMessageIds(Connection conn, List<Long> keys, Map<Long, Integer> result) throws SQLException {
+        StringBuilder sql = new StringBuilder();
+        for (long key : keys) {
+            if (sql.length() > 0) sql.append(" UNION ALL ");
+            sql.append(ConversationKey.isGroup(key)
+                    ? "SELECT ?, MAX(message_id) FROM messages WHERE group_id = ?"
+                    : "SELECT ?, MAX(message_id) FROM messages WHERE (sender_id = ? AND receiver_id = ?) " +
+                      "OR (sender_id = ? AND receiver_id = ?)");
+        }
+
+        try (PreparedStatement pstmt = conn.prepareStatement(sql.toString())) {
+            int index = 1;
+            for (long key : keys) {
+                pstmt.setLong(index++, key);
+                if (ConversationKey.isGroup(key)) {
+                    pstmt.setInt(index++, ConversationKey.groupId(key));
+                } else {
+                    int userId1 = (int) (key >>> 32);
+                    int userId2 = (int) key;
+                    pstmt.setInt(index++, userId1);
+                    pstmt.setInt(index++, userId2);
+                    pstmt.setInt(index++, userId2);
+                    pstmt.setInt(index++, userId1);
+                }
+            }
+            ResultSet rs = pstmt.executeQuery();
+            while (rs.next()) {
+                int lastId = rs.getInt(2);
+                if (!rs.wasNull()) {
+                    result.put(rs.getLong(1), lastId);
+                }
+            }
+        }
+    }
+
+    @Override
+    public List<Message> scanAfter(int afterMessageId, int limit) {
+        String sql = "SELECT * FROM messages WHERE message_id > ? ORDER BY message_id LIMIT ?";
+
+        // Mỗi shard trả về limit tin đầu tiên sau afterMessageId; gộp lại và giữ limit ID nhỏ nhất
+        List<List<Message>> perShard = shardRouter.queryAllShards("message scan", conn -> {
+            List<Message> rows = new ArrayList<>();
+            try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                pstmt.setInt(1, afterMessageId);
+                pstmt.setInt(2, limit);
+                ResultSet rs = pstmt.executeQuery();
+                while (rs.next()) {
+                    rows.add(extractMessageFromResultSet(rs));
+                }
+            }
+            return rows;
+        });
+        if (perShard.size() < shardRouter.getShardCount()) {
+            // Thiếu một shard thì kết quả có lỗ hổng: coi như lỗi
+            logger.error("Could not read all message shards after ID {}", afterMessageId);
+            return new ArrayList<>();
+        }
+
+        List<Message> merged = new ArrayList<>();
+        for (List<Message> rows : perShard) {
+            merged.addAll(rows);
+        }
+        merged.sort(Comparator.comparingInt(Message::getMessageId));
+        return merged.size() <= limit ? merged : new ArrayList<>(merged.subList(0, limit));
+    }
+
+    @Override
+    public void close() {
+        shardRouter.shutdown();
+    }
+
+    private Message extractMessageFromResultSet(ResultSet rs) throws SQLException {
+        Message message = new Message();
+        message.setMessageId(rs.getInt("message_id"));
+        message.setSenderId(rs.getInt("sender_id"));
+
+        int receiverId = rs.getInt("receiver_id");
+        if (!rs.wasNull()) {
+            message.setReceiverId(receiverId);
+        }
+
+        int groupId = rs.getInt("group_id");
+        if (!rs.wasNull()) {
+            message.setGroupId(groupId);
+        }
+
+        message.setMessageType(MessageType.valueOf(rs.getString("message_type")));
+        message.setMessageContent(rs.getString("message_content"));
+        message.setFileUrl(rs.getString("file_url"));
+        message.setFileName(rs.getString("file_name"));
+
+        long fileSize = rs.getLong("file_size");
+        if (!rs.wasNull()) {
+            message.setFileSize(fileSize);
+        }
+
+        message.setRead(rs.getBoolean("is_read"));
+        message.setSentAt(rs.getTimestamp("sent_at"));
+        return message;
+    }
+
+    private static void setNullableInt(PreparedStatement pstmt, int index, Integer value) throws SQLException {
+        if (value != null) {
+            pstmt.setInt(index, value);
+        } else {
+            pstmt.setNull(index, Types.INTEGER);
+        }
+    }
+}
@@ -0,0 +1,383 @@
+package com.chatapp.server.service;
+
+import com.chatapp.server.model.CallInfo;
+import com.chatapp.server.model.FriendRequest;
+import com.chatapp.server.model.Message;
+import com.chatapp.server.model.MessageType;
+import com.chatapp.server.model.Protocol;
+import com.chatapp.server.util.DatabaseManager;
+import com.google.gson.JsonArray;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLNonTransientException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Hộp thư cho các thông báo không gửi được vì người nhận đang offline.
+ * Thông báo được ghi vào bảng notifications theo lô; khi user đăng nhập,
+ * toàn bộ thông báo chờ được gửi trong một frame NOTIFY_OFFLINE_BATCH
+ * và được đánh dấu đã gửi (is_read) bằng một câu UPDATE.
+ * Phần lớn việc drain (truy vấn DB) chạy ngoài khóa lockFor(userId); dưới khóa chỉ còn
+ * bước drainPendingSince, lấy các thông báo mới phát sinh trong lúc đó, nên kiểm tra
+ * online + enqueue và đăng ký online vẫn không để lọt thông báo nào.
+ */
+public class NotificationOutbox {
+    private static final Logger logger = LoggerFactory.getLogger(NotificationOutbox.class);
+
+    private static final long FLUSH_INTERVAL_MILLIS = 1000;
+    private static final int MAX_PREVIEW_LENGTH = 100;
+    private static final int MAX_DELIVERED_PER_LOGIN = 500;
+    private static final int LOCK_STRIPES = 64;
+
+    private static final String INSERT_SQL = "INSERT INTO notifications (user_id, notification_type, " +
+            "related_user_id, related_group_id, notification_content, created_at) VALUES (?, ?, ?, ?, ?, ?)";
+
+    private static NotificationOutbox instance;
+
+    private final DatabaseManager dbManager;
+    // Gộp theo (user, loại, người liên quan, nhóm): chỉ giữ bản mới nhất chưa ghi
+    private final Map<String, Entry> pending;
+    private final Object[] userLocks;
+    // flush giữ write lock từ lúc lấy lô đến khi ghi xong, drain giữ read lock:
+    // drain không bao giờ thấy thông báo đã rời pending mà chưa nằm trong DB
+    private final ReentrantReadWriteLock flushLock;
+    private long flushSequence;
+    private ScheduledExecutorService flusher;
+
+    private NotificationOutbox() {
+        this.dbManager = DatabaseManager.getInstance();
+        this.pending = new LinkedHashMap<>();
+        this.userLocks = new Object[LOCK_STRIPES];
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            userLocks[i] = new Object();
+        }
+        this.flushLock = new ReentrantReadWriteLock(true);
+    }
+
+    public static synchronized NotificationOutbox getInstance() {
+        if (instance == null) {
+            instance = new NotificationOutbox();
+        }
+        return instance;
+    }
+
+    public void start() {
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "notification-outbox");
+            t.setDaemon(true);
+            return t;
+        });
+        flusher.scheduleWithFixedDelay(this::flush, FLUSH_INTERVAL_MILLIS, FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        if (flusher != null) {
+            flusher.shutdown();
+        }
+        flush();
+    }
+
+    /**
+     * Lock guarding a user's switch between offline (outbox) and online delivery
+     */
+    public Object lockFor(int userId) {
+        return userLocks[Math.floorMod(userId, LOCK_STRIPES)];
+    }
+
+    /**
+     * Store a notification that could not be delivered.
+     * Only friend requests, messages and incoming calls are kept; other
+     * notifications (call signaling, read receipts...) are meaningless later.
+     */
+    public void enqueue(int userId, String notificationType, Object data) {
+        Entry entry = toEntry(userId, notificationType, data);
+        if (entry == null) return;
+
+        String key = entry.userId + ":" + entry.type + ":" + entry.relatedUserId + ":" + entry.relatedGroupId;
+        synchronized (pending) {
+            // Tin nhắn trong cùng cuộc hội thoại chỉ giữ bản xem trước mới nhất
+            pending.remove(key);
+            pending.put(key, entry);
+        }
+    }
+
+    private Entry toEntry(int userId, String notificationType, Object data) {
+        switch (notificationType) {
+            case Protocol.NOTIFY_FRIEND_REQUEST: {
+                FriendRequest request = (FriendRequest) data;
+                return new Entry(userId, "FRIEND_REQUEST", request.getSenderId(), null,
+                        request.getSenderFullName());
+            }
+            case Protocol.NOTIFY_NEW_MESSAGE: {
+                Message message = (Message) data;
+                String preview = message.getMessageType() == MessageType.TEXT
+                        ? message.getMessageContent() : message.getFileName();
+                return new Entry(userId, "MESSAGE", message.getSenderId(), message.getGroupId(), preview);
+            }
+            case Protocol.NOTIFY_INCOMING_CALL: {
+                CallInfo call = (CallInfo) data;
+                return new Entry(userId, "CALL", call.getCallerId(), null, call.getCallType().name());
+            }
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Persist buffered notifications in one batch
+     */
+    public void flush() {
+        flushLock.writeLock().lock();
+        try {
+            flushBatch();
+        } finally {
+            flushLock.writeLock().unlock();
+        }
+    }
+
+    private void flushBatch() {
+        List<Entry> batch;
+        synchronized (pending) {
+            if (pending.isEmpty()) return;
+            batch = new ArrayList<>(pending.values());
+            pending.clear();
+        }
+
+        try (Connection conn = dbManager.getConnection()) {
+            conn.setAutoCommit(false);
+            try (PreparedStatement pstmt = conn.prepareStatement(INSERT_SQL)) {
+                for (Entry entry : batch) {
+                    bind(pstmt, entry);
+                    pstmt.addBatch();
+                }
+                pstmt.executeBatch();
+                conn.commit();
+                flushSequence++;
+                logger.debug("Stored {} offline notifications", batch.size());
+                return;
+            } catch (SQLException e) {
+                conn.rollback();
+                if (isTransient(e)) throw e;
+                logger.warn("Batch of {} offline notifications failed, storing row by row", batch.size(), e);
+            } finally {
+                conn.setAutoCommit(true);
+            }
+
+            // Một dòng lỗi (vd. vi phạm khóa ngoại) không được kéo cả lô vào vòng lặp thử lại
+            List<Entry> retry = new ArrayList<>();
+            int stored = 0;
+            try (PreparedStatement pstmt = conn.prepareStatement(INSERT_SQL)) {
+                for (Entry entry : batch) {
+                    try {
+                        bind(pstmt, entry);
+                        pstmt.executeUpdate();
+                        stored++;
+                    } catch (SQLException e) {
+                        if (isTransient(e)) {
+                            retry.add(entry);
+                        } else {
+                            logger.error("Dropping offline notification {} for user {}", entry.type, entry.userId, e);
+                        }
+                    }
+                }
+            }
+            if (stored > 0) flushSequence++;
+            requeue(retry);
+        } catch (SQLException e) {
+            logger.error("Error storing {} offline notifications", batch.size(), e);
+            requeue(batch);
+        }
+    }
+
+    private static void bind(PreparedStatement pstmt, Entry entry) throws SQLException {
+        pstmt.setInt(1, entry.userId);
+        pstmt.setString(2, entry.type);
+        pstmt.setInt(3, entry.relatedUserId);
+        if (entry.relatedGroupId != null) {
+            pstmt.setInt(4, entry.relatedGroupId);
+        } else {
+            pstmt.setNull(4, Types.INTEGER);
+        }
+        pstmt.setString(5, truncate(entry.content));
+        pstmt.setTimestamp(6, entry.createdAt);
+    }
+
+    // Lỗi dữ liệu (khóa ngoại, ràng buộc...) thử lại cũng vô ích; lỗi kết nối thì giữ lại
+    private static boolean isTransient(SQLException e) {
+        return !(e instanceof SQLNonTransientException) || e instanceof SQLNonTransientConnectionException;
+    }
+
+    private void requeue(List<Entry> entries) {
+        if (entries.isEmpty()) return;
+        synchronized (pending) {
+            for (Entry entry : entries) {
+                pending.putIfAbsent(entry.userId + ":" + entry.type + ":" + entry.relatedUserId + ":"
+                        + entry.relatedGroupId, entry);
+            }
+        }
+    }
+
+    /**
+     * Pending notifications of a user as compact rows
+     * [id, type, relatedUserId, relatedGroupId, content, createdAtMillis]
+     * (id = 0 for rows taken straight from memory), marked delivered with a single UPDATE.
+     * Meant to be called before taking lockFor(userId).
+     */
+    public Drained drainPending(int userId) {
+        return drain(userId, -1);
+    }
+
+    /**
+     * Notifications that arrived after an earlier drain; only hits the DB if a flush
+     * committed in between. Cheap enough to call while holding lockFor(userId).
+     */
+    public Drained drainPendingSince(int userId, Drained previous) {
+        return drain(userId, previous.flushSequence);
+    }
+
+    private Drained drain(int userId, long sinceFlush) {
+        JsonArray items = new JsonArray();
+        long sequence;
+        flushLock.readLock().lock();
+        try {
+            sequence = flushSequence;
+            if (sequence != sinceFlush) {
+                loadStored(userId, items);
+            }
+            takeBuffered(userId, items);
+        } finally {
+            flushLock.readLock().unlock();
+        }
+        return new Drained(items, sequence);
+    }
+
+    // Thông báo còn trong bộ nhớ gửi thẳng, không cần ghi DB
+    private void takeBuffered(int userId, JsonArray items) {
+        synchronized (pending) {
+            Iterator<Entry> it = pending.values().iterator();
+            while (it.hasNext()) {
+                Entry entry = it.next();
+                if (entry.userId != userId) continue;
+                it.remove();
+
+                JsonArray item = new JsonArray();
+                item.add(0);
+                item.add(entry.type);
+                item.add(entry.relatedUserId);
+                item.add(entry.relatedGroupId);
+                item.add(truncate(entry.content));
+                item.add(entry.createdAt.getTime());
+                items.add(item);
+            }
+        }
+    }
+
+    private void loadStored(int userId, JsonArray items) {
+        int maxId = 0;
+        int loaded = 0;
+        String selectSql = "SELECT notification_id, notification_type, related_user_id, related_group_id, " +
+                           "notification_content, created_at FROM notifications " +
+                           "WHERE user_id = ? AND is_read = FALSE ORDER BY notification_id LIMIT ?";
+
+        try (Connection conn = dbManager.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(selectSql)) {
+
+            pstmt.setInt(1, userId);
+            pstmt.setInt(2, MAX_DELIVERED_PER_LOGIN);
+            ResultSet rs = pstmt.executeQuery();
+
+            while (rs.next()) {
+                JsonArray item = new JsonArray();
+                int id = rs.getInt("notification_id");
+                item.add(id);
+                item.add(rs.getString("notification_type"));
+                item.add(rs.getInt("related_user_id"));
+                int groupId = rs.getInt("related_group_id");
+                item.add(rs.wasNull() ? null : groupId);
+                item.add(rs.getString("notification_content"));
+                item.add(rs.getTimestamp("created_at").getTime());
+                items.add(item);
+                maxId = Math.max(maxId, id);
+                loaded++;
+            }
+        } catch (SQLException e) {
+            logger.error("Error loading offline notifications for user {}", userId, e);
+            return;
+        }
+
+        if (loaded == 0) return;
+
+        String updateSql = "UPDATE notifications SET is_read = TRUE " +
+                           "WHERE user_id = ? AND is_read = FALSE AND notification_id <= ?";
+
+        try (Connection conn = dbManager.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(updateSql)) {
+
+            pstmt.setInt(1, userId);
+            pstmt.setInt(2, maxId);
+            pstmt.executeUpdate();
+        } catch (SQLException e) {
+            logger.error("Error marking offline notifications delivered for user {}", userId, e);
+        }
+
+        logger.info("Delivering {} offline notifications to user {}", loaded, userId);
+    }
+
+    private static String truncate(String content) {
+        if (content == null || content.length() <= MAX_PREVIEW_LENGTH) {
+            return content;
+        }
+        return content.substring(0, MAX_PREVIEW_LENGTH);
+    }
+
+    /**
+     * Result of a drain: the rows plus the flush it observed
+     */
+    public static final class Drained {
+        private final JsonArray items;
+        private final long flushSequence;
+
+        private Drained(JsonArray items, long flushSequence) {
+            this.items = items;
+            this.flushSequence = flushSequence;
+        }
+
+        public JsonArray getItems() {
+            return items;
+        }
+    }
+
+    private static class Entry {
+        private final int userId;
+        private final String type;
+        private final int relatedUserId;
+        private final Integer relatedGroupId;
+        private final String content;
+        private final Timestamp createdAt;
+
+        Entry(int userId, String type, int relatedUserId, Integer relatedGroupId, String content) {
+            this.userId = userId;
+            this.type = type;
+            this.relatedUserId = relatedUserId;
+            this.relatedGroupId = relatedGroupId;
+            this.content = content;
+            this.createdAt = new Timestamp(System.currentTimeMillis());
+        }
+    }
+}
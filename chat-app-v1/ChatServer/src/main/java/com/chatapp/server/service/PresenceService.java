@@ -0,0 +1,196 @@
+package com.chatapp.server.service;
+
+import com.chatapp.server.model.User;
+import com.chatapp.server.model.UserStatus;
+import com.chatapp.server.util.DatabaseManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Trạng thái online nằm trong bộ nhớ và là nguồn dữ liệu chính.
+ * Chỉ user đang đăng nhập mới có mặt trong map; còn lại coi là OFFLINE.
+ * Cột user_status / last_login được ghi xuống DB theo lô định kỳ,
+ * nhiều thay đổi liên tiếp của cùng một user được gộp thành một lần ghi.
+ */
+public class PresenceService {
+    private static final Logger logger = LoggerFactory.getLogger(PresenceService.class);
+
+    private static final long FLUSH_INTERVAL_MILLIS = 2000;
+
+    private static PresenceService instance;
+
+    private final DatabaseManager dbManager;
+    private final ConcurrentHashMap<Integer, UserStatus> statuses;
+    private final ConcurrentHashMap<Integer, PendingWrite> pendingWrites;
+    private ScheduledExecutorService flusher;
+
+    private PresenceService() {
+        this.dbManager = DatabaseManager.getInstance();
+        this.statuses = new ConcurrentHashMap<>();
+        this.pendingWrites = new ConcurrentHashMap<>();
+    }
+
+    public static synchronized PresenceService getInstance() {
+        if (instance == null) {
+            instance = new PresenceService();
+        }
+        return instance;
+    }
+
+    /**
+     * Reset statuses left over from the previous run, then start the flush timer
+     */
+    public void start() {
+        String sql = "UPDATE users SET user_status = 'OFFLINE' WHERE user_status <> 'OFFLINE'";
+        try (Connection conn = dbManager.getConnection();
+             Statement stmt = conn.createStatement()) {
+            int reset = stmt.executeUpdate(sql);
+            logger.info("Reset {} stale user statuses to OFFLINE", reset);
+        } catch (SQLException e) {
+            logger.error("Error resetting stale user statuses", e);
+        }
+
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "presence-flusher");
+            t.setDaemon(true);
+            return t;
+        });
+        flusher.scheduleWithFixedDelay(this::flush, FLUSH_INTERVAL_MILLIS, FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        if (flusher != null) {
+            flusher.shutdown();
+        }
+        flush();
+    }
+
+    /**
+     * User authenticated: ONLINE and last_login = now
+     */
+    public void userLoggedIn(int userId) {
+        statuses.put(userId, UserStatus.ONLINE);
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+        pendingWrites.merge(userId, new PendingWrite(UserStatus.ONLINE, now),
+                (old, update) -> new PendingWrite(update.status, update.lastLogin));
+    }
+
+    /**
+     * User logged out or disconnected
+     */
+    public void userLoggedOut(int userId) {
+        statuses.remove(userId);
+        enqueueStatus(userId, UserStatus.OFFLINE);
+    }
+
+    /**
+     * User picked a status (ONLINE, AWAY, BUSY, OFFLINE) while connected
+     */
+    public void setStatus(int userId, UserStatus status) {
+        statuses.put(userId, status);
+        enqueueStatus(userId, status);
+    }
+
+    public UserStatus getStatus(int userId) {
+        return statuses.getOrDefault(userId, UserStatus.OFFLINE);
+    }
+
+    /**
+     * Overwrite the status read from the database with the live one
+     */
+    public void applyTo(User user) {
+        if (user != null) {
+            user.setUserStatus(getStatus(user.getUserId()));
+        }
+    }
+
+    public int getPendingWriteCount() {
+        return pendingWrites.size();
+    }
+
+    private void enqueueStatus(int userId, UserStatus status) {
+        // Giữ lại last_login chưa ghi (nếu có), chỉ thay status mới nhất
+        pendingWrites.merge(userId, new PendingWrite(status, null),
+                (old, update) -> new PendingWrite(update.status, old.lastLogin));
+    }
+
+    /**
+     * Write all coalesced changes in two batches
+     */
+    public void flush() {
+        List<Integer> userIds = new ArrayList<>(pendingWrites.keySet());
+        if (userIds.isEmpty()) return;
+
+        List<Integer> loginIds = new ArrayList<>();
+        List<PendingWrite> loginWrites = new ArrayList<>();
+        List<Integer> statusIds = new ArrayList<>();
+        List<PendingWrite> statusWrites = new ArrayList<>();
+
+        for (Integer userId : userIds) {
+            PendingWrite write = pendingWrites.remove(userId);
+            if (write == null) continue;
+            if (write.lastLogin != null) {
+                loginIds.add(userId);
+                loginWrites.add(write);
+            } else {
+                statusIds.add(userId);
+                statusWrites.add(write);
+            }
+        }
+
+        String loginSql = "UPDATE users SET user_status = ?, last_login = ? WHERE user_id = ?";
+        String statusSql = "UPDATE users SET user_status = ? WHERE user_id = ?";
+
+        try (Connection conn = dbManager.getConnection();
+             PreparedStatement loginStmt = conn.prepareStatement(loginSql);
+             PreparedStatement statusStmt = conn.prepareStatement(statusSql)) {
+
+            for (int i = 0; i < loginIds.size(); i++) {
+                loginStmt.setString(1, loginWrites.get(i).status.name());
+                loginStmt.setTimestamp(2, loginWrites.get(i).lastLogin);
+                loginStmt.setInt(3, loginIds.get(i));
+                loginStmt.addBatch();
+            }
+            for (int i = 0; i < statusIds.size(); i++) {
+                statusStmt.setString(1, statusWrites.get(i).status.name());
+                statusStmt.setInt(2, statusIds.get(i));
+                statusStmt.addBatch();
+            }
+            if (!loginIds.isEmpty()) loginStmt.executeBatch();
+            if (!statusIds.isEmpty()) statusStmt.executeBatch();
+
+            logger.debug("Flushed presence for {} users", loginIds.size() + statusIds.size());
+        } catch (SQLException e) {
+            logger.error("Error flushing presence for {} users", loginIds.size() + statusIds.size(), e);
+            // Đưa lại vào hàng đợi, không ghi đè thay đổi mới hơn
+            for (int i = 0; i < loginIds.size(); i++) {
+                pendingWrites.putIfAbsent(loginIds.get(i), loginWrites.get(i));
+            }
+            for (int i = 0; i < statusIds.size(); i++) {
+                pendingWrites.putIfAbsent(statusIds.get(i), statusWrites.get(i));
+            }
+        }
+    }
+
+    private static class PendingWrite {
+        private final UserStatus status;
+        private final Timestamp lastLogin;
+
+        PendingWrite(UserStatus status, Timestamp lastLogin) {
+            this.status = status;
+            this.lastLogin = lastLogin;
+        }
+    }
+}
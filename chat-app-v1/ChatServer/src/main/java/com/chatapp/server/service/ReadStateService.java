@@ -0,0 +1,625 @@
+package com.chatapp.server.service;
+
+import com.chatapp.server.model.Message;
+import com.chatapp.server.util.ConversationKey;
+import com.chatapp.server.util.DatabaseManager;
+import com.chatapp.server.util.DbExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Trạng thái đã đọc theo watermark: mỗi user / cuộc hội thoại chỉ lưu
+ * message_id lớn nhất đã đọc và số tin chưa đọc.
+ * - Chỉ user đang online có trạng thái trong bộ nhớ (nạp lần đầu dùng, evict khi offline);
+ *   tin đến cho user offline được cộng dồn thành delta và ghi bằng UPSERT cộng thêm
+ * - Bộ đếm cập nhật khi gửi/đọc và được ghi xuống bảng conversation_reads theo lô định kỳ
+ * - Nạp trạng thái chạy ngoài mọi khóa (mỗi user một luồng nạp). Flush/evict đánh dấu user đang
+ *   được ghi; lần nạp trùng với một lần ghi của chính user đó thì nạp lại, nên mọi delta hoặc là
+ *   đã nằm trong DB, hoặc vẫn còn trong pendingIncoming, không bị đếm thiếu hay đếm hai lần
+ */
+public class ReadStateService {
+    private static final Logger logger = LoggerFactory.getLogger(ReadStateService.class);
+
+    private static final long FLUSH_INTERVAL_SECONDS = 30;
+
+    private static final String UPSERT_SQL =
+            "INSERT INTO conversation_reads (user_id, conversation_key, last_read_message_id, unread_count) " +
+            "VALUES (?, ?, ?, ?) ON DUPLICATE KEY UPDATE " +
+            "last_read_message_id = GREATEST(last_read_message_id, VALUES(last_read_message_id)), " +
+            "unread_count = VALUES(unread_count)";
+
+    private static final String ADD_UNREAD_SQL =
+            "INSERT INTO conversation_reads (user_id, conversation_key, last_read_message_id, unread_count) " +
+            "VALUES (?, ?, 0, ?) ON DUPLICATE KEY UPDATE unread_count = unread_count + VALUES(unread_count)";
+
+    private static ReadStateService instance;
+
+    private final DatabaseManager dbManager;
+    private final DbExecutor dbExecutor;
+    private final GroupService groupService;
+    private final RecentMessageCache recentCache;
+    // User đang online
+    private final ConcurrentHashMap<Integer, UserReadState> states;
+    // User offline: user_id -> conversation key -> tin đến chưa ghi xuống DB
+    private final Map<Integer, Map<Long, PendingIncoming>> pendingIncoming;
+    // Giữ khi đổi giữa states và pendingIncoming (thứ tự khóa: stateLock rồi UserReadState)
+    private final Object stateLock = new Object();
+    // Flush và evict không chạy song song với nhau
+    private final Object flushLock = new Object();
+    // Dưới stateLock: user đang được nạp, user có bộ đếm đang ghi xuống DB (số lần ghi),
+    // và user mà một lần ghi đã bắt đầu trong lúc nạp (kết quả nạp không dùng được)
+    private final Map<Integer, CompletableFuture<UserReadState>> loading = new HashMap<>();
+    private final Map<Integer, Integer> writing = new HashMap<>();
+    private final Set<Integer> staleLoads = new HashSet<>();
+    private ScheduledExecutorService flusher;
+
+    private ReadStateService() {
+        this.dbManager = DatabaseManager.getInstance();
+        this.dbExecutor = DbExecutor.getInstance();
+        this.groupService = new GroupService();
+        this.recentCache = RecentMessageCache.getInstance();
+        this.states = new ConcurrentHashMap<>();
+        this.pendingIncoming = new HashMap<>();
+    }
+
+    public static synchronized ReadStateService getInstance() {
+        if (instance == null) {
+            instance = new ReadStateService();
+        }
+        return instance;
+    }
+
+    public void start() {
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "read-state-flusher");
+            t.setDaemon(true);
+            return t;
+        });
+        flusher.scheduleWithFixedDelay(this::flush, FLUSH_INTERVAL_SECONDS, FLUSH_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    public void stop() {
+        if (flusher != null) {
+            flusher.shutdown();
+        }
+        flush();
+    }
+
+    /**
+     * Update counters for a message that was just persisted.
+     * Group members come from GroupMemberCache; no database access for online users.
+     */
+    public void onMessageSent(Message message) {
+        if (message == null) return;
+
+        long key = ConversationKey.of(message);
+        int messageId = message.getMessageId();
+        List<Integer> recipients = message.isGroupMessage()
+                ? groupService.getGroupMemberIds(message.getGroupId())
+                : Collections.singletonList(message.getReceiverId());
+
+        synchronized (stateLock) {
+            // Người gửi coi như đã đọc tin của chính mình
+            UserReadState sender = states.get(message.getSenderId());
+            if (sender != null) {
+                sender.markRead(key, messageId);
+            }
+
+            for (int recipientId : recipients) {
+                if (recipientId == message.getSenderId()) continue;
+
+                UserReadState state = states.get(recipientId);
+                if (state != null) {
+                    state.onIncoming(key, messageId);
+                } else {
+                    pendingIncoming.computeIfAbsent(recipientId, k -> new HashMap<>())
+                            .computeIfAbsent(key, k -> new PendingIncoming())
+                            .add(messageId);
+                }
+            }
+        }
+    }
+
+    /**
+     * Advance the user's read watermark for a conversation.
+     * messageId <= 0 means "everything received so far".
+     * Returns the new watermark, or -1 if it did not move.
+     */
+    public int markRead(int userId, long key, int messageId) {
+        UserReadState state = stateOf(userId);
+        ensureLastMessageId(state, key);
+
+        ConversationState conversation;
+        int watermark;
+        int unread;
+        boolean partial;
+
+        synchronized (state) {
+            conversation = state.conversation(key);
+            int target = messageId > 0 ? messageId : conversation.lastMessageId;
+            if (target <= conversation.lastReadId) {
+                return -1;
+            }
+            conversation.lastReadId = target;
+            partial = target < conversation.lastMessageId;
+            if (!partial) {
+                conversation.unread = 0;
+            }
+            conversation.dirty = false;
+            watermark = conversation.lastReadId;
+        }
+
+        if (partial) {
+            // Đọc đến giữa chừng: đếm lại phần còn lại (hiếm), ngoài khóa
+            int remaining = countNewerMessages(userId, key, watermark);
+            synchronized (state) {
+                if (conversation.lastReadId == watermark) {
+                    conversation.unread = remaining;
+                }
+            }
+        }
+        synchronized (state) {
+            unread = conversation.unread;
+        }
+        recentCache.markRead(key, userId, watermark);
+
+        // Một lần ghi duy nhất cho cả watermark lẫn bộ đếm
+        try (Connection conn = dbManager.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(UPSERT_SQL)) {
+            pstmt.setInt(1, userId);
+            pstmt.setLong(2, key);
+            pstmt.setInt(3, watermark);
+            pstmt.setInt(4, unread);
+            pstmt.executeUpdate();
+        } catch (SQLException e) {
+            logger.error("Error saving read watermark for user {} in conversation {}", userId, key, e);
+            synchronized (state) {
+                conversation.dirty = true;
+            }
+        }
+        return watermark;
+    }
+
+    /**
+     * markRead on the DB executor (it may load state, count and write)
+     */
+    public CompletableFuture<Integer> markReadAsync(int userId, long key, int messageId) {
+        return dbExecutor.supply(() -> markRead(userId, key, messageId));
+    }
+
+    /**
+     * Largest message id the user has read in the conversation (0 if none).
+     * Offline users are read from the database without loading their state.
+     */
+    public int getLastReadId(int userId, long key) {
+        UserReadState state = states.get(userId);
+        if (state != null) {
+            synchronized (state) {
+                ConversationState conversation = state.conversations.get(key);
+                return conversation != null ? conversation.lastReadId : 0;
+            }
+        }
+
+        String sql = "SELECT last_read_message_id FROM conversation_reads WHERE user_id = ? AND conversation_key = ?";
+        try (Connection conn = dbManager.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setInt(1, userId);
+            pstmt.setLong(2, key);
+            ResultSet rs = pstmt.executeQuery();
+            return rs.next() ? rs.getInt(1) : 0;
+        } catch (SQLException e) {
+            logger.error("Error reading read watermark for user {} in conversation {}", userId, key, e);
+            return 0;
+        }
+    }
+
+    public int getUnreadCount(int userId, long key) {
+        UserReadState state = stateOf(userId);
+        synchronized (state) {
+            ConversationState conversation = state.conversations.get(key);
+            return conversation != null ? conversation.unread : 0;
+        }
+    }
+
+    /**
+     * Non-zero unread counters of a user, keyed by conversation key
+     */
+    public Map<Long, Integer> getUnreadCounts(int userId) {
+        Map<Long, Integer> counts = new HashMap<>();
+        UserReadState state = stateOf(userId);
+        synchronized (state) {
+            for (Map.Entry<Long, ConversationState> entry : state.conversations.entrySet()) {
+                if (entry.getValue().unread > 0) {
+                    counts.put(entry.getKey(), entry.getValue().unread);
+                }
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * getUnreadCounts on the DB executor (the first call for a user loads its state)
+     */
+    public CompletableFuture<Map<Long, Integer>> getUnreadCountsAsync(int userId) {
+        return dbExecutor.supply(() -> getUnreadCounts(userId));
+    }
+
+    public int getTotalUnread(int userId) {
+        UserReadState state = stateOf(userId);
+        synchronized (state) {
+            int total = 0;
+            for (ConversationState conversation : state.conversations.values()) {
+                total += conversation.unread;
+            }
+            return total;
+        }
+    }
+
+    /**
+     * Persist and drop the state of a user who went offline (on the flusher thread)
+     */
+    public void evict(int userId) {
+        if (flusher != null && !flusher.isShutdown()) {
+            flusher.execute(() -> evictNow(userId));
+        } else {
+            evictNow(userId);
+        }
+    }
+
+    private void evictNow(int userId) {
+        synchronized (flushLock) {
+            UserReadState state;
+            List<Object[]> rows = new ArrayList<>();
+            synchronized (stateLock) {
+                state = states.remove(userId);
+                if (state == null) return;
+                collectDirty(userId, state, rows);
+                beginWrite(userId);
+            }
+            boolean written = writeRows(rows);
+            synchronized (stateLock) {
+                if (!written && !states.containsKey(userId)) {
+                    // Giữ lại trạng thái để lần flush sau ghi tiếp
+                    markDirty(state, rows);
+                    mergePending(state, pendingIncoming.remove(userId));
+                    states.put(userId, state);
+                }
+                endWrite(userId);
+            }
+        }
+    }
+
+    /**
+     * Persist dirty counters of online users and pending counts of offline users in one batch each
+     */
+    public void flush() {
+        synchronized (flushLock) {
+            List<Object[]> rows = new ArrayList<>();
+            Map<Integer, Map<Long, PendingIncoming>> pending;
+            synchronized (stateLock) {
+                for (Map.Entry<Integer, UserReadState> userEntry : states.entrySet()) {
+                    collectDirty(userEntry.getKey(), userEntry.getValue(), rows);
+                }
+                pending = new HashMap<>(pendingIncoming);
+                pendingIncoming.clear();
+                pending.keySet().forEach(this::beginWrite);
+            }
+
+            if (!rows.isEmpty() && writeRows(rows)) {
+                logger.debug("Flushed {} unread counters", rows.size());
+            } else if (!rows.isEmpty()) {
+                for (Object[] row : rows) {
+                    UserReadState state = states.get((Integer) row[0]);
+                    if (state != null) {
+                        markDirty(state, Collections.singletonList(row));
+                    }
+                }
+            }
+
+            if (!pending.isEmpty()) {
+                boolean written = writePending(pending);
+                synchronized (stateLock) {
+                    if (!written) {
+                        // Các user này chưa được nạp xong (đang ghi): trả delta về chỗ cũ
+                        for (Map.Entry<Integer, Map<Long, PendingIncoming>> entry : pending.entrySet()) {
+                            Map<Long, PendingIncoming> current = pendingIncoming.computeIfAbsent(entry.getKey(), k -> new HashMap<>());
+                            for (Map.Entry<Long, PendingIncoming> conversation : entry.getValue().entrySet()) {
+                                current.computeIfAbsent(conversation.getKey(), k -> new PendingIncoming())
+                                        .merge(conversation.getValue());
+                            }
+                        }
+                    }
+                    pending.keySet().forEach(this::endWrite);
+                }
+            }
+        }
+    }
+
+    private void collectDirty(int userId, UserReadState state, List<Object[]> rows) {
+        synchronized (state) {
+            for (Map.Entry<Long, ConversationState> entry : state.conversations.entrySet()) {
+                ConversationState conversation = entry.getValue();
+                if (conversation.dirty) {
+                    rows.add(new Object[] {userId, entry.getKey(), conversation.lastReadId, conversation.unread});
+                    conversation.dirty = false;
+                }
+            }
+        }
+    }
+
+    private static void markDirty(UserReadState state, List<Object[]> rows) {
+        synchronized (state) {
+            for (Object[] row : rows) {
+                state.conversation((Long) row[1]).dirty = true;
+            }
+        }
+    }
+
+    private boolean writeRows(List<Object[]> rows) {
+        if (rows.isEmpty()) return true;
+
+        try (Connection conn = dbManager.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(UPSERT_SQL)) {
+            for (Object[] row : rows) {
+                pstmt.setInt(1, (Integer) row[0]);
+                pstmt.setLong(2, (Long) row[1]);
+                pstmt.setInt(3, (Integer) row[2]);
+                pstmt.setInt(4, (Integer) row[3]);
+                pstmt.addBatch();
+            }
+            pstmt.executeBatch();
+            return true;
+        } catch (SQLException e) {
+            logger.error("Error flushing {} unread counters", rows.size(), e);
+            return false;
+        }
+    }
+
+    private boolean writePending(Map<Integer, Map<Long, PendingIncoming>> pending) {
+        int count = 0;
+        try (Connection conn = dbManager.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(ADD_UNREAD_SQL)) {
+            for (Map.Entry<Integer, Map<Long, PendingIncoming>> entry : pending.entrySet()) {
+                for (Map.Entry<Long, PendingIncoming> conversation : entry.getValue().entrySet()) {
+                    pstmt.setInt(1, entry.getKey());
+                    pstmt.setLong(2, conversation.getKey());
+                    pstmt.setInt(3, conversation.getValue().count);
+                    pstmt.addBatch();
+                    count++;
+                }
+            }
+            pstmt.executeBatch();
+            logger.debug("Flushed {} unread counters of offline users", count);
+            return true;
+        } catch (SQLException e) {
+            logger.error("Error flushing unread counters of {} offline users", pending.size(), e);
+            return false;
+        }
+    }
+
+    // Gọi khi đang giữ stateLock
+    private void beginWrite(int userId) {
+        writing.merge(userId, 1, Integer::sum);
+        if (loading.containsKey(userId)) {
+            staleLoads.add(userId);
+        }
+    }
+
+    // Gọi khi đang giữ stateLock
+    private void endWrite(int userId) {
+        if (writing.merge(userId, -1, Integer::sum) == 0) {
+            writing.remove(userId);
+        }
+        stateLock.notifyAll();
+    }
+
+    private UserReadState stateOf(int userId) {
+        UserReadState state = states.get(userId);
+        if (state != null) return state;
+
+        CompletableFuture<UserReadState> mine = new CompletableFuture<>();
+        CompletableFuture<UserReadState> other;
+        synchronized (stateLock) {
+            state = states.get(userId);
+            if (state != null) return state;
+            other = loading.putIfAbsent(userId, mine);
+        }
+        if (other != null) {
+            // Luồng khác đang nạp cùng user
+            return other.join();
+        }
+
+        try {
+            UserReadState loaded = loadConsistent(userId);
+            mine.complete(loaded);
+            return loaded;
+        } catch (RuntimeException e) {
+            synchronized (stateLock) {
+                loading.remove(userId);
+                staleLoads.remove(userId);
+            }
+            mine.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Load a user's state outside the locks and publish it, retrying if a flush or evict
+     * wrote the user's counters while the database was being read
+     */
+    private UserReadState loadConsistent(int userId) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                synchronized (stateLock) {
+                    UserReadState state = states.get(userId);
+                    if (state != null) {
+                        loading.remove(userId);
+                        return state;
+                    }
+                    while (writing.containsKey(userId)) {
+                        try {
+                            stateLock.wait();
+                        } catch (InterruptedException e) {
+                            interrupted = true;
+                        }
+                    }
+                    staleLoads.remove(userId);
+                }
+
+                UserReadState loaded = load(userId);
+
+                synchronized (stateLock) {
+                    if (!staleLoads.remove(userId) && !writing.containsKey(userId) && !states.containsKey(userId)) {
+                        mergePending(loaded, pendingIncoming.remove(userId));
+                        states.put(userId, loaded);
+                        loading.remove(userId);
+                        return loaded;
+                    }
+                }
+                logger.debug("Read state of user {} changed while loading, reloading", userId);
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static void mergePending(UserReadState state, Map<Long, PendingIncoming> pending) {
+        if (pending == null) return;
+
+        synchronized (state) {
+            for (Map.Entry<Long, PendingIncoming> entry : pending.entrySet()) {
+                ConversationState conversation = state.conversation(entry.getKey());
+                conversation.unread += entry.getValue().count;
+                conversation.lastMessageId = Math.max(conversation.lastMessageId, entry.getValue().lastMessageId);
+                conversation.dirty = true;
+            }
+        }
+    }
+
+    /**
+     * Read state from conversation_reads, with each conversation's real last message ID
+     */
+    private UserReadState load(int userId) {
+        UserReadState state = new UserReadState();
+        String sql = "SELECT conversation_key, last_read_message_id, unread_count " +
+                     "FROM conversation_reads WHERE user_id = ?";
+
+        try (Connection conn = dbManager.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+
+            pstmt.setInt(1, userId);
+            ResultSet rs = pstmt.executeQuery();
+
+            while (rs.next()) {
+                ConversationState conversation = state.conversation(rs.getLong("conversation_key"));
+                conversation.lastReadId = rs.getInt("last_read_message_id");
+                conversation.lastMessageId = conversation.lastReadId;
+                conversation.unread = rs.getInt("unread_count");
+            }
+        } catch (SQLException e) {
+            logger.error("Error loading read state for user {}", userId, e);
+        }
+
+        if (!state.conversations.isEmpty()) {
+            Map<Long, Integer> lastIds = MessageStoreFactory.getInstance().lastMessageIds(state.conversations.keySet());
+            for (Map.Entry<Long, Integer> entry : lastIds.entrySet()) {
+                ConversationState conversation = state.conversations.get(entry.getKey());
+                conversation.lastMessageId = Math.max(conversation.lastMessageId, entry.getValue());
+            }
+        }
+        return state;
+    }
+
+    /**
+     * A conversation without a conversation_reads row starts with an unknown last message ID:
+     * look it up before using it as the bound of a read
+     */
+    private void ensureLastMessageId(UserReadState state, long key) {
+        synchronized (state) {
+            if (state.conversations.containsKey(key)) return;
+        }
+        Integer lastId = MessageStoreFactory.getInstance().lastMessageIds(Collections.singletonList(key)).get(key);
+        synchronized (state) {
+            ConversationState conversation = state.conversation(key);
+            if (lastId != null) {
+                conversation.lastMessageId = Math.max(conversation.lastMessageId, lastId);
+            }
+        }
+    }
+
+    private int countNewerMessages(int userId, long key, int afterMessageId) {
+        return MessageStoreFactory.getInstance().countNewer(key, userId, afterMessageId);
+    }
+
+    private static class UserReadState {
+        private final Map<Long, ConversationState> conversations = new HashMap<>();
+
+        ConversationState conversation(long key) {
+            return conversations.computeIfAbsent(key, k -> new ConversationState());
+        }
+
+        synchronized void onIncoming(long key, int messageId) {
+            ConversationState conversation = conversation(key);
+            if (messageId > conversation.lastReadId) {
+                conversation.unread++;
+                conversation.dirty = true;
+            }
+            conversation.lastMessageId = Math.max(conversation.lastMessageId, messageId);
+        }
+
+        synchronized void markRead(long key, int messageId) {
+            ConversationState conversation = conversation(key);
+            conversation.lastMessageId = Math.max(conversation.lastMessageId, messageId);
+            if (messageId > conversation.lastReadId) {
+                conversation.lastReadId = messageId;
+                conversation.unread = 0;
+                conversation.dirty = true;
+            }
+        }
+    }
+
+    private static class ConversationState {
+        private int lastReadId;
+        private int lastMessageId;
+        private int unread;
+        private boolean dirty;
+    }
+
+    /**
+     * Tin đến một cuộc hội thoại của user offline, chưa ghi xuống DB
+     */
+    private static class PendingIncoming {
+        private int count;
+        private int lastMessageId;
+
+        void add(int messageId) {
+            count++;
+            lastMessageId = Math.max(lastMessageId, messageId);
+        }
+
+        void merge(PendingIncoming other) {
+            count += other.count;
+            lastMessageId = Math.max(lastMessageId, other.lastMessageId);
+        }
+    }
+}
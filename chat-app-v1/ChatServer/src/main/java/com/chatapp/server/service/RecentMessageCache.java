@@ -0,0 +1,256 @@
+package com.chatapp.server.service;
+
+import com.chatapp.server.model.Message;
+import com.chatapp.server.util.ConversationKey;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache N tin nhắn mới nhất của mỗi cuộc hội thoại đang hoạt động (ring buffer).
+ * - Tin gửi qua server này được append ngay khi lưu DB xong.
+ * - Lần đọc đầu tiên nạp trang mới nhất từ DB và gộp với các tin đã append.
+ * - LRU theo cuộc hội thoại, có giới hạn tổng bộ nhớ ước lượng.
+ * - Cache giữ bản sao riêng của các tin và trả về bản sao, người gọi sửa tin (fillNames...) không ảnh hưởng cache.
+ */
+public class RecentMessageCache {
+    private static final Logger logger = LoggerFactory.getLogger(RecentMessageCache.class);
+
+    public static final int MESSAGES_PER_CONVERSATION = 100;
+    private static final int MAX_CONVERSATIONS = 5000;
+    private static final long MAX_BYTES = 64L * 1024 * 1024;
+
+    private static RecentMessageCache instance;
+
+    private final LinkedHashMap<Long, MessageRing> rings;
+    private long totalBytes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    private RecentMessageCache() {
+        this.rings = new LinkedHashMap<>(256, 0.75f, true);
+    }
+
+    public static synchronized RecentMessageCache getInstance() {
+        if (instance == null) {
+            instance = new RecentMessageCache();
+        }
+        return instance;
+    }
+
+    /**
+     * Newest messages first (same order as the SQL queries), or null on a miss
+     */
+    public List<Message> getRecent(long key, int limit) {
+        synchronized (rings) {
+            MessageRing ring = rings.get(key);
+            if (ring != null && ring.canServe(limit)) {
+                hits.incrementAndGet();
+                return ring.newestFirst(limit);
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Append a message that was just persisted
+     */
+    public void onMessageSent(Message message) {
+        if (message == null) return;
+
+        long key = ConversationKey.of(message);
+        synchronized (rings) {
+            MessageRing ring = rings.get(key);
+            if (ring == null) {
+                ring = new MessageRing();
+                rings.put(key, ring);
+            }
+            totalBytes += ring.append(message);
+            evictIfNeeded();
+        }
+    }
+
+    /**
+     * Install the newest page loaded from the database (newest first).
+     * Messages appended while the query was running are kept.
+     */
+    public void install(long key, List<Message> newestFirst, int requestedLimit) {
+        synchronized (rings) {
+            MessageRing ring = rings.get(key);
+            if (ring == null) {
+                ring = new MessageRing();
+                rings.put(key, ring);
+            }
+            totalBytes += ring.load(newestFirst, newestFirst.size() < requestedLimit);
+            evictIfNeeded();
+        }
+    }
+
+    /**
+     * The reader has read a private conversation up to the given message:
+     * mark the other participant's cached messages up to it as read
+     */
+    public void markRead(long key, int readerId, int upToMessageId) {
+        if (ConversationKey.isGroup(key)) return;
+
+        synchronized (rings) {
+            MessageRing ring = rings.get(key);
+            if (ring != null) {
+                ring.markRead(readerId, upToMessageId);
+            }
+        }
+    }
+
+    /**
+     * Drop a conversation (e.g. after messages are changed in the database)
+     */
+    public void invalidate(long key) {
+        synchronized (rings) {
+            MessageRing ring = rings.remove(key);
+            if (ring != null) {
+                totalBytes -= ring.bytes;
+            }
+        }
+    }
+
+    private void evictIfNeeded() {
+        Iterator<Map.Entry<Long, MessageRing>> it = rings.entrySet().iterator();
+        while ((rings.size() > MAX_CONVERSATIONS || totalBytes > MAX_BYTES) && it.hasNext()) {
+            MessageRing eldest = it.next().getValue();
+            totalBytes -= eldest.bytes;
+            it.remove();
+        }
+    }
+
+    public int getConversationCount() {
+        synchronized (rings) {
+            return rings.size();
+        }
+    }
+
+    public long getMemoryBytes() {
+        synchronized (rings) {
+            return totalBytes;
+        }
+    }
+
+    public double getHitRatio() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0.0 : (double) h / total;
+    }
+
+    public void logStats() {
+        logger.info("Recent message cache: conversations={}, memory={} KB, hits={}, misses={}, hitRatio={}",
+                getConversationCount(), getMemoryBytes() / 1024, hits.get(), misses.get(),
+                String.format("%.2f", getHitRatio()));
+    }
+
+    /**
+     * Ước lượng kích thước một Message trên heap
+     */
+    static long estimateSize(Message message) {
+        long size = 96;
+        size += stringSize(message.getMessageContent());
+        size += stringSize(message.getFileUrl());
+        size += stringSize(message.getFileName());
+        size += stringSize(message.getSenderName());
+        size += stringSize(message.getReceiverName());
+        return size;
+    }
+
+    private static long stringSize(String value) {
+        return value == null ? 0 : 40 + value.length() * 2L;
+    }
+
+    /**
+     * Ring buffer cố định kích thước; slot cũ nhất bị ghi đè khi đầy.
+     */
+    private static class MessageRing {
+        private final Message[] slots = new Message[MESSAGES_PER_CONVERSATION];
+        private int head;     // vị trí tin cũ nhất
+        private int count;
+        private long bytes;
+        // Đã nạp trang mới nhất từ DB chưa (nếu chưa, chỉ có các tin append gần đây)
+        private boolean loaded;
+        // Ring chứa toàn bộ lịch sử của cuộc hội thoại
+        private boolean complete;
+
+        boolean canServe(int limit) {
+            return loaded && (limit <= count || complete);
+        }
+
+        List<Message> newestFirst(int limit) {
+            int n = Math.min(limit, count);
+            List<Message> result = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                result.add(new Message(slots[(head + count - 1 - i) % slots.length]));
+            }
+            return result;
+        }
+
+        void markRead(int readerId, int upToMessageId) {
+            for (int i = 0; i < count; i++) {
+                Message message = slots[(head + i) % slots.length];
+                if (message.getMessageId() <= upToMessageId && message.getSenderId() != readerId) {
+                    message.setRead(true);
+                }
+            }
+        }
+
+        long append(Message message) {
+            message = new Message(message);
+            long delta = estimateSize(message);
+            if (count == slots.length) {
+                delta -= estimateSize(slots[head]);
+                slots[head] = message;
+                head = (head + 1) % slots.length;
+                complete = false;
+            } else {
+                slots[(head + count) % slots.length] = message;
+                count++;
+            }
+            bytes += delta;
+            return delta;
+        }
+
+        long load(List<Message> newestFirst, boolean wholeHistory) {
+            long before = bytes;
+
+            List<Message> merged = new ArrayList<>(newestFirst.size() + count);
+            Set<Integer> seen = new HashSet<>();
+            for (int i = newestFirst.size() - 1; i >= 0; i--) {
+                Message message = newestFirst.get(i);
+                merged.add(message);
+                seen.add(message.getMessageId());
+            }
+            // Giữ lại các tin đã append trong lúc query đang chạy
+            for (int i = 0; i < count; i++) {
+                Message message = slots[(head + i) % slots.length];
+                if (!seen.contains(message.getMessageId())) {
+                    merged.add(message);
+                }
+            }
+
+            head = 0;
+            count = 0;
+            bytes = 0;
+            complete = wholeHistory;
+            for (Message message : merged) {
+                append(message);
+            }
+            loaded = true;
+            return bytes - before;
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package com.chatapp.server.service;
+
+import com.chatapp.server.util.DatabaseManager;
+import com.chatapp.server.util.DbExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Phiên đăng nhập dùng lại được khi client kết nối lại (RESUME_SESSION).
+ * Token = userId.sessionId.chữ ký HMAC-SHA256; token giả mạo bị loại
+ * mà không cần truy vấn DB. Phiên lưu ở bảng sessions và được cache trong bộ nhớ
+ * (LRU, tối đa MAX_CACHED_SESSIONS; phiên hết hạn bị bỏ khi đọc tới).
+ * Phiên đã đăng xuất được ghi nhớ (tombstone) để một lần đọc DB chạy song song không đưa nó trở lại cache.
+ */
+public class SessionService {
+    private static final Logger logger = LoggerFactory.getLogger(SessionService.class);
+
+    private static final long SESSION_TTL_MILLIS = TimeUnit.DAYS.toMillis(7);
+    private static final String SECRET_ENV = "CHAT_SESSION_SECRET";
+    private static final int MAX_CACHED_SESSIONS = 10000;
+
+    private static SessionService instance;
+
+    private final DatabaseManager dbManager;
+    private final DbExecutor dbExecutor;
+    private final SecureRandom random;
+    private final byte[] secret;
+    private final LinkedHashMap<String, Session> sessions;
+    // session_id đã thu hồi (dưới khóa sessions), giới hạn như cache
+    private final LinkedHashMap<String, Boolean> revoked;
+
+    private SessionService() {
+        this.dbManager = DatabaseManager.getInstance();
+        this.dbExecutor = DbExecutor.getInstance();
+        this.random = new SecureRandom();
+        this.sessions = new LinkedHashMap<String, Session>(256, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Session> eldest) {
+                return size() > MAX_CACHED_SESSIONS;
+            }
+        };
+        this.revoked = new LinkedHashMap<String, Boolean>(256, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > MAX_CACHED_SESSIONS;
+            }
+        };
+
+        String configured = System.getenv(SECRET_ENV);
+        if (configured != null && !configured.isEmpty()) {
+            this.secret = configured.getBytes(StandardCharsets.UTF_8);
+        } else {
+            this.secret = new byte[32];
+            random.nextBytes(secret);
+            logger.warn("{} not set, session tokens will not survive a server restart", SECRET_ENV);
+        }
+    }
+
+    public static synchronized SessionService getInstance() {
+        if (instance == null) {
+            instance = new SessionService();
+        }
+        return instance;
+    }
+
+    /**
+     * Create a session for a freshly authenticated user and return its token
+     */
+    public String createSession(int userId, String ipAddress) {
+        byte[] idBytes = new byte[18];
+        random.nextBytes(idBytes);
+        String sessionId = Base64.getUrlEncoder().withoutPadding().encodeToString(idBytes);
+        long now = System.currentTimeMillis();
+
+        String sql = "INSERT INTO sessions (session_id, user_id, login_time, ip_address) VALUES (?, ?, ?, ?)";
+
+        try (Connection conn = dbManager.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+
+            pstmt.setString(1, sessionId);
+            pstmt.setInt(2, userId);
+            pstmt.setTimestamp(3, new Timestamp(now));
+            pstmt.setString(4, ipAddress);
+            pstmt.executeUpdate();
+        } catch (SQLException e) {
+            logger.error("Error creating session for user {}", userId, e);
+            return null;
+        }
+
+        cache(sessionId, new Session(userId, now + SESSION_TTL_MILLIS));
+        return userId + "." + sessionId + "." + sign(userId, sessionId);
+    }
+
+    /**
+     * Create a session on the DB executor
+     */
+    public CompletableFuture<String> createSessionAsync(int userId, String ipAddress) {
+        return dbExecutor.supply(() -> createSession(userId, ipAddress));
+    }
+
+    /**
+     * Validate a token. Returns the user ID, or -1 if the token is invalid or expired.
+     */
+    public int resolve(String token) {
+        if (token == null) return -1;
+
+        String[] parts = token.split("\\.");
+        if (parts.length != 3) return -1;
+
+        int userId;
+        try {
+            userId = Integer.parseInt(parts[0]);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+        String sessionId = parts[1];
+
+        byte[] expected = sign(userId, sessionId).getBytes(StandardCharsets.US_ASCII);
+        if (!MessageDigest.isEqual(expected, parts[2].getBytes(StandardCharsets.US_ASCII))) {
+            logger.warn("Rejected session token with bad signature for user {}", userId);
+            return -1;
+        }
+
+        Session session;
+        synchronized (sessions) {
+            session = sessions.get(sessionId);
+        }
+        if (session == null) {
+            session = load(sessionId);
+            if (session == null || !cache(sessionId, session)) return -1;
+        }
+
+        if (session.userId != userId || session.expiresAt < System.currentTimeMillis()) {
+            uncache(sessionId);
+            return -1;
+        }
+        return userId;
+    }
+
+    /**
+     * Validate a token on the DB executor (a cache miss reads the sessions table)
+     */
+    public CompletableFuture<Integer> resolveAsync(String token) {
+        return dbExecutor.supply(() -> resolve(token));
+    }
+
+    /**
+     * Deactivate the session behind a token on the DB executor
+     */
+    public CompletableFuture<Void> revokeAsync(String token) {
+        return dbExecutor.supply(() -> {
+            revoke(token);
+            return null;
+        });
+    }
+
+    /**
+     * Deactivate the session behind a token (explicit logout)
+     */
+    public void revoke(String token) {
+        if (token == null) return;
+        String[] parts = token.split("\\.");
+        if (parts.length != 3) return;
+
+        String sessionId = parts[1];
+
+        // Ghi DB trước, rồi mới bỏ khỏi cache: resolve nào đọc được dòng còn active trước đó
+        // sẽ bị tombstone chặn khi cache
+        String sql = "UPDATE sessions SET is_active = FALSE WHERE session_id = ?";
+        try (Connection conn = dbManager.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+
+            pstmt.setString(1, sessionId);
+            pstmt.executeUpdate();
+        } catch (SQLException e) {
+            logger.error("Error revoking session {}", sessionId, e);
+        }
+
+        synchronized (sessions) {
+            revoked.put(sessionId, Boolean.TRUE);
+            sessions.remove(sessionId);
+        }
+    }
+
+    /**
+     * Cache a session; returns false if it was revoked meanwhile
+     */
+    private boolean cache(String sessionId, Session session) {
+        synchronized (sessions) {
+            if (revoked.containsKey(sessionId)) {
+                return false;
+            }
+            sessions.put(sessionId, session);
+            return true;
+        }
+    }
+
+    private void uncache(String sessionId) {
+        synchronized (sessions) {
+            sessions.remove(sessionId);
+        }
+    }
+
+    private Session load(String sessionId) {
+        String sql = "SELECT user_id, login_time FROM sessions WHERE session_id = ? AND is_active = TRUE";
+
+        try (Connection conn = dbManager.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+
+            pstmt.setString(1, sessionId);
+            ResultSet rs = pstmt.executeQuery();
+
+            if (rs.next()) {
+                long loginTime = rs.getTimestamp("login_time").getTime();
+                return new Session(rs.getInt("user_id"), loginTime + SESSION_TTL_MILLIS);
+            }
+        } catch (SQLException e) {
+            logger.error("Error loading session {}", sessionId, e);
+        }
+        return null;
+    }
+
+    private String sign(int userId, String sessionId) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+            byte[] signature = mac.doFinal((userId + ":" + sessionId).getBytes(StandardCharsets.UTF_8));
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(signature);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 not available", e);
+        }
+    }
+
+    private static class Session {
+        private final int userId;
+        private final long expiresAt;
+
+        Session(int userId, long expiresAt) {
+            this.userId = userId;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,317 @@
+package com.chatapp.server.service;
+
+import com.chatapp.server.model.Message;
+import com.chatapp.server.model.MessageType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Ảnh thu nhỏ cho tin nhắn IMAGE, tạo trên pool luồng riêng khi file được gửi.
+ * - Mỗi ảnh có các bản JPEG với cạnh dài SIZES px, lưu cạnh file gốc: <file gốc>_<size>.jpg
+ *   (file gốc theo nội dung nên ảnh gửi lại nhiều lần chỉ thu nhỏ một lần)
+ * - Client tải bản thu nhỏ qua kênh tải file như file thường, không phải giải mã ảnh gốc
+ * - Ảnh lớn được giải mã với subsampling rồi thu nhỏ từng nửa một, không giữ ảnh gốc đầy đủ trong heap
+ */
+public class ThumbnailService {
+    private static final Logger logger = LoggerFactory.getLogger(ThumbnailService.class);
+
+    public static final int[] SIZES = {64, 320, 1280};
+
+    private static final long MAX_SOURCE_PIXELS = 100_000_000L;
+    private static final float JPEG_QUALITY = 0.85f;
+    private static final int QUEUE_CAPACITY = 100;
+    private static final int MAX_FAILED_ENTRIES = 10_000;
+
+    private static ThumbnailService instance;
+
+    private final ConcurrentHashMap<String, CompletableFuture<Map<Integer, String>>> inFlight;
+    // File không đọc được như ảnh: không thử lại mỗi lần tải lịch sử
+    private final Set<String> failed;
+    private ThreadPoolExecutor workers;
+
+    private ThumbnailService() {
+        this.inFlight = new ConcurrentHashMap<>();
+        this.failed = ConcurrentHashMap.newKeySet();
+    }
+
+    public static synchronized ThumbnailService getInstance() {
+        if (instance == null) {
+            instance = new ThumbnailService();
+        }
+        return instance;
+    }
+
+    public void start() {
+        int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+        AtomicInteger counter = new AtomicInteger();
+        workers = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(QUEUE_CAPACITY), r -> {
+            Thread t = new Thread(r, "thumbnail-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public void stop() {
+        if (workers != null) {
+            workers.shutdownNow();
+        }
+    }
+
+    /**
+     * Path of the thumbnail of the given size for an original file
+     */
+    public static Path variantPath(Path original, int size) {
+        return original.resolveSibling(original.getFileName() + "_" + size + ".jpg");
+    }
+
+    public static String variantUrl(String fileUrl, int size) {
+        return fileUrl + "_" + size + ".jpg";
+    }
+
+    /**
+     * Thumbnails of a stored image (size -> fileUrl), creating them if needed.
+     * Completes with an empty map if the file is not a readable image or the pool is full;
+     * never completes exceptionally.
+     */
+    public CompletableFuture<Map<Integer, String>> generateAsync(String fileUrl) {
+        Map<Integer, String> existing = existingThumbnails(fileUrl);
+        if (existing != null) {
+            return CompletableFuture.completedFuture(existing);
+        }
+        if (workers == null || failed.contains(fileUrl)) {
+            return CompletableFuture.completedFuture(Collections.emptyMap());
+        }
+
+        CompletableFuture<Map<Integer, String>> created = new CompletableFuture<>();
+        CompletableFuture<Map<Integer, String>> running = inFlight.putIfAbsent(fileUrl, created);
+        if (running != null) {
+            return running;
+        }
+
+        try {
+            workers.execute(() -> {
+                try {
+                    created.complete(generate(fileUrl));
+                } catch (Exception e) {
+                    logger.error("Error creating thumbnails of {}", fileUrl, e);
+                    created.complete(Collections.emptyMap());
+                } finally {
+                    inFlight.remove(fileUrl);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            logger.warn("Thumbnail queue full, skipping {}", fileUrl);
+            inFlight.remove(fileUrl);
+            created.complete(Collections.emptyMap());
+        }
+        return created;
+    }
+
+    /**
+     * Fill in thumbnails of IMAGE messages loaded from history. Images sent before thumbnails
+     * existed get them created in the background for the next load.
+     */
+    public void attach(List<Message> messages) {
+        for (Message message : messages) {
+            if (message.getMessageType() != MessageType.IMAGE || message.getFileUrl() == null
+                    || message.getThumbnails() != null) {
+                continue;
+            }
+            Map<Integer, String> existing = existingThumbnails(message.getFileUrl());
+            if (existing != null) {
+                message.setThumbnails(existing);
+            } else {
+                generateAsync(message.getFileUrl());
+            }
+        }
+    }
+
+    /**
+     * Thumbnail URLs if all of them are on disk, otherwise null.
+     * The smallest one is written last, so it stands for the whole set.
+     */
+    private Map<Integer, String> existingThumbnails(String fileUrl) {
+        if (!Files.isRegularFile(variantPath(Paths.get(fileUrl), SIZES[0]))) {
+            return null;
+        }
+        Map<Integer, String> thumbnails = new TreeMap<>();
+        for (int size : SIZES) {
+            thumbnails.put(size, variantUrl(fileUrl, size));
+        }
+        return thumbnails;
+    }
+
+    private Map<Integer, String> generate(String fileUrl) throws IOException {
+        Path original = Paths.get(fileUrl);
+        if (!Files.isRegularFile(original)) {
+            return Collections.emptyMap();
+        }
+
+        BufferedImage image = decode(original, SIZES[SIZES.length - 1], false);
+        if (image == null) {
+            markFailed(fileUrl);
+            return Collections.emptyMap();
+        }
+
+        // Từ lớn đến nhỏ, mỗi bản được thu nhỏ từ bản trước
+        for (int i = SIZES.length - 1; i >= 0; i--) {
+            image = scale(image, SIZES[i]);
+            write(image, variantPath(original, SIZES[i]));
+        }
+        logger.debug("Created thumbnails of {}", fileUrl);
+        return existingThumbnails(fileUrl);
+    }
+
+    /**
+     * Decode the first frame, subsampled so the longest side (the shortest side if cover, for
+     * images cropped to a square) stays at least twice largestSize.
+     * Returns null if the file is not an image ImageIO can read or is too large.
+     */
+    static BufferedImage decode(Path file, int largestSize, boolean cover) {
+        try (ImageInputStream in = ImageIO.createImageInputStream(file.toFile())) {
+            return decode(in, file, largestSize, cover);
+        } catch (IOException e) {
+            logger.info("Cannot decode image {}: {}", file, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Same as decode(Path, int, boolean) for an image held in memory (avatar uploads)
+     */
+    static BufferedImage decode(byte[] data, String name, int largestSize, boolean cover) {
+        try (ImageInputStream in = ImageIO.createImageInputStream(new ByteArrayInputStream(data))) {
+            return decode(in, name, largestSize, cover);
+        } catch (IOException e) {
+            logger.info("Cannot decode image {}: {}", name, e.getMessage());
+            return null;
+        }
+    }
+
+    private static BufferedImage decode(ImageInputStream in, Object name, int largestSize, boolean cover) {
+        if (in == null) return null;
+
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+        if (!readers.hasNext()) {
+            logger.info("No image reader for {}", name);
+            return null;
+        }
+        ImageReader reader = readers.next();
+        try {
+            reader.setInput(in, true, true);
+            int width = reader.getWidth(0);
+            int height = reader.getHeight(0);
+            if ((long) width * height > MAX_SOURCE_PIXELS) {
+                logger.info("Image {} too large to scale: {}x{}", name, width, height);
+                return null;
+            }
+
+            int side = cover ? Math.min(width, height) : Math.max(width, height);
+            int step = Math.max(1, side / (largestSize * 2));
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceSubsampling(step, step, 0, 0);
+            return reader.read(0, param);
+        } catch (IOException | RuntimeException e) {
+            logger.info("Cannot decode image {}: {}", name, e.getMessage());
+            return null;
+        } finally {
+            reader.dispose();
+        }
+    }
+
+    /**
+     * Scale so the longest side is at most maxSize (never up), halving first for quality.
+     * The result is opaque RGB (transparent areas become white) so it can be written as JPEG.
+     */
+    static BufferedImage scale(BufferedImage source, int maxSize) {
+        int longest = Math.max(source.getWidth(), source.getHeight());
+        double ratio = Math.min(1.0, (double) maxSize / longest);
+        int targetWidth = Math.max(1, (int) Math.round(source.getWidth() * ratio));
+        int targetHeight = Math.max(1, (int) Math.round(source.getHeight() * ratio));
+
+        BufferedImage current = source;
+        do {
+            int width = Math.max(targetWidth, current.getWidth() / 2);
+            int height = Math.max(targetHeight, current.getHeight() / 2);
+            current = draw(current, width, height);
+        } while (current.getWidth() > targetWidth || current.getHeight() > targetHeight);
+        return current;
+    }
+
+    private static BufferedImage draw(BufferedImage source, int width, int height) {
+        BufferedImage target = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = target.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            g.setColor(Color.WHITE);
+            g.fillRect(0, 0, width, height);
+            g.drawImage(source, 0, 0, width, height, null);
+        } finally {
+            g.dispose();
+        }
+        return target;
+    }
+
+    /**
+     * Write as JPEG through a temporary file, so a reader never sees a half-written thumbnail
+     */
+    static void write(BufferedImage image, Path target) throws IOException {
+        Path temp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        try (ImageOutputStream out = ImageIO.createImageOutputStream(temp.toFile())) {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(JPEG_QUALITY);
+            writer.setOutput(out);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        } finally {
+            writer.dispose();
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        HotFileCache.getInstance().invalidate(target);
+    }
+
+    private void markFailed(String fileUrl) {
+        if (failed.size() >= MAX_FAILED_ENTRIES) {
+            failed.clear();
+        }
+        failed.add(fileUrl);
+    }
+}
@@ -0,0 +1,329 @@
+package com.chatapp.server.service;
+
+import com.chatapp.server.util.FileIoExecutor;
+import com.chatapp.server.util.FileUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Phiên tải file lên theo từng khúc (UPLOAD_INIT -> UPLOAD_CHUNK... -> UPLOAD_COMMIT).
+ * - Mỗi khúc (tối đa CHUNK_SIZE byte, kèm offset và CRC32) được ghi thẳng vào FileChannel
+ *   của file tạm, server không giữ cả file trong bộ nhớ
+ * - Phiên thuộc về user, không thuộc về kết nối: mất kết nối thì client gửi lại UPLOAD_INIT
+ *   với uploadId để biết đã nhận bao nhiêu byte và gửi tiếp từ đó
+ * - SHA-256 được tính dần theo từng khúc; khi commit file được đưa vào BlobStore theo hash
+ * - Phiên không hoạt động quá IDLE_TIMEOUT_MINUTES bị hủy; phiên không sống qua lần khởi động lại
+ */
+public class UploadService {
+    private static final Logger logger = LoggerFactory.getLogger(UploadService.class);
+
+    public static final int CHUNK_SIZE = 256 * 1024;
+    public static final long MAX_FILE_SIZE = 2L * 1024 * 1024 * 1024;
+    public static final int MAX_UPLOADS_PER_USER = 3;
+
+    private static final long IDLE_TIMEOUT_MINUTES = 30;
+    private static final long EXPIRY_CHECK_INTERVAL_SECONDS = 60;
+    private static final String PART_SUFFIX = ".part";
+
+    private static UploadService instance;
+
+    private final ConcurrentHashMap<String, UploadSession> sessions;
+    private final BlobStore blobStore;
+    private final FileIoExecutor fileIoExecutor;
+    private ScheduledExecutorService expirer;
+
+    /**
+     * An upload in progress. Mutable state is guarded by the session's monitor.
+     */
+    public static class UploadSession {
+        private final String uploadId;
+        private final int userId;
+        private final String fileName;
+        private final String fileType;
+        private final long fileSize;
+        private final int receiverId;
+        private final int groupId;
+        private final Path tempFile;
+        private final FileChannel channel;
+        private final MessageDigest digest;
+        private long receivedBytes;
+        private volatile long lastActivity;
+        private boolean closed;
+
+        private UploadSession(String uploadId, int userId, String fileName, String fileType, long fileSize,
+                              int receiverId, int groupId, Path tempFile, FileChannel channel) {
+            this.uploadId = uploadId;
+            this.userId = userId;
+            this.fileName = fileName;
+            this.fileType = fileType;
+            this.fileSize = fileSize;
+            this.receiverId = receiverId;
+            this.groupId = groupId;
+            this.tempFile = tempFile;
+            this.channel = channel;
+            this.digest = BlobStore.newDigest();
+            this.lastActivity = System.currentTimeMillis();
+        }
+
+        public String getUploadId() {
+            return uploadId;
+        }
+
+        public int getUserId() {
+            return userId;
+        }
+
+        public String getFileName() {
+            return fileName;
+        }
+
+        public String getFileType() {
+            return fileType;
+        }
+
+        public long getFileSize() {
+            return fileSize;
+        }
+
+        /**
+         * Receiver of a private upload, 0 for group uploads
+         */
+        public int getReceiverId() {
+            return receiverId;
+        }
+
+        /**
+         * Target group, 0 for private uploads
+         */
+        public int getGroupId() {
+            return groupId;
+        }
+
+        public synchronized long getReceivedBytes() {
+            return receivedBytes;
+        }
+    }
+
+    private UploadService() {
+        this.sessions = new ConcurrentHashMap<>();
+        this.blobStore = BlobStore.getInstance();
+        this.fileIoExecutor = FileIoExecutor.getInstance();
+    }
+
+    public static synchronized UploadService getInstance() {
+        if (instance == null) {
+            instance = new UploadService();
+        }
+        return instance;
+    }
+
+    public void start() {
+        deleteLeftoverParts();
+        expirer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "upload-expiry");
+            t.setDaemon(true);
+            return t;
+        });
+        expirer.scheduleWithFixedDelay(this::expireIdle, EXPIRY_CHECK_INTERVAL_SECONDS,
+                EXPIRY_CHECK_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    public void stop() {
+        if (expirer != null) {
+            expirer.shutdown();
+        }
+        for (UploadSession session : new ArrayList<>(sessions.values())) {
+            discard(session);
+        }
+    }
+
+    /**
+     * Start an upload to a user (receiverId) or a group (groupId; the other ID is 0).
+     * Returns null if the user already has MAX_UPLOADS_PER_USER uploads in progress
+     * or the temporary file cannot be created.
+     */
+    public synchronized UploadSession begin(int userId, String fileName, String fileType, long fileSize,
+                                            int receiverId, int groupId) {
+        if (countUploads(userId) >= MAX_UPLOADS_PER_USER) {
+            logger.info("User {} already has {} uploads in progress", userId, MAX_UPLOADS_PER_USER);
+            return null;
+        }
+
+        String uploadId = UUID.randomUUID().toString();
+        Path tempFile = FileUtil.getTempDirectory().resolve(uploadId + PART_SUFFIX);
+        try {
+            FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            UploadSession session = new UploadSession(uploadId, userId, fileName, fileType, fileSize,
+                    receiverId, groupId, tempFile, channel);
+            sessions.put(uploadId, session);
+            logger.info("Upload {} started by user {}: {} ({} bytes)", uploadId, userId, fileName, fileSize);
+            return session;
+        } catch (IOException e) {
+            logger.error("Error creating upload file {}", tempFile, e);
+            return null;
+        }
+    }
+
+    public int countUploads(int userId) {
+        int count = 0;
+        for (UploadSession session : sessions.values()) {
+            if (session.userId == userId) count++;
+        }
+        return count;
+    }
+
+    /**
+     * Upload owned by the user, or null
+     */
+    public UploadSession get(int userId, String uploadId) {
+        UploadSession session = uploadId != null ? sessions.get(uploadId) : null;
+        if (session == null || session.userId != userId) {
+            return null;
+        }
+        session.lastActivity = System.currentTimeMillis();
+        return session;
+    }
+
+    /**
+     * Write one chunk at its offset. Chunks must arrive in order: a chunk past the received
+     * bytes or with a wrong checksum is rejected (the client resumes from getReceivedBytes()),
+     * a chunk that was already received is accepted again without writing.
+     */
+    public boolean writeChunk(UploadSession session, long offset, byte[] chunk, long checksum) {
+        if (chunk.length == 0 || chunk.length > CHUNK_SIZE) {
+            return false;
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(chunk, 0, chunk.length);
+        if (crc.getValue() != checksum) {
+            logger.warn("Checksum mismatch in upload {} at offset {}", session.uploadId, offset);
+            return false;
+        }
+
+        synchronized (session) {
+            if (session.closed || offset < 0 || offset > session.receivedBytes
+                    || offset + chunk.length > session.fileSize) {
+                return false;
+            }
+            if (offset + chunk.length <= session.receivedBytes) {
+                return true; // gửi lại sau khi kết nối lại
+            }
+
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(chunk);
+                while (buffer.hasRemaining()) {
+                    session.channel.write(buffer, offset + buffer.position());
+                }
+                // Chỉ băm phần mới: khúc có thể chồng lên phần đã nhận
+                int fresh = (int) (session.receivedBytes - offset);
+                session.digest.update(chunk, fresh, chunk.length - fresh);
+                session.receivedBytes = offset + chunk.length;
+                return true;
+            } catch (IOException e) {
+                logger.error("Error writing upload {} at offset {}", session.uploadId, offset, e);
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Finish a fully received upload and move it into the blob store.
+     * Returns the stored file path, or null if the upload is incomplete or cannot be stored.
+     */
+    public String commit(UploadSession session) {
+        synchronized (session) {
+            if (session.closed || session.receivedBytes != session.fileSize) {
+                return null;
+            }
+            try {
+                session.channel.force(true);
+                session.channel.close();
+            } catch (IOException e) {
+                logger.error("Error flushing upload {}", session.uploadId, e);
+                discardLocked(session);
+                return null;
+            }
+            session.closed = true;
+            sessions.remove(session.uploadId);
+        }
+
+        return blobStore.store(session.tempFile, BlobStore.toHex(session.digest.digest()), session.fileSize);
+    }
+
+    /**
+     * commit() on the file I/O executor (flushing a large file can take a while)
+     */
+    public CompletableFuture<String> commitAsync(UploadSession session) {
+        return fileIoExecutor.supply("upload-commit", () -> commit(session));
+    }
+
+    public void cancel(UploadSession session) {
+        discard(session);
+        logger.info("Upload {} cancelled", session.uploadId);
+    }
+
+    private void expireIdle() {
+        long cutoff = System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(IDLE_TIMEOUT_MINUTES);
+        List<UploadSession> expired = new ArrayList<>();
+        for (UploadSession session : sessions.values()) {
+            if (session.lastActivity < cutoff) {
+                expired.add(session);
+            }
+        }
+        for (UploadSession session : expired) {
+            discard(session);
+            logger.info("Upload {} of user {} expired after {} minutes idle",
+                    session.uploadId, session.userId, IDLE_TIMEOUT_MINUTES);
+        }
+    }
+
+    private void discard(UploadSession session) {
+        synchronized (session) {
+            discardLocked(session);
+        }
+    }
+
+    private void discardLocked(UploadSession session) {
+        sessions.remove(session.uploadId);
+        if (session.closed) return;
+        session.closed = true;
+        try {
+            session.channel.close();
+            Files.deleteIfExists(session.tempFile);
+        } catch (IOException e) {
+            logger.error("Error removing upload file {}", session.tempFile, e);
+        }
+    }
+
+    /**
+     * Partial files of a previous run cannot be resumed (sessions live in memory)
+     */
+    private void deleteLeftoverParts() {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(FileUtil.getTempDirectory(), "*" + PART_SUFFIX)) {
+            for (Path part : stream) {
+                Files.deleteIfExists(part);
+            }
+        } catch (IOException e) {
+            logger.error("Error cleaning upload directory", e);
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package com.chatapp.server.service;
+
+import com.chatapp.server.model.User;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache profile người dùng dùng chung cho mọi ClientHandler.
+ * Giới hạn theo số lượng (LRU) và thời gian sống (TTL); UserService
+ * chủ động invalidate khi profile/status thay đổi; profile đọc từ DB song song với
+ * một lần invalidate không được lưu (đếm version, như GroupMemberCache).
+ */
+public class UserCache {
+    private static final Logger logger = LoggerFactory.getLogger(UserCache.class);
+
+    private static final int MAX_ENTRIES = 10000;
+    private static final long TTL_MILLIS = 5 * 60 * 1000L;
+
+    private static UserCache instance;
+
+    private final LinkedHashMap<Integer, CacheEntry> entries;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong version = new AtomicLong();
+
+    private UserCache() {
+        this.entries = new LinkedHashMap<Integer, CacheEntry>(256, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, CacheEntry> eldest) {
+                if (size() > MAX_ENTRIES) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public static synchronized UserCache getInstance() {
+        if (instance == null) {
+            instance = new UserCache();
+        }
+        return instance;
+    }
+
+    /**
+     * Get a copy of the cached user, or null if absent/expired
+     */
+    public User get(int userId) {
+        synchronized (entries) {
+            CacheEntry entry = entries.get(userId);
+            if (entry != null) {
+                if (entry.expiresAt > System.currentTimeMillis()) {
+                    hits.incrementAndGet();
+                    return new User(entry.user);
+                }
+                entries.remove(userId);
+                evictions.incrementAndGet();
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Version to read before loading users from the database (see put)
+     */
+    public long version() {
+        return version.get();
+    }
+
+    /**
+     * Store a copy of a user loaded from the database, unless the cache was invalidated since loadVersion
+     */
+    public void put(User user, long loadVersion) {
+        if (user == null) return;
+
+        CacheEntry entry = new CacheEntry(new User(user), System.currentTimeMillis() + TTL_MILLIS);
+        synchronized (entries) {
+            if (version.get() == loadVersion) {
+                entries.put(user.getUserId(), entry);
+            }
+        }
+    }
+
+    /**
+     * Drop a user so the next read goes to the database
+     */
+    public void invalidate(int userId) {
+        synchronized (entries) {
+            version.incrementAndGet();
+            entries.remove(userId);
+        }
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public double getHitRatio() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0.0 : (double) h / total;
+    }
+
+    public void logStats() {
+        logger.info("User cache: size={}, hits={}, misses={}, evictions={}, hitRatio={}",
+                size(), getHits(), getMisses(), getEvictions(), String.format("%.2f", getHitRatio()));
+    }
+
+    private static class CacheEntry {
+        private final User user;
+        private final long expiresAt;
+
+        CacheEntry(User user, long expiresAt) {
+            this.user = user;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package com.chatapp.server.service;
+
+import com.chatapp.server.model.User;
+import com.chatapp.server.util.DatabaseManager;
+import com.chatapp.server.util.IntHashSet;
+import com.chatapp.server.util.TextNormalizer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Index trigram trong bộ nhớ cho username, full_name và email.
+ * Nạp toàn bộ bảng users một lần, sau đó được cập nhật khi đăng ký / sửa profile.
+ * So khớp không phân biệt hoa thường và dấu tiếng Việt.
+ */
+public class UserSearchIndex {
+    private static final Logger logger = LoggerFactory.getLogger(UserSearchIndex.class);
+
+    private static final int GRAM = 3;
+
+    private static final int RANK_EXACT = 0;
+    private static final int RANK_PREFIX = 1;
+    private static final int RANK_INFIX = 2;
+
+    private static UserSearchIndex instance;
+
+    private final DatabaseManager dbManager;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<Integer, IndexedUser> users = new HashMap<>();
+    private final Map<String, IntHashSet> postings = new HashMap<>();
+    private volatile boolean loaded;
+
+    private UserSearchIndex() {
+        this.dbManager = DatabaseManager.getInstance();
+    }
+
+    public static synchronized UserSearchIndex getInstance() {
+        if (instance == null) {
+            instance = new UserSearchIndex();
+        }
+        return instance;
+    }
+
+    /**
+     * Load every user once. Returns false if the database could not be read.
+     */
+    public boolean ensureLoaded() {
+        if (loaded) return true;
+
+        lock.writeLock().lock();
+        try {
+            if (loaded) return true;
+
+            String sql = "SELECT user_id, username, full_name, email FROM users";
+            try (Connection conn = dbManager.getConnection();
+                 PreparedStatement pstmt = conn.prepareStatement(sql)) {
+
+                ResultSet rs = pstmt.executeQuery();
+                while (rs.next()) {
+                    addLocked(rs.getInt("user_id"), rs.getString("username"),
+                            rs.getString("full_name"), rs.getString("email"));
+                }
+                loaded = true;
+                logger.info("User search index loaded: {} users, {} trigrams", users.size(), postings.size());
+            } catch (SQLException e) {
+                logger.error("Error loading user search index", e);
+            }
+            return loaded;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Add or re-index a user after register / profile update
+     */
+    public void addOrUpdate(User user) {
+        if (user == null || !loaded) return;
+
+        lock.writeLock().lock();
+        try {
+            removeLocked(user.getUserId());
+            addLocked(user.getUserId(), user.getUsername(), user.getFullName(), user.getEmail());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(int userId) {
+        lock.writeLock().lock();
+        try {
+            removeLocked(userId);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Ranked user IDs: friends first, then exact, prefix, infix matches
+     */
+    public List<Integer> search(String keyword, IntHashSet friendIds, int limit) {
+        String query = TextNormalizer.fold(keyword).trim();
+        List<Integer> result = new ArrayList<>();
+        if (query.isEmpty()) return result;
+
+        List<Match> matches = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            if (query.length() < GRAM) {
+                // Truy vấn quá ngắn để dùng trigram: quét trực tiếp trong bộ nhớ
+                for (IndexedUser user : users.values()) {
+                    addIfMatches(user, query, friendIds, matches);
+                }
+            } else {
+                IntHashSet candidates = candidatesFor(query);
+                if (candidates != null) {
+                    for (int userId : candidates.toArray()) {
+                        addIfMatches(users.get(userId), query, friendIds, matches);
+                    }
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        matches.sort(Comparator.comparingInt((Match m) -> m.friend ? 0 : 1)
+                .thenComparingInt(m -> m.rank)
+                .thenComparing(m -> m.username));
+
+        for (int i = 0; i < matches.size() && i < limit; i++) {
+            result.add(matches.get(i).userId);
+        }
+        return result;
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return users.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private IntHashSet candidatesFor(String query) {
+        // Giao các posting list, bắt đầu từ list ngắn nhất
+        List<IntHashSet> lists = new ArrayList<>();
+        for (int i = 0; i + GRAM <= query.length(); i++) {
+            IntHashSet list = postings.get(query.substring(i, i + GRAM));
+            if (list == null) return null;
+            lists.add(list);
+        }
+        lists.sort(Comparator.comparingInt(IntHashSet::size));
+
+        IntHashSet candidates = new IntHashSet(lists.get(0));
+        for (int i = 1; i < lists.size() && !candidates.isEmpty(); i++) {
+            IntHashSet other = lists.get(i);
+            for (int userId : candidates.toArray()) {
+                if (!other.contains(userId)) {
+                    candidates.remove(userId);
+                }
+            }
+        }
+        return candidates;
+    }
+
+    private void addIfMatches(IndexedUser user, String query, IntHashSet friendIds, List<Match> matches) {
+        if (user == null) return;
+
+        int rank = Integer.MAX_VALUE;
+        for (String field : user.fields) {
+            rank = Math.min(rank, rankField(field, query));
+        }
+        if (rank != Integer.MAX_VALUE) {
+            boolean friend = friendIds != null && friendIds.contains(user.userId);
+            matches.add(new Match(user.userId, rank, friend, user.fields[0]));
+        }
+    }
+
+    private int rankField(String field, String query) {
+        if (field.equals(query)) return RANK_EXACT;
+        if (field.startsWith(query)) return RANK_PREFIX;
+        int index = field.indexOf(query);
+        if (index < 0) return Integer.MAX_VALUE;
+        // Khớp đầu một từ trong họ tên ("anh" trong "nguyen duc anh") tính như prefix
+        char before = field.charAt(index - 1);
+        return Character.isLetterOrDigit(before) ? RANK_INFIX : RANK_PREFIX;
+    }
+
+    private void addLocked(int userId, String username, String fullName, String email) {
+        IndexedUser user = new IndexedUser(userId, new String[] {
+                TextNormalizer.fold(username), TextNormalizer.fold(fullName), TextNormalizer.fold(email)
+        });
+        users.put(userId, user);
+        for (String field : user.fields) {
+            for (int i = 0; i + GRAM <= field.length(); i++) {
+                postings.computeIfAbsent(field.substring(i, i + GRAM), k -> new IntHashSet()).add(userId);
+            }
+        }
+    }
+
+    private void removeLocked(int userId) {
+        IndexedUser user = users.remove(userId);
+        if (user == null) return;
+
+        for (String field : user.fields) {
+            for (int i = 0; i + GRAM <= field.length(); i++) {
+                String gram = field.substring(i, i + GRAM);
+                IntHashSet list = postings.get(gram);
+                if (list != null) {
+                    list.remove(userId);
+                    if (list.isEmpty()) {
+                        postings.remove(gram);
+                    }
+                }
+            }
+        }
+    }
+
+    private static class IndexedUser {
+        private final int userId;
+        // [username, full_name, email] đã chuẩn hóa
+        private final String[] fields;
+
+        IndexedUser(int userId, String[] fields) {
+            this.userId = userId;
+            this.fields = fields;
+        }
+    }
+
+    private static class Match {
+        private final int userId;
+        private final int rank;
+        private final boolean friend;
+        private final String username;
+
+        Match(int userId, int rank, boolean friend, String username) {
+            this.userId = userId;
+            this.rank = rank;
+            this.friend = friend;
+            this.username = username;
+        }
+    }
+}
@@ -3,33 +3,67 @@ package com.chatapp.server.service;
 import com.chatapp.server.model.User;
 import com.chatapp.server.model.UserStatus;
 import com.chatapp.server.util.DatabaseManager;
-import com.chatapp.server.util.PasswordUtil;
+import com.chatapp.server.util.DbExecutor;
+import com.chatapp.server.util.IntHashSet;
+import com.chatapp.server.util.PasswordHashingPool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 public class UserService {
     private static final Logger logger = LoggerFactory.getLogger(UserService.class);
     private final DatabaseManager dbManager;
+    private final UserCache userCache;
+    private final UserSearchIndex searchIndex;
+    private final PresenceService presenceService;
+    private final PasswordHashingPool hashingPool;
+    private final DbExecutor dbExecutor;
 
     public UserService() {
         this.dbManager = DatabaseManager.getInstance();
+        this.userCache = UserCache.getInstance();
+        this.searchIndex = UserSearchIndex.getInstance();
+        this.presenceService = PresenceService.getInstance();
+        this.hashingPool = PasswordHashingPool.getInstance();
+        this.dbExecutor = DbExecutor.getInstance();
     }
 
     /**
      * Register new user
      */
     public User registerUser(String username, String email, String password, String fullName) {
+        try {
+            return registerUserAsync(username, email, password, fullName).join();
+        } catch (Exception e) {
+            logger.error("Error registering user: {}", username, e);
+            return null;
+        }
+    }
+
+    /**
+     * Register new user: hash on PasswordHashingPool, insert on DbExecutor
+     */
+    public CompletableFuture<User> registerUserAsync(String username, String email, String password, String fullName) {
+        return hashingPool.hash(password).thenCompose(hashedPassword ->
+                dbExecutor.supply(() -> insertUser(username, email, hashedPassword, fullName)));
+    }
+
+    private User insertUser(String username, String email, String hashedPassword, String fullName) {
         String sql = "INSERT INTO users (username, email, password_hash, full_name) VALUES (?, ?, ?, ?)";
+        int userId = 0;
 
         try (Connection conn = dbManager.getConnection();
              PreparedStatement pstmt = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
 
-            String hashedPassword = PasswordUtil.hashPassword(password);
-
             pstmt.setString(1, username);
             pstmt.setString(2, email);
             pstmt.setString(3, hashedPassword);
@@ -40,59 +74,95 @@ public class UserService {
             if (affectedRows > 0) {
                 try (ResultSet rs = pstmt.getGeneratedKeys()) {
                     if (rs.next()) {
-                        int userId = rs.getInt(1);
+                        userId = rs.getInt(1);
                         logger.info("User registered successfully: {}", username);
-                        return getUserById(userId);
                     }
                 }
             }
         } catch (SQLException e) {
             logger.error("Error registering user: {}", username, e);
         }
-        return null;
+        if (userId <= 0) {
+            return null;
+        }
+
+        // Đọc lại sau khi đã trả kết nối (không mượn hai kết nối cùng lúc)
+        User user = getUserById(userId);
+        searchIndex.addOrUpdate(user);
+        return user;
     }
 
     /**
      * Login user
      */
     public User loginUser(String username, String password) {
-        String sql = "SELECT * FROM users WHERE username = ?";
-
-        try (Connection conn = dbManager.getConnection();
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
-
-            pstmt.setString(1, username);
-            ResultSet rs = pstmt.executeQuery();
+        try {
+            return loginUserAsync(username, password).join();
+        } catch (Exception e) {
+            logger.error("Error logging in user: {}", username, e);
+            return null;
+        }
+    }
 
-            if (rs.next()) {
-                String storedHash = rs.getString("password_hash");
+    /**
+     * Login user; the BCrypt check runs on PasswordHashingPool.
+     * Completes with null on bad credentials, exceptionally if the pool is saturated.
+     */
+    public CompletableFuture<User> loginUserAsync(String username, String password) {
+        return dbExecutor.supply(() -> getUserByUsername(username)).thenCompose(user -> {
+            if (user == null) {
+                return CompletableFuture.completedFuture(null);
+            }
 
-                if (PasswordUtil.verifyPassword(password, storedHash)) {
-                    User user = extractUserFromResultSet(rs);
-                    updateLastLogin(user.getUserId());
-                    updateUserStatus(user.getUserId(), UserStatus.ONLINE);
-                    logger.info("User logged in: {}", username);
-                    return user;
+            return hashingPool.verify(password, user.getPasswordHash()).thenApply(valid -> {
+                if (!valid) {
+                    return null;
                 }
-            }
-        } catch (SQLException e) {
-            logger.error("Error logging in user: {}", username, e);
+                completeLogin(user);
+                logger.info("User logged in: {}", username);
+                return user;
+            });
+        });
+    }
+
+    /**
+     * Login without password using an already validated session
+     */
+    public User resumeSession(int userId) {
+        User user = getUserById(userId);
+        if (user != null) {
+            completeLogin(user);
+            logger.info("Session resumed for user ID: {}", userId);
         }
-        return null;
+        return user;
+    }
+
+    private void completeLogin(User user) {
+        // status và last_login được ghi xuống DB theo lô
+        presenceService.userLoggedIn(user.getUserId());
+        presenceService.applyTo(user);
     }
 
     /**
      * Logout user
      */
     public boolean logoutUser(int userId) {
-        return updateUserStatus(userId, UserStatus.OFFLINE);
+        presenceService.userLoggedOut(userId);
+        return true;
     }
 
     /**
-     * Get user by ID
+     * Get user by ID (read-through cache)
      */
     public User getUserById(int userId) {
+        User cached = userCache.get(userId);
+        if (cached != null) {
+            presenceService.applyTo(cached);
+            return cached;
+        }
+
         String sql = "SELECT * FROM users WHERE user_id = ?";
+        long loadVersion = userCache.version();
 
         try (Connection conn = dbManager.getConnection();
              PreparedStatement pstmt = conn.prepareStatement(sql)) {
@@ -101,7 +171,9 @@ public class UserService {
             ResultSet rs = pstmt.executeQuery();
 
             if (rs.next()) {
-                return extractUserFromResultSet(rs);
+                User user = extractUserFromResultSet(rs);
+                userCache.put(user, loadVersion);
+                return user;
             }
         } catch (SQLException e) {
             logger.error("Error getting user by ID: {}", userId, e);
@@ -109,6 +181,65 @@ public class UserService {
         return null;
     }
 
+    /**
+     * Get many users at once, keeping the order of the given IDs.
+     * Cache misses are loaded with a single IN (...) query.
+     */
+    public List<User> getUsersByIds(Collection<Integer> userIds) {
+        Set<Integer> orderedIds = new LinkedHashSet<>(userIds);
+        Map<Integer, User> found = new HashMap<>();
+        List<Integer> missingIds = new ArrayList<>();
+
+        for (Integer userId : orderedIds) {
+            User cached = userCache.get(userId);
+            if (cached != null) {
+                presenceService.applyTo(cached);
+                found.put(userId, cached);
+            } else {
+                missingIds.add(userId);
+            }
+        }
+
+        if (!missingIds.isEmpty()) {
+            String placeholders = String.join(",", missingIds.stream().map(id -> "?").toArray(String[]::new));
+            String sql = "SELECT * FROM users WHERE user_id IN (" + placeholders + ")";
+            long loadVersion = userCache.version();
+
+            try (Connection conn = dbManager.getConnection();
+                 PreparedStatement pstmt = conn.prepareStatement(sql)) {
+
+                for (int i = 0; i < missingIds.size(); i++) {
+                    pstmt.setInt(i + 1, missingIds.get(i));
+                }
+                ResultSet rs = pstmt.executeQuery();
+
+                while (rs.next()) {
+                    User user = extractUserFromResultSet(rs);
+                    userCache.put(user, loadVersion);
+                    found.put(user.getUserId(), user);
+                }
+            } catch (SQLException e) {
+                logger.error("Error getting users by IDs: {}", missingIds, e);
+            }
+        }
+
+        List<User> users = new ArrayList<>();
+        for (Integer userId : orderedIds) {
+            User user = found.get(userId);
+            if (user != null) {
+                users.add(user);
+            }
+        }
+        return users;
+    }
+
+    /**
+     * Profile cache hit ratio (0..1)
+     */
+    public double getCacheHitRatio() {
+        return userCache.getHitRatio();
+    }
+
     /**
      * Get user by username
      */
@@ -134,10 +265,31 @@ public class UserService {
      * Search users by keyword
      */
     public List<User> searchUsers(String keyword) {
+        return searchUsers(keyword, -1);
+    }
+
+    /**
+     * Search users by keyword using the in-memory index.
+     * Friends of the requester are ranked first, then exact, prefix and infix matches.
+     */
+    public List<User> searchUsers(String keyword, int requesterId) {
+        if (!searchIndex.ensureLoaded()) {
+            return searchUsersInDatabase(keyword, requesterId);
+        }
+
+        IntHashSet friendIds = requesterId > 0 ? FriendGraph.getInstance().getFriendIds(requesterId) : null;
+        List<Integer> userIds = searchIndex.search(keyword, friendIds, 50);
+        return getUsersByIds(userIds);
+    }
+
+    /**
+     * Fallback LIKE search when the index cannot be loaded
+     */
+    private List<User> searchUsersInDatabase(String keyword, int requesterId) {
         List<User> users = new ArrayList<>();
         String sql = "SELECT * FROM users WHERE username LIKE ? OR full_name LIKE ? OR email LIKE ? LIMIT 50";
 
-        try (Connection conn = dbManager.getConnection();
+        try (Connection conn = dbManager.getReadConnection(requesterId);
              PreparedStatement pstmt = conn.prepareStatement(sql)) {
 
             String searchPattern = "%" + keyword + "%";
@@ -161,6 +313,7 @@ public class UserService {
      */
     public boolean updateProfile(int userId, String fullName, String statusMessage) {
         String sql = "UPDATE users SET full_name = ?, status_message = ? WHERE user_id = ?";
+        boolean updated = false;
 
         try (Connection conn = dbManager.getConnection();
              PreparedStatement pstmt = conn.prepareStatement(sql)) {
@@ -170,53 +323,54 @@ public class UserService {
             pstmt.setInt(3, userId);
 
             int affectedRows = pstmt.executeUpdate();
-            if (affectedRows > 0) {
-                logger.info("Profile updated for user ID: {}", userId);
-                return true;
-            }
+            userCache.invalidate(userId);
+            dbManager.noteUserWrite(userId);
+            updated = affectedRows > 0;
         } catch (SQLException e) {
             logger.error("Error updating profile for user ID: {}", userId, e);
         }
-        return false;
+
+        if (updated) {
+            logger.info("Profile updated for user ID: {}", userId);
+            // Đọc lại sau khi đã trả kết nối (không mượn hai kết nối cùng lúc)
+            searchIndex.addOrUpdate(getUserById(userId));
+        }
+        return updated;
     }
 
     /**
-     * Update user status (ONLINE, OFFLINE, AWAY, BUSY)
+     * Set the avatar (a URL from AvatarService)
      */
-    public boolean updateUserStatus(int userId, UserStatus status) {
-        String sql = "UPDATE users SET user_status = ? WHERE user_id = ?";
+    public boolean updateAvatar(int userId, String avatarUrl) {
+        String sql = "UPDATE users SET avatar_url = ? WHERE user_id = ?";
 
         try (Connection conn = dbManager.getConnection();
              PreparedStatement pstmt = conn.prepareStatement(sql)) {
 
-            pstmt.setString(1, status.name());
+            pstmt.setString(1, avatarUrl);
             pstmt.setInt(2, userId);
 
             int affectedRows = pstmt.executeUpdate();
+            userCache.invalidate(userId);
+            dbManager.noteUserWrite(userId);
             if (affectedRows > 0) {
-                logger.info("Status updated for user ID {}: {}", userId, status);
+                logger.info("Avatar updated for user ID: {}", userId);
                 return true;
             }
         } catch (SQLException e) {
-            logger.error("Error updating status for user ID: {}", userId, e);
+            logger.error("Error updating avatar for user ID: {}", userId, e);
         }
         return false;
     }
 
     /**
-     * Update last login timestamp
+     * Update user status (ONLINE, OFFLINE, AWAY, BUSY).
+     * Applied in memory right away, persisted by PresenceService.
      */
-    private void updateLastLogin(int userId) {
-        String sql = "UPDATE users SET last_login = CURRENT_TIMESTAMP WHERE user_id = ?";
-
-        try (Connection conn = dbManager.getConnection();
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
-
-            pstmt.setInt(1, userId);
-            pstmt.executeUpdate();
-        } catch (SQLException e) {
-            logger.error("Error updating last login for user ID: {}", userId, e);
-        }
+    public boolean updateUserStatus(int userId, UserStatus status) {
+        presenceService.setStatus(userId, status);
+        logger.info("Status updated for user ID {}: {}", userId, status);
+        return true;
     }
 
     /**
@@ -261,6 +415,40 @@ public class UserService {
         return false;
     }
 
+    // ---- Async variants (chạy trên DbExecutor) ----
+
+    public CompletableFuture<User> resumeSessionAsync(int userId) {
+        return dbExecutor.supply(() -> resumeSession(userId));
+    }
+
+    public CompletableFuture<User> getUserByIdAsync(int userId) {
+        return dbExecutor.supply(() -> getUserById(userId));
+    }
+
+    public CompletableFuture<List<User>> searchUsersAsync(String keyword, int requesterId) {
+        return dbExecutor.supply(() -> searchUsers(keyword, requesterId));
+    }
+
+    public CompletableFuture<Boolean> updateProfileAsync(int userId, String fullName, String statusMessage) {
+        return dbExecutor.supply(() -> updateProfile(userId, fullName, statusMessage));
+    }
+
+    public CompletableFuture<Boolean> updateAvatarAsync(int userId, String avatarUrl) {
+        return dbExecutor.supply(() -> updateAvatar(userId, avatarUrl));
+    }
+
+    public CompletableFuture<List<User>> getUsersByIdsAsync(Collection<Integer> userIds) {
+        return dbExecutor.supply(() -> getUsersByIds(userIds));
+    }
+
+    public CompletableFuture<Boolean> usernameExistsAsync(String username) {
+        return dbExecutor.supply(() -> usernameExists(username));
+    }
+
+    public CompletableFuture<Boolean> emailExistsAsync(String email) {
+        return dbExecutor.supply(() -> emailExists(email));
+    }
+
     /**
      * Extract User object from ResultSet
      */
@@ -272,7 +460,7 @@ public class UserService {
         user.setPasswordHash(rs.getString("password_hash"));
         user.setFullName(rs.getString("full_name"));
         user.setStatusMessage(rs.getString("status_message"));
-        user.setUserStatus(UserStatus.valueOf(rs.getString("user_status")));
+        user.setUserStatus(presenceService.getStatus(user.getUserId()));
         user.setAvatarUrl(rs.getString("avatar_url"));
         user.setCreatedAt(rs.getTimestamp("created_at"));
         user.setLastLogin(rs.getTimestamp("last_login"));
@@ -0,0 +1,210 @@
+package com.chatapp.server.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool kết nối JDBC cố định kích thước (BlockingQueue), không cần thư viện ngoài.
+ * - Kết nối mở dần khi cần, tối đa maxSize; hết kết nối thì chờ tối đa BORROW_TIMEOUT_MILLIS
+ * - close() trên kết nối mượn được trả nó về pool (rollback + autoCommit nếu còn transaction dở)
+ * - Kết nối để lâu không dùng được kiểm tra isValid trước khi cho mượn lại
+ */
+public class ConnectionPool {
+    private static final Logger logger = LoggerFactory.getLogger(ConnectionPool.class);
+
+    private static final long BORROW_TIMEOUT_MILLIS = 5000;
+    private static final long VALIDATE_AFTER_IDLE_MILLIS = 30000;
+    private static final int VALIDATION_TIMEOUT_SECONDS = 2;
+
+    private final String name;
+    private final String url;
+    private final String user;
+    private final String password;
+    private final int maxSize;
+    private final BlockingQueue<PooledConnection> idle;
+    private final AtomicInteger opened = new AtomicInteger();
+    private volatile boolean closed;
+
+    public ConnectionPool(String name, String url, String user, String password, int maxSize) {
+        this.name = name;
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.maxSize = maxSize;
+        this.idle = new ArrayBlockingQueue<>(maxSize);
+    }
+
+    /**
+     * Borrow a connection; closing it returns it to the pool
+     */
+    public Connection getConnection() throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection pool " + name + " is closed");
+        }
+
+        PooledConnection pooled = idle.poll();
+        while (pooled == null) {
+            int current = opened.get();
+            if (current < maxSize) {
+                if (opened.compareAndSet(current, current + 1)) {
+                    pooled = open();
+                }
+                continue;
+            }
+            try {
+                pooled = idle.poll(BORROW_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted waiting for a connection from pool " + name, e);
+            }
+            if (pooled == null) {
+                throw new SQLException("No connection available in pool " + name + " after "
+                        + BORROW_TIMEOUT_MILLIS + " ms (" + maxSize + " in use)");
+            }
+        }
+
+        if (System.currentTimeMillis() - pooled.returnedAt > VALIDATE_AFTER_IDLE_MILLIS && !isValid(pooled)) {
+            discard(pooled);
+            return getConnection();
+        }
+        return pooled.lease();
+    }
+
+    public int getOpenCount() {
+        return opened.get();
+    }
+
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    public void close() {
+        closed = true;
+        PooledConnection pooled;
+        while ((pooled = idle.poll()) != null) {
+            discard(pooled);
+        }
+    }
+
+    private PooledConnection open() throws SQLException {
+        try {
+            return new PooledConnection(DriverManager.getConnection(url, user, password));
+        } catch (SQLException e) {
+            opened.decrementAndGet();
+            throw e;
+        }
+    }
+
+    private boolean isValid(PooledConnection pooled) {
+        try {
+            return pooled.physical.isValid(VALIDATION_TIMEOUT_SECONDS);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private void release(PooledConnection pooled) {
+        try {
+            if (pooled.physical.isClosed()) {
+                discard(pooled);
+                return;
+            }
+            if (!pooled.physical.getAutoCommit()) {
+                pooled.physical.rollback();
+                pooled.physical.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            logger.warn("Discarding broken connection from pool {}: {}", name, e.getMessage());
+            discard(pooled);
+            return;
+        }
+
+        pooled.returnedAt = System.currentTimeMillis();
+        if (closed || !idle.offer(pooled)) {
+            discard(pooled);
+        }
+    }
+
+    private void discard(PooledConnection pooled) {
+        opened.decrementAndGet();
+        try {
+            pooled.physical.close();
+        } catch (SQLException e) {
+            logger.debug("Error closing pooled connection: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Kết nối vật lý; mỗi lần cho mượn là một proxy riêng, close() chỉ có tác dụng một lần
+     */
+    private class PooledConnection {
+        private final Connection physical;
+        private volatile long returnedAt;
+
+        PooledConnection(Connection physical) {
+            this.physical = physical;
+            this.returnedAt = System.currentTimeMillis();
+        }
+
+        Connection lease() {
+            return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                    new Class<?>[] {Connection.class}, new Lease(this));
+        }
+    }
+
+    private class Lease implements InvocationHandler {
+        private final PooledConnection pooled;
+        private boolean returned;
+
+        Lease(PooledConnection pooled) {
+            this.pooled = pooled;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    synchronized (this) {
+                        if (returned) return null;
+                        returned = true;
+                    }
+                    release(pooled);
+                    return null;
+                case "isClosed":
+                    synchronized (this) {
+                        if (returned) return true;
+                    }
+                    return pooled.physical.isClosed();
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "Pooled(" + name + ")" + pooled.physical;
+                default:
+                    synchronized (this) {
+                        if (returned) {
+                            throw new SQLException("Connection already returned to pool " + name);
+                        }
+                    }
+                    try {
+                        return method.invoke(pooled.physical, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+            }
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.chatapp.server.util;
+
+import com.chatapp.server.model.Message;
+
+/**
+ * Mã hóa một cuộc hội thoại thành một số long:
+ * - Chat riêng: (min(user1, user2) << 32) | max(user1, user2), luôn dương
+ * - Chat nhóm: -group_id - 1, luôn âm
+ */
+public class ConversationKey {
+
+    public static long ofPrivate(int userId1, int userId2) {
+        int low = Math.min(userId1, userId2);
+        int high = Math.max(userId1, userId2);
+        return ((long) low << 32) | (high & 0xFFFFFFFFL);
+    }
+
+    public static long ofGroup(int groupId) {
+        return -((long) groupId) - 1;
+    }
+
+    public static long of(Message message) {
+        if (message.getGroupId() != null) {
+            return ofGroup(message.getGroupId());
+        }
+        return ofPrivate(message.getSenderId(), message.getReceiverId());
+    }
+
+    public static boolean isGroup(long key) {
+        return key < 0;
+    }
+
+    public static int groupId(long key) {
+        return (int) (-key - 1);
+    }
+
+    /**
+     * The other participant of a private conversation
+     */
+    public static int otherUser(long key, int userId) {
+        int low = (int) (key >>> 32);
+        int high = (int) key;
+        return low == userId ? high : low;
+    }
+
+    /**
+     * Whether the user takes part in this private conversation
+     */
+    public static boolean involves(long key, int userId) {
+        return !isGroup(key) && ((int) (key >>> 32) == userId || (int) key == userId);
+    }
+
+    /**
+     * Stable hash of a key (MurmurHash3 fmix64), independent of JVM and run; used for shard placement
+     */
+    public static long hash(long key) {
+        long h = key;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -4,14 +4,32 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.SQLException;
 
 public class DatabaseManager {
     private static final Logger logger = LoggerFactory.getLogger(DatabaseManager.class);
 
+    /**
+     * Số luồng DbExecutor; mỗi luồng giữ nhiều nhất một kết nối tại một thời điểm
+     */
+    public static final int DB_EXECUTOR_THREADS = 8;
+
+    /**
+     * Kết nối dành cho các luồng nền mượn trực tiếp, ngoài DbExecutor: ConversationWriter,
+     * các flusher (presence, read state, outbox, call log, search index), GC blob,
+     * truy vấn song song trên shard 0 và ReplicaRouter
+     */
+    public static final int BACKGROUND_CONNECTIONS = Math.max(2, Runtime.getRuntime().availableProcessors()) + 6;
+
+    /**
+     * Số kết nối tới DB chính (và tới mỗi shard/replica). Không luồng nào mượn kết nối thứ hai
+     * khi đang giữ một kết nối, nên luồng nền không thể làm DbExecutor chờ cạn pool
+     */
+    public static final int DB_POOL_SIZE = DB_EXECUTOR_THREADS + BACKGROUND_CONNECTIONS;
+
     private static DatabaseManager instance;
-    private Connection connection;
+    private final ConnectionPool pool;
+    private final ReplicaRouter replicaRouter;
 
     // Database configuration
     private static final String DB_URL = "jdbc:mysql://localhost:3306/chat_app_db?useSSL=false&serverTimezone=UTC&allowPublicKeyRetrieval=true";
@@ -19,15 +37,19 @@ public class DatabaseManager {
     private static final String DB_PASSWORD = "123123"; // Thay đổi theo cấu hình MySQL của bạn
 
     private DatabaseManager() {
+        this.replicaRouter = new ReplicaRouter(DB_USER, DB_PASSWORD);
+        this.pool = new ConnectionPool("primary", DB_URL, DB_USER, DB_PASSWORD, DB_POOL_SIZE);
         try {
             Class.forName("com.mysql.cj.jdbc.Driver");
-            this.connection = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD);
-            logger.info("Database connection established successfully");
+            try (Connection conn = pool.getConnection()) {
+                logger.info("Database connection established successfully (pool of {})", DB_POOL_SIZE);
+            }
         } catch (ClassNotFoundException e) {
             logger.error("MySQL JDBC Driver not found", e);
         } catch (SQLException e) {
             logger.error("Failed to connect to database", e);
         }
+        replicaRouter.start();
     }
 
     public static synchronized DatabaseManager getInstance() {
@@ -37,32 +59,61 @@ public class DatabaseManager {
         return instance;
     }
 
-    public Connection getConnection() {
-        try {
-            if (connection == null || connection.isClosed()) {
-                connection = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD);
-                logger.info("Database connection re-established");
-            }
-        } catch (SQLException e) {
-            logger.error("Error checking/re-establishing database connection", e);
-        }
-        return connection;
+    /**
+     * Borrow a pooled connection to the primary; close() returns it to the pool
+     */
+    public Connection getConnection() throws SQLException {
+        return pool.getConnection();
+    }
+
+    /**
+     * Pool of DB_POOL_SIZE connections to another MySQL instance using the same credentials
+     */
+    public ConnectionPool createPool(String name, String url) {
+        return new ConnectionPool(name, url, DB_USER, DB_PASSWORD, DB_POOL_SIZE);
+    }
+
+    /**
+     * Connection for a read-only query issued on behalf of a user.
+     * Goes to a replica unless the user wrote recently or no replica is healthy.
+     */
+    public Connection getReadConnection(int userId) throws SQLException {
+        Connection replica = replicaRouter.forUser(userId);
+        return replica != null ? replica : getConnection();
+    }
+
+    /**
+     * Connection for reading a conversation's history (see ConversationKey).
+     * Goes to a replica unless the conversation was written recently or no replica is healthy.
+     */
+    public Connection getConversationReadConnection(long conversationKey) throws SQLException {
+        Connection replica = replicaRouter.forConversation(conversationKey);
+        return replica != null ? replica : getConnection();
+    }
+
+    /**
+     * Record a write made by/for a user so their next reads stay on the primary
+     */
+    public void noteUserWrite(int userId) {
+        replicaRouter.noteUserWrite(userId);
+    }
+
+    /**
+     * Record a write to a conversation so its history is read from the primary for a while
+     */
+    public void noteConversationWrite(long conversationKey) {
+        replicaRouter.noteConversationWrite(conversationKey);
     }
 
     public void closeConnection() {
-        if (connection != null) {
-            try {
-                connection.close();
-                logger.info("Database connection closed");
-            } catch (SQLException e) {
-                logger.error("Error closing database connection", e);
-            }
-        }
+        replicaRouter.stop();
+        pool.close();
+        logger.info("Database connections closed");
     }
 
     public boolean testConnection() {
-        try {
-            return connection != null && !connection.isClosed();
+        try (Connection conn = pool.getConnection()) {
+            return conn.isValid(2);
         } catch (SQLException e) {
             logger.error("Error testing database connection", e);
             return false;
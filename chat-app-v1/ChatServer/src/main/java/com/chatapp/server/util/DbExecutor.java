@@ -0,0 +1,78 @@
+package com.chatapp.server.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Executor riêng cho các lời gọi JDBC, dùng bởi các hàm *Async của service.
+ * Số luồng cố định (DatabaseManager.DB_EXECUTOR_THREADS, pool còn dư phần cho luồng nền) nên số truy vấn
+ * đồng thời có giới hạn rõ ràng;
+ * khi hàng đợi đầy, future bị từ chối ngay thay vì chặn luồng kết nối.
+ */
+public class DbExecutor {
+    private static final Logger logger = LoggerFactory.getLogger(DbExecutor.class);
+
+    private static final int THREADS = DatabaseManager.DB_EXECUTOR_THREADS;
+    private static final int QUEUE_CAPACITY = 1000;
+
+    private static DbExecutor instance;
+
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong rejected = new AtomicLong();
+
+    private DbExecutor() {
+        AtomicInteger counter = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(THREADS, THREADS, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(QUEUE_CAPACITY),
+                r -> {
+                    Thread t = new Thread(r, "db-executor-" + counter.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    public static synchronized DbExecutor getInstance() {
+        if (instance == null) {
+            instance = new DbExecutor();
+        }
+        return instance;
+    }
+
+    /**
+     * Run a blocking DB call on the executor
+     */
+    public <T> CompletableFuture<T> supply(Supplier<T> task) {
+        try {
+            return CompletableFuture.supplyAsync(task, executor);
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            logger.warn("DB executor queue full ({} pending), rejecting task", executor.getQueue().size());
+            CompletableFuture<T> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    public void logStats() {
+        logger.info("DB executor: completed={}, rejected={}, active={}, queueDepth={}",
+                executor.getCompletedTaskCount(), rejected.get(), executor.getActiveCount(), getQueueDepth());
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
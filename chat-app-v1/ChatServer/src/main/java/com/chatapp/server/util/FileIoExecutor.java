@@ -0,0 +1,145 @@
+package com.chatapp.server.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Executor riêng cho đọc/ghi file, tách khỏi DbExecutor và khỏi luồng kết nối:
+ * ghi/đọc file lớn không làm nghẽn các yêu cầu khác của user (kể cả tín hiệu cuộc gọi).
+ * - Số luồng và hàng đợi cố định; hàng đợi đầy thì future bị từ chối ngay
+ * - Mỗi loại thao tác có histogram độ trễ riêng, cộng thêm histogram thời gian chờ trong hàng đợi:
+ *   chờ lâu = thiếu luồng, chạy lâu = đĩa chậm
+ * - Thống kê được ghi log định kỳ khi có hoạt động, thao tác quá SLOW_OPERATION_MILLIS bị cảnh báo
+ */
+public class FileIoExecutor {
+    private static final Logger logger = LoggerFactory.getLogger(FileIoExecutor.class);
+
+    private static final int FILE_IO_POOL_SIZE = 4;
+    private static final int QUEUE_CAPACITY = 256;
+    private static final long SLOW_OPERATION_MILLIS = 1000;
+    private static final long STATS_INTERVAL_MINUTES = 5;
+
+    private static FileIoExecutor instance;
+
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicInteger maxQueueDepth = new AtomicInteger();
+    private final LatencyHistogram queueWait = new LatencyHistogram();
+    private final ConcurrentHashMap<String, LatencyHistogram> latencies = new ConcurrentHashMap<>();
+    private ScheduledExecutorService reporter;
+    private long lastReportedTasks;
+
+    private FileIoExecutor() {
+        AtomicInteger counter = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(FILE_IO_POOL_SIZE, FILE_IO_POOL_SIZE, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(QUEUE_CAPACITY),
+                r -> {
+                    Thread t = new Thread(r, "file-io-" + counter.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    public static synchronized FileIoExecutor getInstance() {
+        if (instance == null) {
+            instance = new FileIoExecutor();
+        }
+        return instance;
+    }
+
+    public void start() {
+        reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "file-io-stats");
+            t.setDaemon(true);
+            return t;
+        });
+        reporter.scheduleWithFixedDelay(this::logStatsIfActive, STATS_INTERVAL_MINUTES, STATS_INTERVAL_MINUTES,
+                TimeUnit.MINUTES);
+    }
+
+    /**
+     * Run a blocking file operation on the executor. operation names the latency histogram
+     * (e.g. "upload-chunk").
+     */
+    public <T> CompletableFuture<T> supply(String operation, Supplier<T> task) {
+        long submitted = System.nanoTime();
+        try {
+            CompletableFuture<T> future = CompletableFuture.supplyAsync(() -> {
+                long started = System.nanoTime();
+                queueWait.record(started - submitted);
+                try {
+                    return task.get();
+                } finally {
+                    long elapsed = System.nanoTime() - started;
+                    latencies.computeIfAbsent(operation, k -> new LatencyHistogram()).record(elapsed);
+                    if (elapsed > TimeUnit.MILLISECONDS.toNanos(SLOW_OPERATION_MILLIS)) {
+                        logger.warn("Slow file operation {}: {} ms", operation, TimeUnit.NANOSECONDS.toMillis(elapsed));
+                    }
+                }
+            }, executor);
+            maxQueueDepth.accumulateAndGet(executor.getQueue().size(), Math::max);
+            return future;
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            logger.warn("File I/O executor queue full ({} pending), rejecting {}", executor.getQueue().size(), operation);
+            CompletableFuture<T> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Latency of one operation type, or null if it never ran
+     */
+    public LatencyHistogram getLatency(String operation) {
+        return latencies.get(operation);
+    }
+
+    public LatencyHistogram getQueueWait() {
+        return queueWait;
+    }
+
+    public void logStats() {
+        logger.info("File I/O executor: completed={}, rejected={}, active={}, queueDepth={}, maxQueueDepth={}",
+                executor.getCompletedTaskCount(), rejected.get(), executor.getActiveCount(), getQueueDepth(),
+                maxQueueDepth.get());
+        logger.info("File I/O queue wait: {}", queueWait.summary());
+        for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<>(latencies).entrySet()) {
+            logger.info("File I/O {}: {}", entry.getKey(), entry.getValue().summary());
+        }
+    }
+
+    private void logStatsIfActive() {
+        long completed = executor.getCompletedTaskCount();
+        if (completed != lastReportedTasks) {
+            lastReportedTasks = completed;
+            logStats();
+        }
+    }
+
+    public void shutdown() {
+        if (reporter != null) {
+            reporter.shutdown();
+        }
+        executor.shutdown();
+    }
+}
@@ -8,16 +8,12 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Base64;
-import java.util.UUID;
 
 public class FileUtil {
     private static final Logger logger = LoggerFactory.getLogger(FileUtil.class);
 
     private static final String UPLOAD_DIR = "uploads/";
-    private static final String IMAGE_DIR = UPLOAD_DIR + "images/";
-    private static final String FILE_DIR = UPLOAD_DIR + "files/";
-    private static final String VIDEO_DIR = UPLOAD_DIR + "videos/";
-    private static final String AUDIO_DIR = UPLOAD_DIR + "audio/";
+    private static final String TEMP_DIR = UPLOAD_DIR + "tmp/";
 
     static {
         createDirectories();
@@ -25,34 +21,24 @@ public class FileUtil {
 
     private static void createDirectories() {
         try {
-            Files.createDirectories(Paths.get(IMAGE_DIR));
-            Files.createDirectories(Paths.get(FILE_DIR));
-            Files.createDirectories(Paths.get(VIDEO_DIR));
-            Files.createDirectories(Paths.get(AUDIO_DIR));
+            Files.createDirectories(Paths.get(TEMP_DIR));
         } catch (IOException e) {
             logger.error("Error creating upload directories", e);
         }
     }
 
     /**
-     * Save file from base64 string
+     * Root of all stored uploads
      */
-    public static String saveFile(String base64Data, String fileName, String fileType) {
-        try {
-            byte[] fileData = Base64.getDecoder().decode(base64Data);
-
-            String directory = getDirectoryForType(fileType);
-            String uniqueFileName = generateUniqueFileName(fileName);
-            String filePath = directory + uniqueFileName;
-
-            Files.write(Paths.get(filePath), fileData);
+    public static Path getUploadDirectory() {
+        return Paths.get(UPLOAD_DIR);
+    }
 
-            logger.info("File saved: {}", filePath);
-            return filePath;
-        } catch (Exception e) {
-            logger.error("Error saving file", e);
-            return null;
-        }
+    /**
+     * Directory for partially uploaded files
+     */
+    public static Path getTempDirectory() {
+        return Paths.get(TEMP_DIR);
     }
 
     /**
@@ -94,28 +80,6 @@ public class FileUtil {
         }
     }
 
-    private static String getDirectoryForType(String fileType) {
-        switch (fileType.toUpperCase()) {
-            case "IMAGE":
-                return IMAGE_DIR;
-            case "VIDEO":
-                return VIDEO_DIR;
-            case "AUDIO":
-                return AUDIO_DIR;
-            default:
-                return FILE_DIR;
-        }
-    }
-
-    private static String generateUniqueFileName(String originalFileName) {
-        String extension = "";
-        int dotIndex = originalFileName.lastIndexOf('.');
-        if (dotIndex > 0) {
-            extension = originalFileName.substring(dotIndex);
-        }
-        return UUID.randomUUID().toString() + extension;
-    }
-
     public static String getFileExtension(String fileName) {
         int dotIndex = fileName.lastIndexOf('.');
         if (dotIndex > 0 && dotIndex < fileName.length() - 1) {
@@ -0,0 +1,142 @@
+package com.chatapp.server.util;
+
+import java.util.Arrays;
+
+/**
+ * Set số nguyên nguyên thủy (open addressing, linear probing), không boxing Integer.
+ * Không thread-safe: nơi dùng chung phải tự đồng bộ hoặc copy-on-write.
+ */
+public class IntHashSet {
+    private static final int EMPTY = 0;
+    private static final int DEFAULT_CAPACITY = 8;
+
+    private int[] slots;
+    private int size;
+    private boolean containsZero;
+
+    public IntHashSet() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public IntHashSet(int expectedSize) {
+        int capacity = DEFAULT_CAPACITY;
+        while (capacity * 3 < expectedSize * 4) {
+            capacity <<= 1;
+        }
+        this.slots = new int[capacity];
+    }
+
+    public IntHashSet(IntHashSet other) {
+        this.slots = other.slots.clone();
+        this.size = other.size;
+        this.containsZero = other.containsZero;
+    }
+
+    public boolean add(int value) {
+        if (value == EMPTY) {
+            if (containsZero) return false;
+            containsZero = true;
+            size++;
+            return true;
+        }
+
+        int mask = slots.length - 1;
+        int index = mix(value) & mask;
+        while (slots[index] != EMPTY) {
+            if (slots[index] == value) return false;
+            index = (index + 1) & mask;
+        }
+        slots[index] = value;
+        size++;
+
+        if (size * 4 > slots.length * 3) {
+            rehash(slots.length << 1);
+        }
+        return true;
+    }
+
+    public boolean contains(int value) {
+        if (value == EMPTY) return containsZero;
+
+        int mask = slots.length - 1;
+        int index = mix(value) & mask;
+        while (slots[index] != EMPTY) {
+            if (slots[index] == value) return true;
+            index = (index + 1) & mask;
+        }
+        return false;
+    }
+
+    public boolean remove(int value) {
+        if (value == EMPTY) {
+            if (!containsZero) return false;
+            containsZero = false;
+            size--;
+            return true;
+        }
+
+        int mask = slots.length - 1;
+        int index = mix(value) & mask;
+        while (slots[index] != EMPTY) {
+            if (slots[index] == value) {
+                slots[index] = EMPTY;
+                size--;
+                // Dời lại các phần tử phía sau trong cùng cluster
+                int next = (index + 1) & mask;
+                while (slots[next] != EMPTY) {
+                    int moved = slots[next];
+                    slots[next] = EMPTY;
+                    size--;
+                    add(moved);
+                    next = (next + 1) & mask;
+                }
+                return true;
+            }
+            index = (index + 1) & mask;
+        }
+        return false;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int[] toArray() {
+        int[] result = new int[size];
+        int i = 0;
+        if (containsZero) {
+            result[i++] = 0;
+        }
+        for (int slot : slots) {
+            if (slot != EMPTY) {
+                result[i++] = slot;
+            }
+        }
+        return result;
+    }
+
+    private void rehash(int newCapacity) {
+        int[] old = slots;
+        slots = new int[newCapacity];
+        size = containsZero ? 1 : 0;
+        for (int value : old) {
+            if (value != EMPTY) {
+                add(value);
+            }
+        }
+    }
+
+    private static int mix(int value) {
+        int h = value * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(toArray());
+    }
+}
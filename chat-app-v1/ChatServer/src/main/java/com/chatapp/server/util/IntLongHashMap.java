@@ -0,0 +1,110 @@
+package com.chatapp.server.util;
+
+/**
+ * Map int -> long nguyên thủy (open addressing, linear probing), không boxing.
+ * Khóa 0 không dùng được (đánh dấu slot trống). Không thread-safe.
+ */
+public class IntLongHashMap {
+    private static final int EMPTY = 0;
+    private static final int DEFAULT_CAPACITY = 8;
+
+    private int[] keys;
+    private long[] values;
+    private int size;
+
+    public IntLongHashMap() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public IntLongHashMap(int expectedSize) {
+        int capacity = DEFAULT_CAPACITY;
+        while (capacity * 3 < expectedSize * 4) {
+            capacity <<= 1;
+        }
+        this.keys = new int[capacity];
+        this.values = new long[capacity];
+    }
+
+    public IntLongHashMap(IntLongHashMap other) {
+        this.keys = other.keys.clone();
+        this.values = other.values.clone();
+        this.size = other.size;
+    }
+
+    public void put(int key, long value) {
+        if (key == EMPTY) {
+            throw new IllegalArgumentException("Key 0 is reserved");
+        }
+
+        int mask = keys.length - 1;
+        int index = mix(key) & mask;
+        while (keys[index] != EMPTY) {
+            if (keys[index] == key) {
+                values[index] = value;
+                return;
+            }
+            index = (index + 1) & mask;
+        }
+        keys[index] = key;
+        values[index] = value;
+        size++;
+
+        if (size * 4 > keys.length * 3) {
+            rehash(keys.length << 1);
+        }
+    }
+
+    /**
+     * Value of the key, or defaultValue if it is absent
+     */
+    public long get(int key, long defaultValue) {
+        if (key == EMPTY) return defaultValue;
+
+        int mask = keys.length - 1;
+        int index = mix(key) & mask;
+        while (keys[index] != EMPTY) {
+            if (keys[index] == key) return values[index];
+            index = (index + 1) & mask;
+        }
+        return defaultValue;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void forEach(Entry action) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != EMPTY) {
+                action.accept(keys[i], values[i]);
+            }
+        }
+    }
+
+    private void rehash(int newCapacity) {
+        int[] oldKeys = keys;
+        long[] oldValues = values;
+        keys = new int[newCapacity];
+        values = new long[newCapacity];
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                put(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+
+    private static int mix(int value) {
+        int h = value * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    @FunctionalInterface
+    public interface Entry {
+        void accept(int key, long value);
+    }
+}
@@ -0,0 +1,59 @@
+package com.chatapp.server.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram độ trễ với các ngăn theo lũy thừa của 2 (micro giây), ghi không khóa.
+ * Percentile trả về cận trên của ngăn chứa nó (không quá giá trị lớn nhất) nên sai số
+ * tối đa gấp đôi, đủ để thấy thao tác nào đang chậm cỡ nào.
+ */
+public class LatencyHistogram {
+    private static final int BUCKETS = 40;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalMicros = new AtomicLong();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    public void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        counts.incrementAndGet(bucket);
+        count.incrementAndGet();
+        totalMicros.addAndGet(micros);
+        maxMicros.accumulateAndGet(micros, Math::max);
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Upper bound in milliseconds of the bucket holding the given percentile (0..100)
+     */
+    public double percentileMillis(double percentile) {
+        long total = count.get();
+        if (total == 0) return 0;
+
+        long rank = (long) Math.ceil(total * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(1L << i, maxMicros.get()) / 1000.0;
+            }
+        }
+        return maxMicros.get() / 1000.0;
+    }
+
+    /**
+     * "count=.., mean=..ms, p50=..ms, p99=..ms, max=..ms"
+     */
+    public String summary() {
+        long total = count.get();
+        return String.format("count=%d, mean=%.2fms, p50=%.2fms, p90=%.2fms, p99=%.2fms, max=%.2fms",
+                total, total == 0 ? 0.0 : totalMicros.get() / 1000.0 / total,
+                percentileMillis(50), percentileMillis(90), percentileMillis(99), maxMicros.get() / 1000.0);
+    }
+}
@@ -0,0 +1,344 @@
+package com.chatapp.server.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Phân mảnh bảng messages theo cuộc hội thoại (ConversationKey).
+ * - Shard 0 là DB chính; các shard khác khai báo qua CHAT_DB_MESSAGE_SHARDS (JDBC URL, phân cách dấu phẩy)
+ * - Toàn bộ lịch sử một cuộc hội thoại nằm trên một shard, ghi lại trong bảng conversation_shards
+ *   của DB chính; cuộc hội thoại mới được gán bằng hash ổn định của key
+ * - Chuyển shard (resharding) = chép dữ liệu rồi sửa dòng tương ứng trong conversation_shards
+ * - message_id cấp tập trung từ bảng message_id_sequence trên DB chính (mỗi lô giữ trước một dải),
+ *   nên tăng dần toàn cục; khởi tạo lớn hơn MAX(message_id) của mọi shard (DDL: database/message_shard.sql)
+ * - Mỗi shard phụ có ConnectionPool riêng (DB_POOL_SIZE), shard 0 dùng pool của DatabaseManager
+ * Truy vấn không biết trước cuộc hội thoại (theo message_id, quét toàn bảng) chạy song song trên mọi shard.
+ */
+public class MessageShardRouter {
+    private static final Logger logger = LoggerFactory.getLogger(MessageShardRouter.class);
+
+    private static final String SHARDS_ENV = "CHAT_DB_MESSAGE_SHARDS";
+
+    // Gán các cuộc hội thoại đã có trên DB chính vào shard 0 (chạy lại được, INSERT IGNORE)
+    private static final String ADOPT_EXISTING_SQL =
+            "INSERT IGNORE INTO conversation_shards (conversation_key, shard_id) " +
+            "SELECT DISTINCT CASE WHEN group_id IS NOT NULL THEN -group_id - 1 " +
+            "ELSE (LEAST(sender_id, receiver_id) << 32) | GREATEST(sender_id, receiver_id) END, 0 " +
+            "FROM messages";
+
+    // Đưa bộ cấp ID lên trên mọi ID đã có (chạy lại được, không bao giờ lùi)
+    private static final String SEED_SEQUENCE_SQL =
+            "INSERT INTO message_id_sequence (id, next_id) VALUES (1, ?) " +
+            "ON DUPLICATE KEY UPDATE next_id = GREATEST(next_id, VALUES(next_id))";
+
+    private static final String RESERVE_IDS_SQL =
+            "UPDATE message_id_sequence SET next_id = LAST_INSERT_ID(next_id + ?) WHERE id = 1";
+
+    private static MessageShardRouter instance;
+
+    private final DatabaseManager dbManager;
+    private final List<String> shardUrls;
+    private final List<ConnectionPool> shardPools;
+    private final ConcurrentHashMap<Long, Integer> shardByConversation;
+    private final ExecutorService queryPool;
+    private volatile boolean mappingReady;
+    private volatile boolean sequenceReady;
+
+    /**
+     * A query run against one shard
+     */
+    public interface ShardQuery<T> {
+        T run(Connection conn) throws SQLException;
+    }
+
+    private MessageShardRouter() {
+        this.dbManager = DatabaseManager.getInstance();
+        this.shardByConversation = new ConcurrentHashMap<>();
+
+        List<String> urls = new ArrayList<>();
+        urls.add(null); // shard 0: DB chính
+        String configured = System.getenv(SHARDS_ENV);
+        if (configured != null) {
+            for (String url : configured.split(",")) {
+                if (!url.trim().isEmpty()) {
+                    urls.add(url.trim());
+                }
+            }
+        }
+        this.shardUrls = Collections.unmodifiableList(urls);
+
+        List<ConnectionPool> pools = new ArrayList<>();
+        pools.add(null); // shard 0: pool của DatabaseManager
+        for (int shard = 1; shard < shardUrls.size(); shard++) {
+            pools.add(dbManager.createPool("message shard " + shard, shardUrls.get(shard)));
+        }
+        this.shardPools = Collections.unmodifiableList(pools);
+
+        if (shardUrls.size() > 1) {
+            AtomicInteger counter = new AtomicInteger();
+            this.queryPool = Executors.newFixedThreadPool(shardUrls.size(), r -> {
+                Thread t = new Thread(r, "message-shard-query-" + counter.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+            logger.info("Messages sharded across {} databases", shardUrls.size());
+        } else {
+            this.queryPool = null;
+        }
+    }
+
+    public static synchronized MessageShardRouter getInstance() {
+        if (instance == null) {
+            instance = new MessageShardRouter();
+        }
+        return instance;
+    }
+
+    public int getShardCount() {
+        return shardUrls.size();
+    }
+
+    public boolean isSharded() {
+        return shardUrls.size() > 1;
+    }
+
+    /**
+     * Shard holding a conversation's history
+     */
+    public int shardOf(long conversationKey) {
+        if (!isSharded()) return 0;
+
+        Integer cached = shardByConversation.get(conversationKey);
+        if (cached != null) return cached;
+
+        ensureMappingReady();
+        Integer stored = lookupMapping(conversationKey);
+        if (stored == null) {
+            stored = assign(conversationKey);
+        }
+        if (stored == null) {
+            // Không đọc/ghi được bảng ánh xạ: dùng hash, không cache để lần sau thử lại
+            logger.warn("Shard mapping unavailable for conversation {}, using hash", conversationKey);
+            return hashShard(conversationKey);
+        }
+        shardByConversation.put(conversationKey, stored);
+        return stored;
+    }
+
+    /**
+     * Pooled connection for writing messages of a conversation (primary of its shard)
+     */
+    public Connection getWriteConnection(long conversationKey) throws SQLException {
+        return getShardConnection(shardOf(conversationKey));
+    }
+
+    /**
+     * Reserve count consecutive message IDs from the central sequence; returns the first one.
+     * Only used when sharded (a single database keeps AUTO_INCREMENT).
+     */
+    public int reserveMessageIds(int count) throws SQLException {
+        ensureSequenceReady();
+
+        try (Connection conn = dbManager.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(RESERVE_IDS_SQL)) {
+            pstmt.setInt(1, count);
+            if (pstmt.executeUpdate() == 0) {
+                throw new SQLException("message_id_sequence is not initialised");
+            }
+            try (Statement stmt = conn.createStatement();
+                 ResultSet rs = stmt.executeQuery("SELECT LAST_INSERT_ID()")) {
+                rs.next();
+                // LAST_INSERT_ID() = next_id sau khi cộng: dải giữ được là [next_id - count, next_id)
+                return (int) (rs.getLong(1) - count);
+            }
+        }
+    }
+
+    /**
+     * Connection for reading a conversation's history. Shard 0 reads may go to a replica.
+     */
+    public Connection getReadConnection(long conversationKey) throws SQLException {
+        int shard = shardOf(conversationKey);
+        if (shard == 0) {
+            return dbManager.getConversationReadConnection(conversationKey);
+        }
+        return shardPools.get(shard).getConnection();
+    }
+
+    /**
+     * Connection to the primary of a shard (never a replica)
+     */
+    public Connection getShardConnection(int shard) throws SQLException {
+        if (shard == 0) {
+            return dbManager.getConnection();
+        }
+        return shardPools.get(shard).getConnection();
+    }
+
+    /**
+     * Run a query on every shard in parallel and collect the per-shard results (shard order).
+     * A failing shard is logged and contributes no result.
+     */
+    public <T> List<T> queryAllShards(String description, ShardQuery<T> query) {
+        Map<Integer, ShardQuery<T>> queries = new TreeMap<>();
+        for (int shard = 0; shard < shardUrls.size(); shard++) {
+            queries.put(shard, query);
+        }
+        return queryShards(description, queries);
+    }
+
+    /**
+     * Run a different query on each given shard, in parallel when there is more than one,
+     * and collect the results in shard order. A failing shard is logged and contributes no result.
+     */
+    public <T> List<T> queryShards(String description, Map<Integer, ShardQuery<T>> queries) {
+        List<T> results = new ArrayList<>();
+        if (queries.size() <= 1 || queryPool == null) {
+            for (Map.Entry<Integer, ShardQuery<T>> entry : new TreeMap<>(queries).entrySet()) {
+                try (Connection conn = getShardConnection(entry.getKey())) {
+                    T result = entry.getValue().run(conn);
+                    if (result != null) results.add(result);
+                } catch (SQLException e) {
+                    logger.error("Error running {} on shard {}", description, entry.getKey(), e);
+                }
+            }
+            return results;
+        }
+
+        Map<Integer, CompletableFuture<T>> futures = new TreeMap<>();
+        for (Map.Entry<Integer, ShardQuery<T>> entry : queries.entrySet()) {
+            int target = entry.getKey();
+            ShardQuery<T> query = entry.getValue();
+            futures.put(target, CompletableFuture.supplyAsync(() -> {
+                try (Connection conn = getShardConnection(target)) {
+                    return query.run(conn);
+                } catch (SQLException e) {
+                    throw new CompletionException(e);
+                }
+            }, queryPool));
+        }
+
+        for (Map.Entry<Integer, CompletableFuture<T>> entry : futures.entrySet()) {
+            try {
+                T result = entry.getValue().join();
+                if (result != null) results.add(result);
+            } catch (CompletionException e) {
+                logger.error("Error running {} on shard {}", description, entry.getKey(), e.getCause());
+            }
+        }
+        return results;
+    }
+
+    public void shutdown() {
+        if (queryPool != null) {
+            queryPool.shutdown();
+        }
+        for (ConnectionPool pool : shardPools) {
+            if (pool != null) {
+                pool.close();
+            }
+        }
+    }
+
+    private synchronized void ensureSequenceReady() throws SQLException {
+        if (sequenceReady) return;
+
+        List<Long> maxIds = queryAllShards("MAX(message_id) lookup", conn -> {
+            try (Statement stmt = conn.createStatement();
+                 ResultSet rs = stmt.executeQuery("SELECT COALESCE(MAX(message_id), 0) FROM messages")) {
+                rs.next();
+                return rs.getLong(1);
+            }
+        });
+        if (maxIds.size() < shardUrls.size()) {
+            // Thiếu một shard thì có thể cấp trùng ID đã có trên shard đó
+            throw new SQLException("Could not read MAX(message_id) of every shard");
+        }
+
+        long maxId = 0;
+        for (long id : maxIds) {
+            maxId = Math.max(maxId, id);
+        }
+        try (Connection conn = dbManager.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(SEED_SEQUENCE_SQL)) {
+            pstmt.setLong(1, maxId + 1);
+            pstmt.executeUpdate();
+        }
+        sequenceReady = true;
+        logger.info("Message ID sequence seeded above {}", maxId);
+    }
+
+    private synchronized void ensureMappingReady() {
+        if (mappingReady) return;
+
+        try (Connection conn = dbManager.getConnection();
+             Statement stmt = conn.createStatement()) {
+            int adopted = stmt.executeUpdate(ADOPT_EXISTING_SQL);
+            mappingReady = true;
+            if (adopted > 0) {
+                logger.info("Pinned {} existing conversations to shard 0", adopted);
+            }
+        } catch (SQLException e) {
+            logger.error("Error preparing conversation shard mapping", e);
+        }
+    }
+
+    private Integer lookupMapping(long conversationKey) {
+        String sql = "SELECT shard_id FROM conversation_shards WHERE conversation_key = ?";
+
+        try (Connection conn = dbManager.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+
+            pstmt.setLong(1, conversationKey);
+            ResultSet rs = pstmt.executeQuery();
+            if (rs.next()) {
+                int shard = rs.getInt(1);
+                if (shard < shardUrls.size()) {
+                    return shard;
+                }
+                logger.error("Conversation {} mapped to unknown shard {}", conversationKey, shard);
+            }
+        } catch (SQLException e) {
+            logger.error("Error looking up shard of conversation {}", conversationKey, e);
+        }
+        return null;
+    }
+
+    private Integer assign(long conversationKey) {
+        String sql = "INSERT IGNORE INTO conversation_shards (conversation_key, shard_id) VALUES (?, ?)";
+
+        try (Connection conn = dbManager.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+
+            pstmt.setLong(1, conversationKey);
+            pstmt.setInt(2, hashShard(conversationKey));
+            pstmt.executeUpdate();
+        } catch (SQLException e) {
+            logger.error("Error assigning shard to conversation {}", conversationKey, e);
+            return null;
+        }
+        // Luồng khác có thể đã gán trước: đọc lại giá trị đã lưu
+        return lookupMapping(conversationKey);
+    }
+
+    private int hashShard(long conversationKey) {
+        return (int) Math.floorMod(ConversationKey.hash(conversationKey), (long) shardUrls.size());
+    }
+}
@@ -0,0 +1,112 @@
+package com.chatapp.server.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Pool riêng cho BCrypt (tốn CPU ~100ms mỗi lần ở cost 10).
+ * Số luồng bằng số core, hàng đợi có giới hạn; khi đầy thì từ chối ngay
+ * thay vì làm nghẽn các luồng xử lý kết nối.
+ */
+public class PasswordHashingPool {
+    private static final Logger logger = LoggerFactory.getLogger(PasswordHashingPool.class);
+
+    private static final int QUEUE_CAPACITY = 256;
+
+    private static PasswordHashingPool instance;
+
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicInteger maxQueueDepth = new AtomicInteger();
+
+    private PasswordHashingPool() {
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors());
+        AtomicInteger counter = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(QUEUE_CAPACITY),
+                r -> {
+                    Thread t = new Thread(r, "password-hasher-" + counter.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    public static synchronized PasswordHashingPool getInstance() {
+        if (instance == null) {
+            instance = new PasswordHashingPool();
+        }
+        return instance;
+    }
+
+    public CompletableFuture<Boolean> verify(String plainPassword, String hashedPassword) {
+        return submit(() -> PasswordUtil.verifyPassword(plainPassword, hashedPassword));
+    }
+
+    public CompletableFuture<String> hash(String plainPassword) {
+        return submit(() -> PasswordUtil.hashPassword(plainPassword));
+    }
+
+    private <T> CompletableFuture<T> submit(Supplier<T> task) {
+        long enqueuedAt = System.nanoTime();
+        try {
+            CompletableFuture<T> future = CompletableFuture.supplyAsync(() -> {
+                totalWaitNanos.addAndGet(System.nanoTime() - enqueuedAt);
+                try {
+                    return task.get();
+                } finally {
+                    completed.incrementAndGet();
+                }
+            }, executor);
+            maxQueueDepth.accumulateAndGet(executor.getQueue().size(), Math::max);
+            return future;
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            logger.warn("Password hashing queue full ({} pending), rejecting request", executor.getQueue().size());
+            CompletableFuture<T> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * Average time a task waited in the queue, in milliseconds
+     */
+    public double getAverageWaitMillis() {
+        long done = completed.get();
+        return done == 0 ? 0.0 : totalWaitNanos.get() / 1_000_000.0 / done;
+    }
+
+    public void logStats() {
+        logger.info("Password hashing: completed={}, rejected={}, queueDepth={}, maxQueueDepth={}, avgWait={}ms",
+                completed.get(), rejected.get(), getQueueDepth(), maxQueueDepth.get(),
+                String.format("%.1f", getAverageWaitMillis()));
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,195 @@
+package com.chatapp.server.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Chọn nơi chạy các truy vấn chỉ đọc (lịch sử tin nhắn, nhóm, cuộc gọi...).
+ * Replica khai báo qua biến môi trường CHAT_DB_REPLICAS (danh sách JDBC URL,
+ * phân cách bằng dấu phẩy); không khai báo thì mọi truy vấn vẫn chạy trên primary.
+ * - Round-robin giữa các replica đang khỏe; mỗi replica có ConnectionPool riêng (DB_POOL_SIZE)
+ * - Replica trễ quá MAX_LAG_SECONDS hoặc lỗi kết nối bị loại cho đến lần kiểm tra sau
+ * - Read-your-writes: user / cuộc hội thoại vừa ghi đọc từ primary trong READ_YOUR_WRITES_MILLIS
+ */
+public class ReplicaRouter {
+    private static final Logger logger = LoggerFactory.getLogger(ReplicaRouter.class);
+
+    private static final String REPLICAS_ENV = "CHAT_DB_REPLICAS";
+    private static final int MAX_LAG_SECONDS = 2;
+    private static final long PROBE_INTERVAL_MILLIS = 2000;
+    // Lớn hơn độ trễ tối đa cộng chu kỳ kiểm tra
+    private static final long READ_YOUR_WRITES_MILLIS = 5000;
+
+    private final List<Replica> replicas;
+    private final AtomicInteger nextReplica = new AtomicInteger();
+    private final ConcurrentHashMap<Integer, Long> userWrites = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, Long> conversationWrites = new ConcurrentHashMap<>();
+    private ScheduledExecutorService prober;
+
+    ReplicaRouter(String user, String password) {
+        List<Replica> configured = new ArrayList<>();
+        String urls = System.getenv(REPLICAS_ENV);
+        if (urls != null) {
+            for (String url : urls.split(",")) {
+                if (!url.trim().isEmpty()) {
+                    configured.add(new Replica(url.trim(), user, password));
+                }
+            }
+        }
+        this.replicas = Collections.unmodifiableList(configured);
+    }
+
+    void start() {
+        if (replicas.isEmpty()) {
+            logger.info("No read replicas configured ({} not set), reads use the primary", REPLICAS_ENV);
+            return;
+        }
+
+        prober = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "replica-lag-probe");
+            t.setDaemon(true);
+            return t;
+        });
+        prober.scheduleWithFixedDelay(this::probeAll, 0, PROBE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        logger.info("Routing reads to {} replica(s)", replicas.size());
+    }
+
+    void stop() {
+        if (prober != null) {
+            prober.shutdownNow();
+        }
+        for (Replica replica : replicas) {
+            replica.pool.close();
+        }
+    }
+
+    void noteUserWrite(int userId) {
+        if (!replicas.isEmpty()) {
+            userWrites.put(userId, System.currentTimeMillis());
+        }
+    }
+
+    void noteConversationWrite(long conversationKey) {
+        if (!replicas.isEmpty()) {
+            conversationWrites.put(conversationKey, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Connection to a healthy replica for this user, or null if the primary must be used
+     */
+    Connection forUser(int userId) {
+        if (replicas.isEmpty() || wroteRecently(userWrites, userId)) return null;
+        return nextHealthy();
+    }
+
+    /**
+     * Connection to a healthy replica for this conversation, or null if the primary must be used
+     */
+    Connection forConversation(long conversationKey) {
+        if (replicas.isEmpty() || wroteRecently(conversationWrites, conversationKey)) return null;
+        return nextHealthy();
+    }
+
+    private <K> boolean wroteRecently(ConcurrentHashMap<K, Long> writes, K key) {
+        Long writtenAt = writes.get(key);
+        if (writtenAt == null) return false;
+        if (System.currentTimeMillis() - writtenAt < READ_YOUR_WRITES_MILLIS) return true;
+        writes.remove(key, writtenAt);
+        return false;
+    }
+
+    private Connection nextHealthy() {
+        int size = replicas.size();
+        int start = Math.floorMod(nextReplica.getAndIncrement(), size);
+        for (int i = 0; i < size; i++) {
+            Replica replica = replicas.get((start + i) % size);
+            if (!replica.healthy) continue;
+            try {
+                // Mượn từ pool của replica, try-with-resources của service trả lại
+                return replica.pool.getConnection();
+            } catch (SQLException e) {
+                logger.warn("Replica {} unavailable, falling back", replica.url, e);
+                replica.healthy = false;
+            }
+        }
+        return null;
+    }
+
+    private void probeAll() {
+        for (Replica replica : replicas) {
+            boolean healthy = false;
+            try (Connection conn = replica.pool.getConnection()) {
+                long lag = readLagSeconds(conn);
+                healthy = lag >= 0 && lag <= MAX_LAG_SECONDS;
+                if (!healthy) {
+                    logger.warn("Replica {} lagging ({} s), reads go to other replicas or the primary",
+                            replica.url, lag);
+                }
+            } catch (SQLException e) {
+                logger.warn("Replica {} lag probe failed: {}", replica.url, e.getMessage());
+            }
+            if (healthy != replica.healthy) {
+                logger.info("Replica {} is now {}", replica.url, healthy ? "in rotation" : "out of rotation");
+            }
+            replica.healthy = healthy;
+        }
+
+        // Dọn dấu ghi đã hết hạn
+        long cutoff = System.currentTimeMillis() - READ_YOUR_WRITES_MILLIS;
+        userWrites.values().removeIf(t -> t < cutoff);
+        conversationWrites.values().removeIf(t -> t < cutoff);
+    }
+
+    /**
+     * Seconds behind the primary; -1 if replication is stopped (NULL lag).
+     * An instance with no replication configured counts as up to date.
+     */
+    private long readLagSeconds(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            ResultSet rs;
+            try {
+                rs = stmt.executeQuery("SHOW REPLICA STATUS");
+            } catch (SQLException e) {
+                // MySQL < 8.0.22
+                rs = stmt.executeQuery("SHOW SLAVE STATUS");
+            }
+            if (!rs.next()) return 0;
+
+            ResultSetMetaData meta = rs.getMetaData();
+            for (int i = 1; i <= meta.getColumnCount(); i++) {
+                String column = meta.getColumnLabel(i);
+                if ("Seconds_Behind_Source".equalsIgnoreCase(column) || "Seconds_Behind_Master".equalsIgnoreCase(column)) {
+                    long lag = rs.getLong(i);
+                    return rs.wasNull() ? -1 : lag;
+                }
+            }
+            return -1;
+        }
+    }
+
+    private static class Replica {
+        private final String url;
+        private final ConnectionPool pool;
+        private volatile boolean healthy;
+
+        Replica(String url, String user, String password) {
+            this.url = url;
+            this.pool = new ConnectionPool("replica " + url, url, user, password, DatabaseManager.DB_POOL_SIZE);
+        }
+    }
+}
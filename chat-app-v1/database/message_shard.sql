@@ -0,0 +1,24 @@
+-- Bảng messages trên một shard phụ (khai báo trong CHAT_DB_MESSAGE_SHARDS)
+-- Chạy trên từng shard. message_id do server cấp từ message_id_sequence của DB chính,
+-- nên không dùng AUTO_INCREMENT; users/chat_groups nằm ở DB chính nên không có khóa ngoại.
+CREATE DATABASE IF NOT EXISTS chat_app_db CHARACTER SET utf8mb4 COLLATE utf8mb4_unicode_ci;
+USE chat_app_db;
+
+CREATE TABLE IF NOT EXISTS messages (
+    message_id INT PRIMARY KEY,
+    sender_id INT NOT NULL,
+    receiver_id INT NULL,  -- NULL nếu là group message
+    group_id INT NULL,     -- NULL nếu là private message
+    message_type ENUM('TEXT', 'IMAGE', 'FILE', 'VIDEO', 'AUDIO') DEFAULT 'TEXT',
+    message_content TEXT NOT NULL,
+    file_url VARCHAR(500),
+    file_name VARCHAR(255),
+    file_size BIGINT,
+    is_read BOOLEAN DEFAULT FALSE,
+    sent_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
+    INDEX idx_private_messages (sender_id, receiver_id),
+    INDEX idx_group_messages (group_id),
+    INDEX idx_sent_at (sent_at),
+    CHECK ((receiver_id IS NOT NULL AND group_id IS NULL) OR
+           (receiver_id IS NULL AND group_id IS NOT NULL))
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci;
@@ -144,6 +144,76 @@ CREATE TABLE IF NOT EXISTS notifications (
     INDEX idx_created_at (created_at)
 ) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci;
 
+-- Bảng Conversation Reads (watermark đã đọc + bộ đếm chưa đọc theo từng cuộc hội thoại)
+-- conversation_key: chat riêng = (LEAST(a,b) << 32) | GREATEST(a,b), chat nhóm = -group_id - 1
+CREATE TABLE IF NOT EXISTS conversation_reads (
+    user_id INT NOT NULL,
+    conversation_key BIGINT NOT NULL,
+    last_read_message_id INT NOT NULL DEFAULT 0,
+    unread_count INT NOT NULL DEFAULT 0,
+    updated_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP,
+    PRIMARY KEY (user_id, conversation_key),
+    FOREIGN KEY (user_id) REFERENCES users(user_id) ON DELETE CASCADE
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci;
+
+-- Bảng ánh xạ cuộc hội thoại -> shard chứa bảng messages
+-- (conversation_key: xem ConversationKey; shard 0 = DB chính)
+CREATE TABLE IF NOT EXISTS conversation_shards (
+    conversation_key BIGINT PRIMARY KEY,
+    shard_id INT NOT NULL,
+    assigned_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci;
+
+-- Bộ cấp message_id khi bảng messages chia shard (một dòng, id = 1)
+-- Server khởi tạo next_id lớn hơn MAX(message_id) của mọi shard ở lần ghi đầu tiên
+CREATE TABLE IF NOT EXISTS message_id_sequence (
+    id TINYINT PRIMARY KEY,
+    next_id BIGINT NOT NULL
+) ENGINE=InnoDB;
+
+-- Bảng Blobs (file lưu theo nội dung: uploads/blobs/ab/cd/<sha256>)
+-- ref_count = số tin nhắn trỏ tới file; blob có ref_count = 0 lâu không dùng sẽ bị GC xóa
+CREATE TABLE IF NOT EXISTS blobs (
+    sha256 CHAR(64) PRIMARY KEY,
+    size BIGINT NOT NULL,
+    ref_count INT NOT NULL DEFAULT 0,
+    created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
+    last_used_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
+    INDEX idx_unreferenced (ref_count, last_used_at)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci;
+
+-- Cuộc hội thoại đã gửi mỗi blob: chỉ thành viên của chúng được tải file (DownloadServer)
+CREATE TABLE IF NOT EXISTS blob_conversations (
+    sha256 CHAR(64) NOT NULL,
+    conversation_key BIGINT NOT NULL,
+    PRIMARY KEY (sha256, conversation_key),
+    FOREIGN KEY (sha256) REFERENCES blobs(sha256) ON DELETE CASCADE
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci;
+
+-- Điền cho các file đã gửi trước khi có bảng trên (chạy lại được)
+INSERT IGNORE INTO blob_conversations (sha256, conversation_key)
+SELECT b.sha256, CASE WHEN m.group_id IS NOT NULL THEN -m.group_id - 1
+       ELSE (LEAST(m.sender_id, m.receiver_id) << 32) | GREATEST(m.sender_id, m.receiver_id) END
+FROM messages m
+JOIN blobs b ON b.sha256 = SUBSTRING_INDEX(m.file_url, '/', -1)
+WHERE m.file_url LIKE 'uploads/blobs/%';
+
+-- File upload kiểu cũ (uploads/images|files|videos|audio/<uuid>_<tên>, trước khi có blobs):
+-- cuộc hội thoại đã gửi mỗi file, để DownloadServer cho thành viên tải. Không còn file cũ mới
+-- được tạo nên chỉ cần điền một lần từ messages (chạy lại được)
+CREATE TABLE IF NOT EXISTS legacy_file_conversations (
+    file_url VARCHAR(500) NOT NULL,
+    conversation_key BIGINT NOT NULL,
+    PRIMARY KEY (file_url, conversation_key)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci;
+
+INSERT IGNORE INTO legacy_file_conversations (file_url, conversation_key)
+SELECT m.file_url, CASE WHEN m.group_id IS NOT NULL THEN -m.group_id - 1
+       ELSE (LEAST(m.sender_id, m.receiver_id) << 32) | GREATEST(m.sender_id, m.receiver_id) END
+FROM messages m
+WHERE m.file_url LIKE 'uploads/images/%' OR m.file_url LIKE 'uploads/files/%'
+   OR m.file_url LIKE 'uploads/videos/%' OR m.file_url LIKE 'uploads/audio/%';
+
 -- Insert admin user mẫu (password: admin123)
 INSERT INTO users (username, email, password_hash, full_name, user_status) VALUES
 ('admin', 'admin@chatapp.com', '$2a$10$N9qo8uLOickgx2ZMRZoMyeIjZAgcfl7p92ldGxad68LJZdL17lhWy', 'Administrator', 'ONLINE');
@@ -6,6 +6,6 @@ echo Starting Chat Server...
 cd ChatServer
 
 REM Compile and run
-mvn clean compile exec:java -Dexec.mainClass="com.chatapp.server.ChatServer"
+mvn clean compile exec:java -Djava.awt.headless=true -Dexec.mainClass="com.chatapp.server.ChatServer"
 
 pause
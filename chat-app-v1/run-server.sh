@@ -7,4 +7,4 @@ echo "Starting Chat Server..."
 cd ChatServer
 
 # Compile and run
-mvn clean compile exec:java -Dexec.mainClass="com.chatapp.server.ChatServer"
+mvn clean compile exec:java -Djava.awt.headless=true -Dexec.mainClass="com.chatapp.server.ChatServer"